@@ -0,0 +1,74 @@
+package com.descartes.gos.jimap.bench;
+
+/**
+ * The commands that are benchmarked, with their command lines for a mailbox of a given size.
+ */
+public enum BenchCommand {
+
+	/** Logs in on a recycled session, the logout of the session is part of the command. */
+	LOGIN,
+	SELECT,
+	/** Scans the flags of all messages. */
+	SEARCH,
+	/** Fetches flags, size and headers of the last (up to) 50 messages. */
+	FETCH,
+	/** Alternately sets and clears a flag on the first message, so that each command changes the flags. */
+	STORE,
+	/** No messages are marked deleted, so this measures the scan for deleted messages. */
+	EXPUNGE,
+	/** Appends to {@link #APPEND_MAILBOX}, not to the (selected) INBOX. */
+	APPEND;
+
+	public static final String APPEND_MAILBOX = "Append";
+	public static final String TAG = "a";
+
+	/**
+	 * @param messages amount of messages in the selected mailbox.
+	 * @return the complete (first) command including line-end and literal data.
+	 */
+	public byte[] toBytes(int messages) {
+		return toBytes(messages, 0);
+	}
+
+	/**
+	 * @return amount of different commands that are executed in turn, see {@link #toBytes(int, int)}.
+	 */
+	public int variants() {
+		return (this == STORE ? 2 : 1);
+	}
+
+	/**
+	 * @param variant from 0 to {@link #variants()} (exclusive).
+	 * @return the complete command including line-end and literal data.
+	 */
+	public byte[] toBytes(int messages, int variant) {
+
+		switch (this) {
+		case LOGIN: return ImapChain.toBytes(TAG + " LOGIN " + ImapChain.USER + " " + ImapChain.PASSWORD);
+		case SELECT: return ImapChain.toBytes(TAG + " SELECT INBOX");
+		case SEARCH: return ImapChain.toBytes(TAG + " SEARCH UNSEEN");
+		case FETCH: return ImapChain.toBytes(TAG + " FETCH " + Math.max(1, messages - 49) + ":* (UID FLAGS RFC822.SIZE BODY.PEEK[HEADER])");
+		case STORE: return ImapChain.toBytes(TAG + " STORE 1 " + (variant == 0 ? "+" : "-") + "FLAGS.SILENT (\\Flagged)");
+		case EXPUNGE: return ImapChain.toBytes(TAG + " EXPUNGE");
+		default: return ImapChain.appendCommand(TAG, APPEND_MAILBOX);
+		}
+	}
+
+	/**
+	 * @return true when the command can only be executed on a session that is not logged in.
+	 */
+	public boolean requiresNewSession() {
+		return (this == LOGIN);
+	}
+
+	/**
+	 * Throws an {@link IllegalStateException} when the response to a command is not a tagged OK.
+	 */
+	public static void verify(String command, String response) {
+
+		if (!response.startsWith(TAG + " OK") && !response.contains("\r\n" + TAG + " OK")) {
+			throw new IllegalStateException("Command [" + command + "] failed: " + response);
+		}
+	}
+
+}
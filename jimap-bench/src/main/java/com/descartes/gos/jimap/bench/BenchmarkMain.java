@@ -0,0 +1,20 @@
+package com.descartes.gos.jimap.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler (allocation rate per operation) always enabled.
+ * Accepts the usual JMH command line options, e.g. <code>java -jar benchmarks.jar StageBenchmark -p command=FETCH</code>.
+ */
+public class BenchmarkMain {
+
+	public static void main(String... args) throws Exception {
+
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(cmdOptions).addProfiler(GCProfiler.class).build()).run();
+	}
+
+}
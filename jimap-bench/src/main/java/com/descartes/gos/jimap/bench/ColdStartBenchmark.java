@@ -0,0 +1,68 @@
+package com.descartes.gos.jimap.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.TestCommands;
+import com.descartes.gos.jimap.engine.CommandResults;
+import com.descartes.gos.jimap.engine.ImapEngine;
+
+/**
+ * Measures the time from building an engine to the response of the first commands (LOGIN and SELECT) in a fresh JVM.
+ * <code>firstEngine</code> is the cold start of a process, <code>nextEngine</code> builds an engine
+ * after another engine was built (and used once), which re-uses the shared decoder and encoder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10)
+public class ColdStartBenchmark {
+
+	private static final byte[] COMMANDS = ("a LOGIN " + ImapChain.USER + " " + ImapChain.PASSWORD + "\r\n"
+			+ "b SELECT INBOX\r\n").getBytes(TestCommands.CS);
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// Debug logging of the chain would dominate the measurements.
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(ch.qos.logback.classic.Level.WARN);
+	}
+
+	@Benchmark
+	public CommandResults firstEngine() throws Exception {
+		return firstCommands(ImapEngine.builder().build());
+	}
+
+	@Benchmark
+	public CommandResults nextEngine() throws Exception {
+
+		firstCommands(ImapEngine.builder().build());
+		return firstCommands(ImapEngine.builder().build());
+	}
+
+	private static CommandResults firstCommands(ImapEngine engine) {
+
+		JimapSession session = engine.openSession();
+		CommandResults results = new CommandResults();
+		engine.execute(session, ByteBuffer.wrap(COMMANDS), results);
+		engine.closeSession(session);
+		return results;
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.descartes.gos.jimap.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.TestCommands;
+
+/**
+ * Measures the CPU time of compressing the responses to a command for COMPRESS=DEFLATE,
+ * the bandwidth saved is reported by the {@link Sizes} counters (compressed bytes against response bytes).
+ * <br>Responses are compressed the way a compressed connection does: one deflater per session that keeps
+ * its dictionary between commands, and a sync flush after the responses to each command.
+ * Level -1 copies the responses without compressing, as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class CompressionBenchmark {
+
+	@Param({ "1000" })
+	public int messages;
+
+	@Param({ "SELECT", "SEARCH", "FETCH" })
+	public BenchCommand command;
+
+	@Param({ "-1", "1", "6", "9" })
+	public int level;
+
+	@Param({ "65536" })
+	public int bufferSize;
+
+	private byte[] response;
+	private byte[] out;
+	private Deflater deflater;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+
+		ImapChain chain = new ImapChain();
+		chain.createMailbox("INBOX", messages);
+		JimapSession session = chain.selectedSession("INBOX");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		chain.handler.handleRequest(ImapChain.command(command.toBytes(messages)), bytes, session);
+		response = bytes.toByteArray();
+		BenchCommand.verify(command.name(), new String(response, TestCommands.CS));
+		out = new byte[bufferSize];
+		if (level >= 0) {
+			deflater = new Deflater(level, true);
+		}
+	}
+
+	/**
+	 * Response and compressed bytes of all commands of an iteration (the commands run on one session).
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Sizes {
+
+		public long responseBytes;
+		public long compressedBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+
+			responseBytes = 0L;
+			compressedBytes = 0L;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+
+	@Benchmark
+	public long deflate(Sizes sizes) {
+
+		long compressed = compress();
+		sizes.responseBytes += response.length;
+		sizes.compressedBytes += compressed;
+		return compressed;
+	}
+
+	/**
+	 * @return the compressed size of the responses.
+	 */
+	private long compress() {
+
+		if (deflater == null) {
+			long copied = 0L;
+			for (int off = 0; off < response.length; off += out.length) {
+				int length = Math.min(out.length, response.length - off);
+				System.arraycopy(response, off, out, 0, length);
+				copied += length;
+			}
+			return copied;
+		}
+		long written = deflater.getBytesWritten();
+		deflater.setInput(response);
+		while (!deflater.needsInput()) {
+			deflater.deflate(out, 0, out.length, Deflater.NO_FLUSH);
+		}
+		while (deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH) == out.length) {
+			// flushing
+		}
+		return deflater.getBytesWritten() - written;
+	}
+
+}
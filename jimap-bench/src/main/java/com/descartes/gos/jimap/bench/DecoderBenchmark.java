@@ -0,0 +1,82 @@
+package com.descartes.gos.jimap.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestLineReader;
+import org.apache.james.imap.main.DefaultImapDecoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.decode.FastPathDecoder;
+
+/**
+ * Compares the default decoder with the {@link FastPathDecoder} on the commands of synchronizing clients,
+ * e.g. <code>java -jar benchmarks.jar DecoderBenchmark -p command=UID_FETCH</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecoderBenchmark {
+
+	public enum Command {
+
+		NOOP("a NOOP"),
+		IDLE("a IDLE"),
+		UID_FETCH("a UID FETCH 1:4,7,9:12,20:* (UID FLAGS RFC822.SIZE INTERNALDATE)"),
+		UID_FETCH_CHANGEDSINCE("a UID FETCH 1:* (FLAGS) (CHANGEDSINCE 12345 VANISHED)"),
+		UID_STORE("a UID STORE 17,19,23:25 +FLAGS.SILENT (\\Seen \\Flagged $Label1)"),
+		UID_SEARCH("a UID SEARCH UNDELETED UNSEEN UID 100:*");
+
+		final String line;
+
+		Command(String line) {
+			this.line = line;
+		}
+	}
+
+	@Param({ "DEFAULT", "FAST_PATH" })
+	public String decoder;
+
+	@Param({ "NOOP", "IDLE", "UID_FETCH", "UID_FETCH_CHANGEDSINCE", "UID_STORE", "UID_SEARCH" })
+	public Command command;
+
+	private ImapDecoder imapDecoder;
+	private JimapSession session;
+	private byte[] commandBytes;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+
+		ImapChain chain = new ImapChain();
+		chain.createMailbox("INBOX", 10);
+		session = chain.selectedSession("INBOX");
+		ImapDecoder defaultDecoder = DefaultImapDecoderFactory.createDecoder();
+		imapDecoder = ("FAST_PATH".equals(decoder) ? new FastPathDecoder(defaultDecoder) : defaultDecoder);
+		commandBytes = ImapChain.toBytes(command.line);
+	}
+
+	@Benchmark
+	public ImapMessage decode() throws Exception {
+
+		ImapRequestLineReader reader = ImapChain.command(commandBytes);
+		reader.nextChar();
+		return imapDecoder.decode(reader, session);
+	}
+
+}
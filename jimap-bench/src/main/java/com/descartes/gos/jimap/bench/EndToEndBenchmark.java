@@ -0,0 +1,138 @@
+package com.descartes.gos.jimap.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.metrics.ImapMetrics;
+
+/**
+ * Measures commands handled by the complete chain
+ * ({@link org.apache.james.imap.decode.main.ImapRequestStreamHandler}) as done by the NIO server:
+ * from a framed command in a buffer to the response bytes.
+ * <br>With <code>metrics=true</code> the handler records {@link ImapMetrics}, to measure the cost of the instrumentation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class EndToEndBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int messages;
+
+	@Param({ "false" })
+	public boolean metrics;
+
+	private ImapChain chain;
+	private JimapSession session;
+	private ByteArrayOutputStream out;
+	/** Per command its variants, executed in turn. */
+	private byte[][][] commands;
+	private int[] variants;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+
+		chain = new ImapChain();
+		if (metrics) {
+			chain.handler.setMetrics(new ImapMetrics());
+		}
+		chain.createMailbox("INBOX", messages);
+		chain.createMailbox(BenchCommand.APPEND_MAILBOX, 0);
+		session = chain.selectedSession("INBOX");
+		out = new ByteArrayOutputStream(64 * 1024);
+		commands = new byte[BenchCommand.values().length][][];
+		variants = new int[commands.length];
+		for (BenchCommand c : BenchCommand.values()) {
+			commands[c.ordinal()] = new byte[c.variants()][];
+			for (int i = 0; i < c.variants(); i++) {
+				commands[c.ordinal()][i] = c.toBytes(messages, i);
+				JimapSession s = (c.requiresNewSession() ? chain.openSession() : session);
+				BenchCommand.verify(c.name(), chain.execute(commands[c.ordinal()][i], s));
+				if (s != session) {
+					chain.closeSession(s);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps the amount of messages in the append-mailbox small.
+	 */
+	@Setup(Level.Iteration)
+	public void resetAppendMailbox() throws Exception {
+		chain.createMailbox(BenchCommand.APPEND_MAILBOX, 0);
+	}
+
+	private int handle(BenchCommand c, JimapSession s) throws IOException {
+
+		byte[][] command = commands[c.ordinal()];
+		int v = variants[c.ordinal()];
+		variants[c.ordinal()] = (v + 1) % command.length;
+		out.reset();
+		chain.handler.handleRequest(ImapChain.command(command[v]), out, s);
+		return out.size();
+	}
+
+	/**
+	 * Includes the logout of the session, so that mailbox sessions do not pile up.
+	 */
+	@Benchmark
+	public int login() throws IOException {
+
+		JimapSession s = chain.openSession();
+		try {
+			return handle(BenchCommand.LOGIN, s);
+		} finally {
+			chain.closeSession(s);
+		}
+	}
+
+	@Benchmark
+	public int select() throws IOException {
+		return handle(BenchCommand.SELECT, session);
+	}
+
+	@Benchmark
+	public int search() throws IOException {
+		return handle(BenchCommand.SEARCH, session);
+	}
+
+	@Benchmark
+	public int fetch() throws IOException {
+		return handle(BenchCommand.FETCH, session);
+	}
+
+	@Benchmark
+	public int store() throws IOException {
+		return handle(BenchCommand.STORE, session);
+	}
+
+	@Benchmark
+	public int expunge() throws IOException {
+		return handle(BenchCommand.EXPUNGE, session);
+	}
+
+	@Benchmark
+	public int append() throws IOException {
+		return handle(BenchCommand.APPEND, session);
+	}
+
+}
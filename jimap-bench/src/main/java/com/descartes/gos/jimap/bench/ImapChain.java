@@ -0,0 +1,187 @@
+package com.descartes.gos.jimap.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestBufferLineReader;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.inmemory.InMemoryMailboxSessionMapperFactory;
+import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.TestCommands;
+import com.descartes.gos.jimap.engine.ImapEngine;
+import com.descartes.gos.jimap.shard.ShardedMailboxManager;
+import com.descartes.gos.jimap.store.OffHeapMailboxSessionMapperFactory;
+
+/**
+ * The decode, process and encode chain of {@link TestCommands} on an in-memory mailbox store,
+ * with the stages available separately for per-stage benchmarks.
+ * With system property <code>jimap.offHeap=true</code> message contents are kept off-heap
+ * ({@link OffHeapMailboxSessionMapperFactory}).
+ * With <code>jimap.shards</code> larger than 1 users are spread over that many stores ({@link ShardedMailboxManager}).
+ */
+public class ImapChain {
+
+	private static Logger log = LoggerFactory.getLogger(ImapChain.class);
+
+	public static final String USER = "bench";
+	public static final String PASSWORD = "secret";
+
+	/** A small but complete message, every mailbox is filled with copies of it. */
+	public static final byte[] MESSAGE = ("From: sender@example.com\r\n"
+			+ "To: bench@example.com\r\n"
+			+ "Subject: benchmark message\r\n"
+			+ "Date: Mon, 7 Feb 1994 21:52:25 -0800\r\n"
+			+ "Message-ID: <B27397-0100000@example.com>\r\n"
+			+ "MIME-Version: 1.0\r\n"
+			+ "Content-Type: text/plain; charset=US-ASCII\r\n"
+			+ "\r\n"
+			+ "Hello, this is a message used for benchmarking IMAP commands.\r\n").getBytes(TestCommands.CS);
+
+	public final ImapDecoder decoder;
+	public final ImapProcessor processor;
+	public final ImapEncoder encoder;
+	public final ImapRequestStreamHandler handler;
+	public final MailboxManager mailboxManager;
+	private final ImapEngine engine;
+
+	public ImapChain() throws Exception {
+
+		// Debug logging of the chain would dominate the measurements.
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+		int shards = Math.max(1, Integer.getInteger("jimap.shards", 1));
+		List<MailboxSessionMapperFactory<Long>> sessionMappers = new ArrayList<MailboxSessionMapperFactory<Long>>(shards);
+		for (int i = 0; i < shards; i++) {
+			sessionMappers.add(Boolean.getBoolean("jimap.offHeap")
+					? new OffHeapMailboxSessionMapperFactory() : new InMemoryMailboxSessionMapperFactory());
+		}
+		engine = ImapEngine.builder().setMapperFactories(sessionMappers).build();
+		mailboxManager = engine.getMailboxManager();
+		handler = engine.getHandler();
+		decoder = handler.getDecoder();
+		processor = handler.getProcessor();
+		encoder = handler.getEncoder();
+	}
+
+	/**
+	 * (Re-)creates a mailbox of {@link #USER} containing the given amount of messages.
+	 */
+	public void createMailbox(String name, int messages) throws Exception {
+		createMailbox(USER, name, messages);
+	}
+
+	/**
+	 * (Re-)creates a mailbox of the user containing the given amount of messages.
+	 */
+	public void createMailbox(String user, String name, int messages) throws Exception {
+
+		MailboxSession session = mailboxManager.createSystemSession(user, log);
+		MailboxPath path = new MailboxPath(MailboxConstants.USER_NAMESPACE, user, name);
+		if (mailboxManager.mailboxExists(path, session)) {
+			mailboxManager.deleteMailbox(path, session);
+		}
+		mailboxManager.createMailbox(path, session);
+		MessageManager mailbox = mailboxManager.getMailbox(path, session);
+		Date date = new Date();
+		for (int i = 0; i < messages; i++) {
+			mailbox.appendMessage(new ByteArrayInputStream(MESSAGE), date, session, false, new Flags());
+		}
+		log.info("Created mailbox " + name + " of " + user + " with " + messages + " messages.");
+	}
+
+	/**
+	 * @return a new or recycled session that is not logged in.
+	 */
+	public JimapSession openSession() {
+		return engine.openSession();
+	}
+
+	/**
+	 * Logs out the session (if needed) and recycles it.
+	 */
+	public void closeSession(JimapSession session) {
+		engine.closeSession(session);
+	}
+
+	/**
+	 * @return a logged in session with the given mailbox selected.
+	 */
+	public JimapSession selectedSession(String mailbox) throws IOException {
+
+		JimapSession session = new JimapSession();
+		execute("a LOGIN " + USER + " " + PASSWORD, session);
+		execute("b SELECT " + mailbox, session);
+		return session;
+	}
+
+	/**
+	 * Handles a command via the complete chain.
+	 * @return the response.
+	 */
+	public String execute(String command, JimapSession session) throws IOException {
+		return execute(toBytes(command), session);
+	}
+
+	/**
+	 * @param command complete command including line-end.
+	 */
+	public String execute(byte[] command, JimapSession session) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		handler.handleRequest(command(command), out, session);
+		return new String(out.toByteArray(), TestCommands.CS);
+	}
+
+	/**
+	 * @return a reader for one command (the line-end is added).
+	 */
+	public static ImapRequestBufferLineReader command(String command) {
+		return command(toBytes(command));
+	}
+
+	public static ImapRequestBufferLineReader command(byte[] command) {
+		return new ImapRequestBufferLineReader(ByteBuffer.wrap(command));
+	}
+
+	/**
+	 * @return the bytes of a command including line-end.
+	 */
+	public static byte[] toBytes(String command) {
+		return (command + "\r\n").getBytes(TestCommands.CS);
+	}
+
+	/**
+	 * @return an APPEND command with a synchronizing literal, the literal data is part of the command.
+	 */
+	public static byte[] appendCommand(String tag, String mailbox) {
+
+		byte[] line = (tag + " APPEND " + mailbox + " (\\Seen) {" + MESSAGE.length + "}\r\n").getBytes(TestCommands.CS);
+		byte[] command = new byte[line.length + MESSAGE.length + 2];
+		System.arraycopy(line, 0, command, 0, line.length);
+		System.arraycopy(MESSAGE, 0, command, line.length, MESSAGE.length);
+		command[command.length - 2] = '\r';
+		command[command.length - 1] = '\n';
+		return command;
+	}
+
+}
@@ -0,0 +1,82 @@
+package com.descartes.gos.jimap.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestBufferedLineReader;
+import org.apache.james.imap.decode.ImapRequestLineReader;
+import org.apache.james.imap.decode.ImapRequestStreamLineReader;
+import org.apache.james.imap.main.DefaultImapDecoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.descartes.gos.jimap.JimapSession;
+
+/**
+ * Compares decoding from an {@link ImapRequestStreamLineReader} (one <code>read()</code> call per octet)
+ * and an {@link ImapRequestBufferedLineReader} for a <code>UID FETCH</code> command with a long sequence set,
+ * e.g. <code>java -jar benchmarks.jar LineReaderBenchmark -p ranges=50</code>.
+ * The input stream is not buffered, like a socket input stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineReaderBenchmark {
+
+	@Param({ "STREAM", "BUFFERED" })
+	public String reader;
+
+	/** Amount of ranges in the sequence set. */
+	@Param({ "500" })
+	public int ranges;
+
+	private ImapDecoder decoder;
+	private JimapSession session;
+	private byte[] commandBytes;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+
+		ImapChain chain = new ImapChain();
+		chain.createMailbox("INBOX", 10);
+		session = chain.selectedSession("INBOX");
+		decoder = DefaultImapDecoderFactory.createDecoder();
+		StringBuilder sb = new StringBuilder("a UID FETCH ");
+		for (int r = 0; r < ranges; r++) {
+			if (r > 0) {
+				sb.append(',');
+			}
+			sb.append(r * 10 + 1).append(':').append(r * 10 + 5);
+		}
+		commandBytes = ImapChain.toBytes(sb.append(" (FLAGS)").toString());
+	}
+
+	@Benchmark
+	public ImapMessage decode() throws Exception {
+
+		ByteArrayInputStream in = new ByteArrayInputStream(commandBytes);
+		ImapRequestLineReader lineReader = ("BUFFERED".equals(reader) ? new ImapRequestBufferedLineReader(in, new ByteArrayOutputStream())
+				: new ImapRequestStreamLineReader(in, new ByteArrayOutputStream()));
+		lineReader.nextChar();
+		ImapMessage message = decoder.decode(lineReader, session);
+		lineReader.consumeLine();
+		return message;
+	}
+
+}
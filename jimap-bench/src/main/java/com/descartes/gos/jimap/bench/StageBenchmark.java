@@ -0,0 +1,147 @@
+package com.descartes.gos.jimap.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.decode.ImapRequestLineReader;
+import org.apache.james.imap.decode.main.OutputStreamImapResponseWriter;
+import org.apache.james.imap.encode.ImapResponseComposer;
+import org.apache.james.imap.encode.base.RawImapResponseComposer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.descartes.gos.jimap.JimapSession;
+
+/**
+ * Measures the decode, process and encode stage of a command separately.
+ * <br>The process stage of APPEND includes decoding: the decoded request holds the literal as a stream
+ * that can be read only once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class StageBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int messages;
+
+	@Param({ "LOGIN", "SELECT", "SEARCH", "FETCH", "STORE", "EXPUNGE", "APPEND" })
+	public BenchCommand command;
+
+	private ImapChain chain;
+	private JimapSession session;
+	/** The variants of the command, executed in turn. */
+	private byte[][] commands;
+	private ImapMessage[] requests;
+	private int variant;
+	private List<ImapResponseMessage> responses;
+	private ByteArrayOutputStream out;
+	private ImapResponseComposer composer;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+
+		chain = new ImapChain();
+		chain.createMailbox("INBOX", messages);
+		session = chain.selectedSession("INBOX");
+		commands = new byte[command.variants()][];
+		requests = new ImapMessage[commands.length];
+		for (int i = 0; i < commands.length; i++) {
+			commands[i] = command.toBytes(messages, i);
+			JimapSession s = openSession();
+			BenchCommand.verify(command.name(), chain.execute(commands[i], s));
+			closeSession(s);
+			requests[i] = decode(commands[i]);
+		}
+		responses = new ArrayList<ImapResponseMessage>();
+		JimapSession s = openSession();
+		chain.processor.process(decode(commands[0]), new ImapProcessor.Responder() {
+			public void respond(ImapResponseMessage message) {
+				responses.add(message);
+			}
+		}, s);
+		closeSession(s);
+		variant = 1 % commands.length;
+		out = new ByteArrayOutputStream(64 * 1024);
+		composer = new RawImapResponseComposer(new OutputStreamImapResponseWriter(out, false));
+	}
+
+	/**
+	 * Keeps the amount of messages in the append-mailbox small.
+	 */
+	@Setup(Level.Iteration)
+	public void resetAppendMailbox() throws Exception {
+		chain.createMailbox(BenchCommand.APPEND_MAILBOX, 0);
+	}
+
+	/**
+	 * @return a recycled session for commands that require a new session, else the selected session.
+	 */
+	private JimapSession openSession() {
+		return (command.requiresNewSession() ? chain.openSession() : session);
+	}
+
+	private void closeSession(JimapSession s) {
+
+		if (s != session) {
+			chain.closeSession(s);
+		}
+	}
+
+	@Benchmark
+	public ImapMessage decode() throws Exception {
+		return decode(commands[0]);
+	}
+
+	private ImapMessage decode(byte[] commandBytes) throws Exception {
+
+		ImapRequestLineReader reader = ImapChain.command(commandBytes);
+		reader.nextChar();
+		return chain.decoder.decode(reader, session);
+	}
+
+	@Benchmark
+	public void process(final Blackhole bh) throws Exception {
+
+		int v = variant;
+		variant = (v + 1) % commands.length;
+		JimapSession s = openSession();
+		chain.processor.process(command == BenchCommand.APPEND ? decode(commands[v]) : requests[v], new ImapProcessor.Responder() {
+			public void respond(ImapResponseMessage message) {
+				bh.consume(message);
+			}
+		}, s);
+		closeSession(s);
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+
+		out.reset();
+		for (ImapResponseMessage response : responses) {
+			chain.encoder.encode(response, composer, session);
+		}
+		return out.size();
+	}
+
+}
@@ -0,0 +1,19 @@
+package com.descartes.gos.jimap.load;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Executes commands for one IMAP session.
+ */
+public interface ImapClient extends Closeable {
+
+	/**
+	 * Executes a command and waits for the tagged response.
+	 * @param tag the tag for the command.
+	 * @param command the command without tag.
+	 * @return true when the tagged response is OK, false for NO or BAD.
+	 */
+	boolean execute(String tag, Script.Command command) throws IOException;
+
+}
@@ -0,0 +1,48 @@
+package com.descartes.gos.jimap.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.james.imap.decode.ImapRequestBufferLineReader;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+
+import com.descartes.gos.jimap.JimapSession;
+
+/**
+ * Executes commands directly on a request handler, without network I/O.
+ */
+public class InProcessClient implements ImapClient {
+
+	private final ImapRequestStreamHandler handler;
+	private final JimapSession session = new JimapSession();
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+
+	public InProcessClient(ImapRequestStreamHandler handler) {
+		this.handler = handler;
+	}
+
+	public boolean execute(String tag, Script.Command command) throws IOException {
+
+		byte[] prefix = (tag + " ").getBytes(StandardCharsets.US_ASCII);
+		byte[] data = command.getData();
+		byte[] tagged = new byte[prefix.length + data.length];
+		System.arraycopy(prefix, 0, tagged, 0, prefix.length);
+		System.arraycopy(data, 0, tagged, prefix.length, data.length);
+		out.reset();
+		session.bindLogContext();
+		try {
+			handler.handleRequest(new ImapRequestBufferLineReader(ByteBuffer.wrap(tagged)), out, session);
+		} finally {
+			session.unbindLogContext();
+		}
+		String response = new String(out.toByteArray(), StandardCharsets.US_ASCII);
+		return response.startsWith(tag + " OK") || response.contains("\r\n" + tag + " OK");
+	}
+
+	public void close() {
+		handler.closeSession(session);
+	}
+
+}
@@ -0,0 +1,193 @@
+package com.descartes.gos.jimap.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.bench.ImapChain;
+import com.descartes.gos.jimap.metrics.LatencyHistogram;
+
+/**
+ * Replays a script over concurrent sessions and reports latency percentiles and throughput per command.
+ * Each session repeatedly opens a client, executes the complete script and closes the client.
+ * <br>Settings via system properties:
+ * <ul>
+ * <li><code>load.target</code>: <code>inprocess</code> (default) to use a chain with an in-memory store
+ * in this JVM, or <code>host:port</code> of an IMAP server.</li>
+ * <li><code>load.sessions</code>: amount of concurrent sessions, default 10.</li>
+ * <li><code>load.repeat</code>: times each session runs the script, default 100.</li>
+ * <li><code>load.warmup</code>: times each session runs the script before measuring, default 10.</li>
+ * <li><code>load.transcript</code>: transcript file to replay (see {@link Script#fromTranscript(File)}).</li>
+ * <li><code>load.mix</code>: command mix used when there is no transcript (see {@link Script#fromMix(String, String, String, int, Random)}).</li>
+ * <li><code>load.mixLength</code>: amount of commands chosen from the mix per script, default 100.</li>
+ * <li><code>load.user</code> and <code>load.password</code>: login for mix scripts, default {@link ImapChain#USER}.</li>
+ * <li><code>load.users</code>: amount of distinct users of mix scripts, default 1. With more users, session i logs in as
+ * <code>load.user</code> followed by i modulo the amount of users.</li>
+ * <li><code>load.messages</code>: messages in the INBOX of each user for target <code>inprocess</code>, default 1000.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+	public static final String DEFAULT_MIX = "NOOP;2,SELECT INBOX;1,FETCH 1:10 (FLAGS);4,UID FETCH 1:* (FLAGS);1,"
+			+ "SEARCH UNSEEN;2,STORE 1 +FLAGS.SILENT (\\Seen);1";
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong errors = new AtomicLong();
+
+	private ImapRequestStreamHandler handler;
+	private InetSocketAddress address;
+
+	public static void main(String... args) {
+
+		try {
+			new LoadGenerator().run();
+		} catch (Exception e) {
+			log.error("Load generator failed", e);
+		}
+	}
+
+	private void run() throws Exception {
+
+		String target = System.getProperty("load.target", "inprocess");
+		int sessions = Integer.getInteger("load.sessions", 10);
+		int repeat = Integer.getInteger("load.repeat", 100);
+		int warmup = Integer.getInteger("load.warmup", 10);
+		String transcript = System.getProperty("load.transcript");
+		String user = System.getProperty("load.user", ImapChain.USER);
+		int users = Math.max(1, Integer.getInteger("load.users", 1));
+		if ("inprocess".equals(target)) {
+			ImapChain chain = new ImapChain();
+			for (int u = 0; u < Math.min(users, sessions); u++) {
+				chain.createMailbox(userName(user, users, u), "INBOX", Integer.getInteger("load.messages", 1000));
+			}
+			handler = chain.handler;
+		} else {
+			int colon = target.lastIndexOf(':');
+			address = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+		}
+		List<Script> scripts = new ArrayList<Script>();
+		for (int i = 0; i < sessions; i++) {
+			if (transcript == null) {
+				scripts.add(Script.fromMix(userName(user, users, i), System.getProperty("load.password", ImapChain.PASSWORD),
+						System.getProperty("load.mix", DEFAULT_MIX), Integer.getInteger("load.mixLength", 100), new Random(i)));
+			} else {
+				scripts.add(Script.fromTranscript(new File(transcript)));
+			}
+		}
+		log.info("Running " + sessions + " sessions against " + target + ", " + warmup + " warmup and " + repeat + " measured runs per session.");
+		runSessions(scripts, warmup, false);
+		long start = System.nanoTime();
+		runSessions(scripts, repeat, true);
+		report(System.nanoTime() - start);
+	}
+
+	private static String userName(String user, int users, int session) {
+		return (users == 1 ? user : user + (session % users));
+	}
+
+	private void runSessions(List<Script> scripts, final int repeat, final boolean measure) throws InterruptedException {
+
+		final CountDownLatch done = new CountDownLatch(scripts.size());
+		for (int i = 0; i < scripts.size(); i++) {
+			final Script script = scripts.get(i);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int r = 0; r < repeat; r++) {
+							runScript(script, measure);
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+						log.warn("Session failed: " + e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+	}
+
+	private void runScript(Script script, boolean measure) throws IOException {
+
+		ImapClient client = (handler == null ? new SocketClient(address) : new InProcessClient(handler));
+		try {
+			int tag = 0;
+			for (Script.Command command : script.getCommands()) {
+				long start = System.nanoTime();
+				boolean ok = client.execute("t" + (++tag), command);
+				long nanos = System.nanoTime() - start;
+				if (measure) {
+					histogram(command.getName()).record(nanos);
+					if (!ok) {
+						failureCount(command.getName()).incrementAndGet();
+					}
+				}
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	private LatencyHistogram histogram(String name) {
+
+		LatencyHistogram h = histograms.get(name);
+		if (h == null) {
+			LatencyHistogram existing = histograms.putIfAbsent(name, h = new LatencyHistogram());
+			if (existing != null) {
+				h = existing;
+			}
+		}
+		return h;
+	}
+
+	private AtomicLong failureCount(String name) {
+
+		AtomicLong count = failures.get(name);
+		if (count == null) {
+			AtomicLong existing = failures.putIfAbsent(name, count = new AtomicLong());
+			if (existing != null) {
+				count = existing;
+			}
+		}
+		return count;
+	}
+
+	private void report(long nanos) {
+
+		StringBuilder sb = new StringBuilder("Results (latency in microseconds, percentiles within 25%):\n");
+		sb.append(String.format("%-14s %10s %10s %10s %10s %10s %10s %10s %8s%n",
+				"command", "count", "ops/s", "mean", "p50", "p99", "p999", "max", "failed"));
+		long total = 0;
+		for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+			LatencyHistogram h = e.getValue();
+			AtomicLong failed = failures.get(e.getKey());
+			total += h.getCount();
+			sb.append(String.format("%-14s %10d %10.0f %10.1f %10.1f %10.1f %10.1f %10.1f %8d%n",
+					e.getKey(), h.getCount(), h.getCount() * 1e9 / nanos, h.getMean() / 1000.0,
+					h.getValueAtPercentile(50.0) / 1000.0, h.getValueAtPercentile(99.0) / 1000.0,
+					h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0, (failed == null ? 0L : failed.get())));
+		}
+		sb.append(String.format("Total %d commands in %.1f seconds: %.0f commands/s, %d failed sessions.",
+				total, nanos / 1e9, total * 1e9 / nanos, errors.get()));
+		log.info(sb.toString());
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.descartes.gos.jimap.load;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The client commands one session executes, in order.
+ * Commands are stored without tag, the client adds a tag when sending a command.
+ */
+public class Script {
+
+	private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)\\+?\\}$");
+
+	/**
+	 * One client command.
+	 */
+	public static class Command {
+
+		private final String name;
+		private final byte[] data;
+
+		/**
+		 * @param data the command without tag, including line-end and literal data.
+		 */
+		public Command(byte[] data) {
+			this.data = data;
+			this.name = nameOf(new String(data, 0, Math.min(data.length, 64), StandardCharsets.US_ASCII));
+		}
+
+		public Command(String line) {
+			this((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		}
+
+		/**
+		 * @return the command name used for statistics, e.g. <code>FETCH</code> or <code>UID FETCH</code>.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		private static String nameOf(String line) {
+
+			String[] words = line.trim().split("\\s+", 3);
+			String name = words[0].toUpperCase(Locale.US);
+			if (name.equals("UID") && words.length > 1) {
+				name += " " + words[1].toUpperCase(Locale.US);
+			}
+			return name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final List<Command> commands;
+
+	public Script(List<Command> commands) {
+		this.commands = Collections.unmodifiableList(new ArrayList<Command>(commands));
+	}
+
+	public List<Command> getCommands() {
+		return commands;
+	}
+
+	/**
+	 * Reads a recorded transcript. Lines starting with <code>C:</code> are tagged client commands,
+	 * lines starting with <code>S:</code> (server responses) are ignored.
+	 * A transcript without <code>C:</code> lines is read as a script with one untagged command per line.
+	 * Empty lines and lines starting with <code>#</code> are ignored.
+	 * <br>A command ending with a literal (<code>{n}</code> or <code>{n+}</code>) continues with
+	 * the next client lines (joined with CRLF) until the literal is complete.
+	 */
+	public static Script fromTranscript(File file) throws IOException {
+
+		List<String> lines = new ArrayList<String>();
+		boolean recorded = false;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+		try {
+			for (String line; (line = reader.readLine()) != null;) {
+				lines.add(line);
+				recorded |= line.startsWith("C:");
+			}
+		} finally {
+			reader.close();
+		}
+		List<Command> commands = new ArrayList<Command>();
+		ByteArrayOutputStream command = new ByteArrayOutputStream();
+		long literalRemaining = -1;
+		for (String line : lines) {
+			if (recorded) {
+				if (!line.startsWith("C:")) {
+					continue;
+				}
+				line = line.substring(2);
+				if (line.startsWith(" ")) {
+					line = line.substring(1);
+				}
+			}
+			if (literalRemaining >= 0) {
+				byte[] b = (line + "\r\n").getBytes(StandardCharsets.US_ASCII);
+				int len = (int) Math.min(b.length, literalRemaining);
+				command.write(b, 0, len);
+				literalRemaining -= len;
+				if (literalRemaining > 0) {
+					continue;
+				}
+				literalRemaining = -1;
+				// The remainder of the command follows the literal on the same line.
+				line = new String(b, len, b.length - len, StandardCharsets.US_ASCII).trim();
+			} else {
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				if (recorded) {
+					// Remove the recorded tag.
+					int space = line.indexOf(' ');
+					line = (space < 0 ? "" : line.substring(space + 1));
+				}
+			}
+			command.write(line.getBytes(StandardCharsets.US_ASCII), 0, line.length());
+			Matcher m = LITERAL.matcher(line);
+			command.write('\r');
+			command.write('\n');
+			if (m.find()) {
+				literalRemaining = Long.parseLong(m.group(1));
+			} else {
+				commands.add(new Command(command.toByteArray()));
+				command.reset();
+			}
+		}
+		if (command.size() > 0) {
+			if (literalRemaining > 0) {
+				throw new IOException("Incomplete literal at end of transcript " + file);
+			}
+			command.write('\r');
+			command.write('\n');
+			commands.add(new Command(command.toByteArray()));
+		}
+		return new Script(commands);
+	}
+
+	/**
+	 * Creates a script from a weighted command mix: <code>LOGIN</code> and <code>SELECT INBOX</code>,
+	 * the given amount of randomly chosen commands and <code>LOGOUT</code>.
+	 * @param mix comma separated commands with an optional weight, e.g.
+	 * <code>FETCH 1:10 (FLAGS);5,SEARCH UNSEEN;2,NOOP</code>
+	 */
+	public static Script fromMix(String user, String password, String mix, int length, Random random) {
+
+		List<Command> weighted = new ArrayList<Command>();
+		for (String entry : mix.split(",")) {
+			entry = entry.trim();
+			int weight = 1;
+			int semicolon = entry.lastIndexOf(';');
+			if (semicolon > 0) {
+				weight = Integer.parseInt(entry.substring(semicolon + 1).trim());
+				entry = entry.substring(0, semicolon).trim();
+			}
+			Command c = new Command(entry);
+			for (int i = 0; i < weight; i++) {
+				weighted.add(c);
+			}
+		}
+		List<Command> commands = new ArrayList<Command>();
+		commands.add(new Command("LOGIN " + user + " " + password));
+		commands.add(new Command("SELECT INBOX"));
+		for (int i = 0; i < length; i++) {
+			commands.add(weighted.get(random.nextInt(weighted.size())));
+		}
+		commands.add(new Command("LOGOUT"));
+		return new Script(commands);
+	}
+
+}
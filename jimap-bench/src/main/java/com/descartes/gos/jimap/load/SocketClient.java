@@ -0,0 +1,119 @@
+package com.descartes.gos.jimap.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Executes commands over a socket connection to an IMAP server.
+ * Synchronizing literals in commands wait for the continuation request of the server,
+ * literals in responses are skipped.
+ */
+public class SocketClient implements ImapClient {
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+	public SocketClient(InetSocketAddress address) throws IOException {
+
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(address);
+		in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+		out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+		// Greeting
+		readLine();
+	}
+
+	public boolean execute(String tag, Script.Command command) throws IOException {
+
+		out.write((tag + " ").getBytes(StandardCharsets.US_ASCII));
+		byte[] data = command.getData();
+		int start = 0;
+		for (int i = 1; i < data.length; i++) {
+			// A synchronizing literal: "{n}" followed by CRLF.
+			if (data[i] == '\n' && data[i - 1] == '\r' && i > 2 && data[i - 2] == '}' && data[i - 3] != '+') {
+				out.write(data, start, i + 1 - start);
+				out.flush();
+				start = i + 1;
+				String continuation = readLine();
+				if (!continuation.startsWith("+")) {
+					return isOk(tag, continuation);
+				}
+				i += literalSize(data, i - 2);
+			}
+		}
+		out.write(data, start, data.length - start);
+		out.flush();
+		String response;
+		do {
+			response = readLine();
+		} while (!response.startsWith(tag + " "));
+		return isOk(tag, response);
+	}
+
+	private static boolean isOk(String tag, String response) {
+		return response.startsWith(tag + " OK");
+	}
+
+	/**
+	 * @param end index of the closing brace of the literal.
+	 */
+	private static int literalSize(byte[] data, int end) {
+
+		int size = 0;
+		int multiplier = 1;
+		for (int i = end - 1; i >= 0 && data[i] >= '0' && data[i] <= '9'; i--) {
+			size += (data[i] - '0') * multiplier;
+			multiplier *= 10;
+		}
+		return size;
+	}
+
+	/**
+	 * Reads a response line, skipping literal data.
+	 * @return the line (including literal markers) without line-end.
+	 */
+	private String readLine() throws IOException {
+
+		line.reset();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				int length = line.size();
+				byte[] bytes = line.toByteArray();
+				if (length > 1 && bytes[length - 2] == '}') {
+					long skip = literalSize(bytes, length - 2);
+					while (skip > 0) {
+						long skipped = in.skip(skip);
+						if (skipped <= 0) {
+							if (in.read() == -1) {
+								throw new EOFException("Connection closed during literal.");
+							}
+							skipped = 1;
+						}
+						skip -= skipped;
+					}
+					continue;
+				}
+				return new String(bytes, 0, Math.max(0, length - 1), StandardCharsets.US_ASCII);
+			}
+			line.write(b);
+		}
+		throw new EOFException("Connection closed by server.");
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+
+}
@@ -0,0 +1,214 @@
+package com.descartes.gos.jimap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.AbstractDelegatingMailboxListener;
+import org.apache.james.mailbox.store.StoreMailboxManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers mailbox events to the listeners of the mailbox (selected mailboxes and idling sessions) and the global listeners.
+ * <br>Set via {@link StoreMailboxManager#setDelegatingMailboxListener(AbstractDelegatingMailboxListener)} before the manager's init.
+ * Unlike the default listener, events are delivered without a lock: listeners per mailbox are kept
+ * in copy-on-write arrays, so events for different mailboxes do not wait for each other and adding or removing
+ * a listener (SELECT, IDLE) does not wait for event delivery. Events are delivered on the thread that changed the mailbox,
+ * listeners that write responses (IDLE) post a task to their session instead of writing.
+ * <br>Closed listeners (e.g. of sessions that disconnected without removing their listener) are dropped
+ * when an event for their mailbox is delivered and when a listener is added to their mailbox.
+ */
+public class FanOutMailboxListener extends AbstractDelegatingMailboxListener {
+
+	private static Logger log = LoggerFactory.getLogger(FanOutMailboxListener.class);
+
+	private static final MailboxListener[] NONE = new MailboxListener[0];
+
+	private final ConcurrentHashMap<MailboxPath, MailboxListener[]> listeners = new ConcurrentHashMap<MailboxPath, MailboxListener[]>();
+	private volatile MailboxListener[] globalListeners = NONE;
+
+	@Override
+	public void event(Event event) {
+
+		MailboxPath path = event.getMailboxPath();
+		MailboxListener[] mailboxListeners = listeners.get(path);
+		if (mailboxListeners != null) {
+			if (deliver(mailboxListeners, event)) {
+				removeClosedListeners(path);
+			}
+			if (event instanceof MailboxDeletion) {
+				synchronized (this) {
+					listeners.remove(path);
+				}
+			} else if (event instanceof MailboxRenamed) {
+				synchronized (this) {
+					MailboxListener[] moved = listeners.remove(path);
+					if (moved != null) {
+						MailboxPath newPath = ((MailboxRenamed) event).getNewPath();
+						MailboxListener[] existing = listeners.get(newPath);
+						listeners.put(newPath, existing == null ? moved : concat(existing, moved));
+					}
+				}
+			}
+		}
+		if (deliver(globalListeners, event)) {
+			removeClosedGlobalListeners();
+		}
+	}
+
+	/**
+	 * @return true when a listener is closed.
+	 */
+	private static boolean deliver(MailboxListener[] listeners, Event event) {
+
+		boolean closed = false;
+		for (MailboxListener listener : listeners) {
+			if (listener.isClosed()) {
+				closed = true;
+			} else {
+				deliver(listener, event);
+			}
+		}
+		return closed;
+	}
+
+	private static void deliver(MailboxListener listener, Event event) {
+
+		try {
+			listener.event(event);
+		} catch (RuntimeException e) {
+			log.warn("Mailbox listener failed to handle event for " + event.getMailboxPath(), e);
+		}
+	}
+
+	@Override
+	public synchronized void addListener(MailboxPath path, MailboxListener listener, MailboxSession session) {
+
+		MailboxListener[] existing = listeners.get(path);
+		listeners.put(path, existing == null ? new MailboxListener[] { listener } : concat(open(existing), new MailboxListener[] { listener }));
+	}
+
+	private synchronized void removeClosedListeners(MailboxPath path) {
+
+		MailboxListener[] existing = listeners.get(path);
+		if (existing != null) {
+			MailboxListener[] remaining = open(existing);
+			if (remaining.length == 0) {
+				listeners.remove(path);
+			} else if (remaining != existing) {
+				listeners.put(path, remaining);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void removeListener(MailboxPath path, MailboxListener listener, MailboxSession session) {
+
+		MailboxListener[] existing = listeners.get(path);
+		if (existing != null) {
+			MailboxListener[] remaining = remove(existing, listener);
+			if (remaining.length == 0) {
+				listeners.remove(path);
+			} else if (remaining != existing) {
+				listeners.put(path, remaining);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void addGlobalListener(MailboxListener listener, MailboxSession session) {
+		globalListeners = concat(open(globalListeners), new MailboxListener[] { listener });
+	}
+
+	private synchronized void removeClosedGlobalListeners() {
+		globalListeners = open(globalListeners);
+	}
+
+	@Override
+	public synchronized void removeGlobalListener(MailboxListener listener, MailboxSession session) {
+		globalListeners = remove(globalListeners, listener);
+	}
+
+	public boolean isClosed() {
+		return false;
+	}
+
+	/**
+	 * @return amount of listeners for the mailbox.
+	 */
+	public int getListenerCount(MailboxPath path) {
+
+		MailboxListener[] mailboxListeners = listeners.get(path);
+		return (mailboxListeners == null ? 0 : mailboxListeners.length);
+	}
+
+	/**
+	 * @return a copy of the listeners per mailbox.
+	 */
+	@Override
+	protected synchronized Map<MailboxPath, List<MailboxListener>> getListeners() {
+
+		Map<MailboxPath, List<MailboxListener>> copy = new HashMap<MailboxPath, List<MailboxListener>>();
+		for (Map.Entry<MailboxPath, MailboxListener[]> e : listeners.entrySet()) {
+			copy.put(e.getKey(), new ArrayList<MailboxListener>(Arrays.asList(e.getValue())));
+		}
+		return copy;
+	}
+
+	/**
+	 * @return a copy of the global listeners.
+	 */
+	@Override
+	protected List<MailboxListener> getGlobalListeners() {
+		return new ArrayList<MailboxListener>(Arrays.asList(globalListeners));
+	}
+
+	private static MailboxListener[] concat(MailboxListener[] a, MailboxListener[] b) {
+
+		MailboxListener[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	/**
+	 * @return the listeners that are not closed, or the same array when no listener is closed.
+	 */
+	private static MailboxListener[] open(MailboxListener[] a) {
+
+		List<MailboxListener> open = null;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i].isClosed()) {
+				if (open == null) {
+					open = new ArrayList<MailboxListener>(Arrays.asList(a).subList(0, i));
+				}
+			} else if (open != null) {
+				open.add(a[i]);
+			}
+		}
+		return (open == null ? a : open.toArray(new MailboxListener[open.size()]));
+	}
+
+	/**
+	 * @return the listeners without the (first occurrence of) the listener, or the same array when the listener is not present.
+	 */
+	private static MailboxListener[] remove(MailboxListener[] a, MailboxListener listener) {
+
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == listener) {
+				MailboxListener[] result = new MailboxListener[a.length - 1];
+				System.arraycopy(a, 0, result, 0, i);
+				System.arraycopy(a, i + 1, result, i, a.length - i - 1);
+				return result;
+			}
+		}
+		return a;
+	}
+
+}
@@ -0,0 +1,167 @@
+package com.descartes.gos.jimap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.mailbox.inmemory.InMemoryMailboxSessionMapperFactory;
+import org.apache.james.mailbox.store.Authenticator;
+import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.auth.CachingAuthenticator;
+import com.descartes.gos.jimap.auth.Pbkdf2CredentialStore;
+import com.descartes.gos.jimap.condstore.ChangeLogs;
+import com.descartes.gos.jimap.decode.FastPathDecoder;
+import com.descartes.gos.jimap.engine.ImapEngine;
+import com.descartes.gos.jimap.metrics.ImapMetrics;
+import com.descartes.gos.jimap.search.IndexedMessageSearchIndex;
+import com.descartes.gos.jimap.select.SelectPreambleProcessor;
+import com.descartes.gos.jimap.server.ImapServer;
+import com.descartes.gos.jimap.server.ImapServerConfig;
+import com.descartes.gos.jimap.shard.ShardedMailboxManager;
+import com.descartes.gos.jimap.store.MappedMailboxSessionMapperFactory;
+import com.descartes.gos.jimap.store.OffHeapMailboxSessionMapperFactory;
+import com.descartes.gos.jimap.store.SlabArena;
+
+/**
+ * Runs an IMAP server with the default processor chain and an in-memory mailbox.
+ * Settings are read from system properties:
+ * <br><code>jimap.host</code> (default all interfaces), <code>jimap.port</code> (default 1143),
+ * <code>jimap.mode</code> (<code>NIO</code> or <code>VIRTUAL_THREADS</code>, default <code>NIO</code>)
+ * <code>jimap.eventLoops</code> and <code>jimap.workers</code> (threads executing commands in NIO mode, default none).
+ * <code>jimap.literalSpillThreshold</code> sets the size above which literals are received into a temporary file (NIO mode).
+ * <br>With <code>jimap.store</code> set to a directory, mailboxes are stored in a durable
+ * {@link MappedMailboxSessionMapperFactory} instead (<code>jimap.storeSync=true</code> forces changes to disk per command).
+ * With <code>jimap.offHeap=true</code> the in-memory mailbox keeps message contents off-heap
+ * ({@link OffHeapMailboxSessionMapperFactory}), <code>jimap.offHeapMaxBytes</code> limits the off-heap memory per store.
+ * <br><code>jimap.shards</code> spreads users over that many independent mailbox stores ({@link ShardedMailboxManager}, default 1),
+ * a durable store keeps each shard in a sub-directory <code>shard-&lt;n&gt;</code>. Shard metrics are published via JMX.
+ * <br>SEARCH uses an {@link IndexedMessageSearchIndex}, <code>jimap.searchBody=true</code> also indexes message bodies.
+ * <br>All users are allowed, unless <code>jimap.users</code> names a users file (see {@link Pbkdf2CredentialStore#main(String...)}):
+ * logins are then verified by a {@link CachingAuthenticator}.
+ * <br>Command metrics are published via JMX as {@link ImapMetrics}, unless <code>jimap.metrics=false</code>.
+ * <br><code>jimap.changeLogCapacity</code> sets the amount of changes per mailbox logged for CONDSTORE/QRESYNC resyncs (0 disables).
+ * <br>Frequent commands are decoded by a {@link FastPathDecoder}, unless <code>jimap.fastPathDecoder=false</code>.
+ * <br>SELECT and EXAMINE send cached encoded FLAGS, UIDVALIDITY and PERMANENTFLAGS responses ({@link SelectPreambleProcessor}),
+ * unless <code>jimap.selectPreambles=false</code>.
+ * <br><code>jimap.warmUp</code> sets the amount of scripted sessions that warm up the chain before the server starts (default 0).
+ */
+public class JimapServerMain {
+
+	private static Logger log = LoggerFactory.getLogger(JimapServerMain.class);
+
+	public static void main(String... args) {
+
+		ImapServerConfig config = new ImapServerConfig();
+		config.setMode(ImapServerConfig.Mode.valueOf(System.getProperty("jimap.mode", ImapServerConfig.Mode.NIO.name())));
+		config.setHost(System.getProperty("jimap.host"));
+		config.setPort(Integer.getInteger("jimap.port", 1143));
+		config.setEventLoops(Integer.getInteger("jimap.eventLoops", config.getEventLoops()));
+		config.setWorkers(Integer.getInteger("jimap.workers", config.getWorkers()));
+		config.setCompressionLevel(Integer.getInteger("jimap.compressionLevel", config.getCompressionLevel()));
+		config.setLiteralSpillThreshold(Long.getLong("jimap.literalSpillThreshold", config.getLiteralSpillThreshold()));
+		try {
+			final List<MailboxSessionMapperFactory<Long>> sessionMappers = createSessionMappers();
+			boolean metricsEnabled = !"false".equals(System.getProperty("jimap.metrics"));
+			Authenticator authenticator = createAuthenticator(metricsEnabled);
+			ImapEngine engine = createEngine(sessionMappers, authenticator);
+			ImapRequestStreamHandler handler = engine.getHandler();
+			if (metricsEnabled && engine.getMailboxManager() instanceof ShardedMailboxManager) {
+				((ShardedMailboxManager) engine.getMailboxManager()).getMetrics().register("imap");
+			}
+			if (metricsEnabled) {
+				ImapMetrics metrics = new ImapMetrics();
+				metrics.register("imap");
+				handler.setMetrics(metrics);
+			}
+			final ImapServer server = config.createServer(handler);
+			server.start();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					server.stop();
+					for (MailboxSessionMapperFactory<Long> sessionMapper : sessionMappers) {
+						if (sessionMapper instanceof MappedMailboxSessionMapperFactory) {
+							try {
+								((MappedMailboxSessionMapperFactory) sessionMapper).close();
+							} catch (Exception e) {
+								log.error("Failed to close mailbox store", e);
+							}
+						}
+					}
+				}
+			});
+			Thread.currentThread().join();
+		} catch (Exception e) {
+			log.error("IMAP server failed", e);
+		}
+	}
+
+	/**
+	 * @return one mapper factory per shard of <code>jimap.shards</code>.
+	 */
+	static List<MailboxSessionMapperFactory<Long>> createSessionMappers() throws Exception {
+
+		int shards = Math.max(1, Integer.getInteger("jimap.shards", 1));
+		List<MailboxSessionMapperFactory<Long>> sessionMappers = new ArrayList<MailboxSessionMapperFactory<Long>>(shards);
+		String store = System.getProperty("jimap.store");
+		for (int i = 0; i < shards; i++) {
+			sessionMappers.add(createSessionMapper(store == null || shards == 1 ? store : new File(store, "shard-" + i).getPath()));
+		}
+		return sessionMappers;
+	}
+
+	static MailboxSessionMapperFactory<Long> createSessionMapper(String store) throws Exception {
+
+		if (store == null) {
+			if (Boolean.getBoolean("jimap.offHeap")) {
+				return new OffHeapMailboxSessionMapperFactory(new SlabArena(SlabArena.DEFAULT_SLAB_SIZE, Long.getLong("jimap.offHeapMaxBytes", Long.MAX_VALUE)));
+			}
+			return new InMemoryMailboxSessionMapperFactory();
+		}
+		MappedMailboxSessionMapperFactory sessionMapper = new MappedMailboxSessionMapperFactory(new File(store));
+		sessionMapper.getStore().setSync(Boolean.getBoolean("jimap.storeSync"));
+		return sessionMapper;
+	}
+
+	/**
+	 * @return a {@link CachingAuthenticator} for the users in the file of <code>jimap.users</code>, else null (all users allowed).
+	 */
+	static Authenticator createAuthenticator(boolean metrics) throws IOException {
+
+		String users = System.getProperty("jimap.users");
+		if (users == null) {
+			return null;
+		}
+		Pbkdf2CredentialStore store = new Pbkdf2CredentialStore();
+		store.load(new File(users));
+		CachingAuthenticator authenticator = new CachingAuthenticator(store);
+		if (metrics) {
+			authenticator.getMetrics().register("imap");
+		}
+		return authenticator;
+	}
+
+	/**
+	 * Sets up the same processing chain as {@link TestCommands}.
+	 * @param authenticator null to allow all users.
+	 */
+	static ImapEngine createEngine(List<MailboxSessionMapperFactory<Long>> sessionMappers, Authenticator authenticator) throws Exception {
+
+		// Both server modes flush after handling all pipelined commands (set by the engine).
+		return ImapEngine.builder()
+				.setMapperFactories(sessionMappers)
+				.setAuthenticator(authenticator)
+				.setSearchBody(Boolean.getBoolean("jimap.searchBody"))
+				.setChangeLogCapacity(Integer.getInteger("jimap.changeLogCapacity", ChangeLogs.DEFAULT_CAPACITY))
+				.setFastPathDecoder(!"false".equals(System.getProperty("jimap.fastPathDecoder")))
+				.setSelectPreambles(!"false".equals(System.getProperty("jimap.selectPreambles")))
+				.setWarmUp(Integer.getInteger("jimap.warmUp", 0))
+				.build();
+	}
+
+}
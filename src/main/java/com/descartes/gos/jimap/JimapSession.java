@@ -1,7 +1,12 @@
 package com.descartes.gos.jimap;
 
+import java.util.ArrayDeque;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.james.imap.api.ImapSessionState;
 import org.apache.james.imap.api.process.ImapLineHandler;
@@ -9,27 +14,97 @@ import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.api.process.SelectedMailbox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 /**
  * Dummy session that allows the default processor chain to function
  * (log, storage of mailbox, storage of session-state and storage of attributes).
+ * <br>All sessions log to one shared logger, the session ID is available as
+ * MDC value {@link #MDC_SESSION_KEY} between {@link #bindLogContext()} and {@link #unbindLogContext()}.
+ * Attributes that the default processors set on every command are kept in fields,
+ * other attributes in a map that is created on first use.
+ * Sessions can be recycled via {@link JimapSessionPool}.
+ * <br>COMPRESS=DEFLATE (RFC 4978) is only available when the server sets {@link #setCompressionSupported(boolean)}:
+ * {@link #startCompression()} only registers the request, the server starts compressing
+ * after the tagged OK response was sent (see {@link #isCompressionStartRequested()}).
+ * The {@link Deflater} and {@link Inflater} of a session are re-used when the session is recycled.
+ * <br>Line handlers (used by IDLE) are stacked: while a line handler is set, the server passes received lines
+ * to the handler instead of decoding them as commands. Other threads (e.g. mailbox event listeners) can
+ * {@link #post(Runnable)} tasks that must write responses, the server runs these on the thread that handles
+ * the session's commands via its {@link TaskScheduler}.
  * @author fwiers
  *
  */
 public class JimapSession implements ImapSession {
 
-	private static AtomicLong sessionId = new AtomicLong();;
+	public static final String MDC_SESSION_KEY = "imapSession";
+
+	/* Attribute keys used by the default processors. */
+	static final String INVALID_COMMAND_COUNT = "INVALID_COMMAND_COUNT";
+	static final String MAILBOX_SESSION = "org.apache.james.api.imap.MAILBOX_SESSION_ATTRIBUTE_SESSION_KEY";
+	static final String SEARCHRES_SAVED_SET = "SEARCHRES_SAVED_SET";
+	static final String SEARCH_MODSEQ = "SEARCH_MODSEQ";
+	static final String ENABLED_CAPABILITIES = "ENABLED_CAPABILITIES";
+
+	private static AtomicLong sessionId = new AtomicLong();
+	private static Logger log = LoggerFactory.getLogger("ImapSession");
+
+	private long id = sessionId.incrementAndGet();
+	private String idString = Long.toString(id);
+
+	private volatile Object invalidCommandCount;
+	private volatile Object mailboxSession;
+	private volatile Object searchResSavedSet;
+	private volatile Object searchModSeq;
+	private volatile Object enabledCapabilities;
+	private volatile ConcurrentHashMap<String, Object> attr;
+
+	private volatile ImapSessionState state = ImapSessionState.NON_AUTHENTICATED;
+	private volatile SelectedMailbox mailbox;
+
+	private volatile boolean compressionSupported;
+	private volatile boolean compressionActive;
+	private volatile boolean compressionStartRequested;
+	private Deflater deflater;
+	private Inflater inflater;
+
+	private final ArrayDeque<ImapLineHandler> lineHandlers = new ArrayDeque<ImapLineHandler>(2);
+	private volatile ImapLineHandler lineHandler;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean tasksScheduled = new AtomicBoolean();
+	private volatile TaskScheduler taskScheduler;
+
+	/**
+	 * Runs the tasks posted to a session, implemented by servers.
+	 */
+	public interface TaskScheduler {
+
+		/**
+		 * Called (from any thread) when a task was posted to the session that is not yet scheduled.
+		 * The server must call {@link JimapSession#runTasks()} on the thread that handles the session's commands.
+		 */
+		void tasksPosted(JimapSession session);
+	}
 
-	private ConcurrentHashMap<String, Object> attr = new ConcurrentHashMap<String, Object>();
-	private ImapSessionState state = ImapSessionState.NON_AUTHENTICATED;
-	private SelectedMailbox mailbox;
-	
-	private Logger log = LoggerFactory.getLogger("ImapSession." + sessionId.incrementAndGet());
-	
 	public Logger getLog() {
 		return log;
 	}
 
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Puts the ID of this session in the logging MDC of the current thread.
+	 */
+	public void bindLogContext() {
+		MDC.put(MDC_SESSION_KEY, idString);
+	}
+
+	public void unbindLogContext() {
+		MDC.remove(MDC_SESSION_KEY);
+	}
+
 	public void logout() {
 		closeMailbox();
 		state = ImapSessionState.LOGOUT;
@@ -44,22 +119,22 @@ public class JimapSession implements ImapSession {
 	}
 
 	public void selected(SelectedMailbox mailbox) {
-		state = ImapSessionState.SELECTED; 
+		state = ImapSessionState.SELECTED;
 		closeMailbox();
 		this.mailbox = mailbox;
 	}
 
 	public void deselect() {
-		state = ImapSessionState.AUTHENTICATED; 
+		state = ImapSessionState.AUTHENTICATED;
 		closeMailbox();
 	}
 
 	public SelectedMailbox getSelected() {
 		return mailbox;
 	}
-	
+
     private void closeMailbox() {
-        
+
     	if (mailbox != null) {
             mailbox.deselect();
             mailbox = null;
@@ -67,23 +142,96 @@ public class JimapSession implements ImapSession {
     }
 
 	public Object getAttribute(String key) {
-		return (key == null ? null : attr.get(key));
+
+		if (key == null) {
+			return null;
+		}
+		switch (key) {
+		case INVALID_COMMAND_COUNT: return invalidCommandCount;
+		case MAILBOX_SESSION: return mailboxSession;
+		case SEARCHRES_SAVED_SET: return searchResSavedSet;
+		case SEARCH_MODSEQ: return searchModSeq;
+		case ENABLED_CAPABILITIES: return enabledCapabilities;
+		default:
+			ConcurrentHashMap<String, Object> attr = this.attr;
+			return (attr == null ? null : attr.get(key));
+		}
 	}
 
 	public void setAttribute(String key, Object value) {
-		
-		if (log.isDebugEnabled()) {
-			log.debug("Session attribute [" + (key == null ? "<null>" : key) + "]=[" + (value == null ? "<null>" : value.toString()) + "]");
-		}
+
 		if (key == null) {
 			log.error("Cannot set value for null-key.", new NullPointerException());
-		} else if (value == null) {
-			if (log.isDebugEnabled()) {
-				log.debug("Removing value for key [" + key + "]");
+			return;
+		}
+		if (log.isTraceEnabled()) {
+			log.trace("Session attribute [" + key + "]=[" + (value == null ? "<null>" : value.toString()) + "]");
+		}
+		switch (key) {
+		case INVALID_COMMAND_COUNT: invalidCommandCount = value; break;
+		case MAILBOX_SESSION: mailboxSession = value; break;
+		case SEARCHRES_SAVED_SET: searchResSavedSet = value; break;
+		case SEARCH_MODSEQ: searchModSeq = value; break;
+		case ENABLED_CAPABILITIES: enabledCapabilities = value; break;
+		default:
+			if (value == null) {
+				if (attr != null) {
+					attr.remove(key);
+				}
+			} else {
+				attributes().put(key, value);
 			}
-			attr.remove(key);
-		} else {
-			attr.put(key, value);
+		}
+	}
+
+	private synchronized ConcurrentHashMap<String, Object> attributes() {
+
+		if (attr == null) {
+			attr = new ConcurrentHashMap<String, Object>(4);
+		}
+		return attr;
+	}
+
+	/**
+	 * Resets this session to the state of a new session with a new ID, called when the session is recycled.
+	 * The session must have been logged out.
+	 */
+	void recycle() {
+
+		closeMailbox();
+		invalidCommandCount = mailboxSession = searchResSavedSet = searchModSeq = enabledCapabilities = null;
+		attr = null;
+		state = ImapSessionState.NON_AUTHENTICATED;
+		id = sessionId.incrementAndGet();
+		idString = Long.toString(id);
+		compressionSupported = compressionActive = compressionStartRequested = false;
+		synchronized (lineHandlers) {
+			lineHandlers.clear();
+			lineHandler = null;
+		}
+		tasks.clear();
+		tasksScheduled.set(false);
+		taskScheduler = null;
+		if (deflater != null) {
+			deflater.reset();
+		}
+		if (inflater != null) {
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * Releases the native memory of the compression streams, called when the session is not recycled.
+	 */
+	void end() {
+
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
 		}
 	}
 
@@ -100,23 +248,128 @@ public class JimapSession implements ImapSession {
 	}
 
 	public boolean isCompressionActive() {
-		return false;
+		return compressionActive;
 	}
 
 	public boolean isCompressionSupported() {
-		return false;
+		return compressionSupported;
+	}
+
+	/**
+	 * Set by servers that can compress the connection, default false.
+	 */
+	public void setCompressionSupported(boolean compressionSupported) {
+		this.compressionSupported = compressionSupported;
 	}
 
+	/**
+	 * Called by the COMPRESS processor after it responded with OK.
+	 * @return false when compression is not supported or already active.
+	 */
 	public boolean startCompression() {
-		return false;
+
+		if (!compressionSupported || compressionActive) {
+			return false;
+		}
+		compressionActive = compressionStartRequested = true;
+		return true;
+	}
+
+	/**
+	 * True when the last command started compression: the server must send the pending responses
+	 * uncompressed and compress all data after them (in both directions).
+	 * Calling this method resets the flag.
+	 */
+	public boolean isCompressionStartRequested() {
+
+		boolean requested = compressionStartRequested;
+		compressionStartRequested = false;
+		return requested;
+	}
+
+	/**
+	 * @return the (raw, without zlib wrapper) deflater of this session, created on first use.
+	 */
+	public Deflater getDeflater() {
+
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		return deflater;
+	}
+
+	/**
+	 * @return the (raw, without zlib wrapper) inflater of this session, created on first use.
+	 */
+	public Inflater getInflater() {
+
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		return inflater;
 	}
 
 	public void pushLineHandler(ImapLineHandler lineHandler) {
-		// NO-OP: there is no "get lineHandler"/
+
+		synchronized (lineHandlers) {
+			lineHandlers.push(lineHandler);
+			this.lineHandler = lineHandler;
+		}
 	}
 
 	public void popLineHandler() {
-		// NO-OP: there is no "get lineHandler"/
+
+		synchronized (lineHandlers) {
+			lineHandlers.poll();
+			lineHandler = lineHandlers.peek();
+		}
+	}
+
+	/**
+	 * @return the line handler that receives the next line, null when the next line is a command.
+	 */
+	public ImapLineHandler getLineHandler() {
+		return lineHandler;
+	}
+
+	/**
+	 * Set by servers that run posted tasks. Without a scheduler, tasks are run on the next {@link #runTasks()}.
+	 */
+	public void setTaskScheduler(TaskScheduler taskScheduler) {
+		this.taskScheduler = taskScheduler;
+	}
+
+	/**
+	 * Queues a task to run on the thread that handles this session's commands, so that it can write
+	 * (unsolicited) responses. Can be called from any thread.
+	 */
+	public void post(Runnable task) {
+
+		tasks.add(task);
+		TaskScheduler scheduler = taskScheduler;
+		if (scheduler != null && tasksScheduled.compareAndSet(false, true)) {
+			scheduler.tasksPosted(this);
+		}
+	}
+
+	/**
+	 * Runs the posted tasks, must be called by the thread that handles this session's commands.
+	 * @return true when one or more tasks were run.
+	 */
+	public boolean runTasks() {
+
+		tasksScheduled.set(false);
+		boolean ran = false;
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			ran = true;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.error("Session task failed.", e);
+			}
+		}
+		return ran;
 	}
 
 	public boolean supportMultipleNamespaces() {
@@ -0,0 +1,59 @@
+package com.descartes.gos.jimap;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.imap.api.ImapSessionState;
+
+/**
+ * Recycles {@link JimapSession}s of closed connections.
+ * A session must only be released after it was logged out and no longer referenced by the connection.
+ */
+public class JimapSessionPool {
+
+	private final ConcurrentLinkedQueue<JimapSession> pool = new ConcurrentLinkedQueue<JimapSession>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final int maxPooled;
+
+	/**
+	 * @param maxPooled maximum amount of idle sessions kept for re-use.
+	 */
+	public JimapSessionPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a recycled session or a new session.
+	 */
+	public JimapSession acquire() {
+
+		JimapSession session = pool.poll();
+		if (session == null) {
+			return new JimapSession();
+		}
+		pooled.decrementAndGet();
+		session.recycle();
+		return session;
+	}
+
+	/**
+	 * Returns a session for re-use. Sessions that are not logged out are not pooled.
+	 */
+	public void release(JimapSession session) {
+
+		if (session == null) {
+			return;
+		}
+		if (session.getState() != ImapSessionState.LOGOUT) {
+			session.end();
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			pool.offer(session);
+		} else {
+			pooled.decrementAndGet();
+			session.end();
+		}
+	}
+
+}
@@ -0,0 +1,328 @@
+package com.descartes.gos.jimap;
+
+import java.util.Arrays;
+
+/**
+ * Message sequence numbers (MSN) of the UIDs of a selected mailbox, in ascending UID order.
+ * <br>UIDs are stored as runs of consecutive UIDs (a start UID and a length in int arrays, UIDs are 32-bit unsigned):
+ * a mailbox without gaps in the UIDs needs one run, whatever the amount of messages.
+ * Removed UIDs are kept in a small sorted list and only taken out of the runs when the list is full,
+ * so that expunging many messages does not rebuild the runs for every message.
+ * MSN and UID lookups are binary searches.
+ * <br>Not thread-safe.
+ */
+public class UidMsnMap {
+
+	public static final int NO_SUCH_MESSAGE = -1;
+
+	private static final long MAX_UID = 0xFFFFFFFFL;
+	private static final int MIN_REMOVED = 64;
+
+	private int[] starts = new int[4];
+	private int[] lengths = new int[4];
+	/** Amount of UIDs before a run, valid for runs below {@link #validOffsets}. */
+	private int[] offsets = new int[4];
+	private int validOffsets;
+	private int runCount;
+	/** Amount of UIDs in the runs. */
+	private int count;
+	/** Sorted UIDs that are removed but still in the runs. */
+	private long[] removed = new long[8];
+	private int removedCount;
+
+	/**
+	 * @return the amount of UIDs.
+	 */
+	public int size() {
+		return count - removedCount;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the MSN (starting at 1) of the UID, or {@link #NO_SUCH_MESSAGE}.
+	 */
+	public int msn(long uid) {
+
+		int pos = position(uid);
+		if (pos < 0) {
+			return NO_SUCH_MESSAGE;
+		}
+		int i = lowerBound(removed, removedCount, uid);
+		if (i < removedCount && removed[i] == uid) {
+			return NO_SUCH_MESSAGE;
+		}
+		return pos - i + 1;
+	}
+
+	/**
+	 * @return the UID with the MSN, or {@link #NO_SUCH_MESSAGE}.
+	 */
+	public long uid(int msn) {
+
+		if (msn < 1 || msn > size()) {
+			return NO_SUCH_MESSAGE;
+		}
+		// The position in the runs is msn - 1 plus the amount of removed UIDs before it.
+		int target = msn - 1;
+		int lo = 0, hi = removedCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (position(removed[mid]) - mid > target) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return uidAt(target + lo);
+	}
+
+	/**
+	 * @return the lowest UID, or {@link #NO_SUCH_MESSAGE}.
+	 */
+	public long first() {
+		return uid(1);
+	}
+
+	/**
+	 * @return the highest UID, or {@link #NO_SUCH_MESSAGE}.
+	 */
+	public long last() {
+		return uid(size());
+	}
+
+	/**
+	 * Adds a UID, usually higher than all other UIDs.
+	 * @return false if the UID was already present.
+	 */
+	public boolean add(long uid) {
+
+		if (uid < 1L || uid > MAX_UID) {
+			throw new IllegalArgumentException("Invalid UID " + uid);
+		}
+		if (runCount == 0 || uid > end(runCount - 1)) {
+			if (runCount > 0 && uid == end(runCount - 1) + 1) {
+				lengths[runCount - 1]++;
+			} else {
+				insertRun(runCount, uid, 1);
+			}
+			count++;
+			return true;
+		}
+		int i = lowerBound(removed, removedCount, uid);
+		if (i < removedCount && removed[i] == uid) {
+			System.arraycopy(removed, i + 1, removed, i, removedCount - i - 1);
+			removedCount--;
+			return true;
+		}
+		if (position(uid) >= 0) {
+			return false;
+		}
+		compact();
+		int r = run(uid);
+		if (r >= 0 && uid == end(r) + 1) {
+			lengths[r]++;
+			if (r + 1 < runCount && start(r + 1) == uid + 1) {
+				lengths[r] += lengths[r + 1];
+				removeRun(r + 1);
+			}
+		} else if (r + 1 < runCount && start(r + 1) == uid + 1) {
+			starts[r + 1]--;
+			lengths[r + 1]++;
+		} else {
+			insertRun(r + 1, uid, 1);
+		}
+		validOffsets = Math.min(validOffsets, r + 1);
+		count++;
+		return true;
+	}
+
+	/**
+	 * Removes a UID.
+	 * @return the MSN the UID had, or {@link #NO_SUCH_MESSAGE}.
+	 */
+	public int remove(long uid) {
+
+		int msn = msn(uid);
+		if (msn == NO_SUCH_MESSAGE) {
+			return NO_SUCH_MESSAGE;
+		}
+		int i = lowerBound(removed, removedCount, uid);
+		if (removedCount == removed.length) {
+			removed = Arrays.copyOf(removed, removedCount * 2);
+		}
+		System.arraycopy(removed, i, removed, i + 1, removedCount - i);
+		removed[i] = uid;
+		removedCount++;
+		if (removedCount > Math.max(MIN_REMOVED, runCount / 8)) {
+			compact();
+		}
+		return msn;
+	}
+
+	public void clear() {
+
+		starts = new int[4];
+		lengths = new int[4];
+		offsets = new int[4];
+		validOffsets = 0;
+		runCount = 0;
+		count = 0;
+		removed = new long[8];
+		removedCount = 0;
+	}
+
+	/**
+	 * @return amount of runs of consecutive UIDs.
+	 */
+	public int getRunCount() {
+		return runCount;
+	}
+
+	@Override
+	public String toString() {
+		return "UidMsnMap[" + size() + " UIDs in " + runCount + " runs]";
+	}
+
+	private long start(int r) {
+		return starts[r] & MAX_UID;
+	}
+
+	private long end(int r) {
+		return start(r) + lengths[r] - 1;
+	}
+
+	/**
+	 * @return the last run starting at or before the UID, or -1.
+	 */
+	private int run(long uid) {
+
+		int lo = 0, hi = runCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (start(mid) <= uid) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return hi;
+	}
+
+	/**
+	 * @return the position (from 0) of the UID in the runs, or -1.
+	 */
+	private int position(long uid) {
+
+		int r = run(uid);
+		if (r < 0 || uid > end(r)) {
+			return -1;
+		}
+		updateOffsets(r);
+		return offsets[r] + (int) (uid - start(r));
+	}
+
+	private long uidAt(int position) {
+
+		updateOffsets(runCount - 1);
+		int lo = 0, hi = runCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (offsets[mid] <= position) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return start(lo) + (position - offsets[lo]);
+	}
+
+	private void updateOffsets(int r) {
+
+		for (; validOffsets <= r; validOffsets++) {
+			offsets[validOffsets] = (validOffsets == 0 ? 0 : offsets[validOffsets - 1] + lengths[validOffsets - 1]);
+		}
+	}
+
+	private void insertRun(int r, long start, int length) {
+
+		if (runCount == starts.length) {
+			int capacity = runCount + (runCount >> 1) + 1;
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+		System.arraycopy(starts, r, starts, r + 1, runCount - r);
+		System.arraycopy(lengths, r, lengths, r + 1, runCount - r);
+		starts[r] = (int) start;
+		lengths[r] = length;
+		runCount++;
+		validOffsets = Math.min(validOffsets, r);
+	}
+
+	private void removeRun(int r) {
+
+		System.arraycopy(starts, r + 1, starts, r, runCount - r - 1);
+		System.arraycopy(lengths, r + 1, lengths, r, runCount - r - 1);
+		runCount--;
+		validOffsets = Math.min(validOffsets, r);
+	}
+
+	/**
+	 * Takes the removed UIDs out of the runs.
+	 */
+	private void compact() {
+
+		if (removedCount == 0) {
+			return;
+		}
+		int capacity = runCount + removedCount;
+		int[] newStarts = new int[capacity];
+		int[] newLengths = new int[capacity];
+		int n = 0;
+		int j = 0;
+		for (int r = 0; r < runCount; r++) {
+			long s = start(r);
+			long e = end(r);
+			for (; j < removedCount && removed[j] <= e; j++) {
+				if (removed[j] > s) {
+					newStarts[n] = (int) s;
+					newLengths[n++] = (int) (removed[j] - s);
+				}
+				s = removed[j] + 1;
+			}
+			if (s <= e) {
+				newStarts[n] = (int) s;
+				newLengths[n++] = (int) (e - s + 1);
+			}
+		}
+		capacity = Math.max(4, n + (n >> 3));
+		starts = Arrays.copyOf(newStarts, capacity);
+		lengths = Arrays.copyOf(newLengths, capacity);
+		offsets = new int[capacity];
+		validOffsets = 0;
+		runCount = n;
+		count -= removedCount;
+		removedCount = 0;
+		if (removed.length > 64) {
+			removed = new long[8];
+		}
+	}
+
+	private static int lowerBound(long[] values, int size, long value) {
+
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+}
@@ -0,0 +1,316 @@
+package com.descartes.gos.jimap.auth;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.james.mailbox.store.Authenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.metrics.AuthenticatorMetrics;
+
+/**
+ * {@link Authenticator} that verifies credentials with a {@link CredentialStore} on a few dedicated verifier threads
+ * and remembers successful verifications for a while, so that a reconnect storm (all clients logging in again after a restart
+ * of a proxy or deploy) costs one expensive verification per user instead of one per connection, on a bounded amount of cores.
+ * <br>The cache is keyed on an HMAC (with a random key per authenticator) of user and password: the cache does not keep passwords
+ * and a changed password is verified again. Entries expire after {@link #setCacheTtl(long, TimeUnit)} and the least recently
+ * added entries are evicted above {@link #setMaxCached(int)}. Only successful verifications are cached.
+ * <br>Concurrent logins with the same credentials wait for one verification. When all verifier threads are busy and the queue
+ * is full, or the verification takes longer than {@link #setTimeout(long, TimeUnit)}, the login is denied.
+ */
+public class CachingAuthenticator implements Authenticator {
+
+	private static Logger log = LoggerFactory.getLogger(CachingAuthenticator.class);
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final CredentialStore store;
+	private final ThreadPoolExecutor verifiers;
+	private final AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+	private final SecretKeySpec cacheKey;
+	/** Expiry time (nano-time) per verified credentials, oldest first. */
+	private final LinkedHashMap<CacheKey, Long> cache = new LinkedHashMap<CacheKey, Long>();
+	private final ConcurrentHashMap<CacheKey, Future<Boolean>> verifying = new ConcurrentHashMap<CacheKey, Future<Boolean>>();
+	/** Incremented (under the cache lock) by each invalidation, verifications started before it are not cached. */
+	private long generation;
+	private volatile int maxCached = 10000;
+	private volatile long cacheTtlNanos = TimeUnit.MINUTES.toNanos(10L);
+	private volatile long timeoutNanos = TimeUnit.SECONDS.toNanos(10L);
+
+	/**
+	 * Uses as many verifier threads as half the amount of processors and queues up to 1024 verifications.
+	 */
+	public CachingAuthenticator(CredentialStore store) {
+		this(store, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1024);
+	}
+
+	/**
+	 * @param threads amount of threads that verify credentials.
+	 * @param maxQueued maximum amount of verifications waiting for a thread.
+	 */
+	public CachingAuthenticator(CredentialStore store, int threads, int maxQueued) {
+
+		this.store = store;
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		this.cacheKey = new SecretKeySpec(key, MAC_ALGORITHM);
+		final AtomicInteger count = new AtomicInteger();
+		verifiers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "imap-auth-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Maximum amount of cached verifications, default 10 000. 0 disables the cache.
+	 */
+	public void setMaxCached(int maxCached) {
+		this.maxCached = Math.max(0, maxCached);
+	}
+
+	/**
+	 * How long a successful verification is remembered, default 10 minutes.
+	 * A removed user or changed password can still login with the old credentials for this long,
+	 * unless {@link #invalidate(String)} is called.
+	 */
+	public void setCacheTtl(long ttl, TimeUnit unit) {
+		this.cacheTtlNanos = unit.toNanos(ttl);
+	}
+
+	/**
+	 * How long a login waits for the verification of its credentials, default 10 seconds.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	public AuthenticatorMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isAuthentic(String userid, CharSequence passwd) {
+
+		if (userid == null || passwd == null) {
+			metrics.denied();
+			return false;
+		}
+		CacheKey key = new CacheKey(userid, mac(userid, passwd));
+		if (isCached(key)) {
+			metrics.cacheHit();
+			return true;
+		}
+		metrics.cacheMiss();
+		boolean authentic = false;
+		try {
+			authentic = verify(key, userid, passwd).get(timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			metrics.rejected();
+			log.debug("Too many logins waiting for verification, denied login of " + userid);
+		} catch (TimeoutException e) {
+			metrics.timedOut();
+			log.debug("Verification of credentials took too long, denied login of " + userid);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.warn("Failed to verify credentials of " + userid, e.getCause());
+		}
+		if (!authentic) {
+			metrics.denied();
+		}
+		return authentic;
+	}
+
+	/**
+	 * @return the verification of the credentials, shared with concurrent logins with the same credentials.
+	 */
+	private Future<Boolean> verify(final CacheKey key, final String userid, CharSequence passwd) {
+
+		Future<Boolean> pending = verifying.get(key);
+		if (pending != null) {
+			return pending;
+		}
+		// Copied: the caller's password may be cleared or changed while the verification waits for a thread.
+		final String password = passwd.toString();
+		final long started = generation();
+		FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				long start = System.nanoTime();
+				boolean authentic = store.verify(userid, password);
+				metrics.verified(System.nanoTime() - start);
+				if (authentic) {
+					cache(key, started);
+				}
+				return authentic;
+			}
+		}) {
+			@Override
+			protected void done() {
+				// Not a verification that was started after an invalidation.
+				verifying.remove(key, this);
+			}
+		};
+		pending = verifying.putIfAbsent(key, task);
+		if (pending != null) {
+			return pending;
+		}
+		try {
+			verifiers.execute(task);
+		} catch (RejectedExecutionException e) {
+			verifying.remove(key, task);
+			throw e;
+		}
+		return task;
+	}
+
+	private boolean isCached(CacheKey key) {
+
+		synchronized (cache) {
+			Long expires = cache.get(key);
+			if (expires == null) {
+				return false;
+			}
+			if (expires - System.nanoTime() > 0L) {
+				return true;
+			}
+			cache.remove(key);
+			return false;
+		}
+	}
+
+	private long generation() {
+
+		synchronized (cache) {
+			return generation;
+		}
+	}
+
+	/**
+	 * @param started the generation when the verification started, nothing is cached when an invalidation happened since.
+	 */
+	private void cache(CacheKey key, long started) {
+
+		if (maxCached == 0) {
+			return;
+		}
+		long expires = System.nanoTime() + cacheTtlNanos;
+		synchronized (cache) {
+			if (generation != started) {
+				return;
+			}
+			// Re-inserted so that the map stays ordered by expiry.
+			cache.remove(key);
+			cache.put(key, expires);
+			long now = System.nanoTime();
+			Iterator<Long> oldest = cache.values().iterator();
+			while (oldest.hasNext()) {
+				long expiry = oldest.next();
+				if (cache.size() <= maxCached && expiry - now > 0L) {
+					break;
+				}
+				oldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forgets the verified credentials of the user, e.g. after a password change.
+	 * Verifications that are running are not cached and new logins do not wait for them.
+	 */
+	public void invalidate(String userid) {
+
+		synchronized (cache) {
+			generation++;
+			Iterator<CacheKey> keys = cache.keySet().iterator();
+			while (keys.hasNext()) {
+				if (keys.next().user.equals(userid)) {
+					keys.remove();
+				}
+			}
+		}
+		Iterator<CacheKey> pending = verifying.keySet().iterator();
+		while (pending.hasNext()) {
+			if (pending.next().user.equals(userid)) {
+				pending.remove();
+			}
+		}
+	}
+
+	public void invalidateAll() {
+
+		synchronized (cache) {
+			generation++;
+			cache.clear();
+		}
+		verifying.clear();
+	}
+
+	/**
+	 * Stops the verifier threads, logins are denied afterwards.
+	 */
+	public void shutdown() {
+		verifiers.shutdown();
+	}
+
+	private byte[] mac(String userid, CharSequence passwd) {
+
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(cacheKey);
+			mac.update(userid.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			mac.update(StandardCharsets.UTF_8.encode(CharBuffer.wrap(passwd)));
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Cannot create " + MAC_ALGORITHM, e);
+		}
+	}
+
+	private static final class CacheKey {
+
+		final String user;
+		final byte[] mac;
+		final int hash;
+
+		CacheKey(String user, byte[] mac) {
+			this.user = user;
+			this.mac = mac;
+			this.hash = Arrays.hashCode(mac);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof CacheKey && Arrays.equals(mac, ((CacheKey) o).mac));
+		}
+	}
+
+}
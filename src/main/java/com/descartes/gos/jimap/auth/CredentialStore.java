@@ -0,0 +1,16 @@
+package com.descartes.gos.jimap.auth;
+
+/**
+ * Source of truth for user credentials, used by {@link CachingAuthenticator}.
+ * Verification may be expensive (salted, iterated hashes) and is called from the authenticator's verifier threads,
+ * so implementations must be thread-safe.
+ */
+public interface CredentialStore {
+
+	/**
+	 * @return true when the password is the password of the user, false for an unknown user or a wrong password.
+	 * @throws Exception when the store cannot be read, the login is then denied.
+	 */
+	boolean verify(String user, CharSequence password) throws Exception;
+
+}
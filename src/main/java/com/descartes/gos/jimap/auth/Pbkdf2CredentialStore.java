@@ -0,0 +1,172 @@
+package com.descartes.gos.jimap.auth;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * In-memory {@link CredentialStore} of salted PBKDF2 (HMAC-SHA256) password hashes.
+ * Hashes are kept in the form <code>PBKDF2WithHmacSHA256:&lt;iterations&gt;:&lt;salt&gt;:&lt;hash&gt;</code> (Base64),
+ * so a users file (<code>user=hash</code> properties) can be created with {@link #main(String...)}.
+ * <br>An unknown user costs the same time as a wrong password, so user names cannot be probed.
+ */
+public class Pbkdf2CredentialStore implements CredentialStore {
+
+	public static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+	public static final int DEFAULT_ITERATIONS = 100000;
+
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+	private final int iterations;
+	/** Verified for unknown users. */
+	private final String unknownUserHash;
+
+	public Pbkdf2CredentialStore() {
+		this(DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * @param iterations iterations for new hashes ({@link #setPassword(String, CharSequence)}).
+	 */
+	public Pbkdf2CredentialStore(int iterations) {
+
+		this.iterations = iterations;
+		this.unknownUserHash = hash(Long.toString(RANDOM.nextLong()), iterations);
+	}
+
+	/**
+	 * Adds the users in a properties file of <code>user=hash</code> lines (UTF-8).
+	 */
+	public void load(File usersFile) throws IOException {
+
+		Properties users = new Properties();
+		InputStream in = Files.newInputStream(usersFile.toPath());
+		try {
+			Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+			users.load(reader);
+		} finally {
+			in.close();
+		}
+		for (String user : users.stringPropertyNames()) {
+			setHash(user, users.getProperty(user).trim());
+		}
+	}
+
+	public void setPassword(String user, CharSequence password) {
+		hashes.put(user, hash(password, iterations));
+	}
+
+	/**
+	 * @param hash a hash created by {@link #hash(CharSequence, int)}.
+	 */
+	public void setHash(String user, String hash) {
+
+		if (!hash.startsWith(ALGORITHM + ":") || hash.split(":").length != 4) {
+			throw new IllegalArgumentException("Unsupported password hash for user " + user);
+		}
+		hashes.put(user, hash);
+	}
+
+	public void removeUser(String user) {
+		hashes.remove(user);
+	}
+
+	public boolean verify(String user, CharSequence password) {
+
+		String hash = hashes.get(user);
+		boolean known = (hash != null);
+		boolean matches = matches(password, known ? hash : unknownUserHash);
+		return known && matches;
+	}
+
+	/**
+	 * @return a hash of the password with a new random salt.
+	 */
+	public static String hash(CharSequence password, int iterations) {
+
+		byte[] salt = new byte[SALT_BYTES];
+		RANDOM.nextBytes(salt);
+		Base64.Encoder base64 = Base64.getEncoder();
+		return ALGORITHM + ":" + iterations + ":" + base64.encodeToString(salt) + ":"
+				+ base64.encodeToString(pbkdf2(password, salt, iterations));
+	}
+
+	private static boolean matches(CharSequence password, String hash) {
+
+		String[] parts = hash.split(":");
+		Base64.Decoder base64 = Base64.getDecoder();
+		byte[] expected = base64.decode(parts[3]);
+		byte[] actual = pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1]));
+		return MessageDigest.isEqual(expected, actual);
+	}
+
+	private static byte[] pbkdf2(CharSequence password, byte[] salt, int iterations) {
+
+		char[] chars = new char[password.length()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = password.charAt(i);
+		}
+		PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Cannot hash password with " + ALGORITHM, e);
+		} finally {
+			spec.clearPassword();
+			Arrays.fill(chars, '\0');
+		}
+	}
+
+	/**
+	 * Prints a line for a users file: <code>user=hash</code>.
+	 * <br>Arguments: user [iterations]. The password is read from the console without echo,
+	 * or as the first line of the standard input when there is no console (it is never an argument: those show up in process lists).
+	 */
+	public static void main(String... args) throws IOException {
+
+		if (args.length < 1) {
+			System.err.println("Usage: " + Pbkdf2CredentialStore.class.getName() + " user [iterations] (password from the console or standard input)");
+			return;
+		}
+		int iterations = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS);
+		char[] password;
+		Console console = System.console();
+		if (console != null) {
+			password = console.readPassword("Password for %s: ", args[0]);
+		} else {
+			String line = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+			password = (line == null ? null : line.toCharArray());
+		}
+		if (password == null || password.length == 0) {
+			System.err.println("No password.");
+			return;
+		}
+		try {
+			System.out.println(args[0] + "=" + hash(CharBuffer.wrap(password), iterations));
+		} finally {
+			Arrays.fill(password, '\0');
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+package com.descartes.gos.jimap.condstore;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Recent changes of one mailbox: the mod-sequence and UID of added messages, flag updates and expunges,
+ * in a ring ordered by mod-sequence, so that the changes since a client's last known mod-sequence
+ * can be found without looking at the messages of the mailbox.
+ * <br>When the ring is full, older entries of UIDs that changed again are removed (only the last change of a UID matters).
+ * When that does not free half the ring, the oldest entries are dropped and the log no longer {@link #covers(long, boolean) covers}
+ * their mod-sequences.
+ * <br>The mailbox store does not assign a mod-sequence to an expunge, an expunge is logged with the highest mod-sequence
+ * of the store when the event is handled (which can be higher than the highest logged one while events are underway),
+ * and reported to clients that know that mod-sequence or an older one (at worst a UID is reported as vanished twice,
+ * which RFC 7162 allows). For the same reason expunges are only known for mod-sequences above the {@link #getFloor() floor}.
+ * <br>Thread-safe.
+ */
+class ChangeLog {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int capacity;
+	private long[] modSeqs = new long[INITIAL_CAPACITY];
+	/** UIDs, negative for expunged UIDs. */
+	private long[] uids = new long[INITIAL_CAPACITY];
+	/** Index of the oldest entry. */
+	private int head;
+	private int size;
+	private boolean started;
+	private long floor = Long.MAX_VALUE;
+	private long uidValidity;
+	/** Time (nanos) of the last use by a client, for evicting logs of mailboxes that are no longer used. */
+	volatile long lastUsed;
+
+	/**
+	 * @param capacity maximum amount of entries.
+	 */
+	ChangeLog(int capacity) {
+		this.capacity = Math.max(INITIAL_CAPACITY, capacity);
+	}
+
+	/**
+	 * Starts covering changes after the given mod-sequence. Changes are logged before the log is started,
+	 * so that no change is missed between registering the log and reading the mailbox's highest mod-sequence.
+	 * @return false if the log was already started.
+	 */
+	synchronized boolean start(long uidValidity, long highestModSeq) {
+
+		if (started) {
+			return false;
+		}
+		this.uidValidity = uidValidity;
+		this.floor = highestModSeq;
+		started = true;
+		return true;
+	}
+
+	synchronized boolean isStarted() {
+		return started;
+	}
+
+	synchronized long getUidValidity() {
+		return uidValidity;
+	}
+
+	/**
+	 * Changes with a higher mod-sequence are all in the log.
+	 */
+	synchronized long getFloor() {
+		return floor;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @param withExpunges true when the expunges since the mod-sequence are needed as well.
+	 * @return true when the log has all changes since the mod-sequence.
+	 */
+	synchronized boolean covers(long modSeq, boolean withExpunges) {
+		return started && (withExpunges ? modSeq > floor : modSeq >= floor);
+	}
+
+	/**
+	 * Logs a new message or a flag update.
+	 */
+	synchronized void changed(long uid, long modSeq) {
+		add(uid, modSeq);
+	}
+
+	/**
+	 * Logs an expunged message.
+	 * @param modSeq the highest mod-sequence of the mailbox, read after the message was expunged.
+	 */
+	synchronized void expunged(long uid, long modSeq) {
+		add(-uid, modSeq);
+	}
+
+	/**
+	 * @return the changes since the mod-sequence, null when the log does not {@link #covers(long, boolean) cover} them.
+	 */
+	synchronized Changes changesSince(long modSeq, boolean withExpunges) {
+
+		if (!covers(modSeq, withExpunges)) {
+			return null;
+		}
+		long[] changed = new long[8];
+		int changedCount = 0;
+		long[] expunged = new long[8];
+		int expungedCount = 0;
+		Set<Long> seen = new HashSet<Long>();
+		// Newest first: the last change of a UID decides whether it changed or vanished.
+		for (int i = size - 1; i >= 0; i--) {
+			int index = index(i);
+			long entryModSeq = modSeqs[index];
+			if (entryModSeq < modSeq) {
+				break;
+			}
+			long uid = uids[index];
+			if (!seen.add(Math.abs(uid))) {
+				continue;
+			}
+			if (uid < 0L) {
+				if (expungedCount == expunged.length) {
+					expunged = Arrays.copyOf(expunged, expungedCount * 2);
+				}
+				expunged[expungedCount++] = -uid;
+			} else if (entryModSeq > modSeq) {
+				if (changedCount == changed.length) {
+					changed = Arrays.copyOf(changed, changedCount * 2);
+				}
+				changed[changedCount++] = uid;
+			}
+		}
+		long[] changedUids = Arrays.copyOf(changed, changedCount);
+		long[] expungedUids = Arrays.copyOf(expunged, expungedCount);
+		Arrays.sort(changedUids);
+		Arrays.sort(expungedUids);
+		return new Changes(changedUids, expungedUids);
+	}
+
+	private int index(int i) {
+		return (head + i) % modSeqs.length;
+	}
+
+	private void add(long uid, long modSeq) {
+
+		if (size == modSeqs.length) {
+			if (size < capacity) {
+				grow(Math.min(capacity, size * 2));
+			} else {
+				compact();
+			}
+		}
+		// Events of concurrent changes can arrive out of order, keep the ring ordered by mod-sequence.
+		int i = size;
+		while (i > 0 && modSeqs[index(i - 1)] > modSeq) {
+			int from = index(i - 1);
+			int to = index(i);
+			modSeqs[to] = modSeqs[from];
+			uids[to] = uids[from];
+			i--;
+		}
+		int to = index(i);
+		modSeqs[to] = modSeq;
+		uids[to] = uid;
+		size++;
+	}
+
+	private void grow(int newCapacity) {
+
+		long[] newModSeqs = new long[newCapacity];
+		long[] newUids = new long[newCapacity];
+		for (int i = 0; i < size; i++) {
+			newModSeqs[i] = modSeqs[index(i)];
+			newUids[i] = uids[index(i)];
+		}
+		modSeqs = newModSeqs;
+		uids = newUids;
+		head = 0;
+	}
+
+	/**
+	 * Removes entries of UIDs that changed again and drops the oldest entries when that frees less than half the ring.
+	 */
+	private void compact() {
+
+		long[] newModSeqs = new long[modSeqs.length];
+		long[] newUids = new long[uids.length];
+		Set<Long> seen = new HashSet<Long>();
+		int kept = 0;
+		for (int i = size - 1; i >= 0; i--) {
+			long uid = uids[index(i)];
+			if (seen.add(Math.abs(uid))) {
+				kept++;
+				newModSeqs[newModSeqs.length - kept] = modSeqs[index(i)];
+				newUids[newUids.length - kept] = uid;
+			}
+		}
+		int first = newModSeqs.length - kept;
+		int max = newModSeqs.length / 2;
+		if (kept > max) {
+			int dropped = kept - max;
+			floor = Math.max(floor, newModSeqs[first + dropped - 1]);
+			first += dropped;
+			kept = max;
+		}
+		System.arraycopy(newModSeqs, first, newModSeqs, 0, kept);
+		System.arraycopy(newUids, first, newUids, 0, kept);
+		modSeqs = newModSeqs;
+		uids = newUids;
+		head = 0;
+		size = kept;
+	}
+
+	/**
+	 * UIDs (ascending) of messages that were added or had their flags changed, and of messages that were expunged.
+	 */
+	static class Changes {
+
+		final long[] changed;
+		final long[] expunged;
+
+		Changes(long[] changed, long[] expunged) {
+
+			this.changed = changed;
+			this.expunged = expunged;
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package com.descartes.gos.jimap.condstore;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.UpdatedFlags;
+
+/**
+ * Global mailbox listener that keeps a {@link ChangeLog} per mailbox that was selected since the listener was registered
+ * (via {@link MailboxManager#addGlobalListener(MailboxListener, MailboxSession)}).
+ * Events of other mailboxes cost one lookup.
+ * A log is removed when its mailbox is deleted and moves with its mailbox when the mailbox is renamed.
+ * <br>Expunges are logged with the highest mod-sequence of the mailbox, read from the mailbox manager when the event is handled.
+ * When that fails, the log is removed and a new one is started on the next SELECT.
+ * <br>At most {@link #DEFAULT_MAX_MAILBOXES} logs are kept (see {@link #ChangeLogs(MailboxManager, int, int)}), the least recently
+ * selected or resynced ones are evicted. Resyncs in mailboxes without a log are left to the processor chain.
+ */
+public class ChangeLogs implements MailboxListener {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	public static final int DEFAULT_MAX_MAILBOXES = 10000;
+
+	private final ConcurrentHashMap<MailboxPath, ChangeLog> logs = new ConcurrentHashMap<MailboxPath, ChangeLog>();
+	private final MailboxManager mailboxManager;
+	private final int capacity;
+	private final int maxMailboxes;
+
+	public ChangeLogs(MailboxManager mailboxManager) {
+		this(mailboxManager, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param mailboxManager the manager this is registered with, used to read the state of mailboxes.
+	 * @param capacity maximum amount of changes logged per mailbox.
+	 */
+	public ChangeLogs(MailboxManager mailboxManager, int capacity) {
+		this(mailboxManager, capacity, DEFAULT_MAX_MAILBOXES);
+	}
+
+	/**
+	 * @param maxMailboxes maximum amount of mailboxes with a log.
+	 */
+	public ChangeLogs(MailboxManager mailboxManager, int capacity, int maxMailboxes) {
+
+		this.mailboxManager = mailboxManager;
+		this.capacity = capacity;
+		this.maxMailboxes = Math.max(1, maxMailboxes);
+	}
+
+	public void event(Event event) {
+
+		MailboxPath path = event.getMailboxPath();
+		if (event instanceof MailboxDeletion) {
+			logs.remove(path);
+			return;
+		}
+		if (event instanceof MailboxRenamed) {
+			ChangeLog log = logs.remove(path);
+			if (log != null) {
+				logs.put(((MailboxRenamed) event).getNewPath(), log);
+			}
+			return;
+		}
+		ChangeLog log = logs.get(path);
+		if (log == null) {
+			return;
+		}
+		if (event instanceof FlagsUpdated) {
+			for (UpdatedFlags updated : ((FlagsUpdated) event).getUpdatedFlags()) {
+				log.changed(updated.getUid(), updated.getModSeq());
+			}
+		} else if (event instanceof Added) {
+			Added added = (Added) event;
+			for (Long uid : added.getUids()) {
+				MessageMetaData metaData = added.getMetaData(uid);
+				if (metaData != null) {
+					log.changed(uid, metaData.getModSeq());
+				}
+			}
+		} else if (event instanceof Expunged) {
+			long modSeq;
+			try {
+				modSeq = metaData(path, event.getSession()).getHighestModSeq();
+			} catch (MailboxException e) {
+				// The expunges cannot be placed in the log.
+				logs.remove(path, log);
+				return;
+			}
+			for (Long uid : ((Expunged) event).getUids()) {
+				log.expunged(uid, modSeq);
+			}
+		}
+	}
+
+	private MessageManager.MetaData metaData(MailboxPath path, MailboxSession session) throws MailboxException {
+		return mailboxManager.getMailbox(path, session).getMetaData(false, session, MessageManager.MetaData.FetchGroup.NO_UNSEEN);
+	}
+
+	public boolean isClosed() {
+		return false;
+	}
+
+	/**
+	 * @return the log of the mailbox, null when the mailbox was not {@link #open(MailboxPath, MailboxSession) opened}.
+	 */
+	ChangeLog get(MailboxPath path) {
+
+		ChangeLog log = logs.get(path);
+		if (log != null) {
+			log.lastUsed = System.nanoTime();
+		}
+		return log;
+	}
+
+	/**
+	 * @return the started log of the mailbox, created when the mailbox had no log.
+	 */
+	ChangeLog open(MailboxPath path, MailboxSession session) throws MailboxException {
+
+		ChangeLog log = logs.get(path);
+		if (log == null) {
+			ChangeLog created = new ChangeLog(capacity);
+			created.lastUsed = System.nanoTime();
+			log = logs.putIfAbsent(path, created);
+			if (log == null) {
+				log = created;
+				if (logs.size() > maxMailboxes) {
+					evict();
+				}
+			}
+		}
+		log.lastUsed = System.nanoTime();
+		if (!log.isStarted()) {
+			// Read after the log was registered, changes from now on are logged.
+			MessageManager.MetaData metaData = metaData(path, session);
+			log.start(metaData.getUidValidity(), metaData.getHighestModSeq());
+		}
+		return log;
+	}
+
+	/**
+	 * Removes the least recently used logs until an eighth of the maximum is free.
+	 */
+	private synchronized void evict() {
+
+		int size = logs.size();
+		int keep = Math.max(1, maxMailboxes - maxMailboxes / 8);
+		if (size <= maxMailboxes) {
+			return;
+		}
+		long[] lastUsed = new long[size];
+		int n = 0;
+		for (ChangeLog log : logs.values()) {
+			if (n == lastUsed.length) {
+				break;
+			}
+			lastUsed[n++] = log.lastUsed;
+		}
+		if (n <= keep) {
+			return;
+		}
+		Arrays.sort(lastUsed, 0, n);
+		long threshold = lastUsed[n - keep - 1];
+		for (Map.Entry<MailboxPath, ChangeLog> e : logs.entrySet()) {
+			if (e.getValue().lastUsed <= threshold) {
+				logs.remove(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return amount of mailboxes with a log.
+	 */
+	public int getMailboxCount() {
+		return logs.size();
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.descartes.gos.jimap.condstore;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.display.HumanReadableText;
+import org.apache.james.imap.api.message.FetchData;
+import org.apache.james.imap.api.message.IdRange;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.message.response.StatusResponse;
+import org.apache.james.imap.api.message.response.StatusResponseFactory;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.imap.message.request.AbstractMailboxSelectionRequest;
+import org.apache.james.imap.message.request.ExamineRequest;
+import org.apache.james.imap.message.request.FetchRequest;
+import org.apache.james.imap.message.request.SelectRequest;
+import org.apache.james.imap.message.response.VanishedResponse;
+import org.apache.james.imap.processor.EnableProcessor;
+import org.apache.james.imap.processor.base.ImapSessionUtils;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers <code>UID FETCH ... (CHANGEDSINCE n [VANISHED])</code> (RFC 7162 CONDSTORE) and
+ * <code>SELECT/EXAMINE ... (QRESYNC (uidvalidity n [uids]))</code> from the {@link ChangeLogs change log} of the mailbox,
+ * in front of the processor chain.
+ * <br>The processors of the chain look at every message in the requested range to find the changed ones,
+ * and compute vanished UIDs by enumerating all known UIDs: a resync after a reconnect costs as much as the mailbox is large.
+ * Here the changed UIDs from the log are fetched by the chain (which still applies CHANGEDSINCE) and vanished UIDs
+ * come from the logged expunges, so a resync costs as much as there were changes.
+ * <br>Requests that the log does not cover (mailbox not selected since the server started, mod-sequence older than the log,
+ * a plain FETCH with message numbers) are passed on unchanged, except that a QRESYNC SELECT is
+ * answered with a full CHANGEDSINCE fetch of the chain.
+ * The known sequence set of QRESYNC is not used: the logged expunges are exact.
+ */
+public class QuickResyncProcessor implements ImapProcessor {
+
+	private static Logger log = LoggerFactory.getLogger(QuickResyncProcessor.class);
+
+	private static final String QRESYNC = "QRESYNC";
+
+	private static final ImapCommand FETCH = ImapCommand.selectedStateCommand("FETCH");
+
+	private static final IdRange[] ALL = new IdRange[] { new IdRange(1L, Long.MAX_VALUE) };
+
+	private final ImapProcessor next;
+	private final StatusResponseFactory factory;
+	private final ChangeLogs changeLogs;
+
+	/**
+	 * @param changeLogs must be registered as global listener of the mailbox manager.
+	 */
+	public QuickResyncProcessor(ImapProcessor next, StatusResponseFactory factory, ChangeLogs changeLogs) {
+
+		this.next = next;
+		this.factory = factory;
+		this.changeLogs = changeLogs;
+	}
+
+	public void process(ImapMessage message, Responder responder, ImapSession session) {
+
+		if (message instanceof FetchRequest) {
+			if (!fetchChanges((FetchRequest) message, responder, session)) {
+				next.process(message, responder, session);
+			}
+		} else if (message instanceof AbstractMailboxSelectionRequest) {
+			select((AbstractMailboxSelectionRequest) message, responder, session);
+		} else {
+			next.process(message, responder, session);
+		}
+	}
+
+	/**
+	 * @return false when the log does not cover the request.
+	 */
+	private boolean fetchChanges(FetchRequest request, Responder responder, ImapSession session) {
+
+		FetchData fetch = request.getFetch();
+		long changedSince = fetch.getChangedSince();
+		SelectedMailbox selected = session.getSelected();
+		if (changedSince < 0L || !request.isUseUids() || selected == null) {
+			return false;
+		}
+		if (fetch.getVanished() && !isQResyncEnabled(session)) {
+			// Rejected by the chain.
+			return false;
+		}
+		ChangeLog changeLog = changeLogs.get(selected.getPath());
+		ChangeLog.Changes changes = (changeLog == null ? null : changeLog.changesSince(changedSince, fetch.getVanished()));
+		if (changes == null) {
+			return false;
+		}
+		IdRange[] idSet = request.getIdSet();
+		if (fetch.getVanished()) {
+			respondVanished(changes.expunged, idSet, responder);
+			fetch.setVanished(false);
+		}
+		IdRange[] changed = ranges(changes.changed, idSet);
+		if (changed.length == 0) {
+			responder.respond(factory.taggedOk(request.getTag(), request.getCommand(), HumanReadableText.COMPLETED));
+		} else {
+			next.process(new FetchRequest(request.getCommand(), true, changed, fetch, request.getTag()), responder, session);
+		}
+		return true;
+	}
+
+	/**
+	 * Selects the mailbox without the QRESYNC parameters and sends the changes before the tagged response of the chain.
+	 */
+	private void select(AbstractMailboxSelectionRequest request, Responder responder, ImapSession session) {
+
+		Long uidValidity = request.getLastKnownUidValidity();
+		Long knownModSeq = request.getKnownModSeq();
+		if (uidValidity == null || knownModSeq == null || !isQResyncEnabled(session)) {
+			next.process(request, responder, session);
+			openChangeLog(session);
+			return;
+		}
+		AbstractMailboxSelectionRequest plain;
+		if (request instanceof ExamineRequest) {
+			plain = new ExamineRequest(request.getCommand(), request.getMailboxName(), request.getCondstore(),
+					null, null, null, null, null, request.getTag());
+		} else {
+			plain = new SelectRequest(request.getCommand(), request.getMailboxName(), request.getCondstore(),
+					null, null, null, null, null, request.getTag());
+		}
+		TaggedResponseFilter completion = new TaggedResponseFilter(responder, request.getTag());
+		next.process(plain, completion, session);
+		StatusResponse selected = completion.tagged;
+		if (selected != null && selected.getServerResponseType() == StatusResponse.Type.OK) {
+			ChangeLog changeLog = openChangeLog(session);
+			if (changeLog != null && changeLog.getUidValidity() == uidValidity) {
+				resync(changeLog, knownModSeq, request.getUidSet(), request.getTag(), completion, session);
+			}
+		}
+		if (selected != null) {
+			responder.respond(selected);
+		}
+	}
+
+	/**
+	 * Sends VANISHED (EARLIER) and FETCH responses for the changes since the mod-sequence,
+	 * the tagged responses of the fetch are dropped by the filter.
+	 */
+	private void resync(ChangeLog changeLog, long knownModSeq, IdRange[] uidSet, String tag, TaggedResponseFilter responder, ImapSession session) {
+
+		IdRange[] within = (uidSet == null ? ALL : uidSet);
+		FetchData fetch = new FetchData();
+		fetch.setUid(true);
+		fetch.setFlags(true);
+		fetch.setChangedSince(knownModSeq);
+		ChangeLog.Changes changes = changeLog.changesSince(knownModSeq, true);
+		IdRange[] fetchSet;
+		if (changes == null) {
+			fetch.setVanished(true);
+			fetchSet = within;
+		} else {
+			respondVanished(changes.expunged, within, responder);
+			fetchSet = ranges(changes.changed, within);
+		}
+		if (fetchSet.length > 0) {
+			next.process(new FetchRequest(FETCH, true, fetchSet, fetch, tag), responder, session);
+		}
+	}
+
+	/**
+	 * @return the started change log of the selected mailbox, null when it could not be read.
+	 */
+	private ChangeLog openChangeLog(ImapSession session) {
+
+		SelectedMailbox selected = session.getSelected();
+		if (selected == null) {
+			return null;
+		}
+		try {
+			return changeLogs.open(selected.getPath(), ImapSessionUtils.getMailboxSession(session));
+		} catch (MailboxException e) {
+			log.warn("Cannot start change log of " + selected.getPath(), e);
+			return null;
+		}
+	}
+
+	private static boolean isQResyncEnabled(ImapSession session) {
+
+		Set<String> enabled = EnableProcessor.getEnabledCapabilities(session);
+		return (enabled != null && enabled.contains(QRESYNC));
+	}
+
+	private static void respondVanished(long[] expunged, IdRange[] within, Responder responder) {
+
+		IdRange[] vanished = ranges(expunged, within);
+		if (vanished.length > 0) {
+			responder.respond(new VanishedResponse(vanished, true));
+		}
+	}
+
+	/**
+	 * @param uids ascending UIDs.
+	 * @return ranges of consecutive UIDs that are in one of the given ranges.
+	 */
+	static IdRange[] ranges(long[] uids, IdRange[] within) {
+
+		IdRange[] ranges = new IdRange[8];
+		int count = 0;
+		long from = -1L;
+		long to = -1L;
+		for (long uid : uids) {
+			if (!contains(within, uid)) {
+				continue;
+			}
+			if (from >= 0L && uid == to + 1L) {
+				to = uid;
+				continue;
+			}
+			if (from >= 0L) {
+				if (count == ranges.length) {
+					ranges = Arrays.copyOf(ranges, count * 2);
+				}
+				ranges[count++] = new IdRange(from, to);
+			}
+			from = to = uid;
+		}
+		if (from >= 0L) {
+			if (count == ranges.length) {
+				ranges = Arrays.copyOf(ranges, count + 1);
+			}
+			ranges[count++] = new IdRange(from, to);
+		}
+		return Arrays.copyOf(ranges, count);
+	}
+
+	private static boolean contains(IdRange[] ranges, long uid) {
+
+		for (IdRange range : ranges) {
+			// A range of "n:*" can be given in reverse.
+			long low = Math.min(range.getLowVal(), range.getHighVal());
+			long high = Math.max(range.getLowVal(), range.getHighVal());
+			if (uid >= low && uid <= high) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Passes on untagged responses, keeps the first tagged response (of the command)
+	 * and drops the tagged responses of commands executed on its behalf.
+	 */
+	private static final class TaggedResponseFilter implements Responder {
+
+		private final Responder responder;
+		private final String tag;
+		StatusResponse tagged;
+
+		TaggedResponseFilter(Responder responder, String tag) {
+
+			this.responder = responder;
+			this.tag = tag;
+		}
+
+		public void respond(ImapResponseMessage message) {
+
+			if (message instanceof StatusResponse && tag.equals(((StatusResponse) message).getTag())) {
+				if (tagged == null) {
+					tagged = (StatusResponse) message;
+				}
+			} else {
+				responder.respond(message);
+			}
+		}
+	}
+
+}
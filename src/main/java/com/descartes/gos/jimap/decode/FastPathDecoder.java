@@ -0,0 +1,509 @@
+package com.descartes.gos.jimap.decode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.message.FetchData;
+import org.apache.james.imap.api.message.IdRange;
+import org.apache.james.imap.api.message.request.SearchKey;
+import org.apache.james.imap.api.message.request.SearchOperation;
+import org.apache.james.imap.api.message.request.SearchResultOption;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestLineReader;
+import org.apache.james.imap.decode.RawRequestLine;
+import org.apache.james.imap.message.request.FetchRequest;
+import org.apache.james.imap.message.request.IdleRequest;
+import org.apache.james.imap.message.request.NoopRequest;
+import org.apache.james.imap.message.request.SearchRequest;
+import org.apache.james.imap.message.request.StoreRequest;
+
+/**
+ * Decodes the most frequent commands of synchronizing clients (NOOP, IDLE, <code>UID FETCH</code>, <code>UID STORE</code>
+ * and <code>UID SEARCH</code>) directly from the bytes of the line, in front of the default decoder.
+ * <br>The default decoder looks up a command parser per command and reads the line character by character via the
+ * {@link ImapRequestLineReader}, building strings for every word and sequence set. Here the line is parsed from a
+ * {@link RawRequestLine} in one pass, sequence sets go into primitive arrays before the ranges are created.
+ * <br>Only a common subset of each command is recognized (e.g. FETCH items without sections, SEARCH on flags and UIDs),
+ * anything else (other commands, unusual syntax, invalid commands, lines that are not buffered completely)
+ * is left untouched for the default decoder, which also produces the error responses.
+ * Recognized commands decode to the same requests as with the default decoder.
+ */
+public class FastPathDecoder implements ImapDecoder {
+
+	/** Session attribute reset by the default decoder for each known command. */
+	private static final String INVALID_COMMAND_COUNT = "INVALID_COMMAND_COUNT";
+
+	private static final ImapCommand NOOP = ImapCommand.anyStateCommand("NOOP");
+	private static final ImapCommand IDLE = ImapCommand.authenticatedStateCommand("IDLE");
+	private static final ImapCommand FETCH = ImapCommand.selectedStateCommand("FETCH");
+	private static final ImapCommand STORE = ImapCommand.selectedStateCommand("STORE");
+	private static final ImapCommand SEARCH = ImapCommand.selectedStateCommand("SEARCH");
+
+	/** Longer lines (e.g. huge sequence sets) are rare and left to the default decoder. */
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	/** Largest UID or message number. */
+	private static final long MAX_NUMBER = 0xFFFFFFFFL;
+
+	private final ImapDecoder decoder;
+
+	/**
+	 * @param decoder decodes the commands that are not recognized.
+	 */
+	public FastPathDecoder(ImapDecoder decoder) {
+		this.decoder = decoder;
+	}
+
+	public ImapMessage decode(ImapRequestLineReader request, ImapSession session) {
+
+		if (request instanceof RawRequestLine) {
+			RawRequestLine line = (RawRequestLine) request;
+			int length = line.lineLength();
+			if (length > 0 && length <= MAX_LINE_LENGTH) {
+				Parser parser = new Parser(line, length);
+				ImapMessage message = parser.command(session);
+				if (message != null) {
+					session.setAttribute(INVALID_COMMAND_COUNT, 0);
+					// The line-end is consumed after processing, like with the default decoder.
+					line.consumeLineBytes(parser.end);
+					return message;
+				}
+			}
+		}
+		return decoder.decode(request, session);
+	}
+
+	/**
+	 * Parser of one line, all methods return null (or a negative number) when the line is not recognized.
+	 */
+	private static final class Parser {
+
+		private final RawRequestLine line;
+		/** Index of the line-end. */
+		final int end;
+		private int pos;
+
+		Parser(RawRequestLine line, int length) {
+
+			this.line = line;
+			int end = length - 1;
+			if (end > 0 && line.lineByte(end - 1) == '\r') {
+				end--;
+			}
+			this.end = end;
+		}
+
+		private int peek() {
+			return (pos < end ? line.lineByte(pos) : -1);
+		}
+
+		private boolean atEnd() {
+			return pos == end;
+		}
+
+		private boolean next(char c) {
+
+			if (peek() == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @param word upper-case word.
+		 * @return true when the word (in any case) is next, followed by a space, a closing parenthesis or the line-end.
+		 */
+		private boolean word(String word) {
+
+			int length = word.length();
+			if (pos + length > end) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				int b = line.lineByte(pos + i);
+				if (b >= 'a' && b <= 'z') {
+					b -= 'a' - 'A';
+				}
+				if (b != word.charAt(i)) {
+					return false;
+				}
+			}
+			int after = pos + length;
+			if (after < end && line.lineByte(after) != ' ' && line.lineByte(after) != ')') {
+				return false;
+			}
+			pos = after;
+			return true;
+		}
+
+		ImapMessage command(ImapSession session) {
+
+			String tag = tag();
+			if (tag == null || !next(' ')) {
+				return null;
+			}
+			ImapCommand command;
+			ImapMessage message;
+			if (word("NOOP")) {
+				command = NOOP;
+				message = (atEnd() ? new NoopRequest(command, tag) : null);
+			} else if (word("IDLE")) {
+				command = IDLE;
+				message = (atEnd() ? new IdleRequest(command, tag) : null);
+			} else if (word("UID") && next(' ')) {
+				if (word("FETCH") && next(' ')) {
+					command = FETCH;
+					message = fetch(command, tag);
+				} else if (word("STORE") && next(' ')) {
+					command = STORE;
+					message = store(command, tag);
+				} else if (word("SEARCH") && next(' ')) {
+					command = SEARCH;
+					message = search(command, tag);
+				} else {
+					return null;
+				}
+			} else {
+				return null;
+			}
+			// Let the default decoder answer commands that are not valid in this state.
+			return (message != null && command.validForState(session.getState()) ? message : null);
+		}
+
+		private String tag() {
+
+			int start = pos;
+			int b;
+			while ((b = peek()) > ' ' && b < 0x7F && b != '(' && b != ')' && b != '{' && b != '%' && b != '*'
+					&& b != '"' && b != '\\' && b != ']' && b != '+') {
+				pos++;
+			}
+			return (pos == start ? null : string(start, pos));
+		}
+
+		private String string(int from, int to) {
+
+			char[] chars = new char[to - from];
+			for (int i = from; i < to; i++) {
+				chars[i - from] = (char) line.lineByte(i);
+			}
+			return new String(chars);
+		}
+
+		/**
+		 * @param maxDigits maximum amount of digits.
+		 * @return the number (without leading zeros), -1 when there is none.
+		 */
+		private long number(int maxDigits) {
+
+			int start = pos;
+			long value = 0L;
+			int b;
+			while ((b = peek()) >= '0' && b <= '9') {
+				if (pos == start && b == '0') {
+					return -1L;
+				}
+				value = value * 10L + (b - '0');
+				pos++;
+				if (pos - start > maxDigits) {
+					return -1L;
+				}
+			}
+			return (pos == start ? -1L : value);
+		}
+
+		private long uid() {
+
+			long uid = number(10);
+			return (uid > MAX_NUMBER ? -1L : uid);
+		}
+
+		private long modSeq() {
+			return number(18);
+		}
+
+		/**
+		 * Parses a sequence set of numbers and ranges (<code>n:m</code>, <code>n:*</code>).
+		 * A single <code>*</code>, ranges starting with <code>*</code> and <code>$</code> are left to the default decoder.
+		 */
+		private IdRange[] sequenceSet() {
+
+			long[] ranges = new long[16];
+			int count = 0;
+			// True when the ranges are ascending and not adjacent, so that merging would not change them.
+			boolean disjoint = true;
+			do {
+				long low = uid();
+				if (low < 0L) {
+					return null;
+				}
+				long high = low;
+				if (next(':')) {
+					if (next('*')) {
+						high = Long.MAX_VALUE;
+					} else {
+						high = uid();
+						if (high < 0L) {
+							return null;
+						}
+						if (high < low) {
+							long swap = low;
+							low = high;
+							high = swap;
+						}
+					}
+				}
+				if (count > 0 && (ranges[count - 1] == Long.MAX_VALUE || low <= ranges[count - 1] + 1L)) {
+					disjoint = false;
+				}
+				if (count == ranges.length) {
+					ranges = Arrays.copyOf(ranges, count * 2);
+				}
+				ranges[count++] = low;
+				ranges[count++] = high;
+			} while (next(','));
+			IdRange[] idSet = new IdRange[count / 2];
+			for (int i = 0; i < idSet.length; i++) {
+				long low = ranges[i * 2];
+				long high = ranges[i * 2 + 1];
+				idSet[i] = (low == high ? new IdRange(low) : new IdRange(low, high));
+			}
+			if (disjoint) {
+				return idSet;
+			}
+			List<IdRange> merged = IdRange.mergeRanges(Arrays.asList(idSet));
+			return merged.toArray(new IdRange[merged.size()]);
+		}
+
+		/**
+		 * <code>UID FETCH set (items) [(CHANGEDSINCE n [VANISHED])]</code>, items without sections or partials.
+		 */
+		private ImapMessage fetch(ImapCommand command, String tag) {
+
+			IdRange[] idSet = sequenceSet();
+			if (idSet == null || !next(' ')) {
+				return null;
+			}
+			FetchData fetch = new FetchData();
+			if (next('(')) {
+				do {
+					if (!fetchItem(fetch)) {
+						return null;
+					}
+				} while (next(' '));
+				if (!next(')')) {
+					return null;
+				}
+			} else if (!fetchMacro(fetch) && !fetchItem(fetch)) {
+				return null;
+			}
+			if (next(' ')) {
+				if (!next('(') || !word("CHANGEDSINCE") || !next(' ')) {
+					return null;
+				}
+				long changedSince = modSeq();
+				if (changedSince < 0L) {
+					return null;
+				}
+				fetch.setChangedSince(changedSince);
+				if (next(' ')) {
+					if (!word("VANISHED")) {
+						return null;
+					}
+					fetch.setVanished(true);
+				}
+				if (!next(')')) {
+					return null;
+				}
+			}
+			return (atEnd() ? new FetchRequest(command, true, idSet, fetch, tag) : null);
+		}
+
+		private boolean fetchMacro(FetchData fetch) {
+
+			boolean all = false, full = false;
+			if (word("FAST") || (all = word("ALL")) || (full = word("FULL"))) {
+				fetch.setFlags(true);
+				fetch.setInternalDate(true);
+				fetch.setSize(true);
+				fetch.setEnvelope(all || full);
+				fetch.setBody(full);
+				return true;
+			}
+			return false;
+		}
+
+		private boolean fetchItem(FetchData fetch) {
+
+			if (word("FLAGS")) {
+				fetch.setFlags(true);
+			} else if (word("UID")) {
+				fetch.setUid(true);
+			} else if (word("RFC822.SIZE")) {
+				fetch.setSize(true);
+			} else if (word("INTERNALDATE")) {
+				fetch.setInternalDate(true);
+			} else if (word("ENVELOPE")) {
+				fetch.setEnvelope(true);
+			} else if (word("BODYSTRUCTURE")) {
+				fetch.setBodyStructure(true);
+			} else if (word("BODY")) {
+				// Not followed by a section: BODY[...] does not end the word.
+				fetch.setBody(true);
+			} else {
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * <code>UID STORE set [(UNCHANGEDSINCE n)] [+|-]FLAGS[.SILENT] flags</code>, system flags and keywords.
+		 */
+		private ImapMessage store(ImapCommand command, String tag) {
+
+			IdRange[] idSet = sequenceSet();
+			if (idSet == null || !next(' ')) {
+				return null;
+			}
+			long unchangedSince = -1L;
+			if (next('(')) {
+				if (!word("UNCHANGEDSINCE") || !next(' ') || (unchangedSince = modSeq()) < 0L || !next(')') || !next(' ')) {
+					return null;
+				}
+			}
+			Boolean sign = null;
+			if (next('+')) {
+				sign = Boolean.TRUE;
+			} else if (next('-')) {
+				sign = Boolean.FALSE;
+			}
+			boolean silent;
+			if (word("FLAGS")) {
+				silent = false;
+			} else if (word("FLAGS.SILENT")) {
+				silent = true;
+			} else {
+				return null;
+			}
+			if (!next(' ')) {
+				return null;
+			}
+			Flags flags = new Flags();
+			if (next('(')) {
+				if (!next(')')) {
+					do {
+						if (!flag(flags)) {
+							return null;
+						}
+					} while (next(' '));
+					if (!next(')')) {
+						return null;
+					}
+				}
+			} else {
+				do {
+					if (!flag(flags)) {
+						return null;
+					}
+				} while (next(' '));
+			}
+			return (atEnd() ? new StoreRequest(command, idSet, silent, flags, true, tag, sign, unchangedSince) : null);
+		}
+
+		private boolean flag(Flags flags) {
+
+			if (next('\\')) {
+				if (word("SEEN")) {
+					flags.add(Flags.Flag.SEEN);
+				} else if (word("ANSWERED")) {
+					flags.add(Flags.Flag.ANSWERED);
+				} else if (word("FLAGGED")) {
+					flags.add(Flags.Flag.FLAGGED);
+				} else if (word("DELETED")) {
+					flags.add(Flags.Flag.DELETED);
+				} else if (word("DRAFT")) {
+					flags.add(Flags.Flag.DRAFT);
+				} else {
+					return false;
+				}
+				return true;
+			}
+			int start = pos;
+			int b;
+			while ((b = peek()) >= 0 && ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+					|| b == '$' || b == '_' || b == '-' || b == '.')) {
+				pos++;
+			}
+			if (pos == start || (pos < end && b != ' ' && b != ')')) {
+				return false;
+			}
+			flags.add(string(start, pos));
+			return true;
+		}
+
+		/**
+		 * <code>UID SEARCH key [key ...]</code> with flag keys, ALL and UID sets (no CHARSET or RETURN options).
+		 */
+		private ImapMessage search(ImapCommand command, String tag) {
+
+			List<SearchKey> keys = new ArrayList<SearchKey>(4);
+			do {
+				SearchKey key = searchKey();
+				if (key == null) {
+					return null;
+				}
+				keys.add(key);
+			} while (next(' '));
+			if (!atEnd()) {
+				return null;
+			}
+			SearchKey key = (keys.size() == 1 ? keys.get(0) : SearchKey.buildAnd(keys));
+			return new SearchRequest(command, new SearchOperation(key, new ArrayList<SearchResultOption>()), true, tag);
+		}
+
+		private SearchKey searchKey() {
+
+			if (word("ALL")) {
+				return SearchKey.buildAll();
+			} else if (word("UNSEEN")) {
+				return SearchKey.buildUnseen();
+			} else if (word("SEEN")) {
+				return SearchKey.buildSeen();
+			} else if (word("UNDELETED")) {
+				return SearchKey.buildUndeleted();
+			} else if (word("DELETED")) {
+				return SearchKey.buildDeleted();
+			} else if (word("UNFLAGGED")) {
+				return SearchKey.buildUnflagged();
+			} else if (word("FLAGGED")) {
+				return SearchKey.buildFlagged();
+			} else if (word("UNANSWERED")) {
+				return SearchKey.buildUnanswered();
+			} else if (word("ANSWERED")) {
+				return SearchKey.buildAnswered();
+			} else if (word("UNDRAFT")) {
+				return SearchKey.buildUndraft();
+			} else if (word("DRAFT")) {
+				return SearchKey.buildDraft();
+			} else if (word("RECENT")) {
+				return SearchKey.buildRecent();
+			} else if (word("NEW")) {
+				return SearchKey.buildNew();
+			} else if (word("OLD")) {
+				return SearchKey.buildOld();
+			} else if (word("UID") && next(' ')) {
+				IdRange[] idSet = sequenceSet();
+				return (idSet == null ? null : SearchKey.buildUidSet(idSet));
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,301 @@
+package com.descartes.gos.jimap.engine;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable container for the responses to a batch of commands executed by an {@link ImapEngine}.
+ * Responses are kept as encoded bytes in one growing array and indexed per command:
+ * each response (an untagged or continuation response, or the tagged completion response)
+ * is one "line" without the trailing CRLF, literal data included.
+ * <br>The primitive accessors ({@link #getLineOffset(int, int)}, {@link #getLineLength(int, int)} and {@link #array()})
+ * do not allocate. Not thread-safe: use one instance per calling thread and {@link #clear()} it between batches.
+ */
+public class CommandResults {
+
+	/**
+	 * Completion status of a command.
+	 */
+	public enum Status {
+		OK, NO, BAD,
+		/** No tagged response, e.g. the connection was abandoned. */
+		NONE
+	}
+
+	private byte[] data;
+	private int size;
+
+	private int[] lineStart = new int[64];
+	private int[] lineEnd = new int[64];
+	private int lines;
+
+	private int[] firstLine = new int[16];
+	private int[] lineCount = new int[16];
+	private Status[] status = new Status[16];
+	private int commands;
+	private boolean sessionEnded;
+
+	private final OutputStream output = new OutputStream() {
+
+		@Override
+		public void write(int b) {
+			ensureCapacity(1);
+			data[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureCapacity(len);
+			System.arraycopy(b, off, data, size, len);
+			size += len;
+		}
+	};
+
+	public CommandResults() {
+		this(8 * 1024);
+	}
+
+	/**
+	 * @param initialCapacity initial size of the response bytes array.
+	 */
+	public CommandResults(int initialCapacity) {
+		data = new byte[Math.max(64, initialCapacity)];
+	}
+
+	/**
+	 * Removes all results, keeping the allocated arrays.
+	 */
+	public void clear() {
+
+		size = lines = commands = 0;
+		sessionEnded = false;
+		Arrays.fill(status, null);
+	}
+
+	/**
+	 * @return amount of commands with results.
+	 */
+	public int getCommandCount() {
+		return commands;
+	}
+
+	/**
+	 * True when a command ended the session (LOGOUT or an abandoned connection),
+	 * commands after that command were not executed.
+	 */
+	public boolean isSessionEnded() {
+		return sessionEnded;
+	}
+
+	public Status getStatus(int command) {
+		return status[check(command)];
+	}
+
+	/**
+	 * @return amount of responses to a command, including the tagged response.
+	 */
+	public int getLineCount(int command) {
+		return lineCount[check(command)];
+	}
+
+	/**
+	 * @return amount of responses to a command without the tagged response.
+	 */
+	public int getUntaggedCount(int command) {
+		return lineCount[check(command)] - (status[command] == Status.NONE ? 0 : 1);
+	}
+
+	/**
+	 * @return offset in {@link #array()} of a response to a command.
+	 */
+	public int getLineOffset(int command, int line) {
+		return lineStart[lineIndex(command, line)];
+	}
+
+	/**
+	 * @return length in bytes of a response to a command (without CRLF).
+	 */
+	public int getLineLength(int command, int line) {
+
+		int i = lineIndex(command, line);
+		return lineEnd[i] - lineStart[i];
+	}
+
+	/**
+	 * @return a read-only view of an untagged response to a command.
+	 */
+	public ByteBuffer getUntagged(int command, int index) {
+
+		if (index < 0 || index >= getUntaggedCount(command)) {
+			throw new IndexOutOfBoundsException("Untagged response " + index + " of command " + command);
+		}
+		return view(lineIndex(command, index));
+	}
+
+	/**
+	 * @return a read-only view of the tagged response to a command, null if there is none.
+	 */
+	public ByteBuffer getTagged(int command) {
+
+		if (getStatus(command) == Status.NONE) {
+			return null;
+		}
+		return view(lineIndex(command, lineCount[command] - 1));
+	}
+
+	/**
+	 * @return the array containing all responses, valid until the next batch.
+	 */
+	public byte[] array() {
+		return data;
+	}
+
+	/**
+	 * @return total amount of response bytes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private ByteBuffer view(int line) {
+		return ByteBuffer.wrap(data, lineStart[line], lineEnd[line] - lineStart[line]).slice().asReadOnlyBuffer();
+	}
+
+	private int check(int command) {
+
+		if (command < 0 || command >= commands) {
+			throw new IndexOutOfBoundsException("Command " + command + " of " + commands);
+		}
+		return command;
+	}
+
+	private int lineIndex(int command, int line) {
+
+		if (line < 0 || line >= lineCount[check(command)]) {
+			throw new IndexOutOfBoundsException("Response " + line + " of command " + command);
+		}
+		return firstLine[command] + line;
+	}
+
+	/* Methods used by the engine. */
+
+	OutputStream getOutput() {
+		return output;
+	}
+
+	/**
+	 * Indexes the responses written since the given offset as the results of one command.
+	 * @param request buffer containing the tag of the command at the given (absolute) index.
+	 */
+	void addCommand(int responseStart, ByteBuffer request, int tagStart, int tagLength) {
+
+		if (commands == status.length) {
+			int capacity = commands * 2;
+			firstLine = Arrays.copyOf(firstLine, capacity);
+			lineCount = Arrays.copyOf(lineCount, capacity);
+			status = Arrays.copyOf(status, capacity);
+		}
+		int first = lines;
+		Status completion = Status.NONE;
+		int p = responseStart;
+		while (p < size) {
+			int end = lineEnd(p);
+			addLine(p, end);
+			if (isTagged(p, end, request, tagStart, tagLength)) {
+				completion = parseStatus(p + tagLength + 1, end);
+			}
+			p = Math.min(size, end + 2);
+		}
+		firstLine[commands] = first;
+		lineCount[commands] = lines - first;
+		status[commands] = completion;
+		commands++;
+	}
+
+	void setSessionEnded() {
+		sessionEnded = true;
+	}
+
+	/**
+	 * @return index of the CR of the CRLF ending the response starting at the given offset, skipping literals.
+	 */
+	private int lineEnd(int p) {
+
+		for (int i = p; i < size; i++) {
+			if (data[i] == '\n') {
+				int end = (i > p && data[i - 1] == '\r' ? i - 1 : i);
+				long literal = literalSize(p, end);
+				if (literal < 0) {
+					return end;
+				}
+				i += literal;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return size of the literal announced at the end of a line, -1 if there is none.
+	 */
+	private long literalSize(int start, int end) {
+
+		if (end - start < 3 || data[end - 1] != '}') {
+			return -1;
+		}
+		long literal = 0;
+		long multiplier = 1;
+		int i = end - 2;
+		for (; i > start && data[i] >= '0' && data[i] <= '9'; i--) {
+			literal += (data[i] - '0') * multiplier;
+			multiplier *= 10;
+		}
+		return (data[i] == '{' && i < end - 2 ? literal : -1);
+	}
+
+	private boolean isTagged(int start, int end, ByteBuffer request, int tagStart, int len) {
+
+		if (len == 0 || end - start <= len || data[start + len] != ' ') {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (data[start + i] != request.get(tagStart + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Status parseStatus(int p, int end) {
+
+		if (end - p >= 2 && data[p] == 'O' && data[p + 1] == 'K') {
+			return Status.OK;
+		}
+		if (end - p >= 2 && data[p] == 'N' && data[p + 1] == 'O') {
+			return Status.NO;
+		}
+		if (end - p >= 3 && data[p] == 'B' && data[p + 1] == 'A' && data[p + 2] == 'D') {
+			return Status.BAD;
+		}
+		return Status.NONE;
+	}
+
+	private void addLine(int start, int end) {
+
+		if (lines == lineStart.length) {
+			lineStart = Arrays.copyOf(lineStart, lines * 2);
+			lineEnd = Arrays.copyOf(lineEnd, lines * 2);
+		}
+		lineStart[lines] = start;
+		lineEnd[lines] = end;
+		lines++;
+	}
+
+	private void ensureCapacity(int extra) {
+
+		if (size + extra > data.length) {
+			data = Arrays.copyOf(data, Math.max(size + extra, data.length * 2));
+		}
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.descartes.gos.jimap.engine;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.display.HumanReadableText;
+import org.apache.james.imap.api.message.FetchData;
+import org.apache.james.imap.api.message.request.ImapRequest;
+import org.apache.james.imap.api.message.response.StatusResponseFactory;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.message.request.AbstractMailboxSelectionRequest;
+import org.apache.james.imap.message.request.FetchRequest;
+import org.apache.james.imap.message.request.StoreRequest;
+
+/**
+ * Answers BAD to the modifiers of a disabled QRESYNC (<code>VANISHED</code>, the <code>QRESYNC</code> parameter of SELECT/EXAMINE)
+ * and, when CONDSTORE is disabled too, to <code>CHANGEDSINCE</code>, <code>UNCHANGEDSINCE</code> and the <code>CONDSTORE</code> parameter.
+ * The processors of the chain implement both capabilities and would otherwise accept them.
+ */
+class DisabledModifierProcessor implements ImapProcessor {
+
+	private final ImapProcessor next;
+	private final StatusResponseFactory factory;
+	private final boolean condstore;
+
+	/**
+	 * @param condstore true when CONDSTORE is enabled (only QRESYNC is disabled).
+	 */
+	DisabledModifierProcessor(ImapProcessor next, StatusResponseFactory factory, boolean condstore) {
+
+		this.next = next;
+		this.factory = factory;
+		this.condstore = condstore;
+	}
+
+	public void process(ImapMessage message, Responder responder, ImapSession session) {
+
+		if (isDisabled(message)) {
+			ImapRequest request = (ImapRequest) message;
+			responder.respond(factory.taggedBad(request.getTag(), request.getCommand(), HumanReadableText.ILLEGAL_ARGUMENTS));
+		} else {
+			next.process(message, responder, session);
+		}
+	}
+
+	private boolean isDisabled(ImapMessage message) {
+
+		if (message instanceof FetchRequest) {
+			FetchData fetch = ((FetchRequest) message).getFetch();
+			return fetch.getVanished() || (!condstore && fetch.getChangedSince() >= 0L);
+		}
+		if (message instanceof AbstractMailboxSelectionRequest) {
+			AbstractMailboxSelectionRequest request = (AbstractMailboxSelectionRequest) message;
+			return request.getLastKnownUidValidity() != null || (!condstore && request.getCondstore());
+		}
+		if (message instanceof StoreRequest) {
+			return !condstore && ((StoreRequest) message).getUnchangedSince() >= 0L;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,208 @@
+package com.descartes.gos.jimap.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.james.imap.api.process.ImapLineHandler;
+import org.apache.james.imap.decode.ImapRequestBufferLineReader;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.JimapSessionPool;
+import com.descartes.gos.jimap.metrics.ImapMetrics;
+
+/**
+ * Executes IMAP commands in-process, without streams or string conversions.
+ * Commands are read from a (reusable) buffer and the responses are indexed per command in {@link CommandResults}.
+ * <br>Thread-safe: many threads can execute commands at the same time for different sessions
+ * (against one shared mailbox manager). A session must only be used by one thread at a time.
+ * <br>Tasks posted to a session (IDLE updates) are run at the start of the next {@link #execute(JimapSession, ByteBuffer, CommandResults)},
+ * their responses are written to the results of that call: as untagged responses of its first command,
+ * or as a result without tagged response (status NONE) when the call has no commands.
+ * <br>Use {@link #builder()} to create an engine with the default processing chain.
+ */
+public class ImapEngine {
+
+	/** Session attribute with the {@link ResultsOutput} of a session. */
+	private static final String OUTPUT = ImapEngine.class.getName() + ".output";
+
+	private final ImapRequestStreamHandler handler;
+	private final MailboxManager mailboxManager;
+	private final JimapSessionPool sessions;
+	/** Registered with the mailbox manager by the builder for this engine. */
+	private final List<MailboxListener> globalListeners;
+	private final MailboxSession systemSession;
+
+	public static ImapEngineBuilder builder() {
+		return new ImapEngineBuilder();
+	}
+
+	/**
+	 * @param handler the processing chain, responses are never flushed by the handler.
+	 */
+	public ImapEngine(ImapRequestStreamHandler handler) {
+		this(handler, new JimapSessionPool(1024));
+	}
+
+	public ImapEngine(ImapRequestStreamHandler handler, JimapSessionPool sessions) {
+		this(handler, null, sessions, Collections.<MailboxListener>emptyList(), null);
+	}
+
+	/**
+	 * @param globalListeners registered with the mailbox manager for the chain, removed by {@link #close()}.
+	 * @param systemSession the session the listeners were registered with, null without listeners.
+	 */
+	ImapEngine(ImapRequestStreamHandler handler, MailboxManager mailboxManager, JimapSessionPool sessions,
+			List<MailboxListener> globalListeners, MailboxSession systemSession) {
+
+		this.handler = handler;
+		this.mailboxManager = mailboxManager;
+		this.sessions = sessions;
+		this.globalListeners = globalListeners;
+		this.systemSession = systemSession;
+		handler.setCoalesceResponses(true);
+	}
+
+	/**
+	 * The processing chain, can be shared with a server.
+	 */
+	public ImapRequestStreamHandler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * @return the mailbox manager of the chain when the engine was built by {@link ImapEngineBuilder}, else null.
+	 */
+	public MailboxManager getMailboxManager() {
+		return mailboxManager;
+	}
+
+	public JimapSession openSession() {
+		return sessions.acquire();
+	}
+
+	/**
+	 * Logs out the session (if needed) and releases it for re-use.
+	 * The session must not be used after this call.
+	 */
+	public void closeSession(JimapSession session) {
+
+		handler.closeSession(session);
+		sessions.release(session);
+	}
+
+	/**
+	 * Removes the global listeners of the chain from the mailbox manager and logs out the system session,
+	 * for an engine built by {@link ImapEngineBuilder} whose mailbox manager stays in use.
+	 * The engine must not be used after this call.
+	 */
+	public void close() throws MailboxException {
+
+		if (systemSession == null) {
+			return;
+		}
+		for (MailboxListener listener : globalListeners) {
+			mailboxManager.removeGlobalListener(listener, systemSession);
+		}
+		mailboxManager.logout(systemSession, true);
+	}
+
+	/**
+	 * Executes the complete commands in the buffer (from position to limit) in order.
+	 * Literals must be part of the buffer (no continuation requests are sent).
+	 * The buffer's position is moved past the executed commands.
+	 * Results are added to the given results, use {@link CommandResults#clear()} to re-use results for a next batch.
+	 * @return false when the session ended (results show which command ended it), remaining commands were not executed.
+	 */
+	public boolean execute(JimapSession session, ByteBuffer commands, CommandResults results) {
+
+		boolean more = true;
+		int start = commands.position();
+		ResultsOutput output = output(session);
+		output.results = results;
+		session.bindLogContext();
+		try {
+			int responseStart = results.size();
+			// Tasks write through the responder of the IDLE command, which writes to the session's output.
+			if (session.runTasks() && !commands.hasRemaining()) {
+				results.addCommand(responseStart, commands, start, 0);
+			}
+			while (more && commands.hasRemaining()) {
+				int tagStart = commands.position();
+				int tagLength = tagLength(commands, tagStart);
+				ImapLineHandler lineHandler = session.getLineHandler();
+				if (lineHandler == null) {
+					more = handler.handleRequest(new ImapRequestBufferLineReader(commands), output, session);
+				} else {
+					more = handler.handleLine(new ImapRequestBufferLineReader(commands), output, session, lineHandler);
+				}
+				results.addCommand(responseStart, commands, tagStart, tagLength);
+				responseStart = results.size();
+			}
+		} finally {
+			output.results = null;
+			session.unbindLogContext();
+			ImapMetrics metrics = handler.getMetrics();
+			if (metrics != null) {
+				metrics.received(commands.position() - start);
+			}
+		}
+		if (!more) {
+			results.setSessionEnded();
+		}
+		return more;
+	}
+
+	private static ResultsOutput output(JimapSession session) {
+
+		ResultsOutput output = (ResultsOutput) session.getAttribute(OUTPUT);
+		if (output == null) {
+			output = new ResultsOutput();
+			session.setAttribute(OUTPUT, output);
+		}
+		return output;
+	}
+
+	/**
+	 * Output of a session that writes to the results of the current {@link ImapEngine#execute(JimapSession, ByteBuffer, CommandResults)},
+	 * also for responders kept by a command (IDLE). Responses written outside of an execute are dropped.
+	 */
+	private static class ResultsOutput extends OutputStream {
+
+		CommandResults results;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (results != null) {
+				results.getOutput().write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (results != null) {
+				results.getOutput().write(b, off, len);
+			}
+		}
+	}
+
+	private static int tagLength(ByteBuffer commands, int start) {
+
+		int i = start;
+		for (int limit = commands.limit(); i < limit; i++) {
+			byte b = commands.get(i);
+			if (b == ' ' || b == '\r' || b == '\n') {
+				break;
+			}
+		}
+		return i - start;
+	}
+
+}
@@ -0,0 +1,377 @@
+package com.descartes.gos.jimap.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.james.imap.api.display.Localizer;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.main.DefaultImapEncoderFactory;
+import org.apache.james.imap.encode.main.DefaultLocalizer;
+import org.apache.james.imap.main.DefaultImapDecoderFactory;
+import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.SubscriptionManager;
+import org.apache.james.mailbox.acl.SimpleGroupMembershipResolver;
+import org.apache.james.mailbox.acl.UnionMailboxACLResolver;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.inmemory.InMemoryMailboxSessionMapperFactory;
+import org.apache.james.mailbox.store.Authenticator;
+import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
+import org.apache.james.mailbox.store.StoreMailboxManager;
+import org.apache.james.mailbox.store.StoreSubscriptionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.FanOutMailboxListener;
+import com.descartes.gos.jimap.JimapAuthenticator;
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.JimapSessionPool;
+import com.descartes.gos.jimap.condstore.ChangeLogs;
+import com.descartes.gos.jimap.condstore.QuickResyncProcessor;
+import com.descartes.gos.jimap.decode.FastPathDecoder;
+import com.descartes.gos.jimap.metrics.ImapMetrics;
+import com.descartes.gos.jimap.search.IndexedMessageSearchIndex;
+import com.descartes.gos.jimap.select.PreEncodedResponseEncoder;
+import com.descartes.gos.jimap.select.SelectPreambleProcessor;
+import com.descartes.gos.jimap.select.SelectPreambles;
+import com.descartes.gos.jimap.shard.ShardedMailboxManager;
+import com.descartes.gos.jimap.shard.ShardedSubscriptionManager;
+
+/**
+ * Builds an {@link ImapEngine} with the processor chain of the enabled capabilities:
+ * mailbox manager (with {@link FanOutMailboxListener} and {@link IndexedMessageSearchIndex}), subscription manager,
+ * processors, decoder and encoder. The engine (and its {@link ImapEngine#getHandler() handler}) is thread-safe
+ * and meant to be shared, e.g. by a server and by tests.
+ * <br>The decoder and the encoder are stateless: they are created once and shared by all engines built with the same localizer,
+ * so only the first engine in a JVM pays for loading their classes.
+ * With {@link #setWarmUp(int)} a scripted session is run against a private in-memory mailbox before the engine is returned,
+ * so that the first client commands are not executed by the interpreter.
+ * <br>The chain is fronted by a {@link QuickResyncProcessor}: CONDSTORE/QRESYNC resyncs are answered from a log of the
+ * recent changes per mailbox (see {@link #setChangeLogCapacity(int)}).
+ * <br>The FLAGS, UIDVALIDITY and PERMANENTFLAGS responses of SELECT and EXAMINE are sent from a cache of encoded responses
+ * per mailbox (see {@link #setSelectPreambles(boolean)}).
+ * <br>Frequent commands of synchronizing clients are decoded by a {@link FastPathDecoder} (see {@link #setFastPathDecoder(boolean)}).
+ * <br>With more than one shard (see {@link #setShards(int)} and {@link #setMapperFactories(List)}) users are spread
+ * over independent mailbox managers by a {@link ShardedMailboxManager}.
+ * <br>Defaults: an in-memory mailbox, all users allowed ({@link JimapAuthenticator}), the {@link DefaultLocalizer}, all capabilities.
+ */
+public class ImapEngineBuilder {
+
+	private static Logger log = LoggerFactory.getLogger(ImapEngineBuilder.class);
+
+	private static final String[] WARM_UP_COMMANDS = new String[] {
+		"w1 LOGIN warmup warmup",
+		"w2 CAPABILITY",
+		"w3 SELECT INBOX",
+		"w4 FETCH 1:* (FLAGS UID RFC822.SIZE INTERNALDATE BODY.PEEK[HEADER])",
+		"w5 UID FETCH 1:* (FLAGS BODY.PEEK[])",
+		"w6 SEARCH UNSEEN",
+		"w7 UID SEARCH SUBJECT warm",
+		"w8 STORE 1:* +FLAGS (\\Seen)",
+		"w9 STATUS INBOX (MESSAGES UNSEEN UIDNEXT)",
+		"w10 LIST \"\" *",
+		"w11 STORE 1:* +FLAGS.SILENT (\\Deleted)",
+		"w12 EXPUNGE",
+		"w13 NOOP",
+		"w14 LOGOUT"
+	};
+
+	private static final byte[] WARM_UP_MESSAGE = ("From: warmup@example.com\r\n"
+			+ "To: warmup@example.com\r\n"
+			+ "Subject: warm up\r\n"
+			+ "\r\n"
+			+ "Warm-up message.\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	/** Stateless and shared by all engines with the default localizer. */
+	private static class Defaults {
+		static final Localizer LOCALIZER = new DefaultLocalizer();
+		static final ImapDecoder DECODER = DefaultImapDecoderFactory.createDecoder();
+		static final ImapDecoder FAST_PATH_DECODER = new FastPathDecoder(DECODER);
+		static final ImapEncoder ENCODER = new PreEncodedResponseEncoder(DefaultImapEncoderFactory.createDefaultEncoder(LOCALIZER, false));
+	}
+
+	private MailboxSessionMapperFactory<Long> mapperFactory;
+	private List<MailboxSessionMapperFactory<Long>> mapperFactories;
+	private int shards = 1;
+	private Authenticator authenticator;
+	private Localizer localizer;
+	private boolean searchBody;
+	private final Set<String> disabledCapabilities = new HashSet<String>();
+	private ImapMetrics metrics;
+	private int maxPooledSessions = 1024;
+	private int warmUp;
+	private int changeLogCapacity = ChangeLogs.DEFAULT_CAPACITY;
+	private boolean fastPathDecoder = true;
+	private boolean selectPreambles = true;
+
+	/**
+	 * Default an {@link InMemoryMailboxSessionMapperFactory}.
+	 */
+	public ImapEngineBuilder setMapperFactory(MailboxSessionMapperFactory<Long> mapperFactory) {
+		this.mapperFactory = mapperFactory;
+		return this;
+	}
+
+	/**
+	 * One mapper factory per shard, overrides {@link #setMapperFactory(MailboxSessionMapperFactory)} and {@link #setShards(int)}.
+	 * The order of the factories must be the same each time a persistent store is opened (it decides the shard of a user).
+	 */
+	public ImapEngineBuilder setMapperFactories(List<MailboxSessionMapperFactory<Long>> mapperFactories) {
+		this.mapperFactories = (mapperFactories == null ? null : new ArrayList<MailboxSessionMapperFactory<Long>>(mapperFactories));
+		return this;
+	}
+
+	/**
+	 * Amount of shards with an {@link InMemoryMailboxSessionMapperFactory} each, default 1.
+	 * Cannot be combined with {@link #setMapperFactory(MailboxSessionMapperFactory)}.
+	 */
+	public ImapEngineBuilder setShards(int shards) {
+		this.shards = Math.max(1, shards);
+		return this;
+	}
+
+	/**
+	 * Default {@link JimapAuthenticator} (all users allowed).
+	 */
+	public ImapEngineBuilder setAuthenticator(Authenticator authenticator) {
+		this.authenticator = authenticator;
+		return this;
+	}
+
+	/**
+	 * Default {@link DefaultLocalizer}. A custom localizer gets its own encoder.
+	 */
+	public ImapEngineBuilder setLocalizer(Localizer localizer) {
+		this.localizer = localizer;
+		return this;
+	}
+
+	/**
+	 * True to let SEARCH use an index of message bodies, default false (headers only).
+	 */
+	public ImapEngineBuilder setSearchBody(boolean searchBody) {
+		this.searchBody = searchBody;
+		return this;
+	}
+
+	/**
+	 * Leaves a capability (e.g. <code>IDLE</code>, <code>ACL</code>) out of the chain's CAPABILITY responses
+	 * and its processors out of the chain: its commands and modifiers are answered with BAD (see {@link ProcessorChain}).
+	 */
+	public ImapEngineBuilder disableCapability(String capability) {
+		disabledCapabilities.add(capability);
+		return this;
+	}
+
+	/**
+	 * Metrics to record for each command, default none.
+	 */
+	public ImapEngineBuilder setMetrics(ImapMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Maximum amount of closed sessions kept for re-use by the engine, default 1024.
+	 */
+	public ImapEngineBuilder setMaxPooledSessions(int maxPooledSessions) {
+		this.maxPooledSessions = Math.max(0, maxPooledSessions);
+		return this;
+	}
+
+	/**
+	 * Amount of scripted sessions to run before the engine is returned, default 0 (no warm-up).
+	 * The sessions run against a private in-memory mailbox, never against the engine's mailbox.
+	 * A few thousand sessions let the JIT compile the decoder, processors and encoder (about a second).
+	 */
+	public ImapEngineBuilder setWarmUp(int sessions) {
+		this.warmUp = Math.max(0, sessions);
+		return this;
+	}
+
+	/**
+	 * Maximum amount of changes logged per selected mailbox for CONDSTORE/QRESYNC resyncs, default {@link ChangeLogs#DEFAULT_CAPACITY}.
+	 * Clients that resync from an older mod-sequence are answered by the chain (which looks at all messages).
+	 * 0 disables the change logs.
+	 */
+	public ImapEngineBuilder setChangeLogCapacity(int changeLogCapacity) {
+		this.changeLogCapacity = Math.max(0, changeLogCapacity);
+		return this;
+	}
+
+	/**
+	 * True (default) to decode NOOP, IDLE, <code>UID FETCH</code>, <code>UID STORE</code> and <code>UID SEARCH</code>
+	 * with the {@link FastPathDecoder}, false to decode all commands with the default decoder.
+	 */
+	public ImapEngineBuilder setFastPathDecoder(boolean fastPathDecoder) {
+		this.fastPathDecoder = fastPathDecoder;
+		return this;
+	}
+
+	/**
+	 * True (default) to send the FLAGS, UIDVALIDITY and PERMANENTFLAGS responses of SELECT and EXAMINE
+	 * from a cache of encoded responses per mailbox ({@link SelectPreambleProcessor}).
+	 */
+	public ImapEngineBuilder setSelectPreambles(boolean selectPreambles) {
+		this.selectPreambles = selectPreambles;
+		return this;
+	}
+
+	/**
+	 * Builds a new engine with its own mailbox manager (and warms it up when configured).
+	 * @throws MailboxException when the mailbox manager cannot be initialized.
+	 * @throws IllegalStateException when one mapper factory is set for more than one shard.
+	 */
+	public ImapEngine build() throws MailboxException {
+
+		List<MailboxSessionMapperFactory<Long>> mappers = mappers();
+		Authenticator auth = (authenticator == null ? new JimapAuthenticator() : authenticator);
+		List<MailboxManager> mailboxManagers = new ArrayList<MailboxManager>(mappers.size());
+		List<SubscriptionManager> subscriptionManagers = new ArrayList<SubscriptionManager>(mappers.size());
+		for (MailboxSessionMapperFactory<Long> mapper : mappers) {
+			mailboxManagers.add(createMailboxManager(mapper, auth));
+			subscriptionManagers.add(new StoreSubscriptionManager(mapper));
+		}
+		MailboxManager mailboxManager;
+		SubscriptionManager subscriptionManager;
+		if (mappers.size() == 1) {
+			mailboxManager = mailboxManagers.get(0);
+			subscriptionManager = subscriptionManagers.get(0);
+		} else {
+			mailboxManager = new ShardedMailboxManager(mailboxManagers);
+			subscriptionManager = new ShardedSubscriptionManager(subscriptionManagers);
+		}
+		ImapDecoder decoder = (fastPathDecoder ? Defaults.FAST_PATH_DECODER : Defaults.DECODER);
+		ImapEncoder encoder = (localizer == null ? Defaults.ENCODER
+				: new PreEncodedResponseEncoder(DefaultImapEncoderFactory.createDefaultEncoder(localizer, false)));
+		ProcessorChain chain = new ProcessorChain(disabledCapabilities);
+		ImapProcessor processor = chain.create(mailboxManager, subscriptionManager);
+		List<MailboxListener> globalListeners = new ArrayList<MailboxListener>();
+		MailboxSession systemSession = mailboxManager.createSystemSession("jimap", log);
+		if (selectPreambles) {
+			SelectPreambles preambles = new SelectPreambles();
+			mailboxManager.addGlobalListener(preambles, systemSession);
+			globalListeners.add(preambles);
+			processor = new SelectPreambleProcessor(processor, encoder, preambles);
+		}
+		if (changeLogCapacity > 0 && chain.isEnabled(ProcessorChain.CONDSTORE)) {
+			ChangeLogs changeLogs = new ChangeLogs(mailboxManager, changeLogCapacity);
+			mailboxManager.addGlobalListener(changeLogs, systemSession);
+			globalListeners.add(changeLogs);
+			processor = new QuickResyncProcessor(processor, new UnpooledStatusResponseFactory(), changeLogs);
+		}
+		processor = chain.front(processor);
+		ImapRequestStreamHandler handler = new ImapRequestStreamHandler(decoder, processor, encoder);
+		handler.setMetrics(metrics);
+		ImapEngine engine = new ImapEngine(handler, mailboxManager, new JimapSessionPool(maxPooledSessions), globalListeners, systemSession);
+		if (warmUp > 0) {
+			warmUp();
+		}
+		return engine;
+	}
+
+	private List<MailboxSessionMapperFactory<Long>> mappers() {
+
+		if (mapperFactories != null && !mapperFactories.isEmpty()) {
+			return mapperFactories;
+		}
+		if (mapperFactory != null) {
+			if (shards > 1) {
+				throw new IllegalStateException("One mapper factory cannot be used for " + shards + " shards, set a mapper factory per shard.");
+			}
+			return Collections.singletonList(mapperFactory);
+		}
+		List<MailboxSessionMapperFactory<Long>> mappers = new ArrayList<MailboxSessionMapperFactory<Long>>(shards);
+		for (int i = 0; i < shards; i++) {
+			mappers.add(new InMemoryMailboxSessionMapperFactory());
+		}
+		return mappers;
+	}
+
+	private StoreMailboxManager<Long> createMailboxManager(MailboxSessionMapperFactory<Long> mapper, Authenticator auth) throws MailboxException {
+
+		StoreMailboxManager<Long> mailboxManager = new StoreMailboxManager<Long>(mapper, auth,
+				new UnionMailboxACLResolver(), new SimpleGroupMembershipResolver());
+		mailboxManager.setMessageSearchIndex(new IndexedMessageSearchIndex(mapper, IndexedMessageSearchIndex.DEFAULT_INDEXED_HEADERS, searchBody));
+		// Mailbox events reach idling sessions without a lock shared by all mailboxes.
+		mailboxManager.setDelegatingMailboxListener(new FanOutMailboxListener());
+		mailboxManager.init();
+		return mailboxManager;
+	}
+
+	/**
+	 * Runs the warm-up sessions on an engine with the same settings and a private in-memory mailbox,
+	 * the mailbox and the listeners of the warm-up engine are released afterwards.
+	 */
+	private void warmUp() throws MailboxException {
+
+		long start = System.nanoTime();
+		InMemoryMailboxSessionMapperFactory mapper = new InMemoryMailboxSessionMapperFactory();
+		ImapEngineBuilder builder = new ImapEngineBuilder()
+				.setMapperFactory(mapper)
+				.setLocalizer(localizer)
+				.setSearchBody(searchBody)
+				.setChangeLogCapacity(changeLogCapacity)
+				.setFastPathDecoder(fastPathDecoder)
+				.setSelectPreambles(selectPreambles)
+				.setMaxPooledSessions(1);
+		builder.disabledCapabilities.addAll(disabledCapabilities);
+		ImapEngine engine = builder.build();
+		try {
+			warmUp(engine);
+		} finally {
+			engine.close();
+			mapper.deleteAll();
+		}
+		log.info("Warmed up IMAP engine with " + warmUp + " sessions in " + (System.nanoTime() - start) / 1000000L + " ms.");
+	}
+
+	private void warmUp(ImapEngine engine) {
+
+		byte[] append = appendCommand();
+		byte[][] commands = new byte[WARM_UP_COMMANDS.length][];
+		for (int i = 0; i < commands.length; i++) {
+			commands[i] = (WARM_UP_COMMANDS[i] + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		}
+		CommandResults results = new CommandResults();
+		for (int s = 0; s < warmUp; s++) {
+			JimapSession session = engine.openSession();
+			try {
+				for (int i = 0; i < commands.length; i++) {
+					results.clear();
+					engine.execute(session, ByteBuffer.wrap(commands[i]), results);
+					if (i == 0) {
+						// Two messages after login, expunged at the end of the session.
+						results.clear();
+						engine.execute(session, ByteBuffer.wrap(append), results);
+						engine.execute(session, ByteBuffer.wrap(append), results);
+					}
+				}
+			} finally {
+				engine.closeSession(session);
+			}
+		}
+	}
+
+	private static byte[] appendCommand() {
+
+		byte[] line = ("wa APPEND INBOX {" + WARM_UP_MESSAGE.length + "}\r\n").getBytes(StandardCharsets.US_ASCII);
+		byte[] command = new byte[line.length + WARM_UP_MESSAGE.length + 2];
+		System.arraycopy(line, 0, command, 0, line.length);
+		System.arraycopy(WARM_UP_MESSAGE, 0, command, line.length, WARM_UP_MESSAGE.length);
+		command[command.length - 2] = '\r';
+		command[command.length - 1] = '\n';
+		return command;
+	}
+
+}
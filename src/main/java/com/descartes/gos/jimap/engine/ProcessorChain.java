@@ -0,0 +1,190 @@
+package com.descartes.gos.jimap.engine;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.james.imap.api.message.response.StatusResponseFactory;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
+import org.apache.james.imap.processor.AppendProcessor;
+import org.apache.james.imap.processor.AuthenticateProcessor;
+import org.apache.james.imap.processor.CapabilityProcessor;
+import org.apache.james.imap.processor.CheckProcessor;
+import org.apache.james.imap.processor.CloseProcessor;
+import org.apache.james.imap.processor.CompressProcessor;
+import org.apache.james.imap.processor.CopyProcessor;
+import org.apache.james.imap.processor.CreateProcessor;
+import org.apache.james.imap.processor.DeleteACLProcessor;
+import org.apache.james.imap.processor.DeleteProcessor;
+import org.apache.james.imap.processor.EnableProcessor;
+import org.apache.james.imap.processor.ExamineProcessor;
+import org.apache.james.imap.processor.ExpungeProcessor;
+import org.apache.james.imap.processor.GetACLProcessor;
+import org.apache.james.imap.processor.IdleProcessor;
+import org.apache.james.imap.processor.LSubProcessor;
+import org.apache.james.imap.processor.ListProcessor;
+import org.apache.james.imap.processor.ListRightsProcessor;
+import org.apache.james.imap.processor.LoginProcessor;
+import org.apache.james.imap.processor.LogoutProcessor;
+import org.apache.james.imap.processor.MyRightsProcessor;
+import org.apache.james.imap.processor.NamespaceProcessor;
+import org.apache.james.imap.processor.NoopProcessor;
+import org.apache.james.imap.processor.RenameProcessor;
+import org.apache.james.imap.processor.SearchProcessor;
+import org.apache.james.imap.processor.SelectProcessor;
+import org.apache.james.imap.processor.SetACLProcessor;
+import org.apache.james.imap.processor.StartTLSProcessor;
+import org.apache.james.imap.processor.StatusProcessor;
+import org.apache.james.imap.processor.StoreProcessor;
+import org.apache.james.imap.processor.SubscribeProcessor;
+import org.apache.james.imap.processor.SystemMessageProcessor;
+import org.apache.james.imap.processor.UnselectProcessor;
+import org.apache.james.imap.processor.UnsubscribeProcessor;
+import org.apache.james.imap.processor.XListProcessor;
+import org.apache.james.imap.processor.base.UnknownRequestProcessor;
+import org.apache.james.imap.processor.fetch.FetchProcessor;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.SubscriptionManager;
+
+/**
+ * Composes the processor chain in the order of the default chain of protocols-imap,
+ * with only the processors of the enabled capabilities.
+ * <br>Commands of a disabled capability (IDLE, NAMESPACE, UNSELECT, XLIST, STARTTLS, COMPRESS=DEFLATE, ACL, ENABLE)
+ * are not known to the chain and answered with BAD by the {@link UnknownRequestProcessor} at its end.
+ * The modifiers of disabled CONDSTORE/QRESYNC are answered with BAD by a {@link DisabledModifierProcessor} in {@link #front(ImapProcessor) front}.
+ * Other capabilities extend the commands of IMAP4rev1 and are only left out of the CAPABILITY responses.
+ */
+class ProcessorChain {
+
+	static final String IDLE = "IDLE";
+	static final String NAMESPACE = "NAMESPACE";
+	static final String UNSELECT = "UNSELECT";
+	static final String XLIST = "XLIST";
+	static final String STARTTLS = "STARTTLS";
+	static final String COMPRESS = "COMPRESS=DEFLATE";
+	static final String ACL = "ACL";
+	static final String ENABLE = "ENABLE";
+	static final String CONDSTORE = "CONDSTORE";
+	static final String QRESYNC = "QRESYNC";
+
+	private final Set<String> disabled = new HashSet<String>();
+
+	/**
+	 * @param disabled capability names, not case-sensitive.
+	 */
+	ProcessorChain(Set<String> disabled) {
+
+		for (String capability : disabled) {
+			this.disabled.add(capability.toUpperCase(Locale.US));
+		}
+		// QRESYNC requires CONDSTORE.
+		if (this.disabled.contains(CONDSTORE)) {
+			this.disabled.add(QRESYNC);
+		}
+	}
+
+	boolean isEnabled(String capability) {
+		return !disabled.contains(capability);
+	}
+
+	/**
+	 * @return the first processor of a new chain.
+	 */
+	ImapProcessor create(MailboxManager mailboxManager, SubscriptionManager subscriptionManager) {
+
+		StatusResponseFactory factory = new UnpooledStatusResponseFactory();
+		ImapProcessor next = new SystemMessageProcessor(new UnknownRequestProcessor(factory), mailboxManager);
+		next = new LogoutProcessor(next, mailboxManager, factory);
+		CapabilityProcessor capabilityProcessor = new CapabilityProcessor(next, mailboxManager, factory, disabled);
+		next = new CheckProcessor(capabilityProcessor, mailboxManager, factory);
+		LoginProcessor loginProcessor = new LoginProcessor(next, mailboxManager, factory);
+		capabilityProcessor.addProcessor(loginProcessor);
+		next = new RenameProcessor(loginProcessor, mailboxManager, factory);
+		next = new DeleteProcessor(next, mailboxManager, factory);
+		next = new CreateProcessor(next, mailboxManager, factory);
+		next = new CloseProcessor(next, mailboxManager, factory);
+		next = new UnsubscribeProcessor(next, mailboxManager, subscriptionManager, factory);
+		next = new SubscribeProcessor(next, mailboxManager, subscriptionManager, factory);
+		next = new CopyProcessor(next, mailboxManager, factory);
+		AuthenticateProcessor authenticateProcessor = new AuthenticateProcessor(next, mailboxManager, factory);
+		capabilityProcessor.addProcessor(authenticateProcessor);
+		ExpungeProcessor expungeProcessor = new ExpungeProcessor(authenticateProcessor, mailboxManager, factory);
+		capabilityProcessor.addProcessor(expungeProcessor);
+		next = new ExamineProcessor(expungeProcessor, mailboxManager, factory);
+		next = new AppendProcessor(next, mailboxManager, factory);
+		next = new StoreProcessor(next, mailboxManager, factory);
+		next = new NoopProcessor(next, mailboxManager, factory);
+		if (isEnabled(IDLE)) {
+			IdleProcessor idleProcessor = new IdleProcessor(next, mailboxManager, factory);
+			capabilityProcessor.addProcessor(idleProcessor);
+			next = idleProcessor;
+		}
+		next = new StatusProcessor(next, mailboxManager, factory);
+		next = new LSubProcessor(next, mailboxManager, subscriptionManager, factory);
+		if (isEnabled(XLIST)) {
+			XListProcessor xListProcessor = new XListProcessor(next, mailboxManager, factory, null);
+			capabilityProcessor.addProcessor(xListProcessor);
+			next = xListProcessor;
+		}
+		next = new ListProcessor(next, mailboxManager, factory);
+		SearchProcessor searchProcessor = new SearchProcessor(next, mailboxManager, factory);
+		capabilityProcessor.addProcessor(searchProcessor);
+		SelectProcessor selectProcessor = new SelectProcessor(searchProcessor, mailboxManager, factory);
+		// Advertises CONDSTORE and QRESYNC (unless disabled).
+		capabilityProcessor.addProcessor(selectProcessor);
+		next = selectProcessor;
+		if (isEnabled(NAMESPACE)) {
+			NamespaceProcessor namespaceProcessor = new NamespaceProcessor(next, mailboxManager, factory);
+			capabilityProcessor.addProcessor(namespaceProcessor);
+			next = namespaceProcessor;
+		}
+		next = new FetchProcessor(next, mailboxManager, factory);
+		if (isEnabled(STARTTLS)) {
+			StartTLSProcessor startTLSProcessor = new StartTLSProcessor(next, factory);
+			capabilityProcessor.addProcessor(startTLSProcessor);
+			next = startTLSProcessor;
+		}
+		if (isEnabled(UNSELECT)) {
+			UnselectProcessor unselectProcessor = new UnselectProcessor(next, mailboxManager, factory);
+			capabilityProcessor.addProcessor(unselectProcessor);
+			next = unselectProcessor;
+		}
+		if (isEnabled(COMPRESS)) {
+			CompressProcessor compressProcessor = new CompressProcessor(next, factory);
+			capabilityProcessor.addProcessor(compressProcessor);
+			next = compressProcessor;
+		}
+		if (isEnabled(ACL)) {
+			GetACLProcessor getACLProcessor = new GetACLProcessor(next, mailboxManager, factory);
+			capabilityProcessor.addProcessor(getACLProcessor);
+			next = new SetACLProcessor(getACLProcessor, mailboxManager, factory);
+			next = new DeleteACLProcessor(next, mailboxManager, factory);
+			next = new ListRightsProcessor(next, mailboxManager, factory);
+			next = new MyRightsProcessor(next, mailboxManager, factory);
+		}
+		if (isEnabled(ENABLE)) {
+			EnableProcessor enableProcessor = new EnableProcessor(next, mailboxManager, factory);
+			// The select processor permits both CONDSTORE and QRESYNC: with QRESYNC disabled, CONDSTORE is only enabled implicitly.
+			if (isEnabled(QRESYNC)) {
+				enableProcessor.addProcessor(selectProcessor);
+			}
+			capabilityProcessor.addProcessor(enableProcessor);
+			next = enableProcessor;
+		}
+		return next;
+	}
+
+	/**
+	 * @param processor the chain or the processors in front of it.
+	 * @return the processor that rejects the modifiers of disabled CONDSTORE/QRESYNC before the given processor sees them.
+	 */
+	ImapProcessor front(ImapProcessor processor) {
+
+		if (isEnabled(QRESYNC)) {
+			return processor;
+		}
+		return new DisabledModifierProcessor(processor, new UnpooledStatusResponseFactory(), isEnabled(CONDSTORE));
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of {@link com.descartes.gos.jimap.auth.CachingAuthenticator}: cache hits and misses, denied logins
+ * and the latency of credential verifications. Recording is lock-free.
+ * Read the counters via JMX after {@link #register(String)}.
+ */
+public class AuthenticatorMetrics implements AuthenticatorMetricsMXBean {
+
+	private static Logger log = LoggerFactory.getLogger(AuthenticatorMetrics.class);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder denied = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LatencyHistogram verification = new LatencyHistogram();
+	private ObjectName registeredName;
+
+	public void cacheHit() {
+		hits.increment();
+	}
+
+	public void cacheMiss() {
+		misses.increment();
+	}
+
+	public void denied() {
+		denied.increment();
+	}
+
+	public void rejected() {
+		rejected.increment();
+	}
+
+	public void timedOut() {
+		timeouts.increment();
+	}
+
+	public void verified(long nanos) {
+		verification.record(nanos);
+	}
+
+	public long getCacheHits() {
+		return hits.sum();
+	}
+
+	public long getCacheMisses() {
+		return misses.sum();
+	}
+
+	public double getCacheHitRatio() {
+
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return (total == 0L ? 0.0 : (double) hit / total);
+	}
+
+	public long getDenied() {
+		return denied.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	public StageSnapshot getVerification() {
+		return verification.snapshot();
+	}
+
+	/**
+	 * Registers this as MXBean with the platform MBean server as {@code com.descartes.gos.jimap:type=AuthenticatorMetrics,name=<name>}.
+	 * Failure to register is logged, not thrown.
+	 */
+	public synchronized void register(String name) {
+
+		try {
+			ObjectName objectName = new ObjectName(ImapMetrics.DOMAIN + ":type=AuthenticatorMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredName = objectName;
+			log.debug("Registered authenticator metrics as " + objectName);
+		} catch (JMException e) {
+			log.warn("Failed to register authenticator metrics " + name + ": " + e);
+		}
+	}
+
+	public synchronized void unregister() {
+
+		if (registeredName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e) {
+			log.warn("Failed to unregister authenticator metrics " + registeredName + ": " + e);
+		}
+		registeredName = null;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getCacheHits() + " misses=" + getCacheMisses() + " denied=" + getDenied() + " rejected=" + getRejected()
+				+ " timeouts=" + getTimeouts() + " verification: " + getVerification();
+	}
+
+}
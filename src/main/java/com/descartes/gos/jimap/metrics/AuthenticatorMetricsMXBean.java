@@ -0,0 +1,40 @@
+package com.descartes.gos.jimap.metrics;
+
+/**
+ * Management interface of {@link AuthenticatorMetrics}.
+ */
+public interface AuthenticatorMetricsMXBean {
+
+	/**
+	 * @return logins allowed from the cache of verified credentials.
+	 */
+	long getCacheHits();
+
+	/**
+	 * @return logins of which the credentials were verified by the credential store.
+	 */
+	long getCacheMisses();
+
+	/**
+	 * @return hits divided by hits and misses, 0 when there were no logins.
+	 */
+	double getCacheHitRatio();
+
+	long getDenied();
+
+	/**
+	 * @return logins denied because the verifier threads were too busy.
+	 */
+	long getRejected();
+
+	/**
+	 * @return logins denied because the verification took too long.
+	 */
+	long getTimeouts();
+
+	/**
+	 * @return durations of credential verifications by the credential store.
+	 */
+	StageSnapshot getVerification();
+
+}
@@ -0,0 +1,34 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one command type.
+ */
+class CommandMetrics {
+
+	final String command;
+	final LatencyHistogram decode = new LatencyHistogram();
+	final LatencyHistogram process = new LatencyHistogram();
+	final LatencyHistogram encode = new LatencyHistogram();
+	final LatencyHistogram total = new LatencyHistogram();
+	final LongAdder bytesOut = new LongAdder();
+
+	CommandMetrics(String command) {
+		this.command = command;
+	}
+
+	void record(long decodeNanos, long processNanos, long encodeNanos, long responseBytes) {
+
+		decode.record(decodeNanos);
+		process.record(processNanos);
+		encode.record(encodeNanos);
+		total.record(decodeNanos + processNanos + encodeNanos);
+		bytesOut.add(responseBytes);
+	}
+
+	CommandSnapshot snapshot() {
+		return new CommandSnapshot(command, bytesOut.sum(), decode.snapshot(), process.snapshot(), encode.snapshot(), total.snapshot());
+	}
+
+}
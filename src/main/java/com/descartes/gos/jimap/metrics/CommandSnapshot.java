@@ -0,0 +1,75 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Counters and durations per stage of the commands of one type, see {@link ImapMetrics#snapshot()}.
+ */
+public class CommandSnapshot {
+
+	private final String command;
+	private final long bytesOut;
+	private final StageSnapshot decode;
+	private final StageSnapshot process;
+	private final StageSnapshot encode;
+	private final StageSnapshot total;
+
+	@ConstructorProperties({ "command", "bytesOut", "decode", "process", "encode", "total" })
+	public CommandSnapshot(String command, long bytesOut, StageSnapshot decode, StageSnapshot process, StageSnapshot encode, StageSnapshot total) {
+
+		this.command = command;
+		this.bytesOut = bytesOut;
+		this.decode = decode;
+		this.process = process;
+		this.encode = encode;
+		this.total = total;
+	}
+
+	/**
+	 * @return the command name, or {@link ImapMetrics#INVALID_COMMAND} for commands that could not be decoded.
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return bytes of the responses (before compression).
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return durations of parsing the command (including the reading of literals).
+	 */
+	public StageSnapshot getDecode() {
+		return decode;
+	}
+
+	/**
+	 * @return durations of executing the command, without encoding its responses.
+	 */
+	public StageSnapshot getProcess() {
+		return process;
+	}
+
+	/**
+	 * @return durations of encoding the responses (writing them to the output buffers).
+	 */
+	public StageSnapshot getEncode() {
+		return encode;
+	}
+
+	/**
+	 * @return durations of handling the command (decode, process and encode).
+	 */
+	public StageSnapshot getTotal() {
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return command + ": " + total + ", decode " + decode + ", process " + process + ", encode " + encode + ", bytes out=" + bytesOut;
+	}
+
+}
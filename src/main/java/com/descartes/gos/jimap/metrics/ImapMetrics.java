@@ -0,0 +1,171 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms per command type, split in decode, process and encode time,
+ * recorded by {@link org.apache.james.imap.decode.main.ImapRequestStreamHandler} when set on the handler.
+ * <br>Recording is lock-free and does not allocate (except for the first command of a type):
+ * a map lookup and a few atomic increments per command, cheap enough to be always on.
+ * Read the counters with {@link #snapshot()} or via JMX after {@link #register(String)}.
+ */
+public class ImapMetrics implements ImapMetricsMXBean {
+
+	private static Logger log = LoggerFactory.getLogger(ImapMetrics.class);
+
+	/** Command type of commands that could not be decoded. */
+	public static final String INVALID_COMMAND = "INVALID";
+
+	public static final String DOMAIN = "com.descartes.gos.jimap";
+
+	private static final Comparator<CommandSnapshot> BY_COMMAND = new Comparator<CommandSnapshot>() {
+		public int compare(CommandSnapshot a, CommandSnapshot b) {
+			return a.getCommand().compareTo(b.getCommand());
+		}
+	};
+
+	private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<String, CommandMetrics>();
+	private final LongAdder abandoned = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private ObjectName registeredName;
+
+	/**
+	 * Records the handling of one command.
+	 * @param command the command name, see {@link #INVALID_COMMAND}.
+	 * @param responseBytes bytes of the responses written for the command.
+	 */
+	public void commandHandled(String command, long decodeNanos, long processNanos, long encodeNanos, long responseBytes) {
+
+		CommandMetrics metrics = commands.get(command);
+		if (metrics == null) {
+			CommandMetrics created = new CommandMetrics(command);
+			metrics = commands.putIfAbsent(command, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		metrics.record(decodeNanos, processNanos, encodeNanos, responseBytes);
+	}
+
+	/**
+	 * Records a connection that was abandoned because of a protocol or I/O failure.
+	 */
+	public void abandoned() {
+		abandoned.increment();
+	}
+
+	/**
+	 * Records received command bytes (after decompression), called by the servers.
+	 */
+	public void received(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	public long getCommandCount() {
+
+		long count = 0L;
+		for (CommandMetrics metrics : commands.values()) {
+			count += metrics.total.count();
+		}
+		return count;
+	}
+
+	public long getAbandonedCount() {
+		return abandoned.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+
+		long bytes = 0L;
+		for (CommandMetrics metrics : commands.values()) {
+			bytes += metrics.bytesOut.sum();
+		}
+		return bytes;
+	}
+
+	public String[] getCommandTypes() {
+
+		List<String> types = new ArrayList<String>(commands.keySet());
+		Collections.sort(types);
+		return types.toArray(new String[types.size()]);
+	}
+
+	public List<CommandSnapshot> getPerCommand() {
+
+		List<CommandSnapshot> perCommand = new ArrayList<CommandSnapshot>(commands.size());
+		for (CommandMetrics metrics : commands.values()) {
+			perCommand.add(metrics.snapshot());
+		}
+		Collections.sort(perCommand, BY_COMMAND);
+		return perCommand;
+	}
+
+	public CommandSnapshot getCommandSnapshot(String command) {
+
+		CommandMetrics metrics = commands.get(command);
+		return (metrics == null ? null : metrics.snapshot());
+	}
+
+	/**
+	 * @return a copy of all counters.
+	 */
+	public MetricsSnapshot snapshot() {
+
+		List<CommandSnapshot> perCommand = getPerCommand();
+		long count = 0L;
+		long bytesOut = 0L;
+		for (CommandSnapshot command : perCommand) {
+			count += command.getTotal().getCount();
+			bytesOut += command.getBytesOut();
+		}
+		return new MetricsSnapshot(count, getAbandonedCount(), getBytesIn(), bytesOut, perCommand);
+	}
+
+	/**
+	 * Registers this as MXBean with the platform MBean server as {@code com.descartes.gos.jimap:type=ImapMetrics,name=<name>}.
+	 * Failure to register is logged, not thrown: metrics are not required to serve clients.
+	 */
+	public synchronized void register(String name) {
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=ImapMetrics,name=" + ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+			registeredName = objectName;
+			log.debug("Registered IMAP metrics as " + objectName);
+		} catch (JMException e) {
+			log.warn("Failed to register IMAP metrics " + name + ": " + e);
+		}
+	}
+
+	public synchronized void unregister() {
+
+		if (registeredName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e) {
+			log.warn("Failed to unregister IMAP metrics " + registeredName + ": " + e);
+		}
+		registeredName = null;
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.util.List;
+
+/**
+ * Management interface of {@link ImapMetrics}.
+ */
+public interface ImapMetricsMXBean {
+
+	long getCommandCount();
+
+	long getAbandonedCount();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	/**
+	 * @return names of the command types that were handled.
+	 */
+	String[] getCommandTypes();
+
+	List<CommandSnapshot> getPerCommand();
+
+	/**
+	 * @return the counters of one command type, null if no command of this type was handled.
+	 */
+	CommandSnapshot getCommandSnapshot(String command);
+
+}
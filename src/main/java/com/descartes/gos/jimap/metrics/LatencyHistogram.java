@@ -0,0 +1,131 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Buckets are powers of two split in 4 sub-buckets,
+ * so a percentile is accurate within 25%. Durations above 2^41 ns (about 36 minutes) go in the last bucket.
+ * <br>Recording is a few atomic increments, no allocation.
+ * Also used by the load generator of the benchmarks.
+ */
+public class LatencyHistogram {
+
+	private static final int MAX_EXPONENT = 40;
+	/** The last bucket counts all durations that are too long for the other buckets. */
+	static final int BUCKETS = 4 * MAX_EXPONENT + 1;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+
+		if (nanos < 0L) {
+			// nanoTime is monotonic, but do not let a bad value break the buckets.
+			nanos = 0L;
+		}
+		buckets.incrementAndGet(bucket(nanos));
+		totalNanos.add(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			// retry
+		}
+	}
+
+	static int bucket(long nanos) {
+
+		if (nanos < 4L) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		return 4 * (exponent - 1) + (int) ((nanos >>> (exponent - 2)) & 3);
+	}
+
+	/**
+	 * @return the highest duration that is counted in the bucket.
+	 */
+	static long upperBound(int bucket) {
+
+		if (bucket < 3) {
+			return bucket;
+		}
+		if (bucket == BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		int next = bucket + 1;
+		return ((4L + (next & 3)) << (next / 4 - 1)) - 1L;
+	}
+
+	long count() {
+
+		long count = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	public long getCount() {
+		return count();
+	}
+
+	public long getMax() {
+		return maxNanos.get();
+	}
+
+	public double getMean() {
+
+		long count = count();
+		return (count == 0L ? 0.0 : (double) totalNanos.sum() / count);
+	}
+
+	/**
+	 * @param percentile 0 to 100, e.g. 99.9
+	 * @return the duration (within 25%) at or below which the given percentage of recorded durations are.
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		long[] counts = new long[BUCKETS];
+		long count = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		return percentile(counts, count, percentile / 100.0, maxNanos.get());
+	}
+
+	StageSnapshot snapshot() {
+
+		long[] counts = new long[BUCKETS];
+		long count = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		long max = maxNanos.get();
+		return new StageSnapshot(count, totalNanos.sum(), max, percentile(counts, count, 0.5, max),
+				percentile(counts, count, 0.9, max), percentile(counts, count, 0.99, max));
+	}
+
+	private static long percentile(long[] counts, long count, double fraction, long max) {
+
+		if (count == 0L) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(count * fraction));
+		long seen = 0L;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+}
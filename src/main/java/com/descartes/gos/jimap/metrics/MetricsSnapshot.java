@@ -0,0 +1,59 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+
+/**
+ * Copy of the counters of {@link ImapMetrics} at one moment (counters are read one by one, not atomically).
+ */
+public class MetricsSnapshot {
+
+	private final long commandCount;
+	private final long abandonedCount;
+	private final long bytesIn;
+	private final long bytesOut;
+	private final List<CommandSnapshot> perCommand;
+
+	@ConstructorProperties({ "commandCount", "abandonedCount", "bytesIn", "bytesOut", "perCommand" })
+	public MetricsSnapshot(long commandCount, long abandonedCount, long bytesIn, long bytesOut, List<CommandSnapshot> perCommand) {
+
+		this.commandCount = commandCount;
+		this.abandonedCount = abandonedCount;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.perCommand = perCommand;
+	}
+
+	public long getCommandCount() {
+		return commandCount;
+	}
+
+	/**
+	 * @return amount of connections that were abandoned because of a protocol or I/O failure.
+	 */
+	public long getAbandonedCount() {
+		return abandonedCount;
+	}
+
+	/**
+	 * @return bytes of commands received (after decompression).
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return bytes of responses (before compression).
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return the counters per command type, sorted by command name.
+	 */
+	public List<CommandSnapshot> getPerCommand() {
+		return perCommand;
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters per shard of {@link com.descartes.gos.jimap.shard.ShardedMailboxManager}: logins, open sessions
+ * and the amount and latency of processed commands, to see whether users (and load) are spread evenly.
+ * Recording is lock-free. Read the counters via JMX after {@link #register(String)}.
+ */
+public class ShardMetrics implements ShardMetricsMXBean {
+
+	private static Logger log = LoggerFactory.getLogger(ShardMetrics.class);
+
+	private final LongAdder[] logins;
+	private final LongAdder[] logouts;
+	private final LatencyHistogram[] requests;
+	private ObjectName registeredName;
+
+	public ShardMetrics(int shards) {
+
+		logins = new LongAdder[shards];
+		logouts = new LongAdder[shards];
+		requests = new LatencyHistogram[shards];
+		for (int i = 0; i < shards; i++) {
+			logins[i] = new LongAdder();
+			logouts[i] = new LongAdder();
+			requests[i] = new LatencyHistogram();
+		}
+	}
+
+	public void login(int shard) {
+		logins[shard].increment();
+	}
+
+	public void logout(int shard) {
+		logouts[shard].increment();
+	}
+
+	public void request(int shard, long nanos) {
+		requests[shard].record(nanos);
+	}
+
+	public int getShards() {
+		return logins.length;
+	}
+
+	public long[] getLogins() {
+		return sums(logins);
+	}
+
+	public long[] getOpenSessions() {
+
+		long[] open = sums(logins);
+		for (int i = 0; i < open.length; i++) {
+			open[i] -= logouts[i].sum();
+		}
+		return open;
+	}
+
+	public long[] getRequests() {
+
+		long[] counts = new long[requests.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = requests[i].count();
+		}
+		return counts;
+	}
+
+	public StageSnapshot[] getRequestLatency() {
+
+		StageSnapshot[] snapshots = new StageSnapshot[requests.length];
+		for (int i = 0; i < snapshots.length; i++) {
+			snapshots[i] = requests[i].snapshot();
+		}
+		return snapshots;
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < sums.length; i++) {
+			sums[i] = adders[i].sum();
+		}
+		return sums;
+	}
+
+	/**
+	 * Registers this as MXBean with the platform MBean server as {@code com.descartes.gos.jimap:type=ShardMetrics,name=<name>}.
+	 * Failure to register is logged, not thrown.
+	 */
+	public synchronized void register(String name) {
+
+		try {
+			ObjectName objectName = new ObjectName(ImapMetrics.DOMAIN + ":type=ShardMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredName = objectName;
+			log.debug("Registered shard metrics as " + objectName);
+		} catch (JMException e) {
+			log.warn("Failed to register shard metrics " + name + ": " + e);
+		}
+	}
+
+	public synchronized void unregister() {
+
+		if (registeredName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e) {
+			log.warn("Failed to unregister shard metrics " + registeredName + ": " + e);
+		}
+		registeredName = null;
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder sb = new StringBuilder();
+		long[] logins = getLogins();
+		long[] open = getOpenSessions();
+		for (int i = 0; i < logins.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append("shard ").append(i).append(": logins=").append(logins[i])
+				.append(" open=").append(open[i]).append(" requests: ").append(requests[i].snapshot());
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,27 @@
+package com.descartes.gos.jimap.metrics;
+
+/**
+ * Management interface of {@link ShardMetrics}, all arrays are indexed by shard.
+ */
+public interface ShardMetricsMXBean {
+
+	int getShards();
+
+	long[] getLogins();
+
+	/**
+	 * @return logins minus logouts.
+	 */
+	long[] getOpenSessions();
+
+	/**
+	 * @return IMAP commands processed by the mailbox manager of each shard.
+	 */
+	long[] getRequests();
+
+	/**
+	 * @return durations of the commands processed by the mailbox manager of each shard.
+	 */
+	StageSnapshot[] getRequestLatency();
+
+}
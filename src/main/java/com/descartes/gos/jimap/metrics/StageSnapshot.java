@@ -0,0 +1,59 @@
+package com.descartes.gos.jimap.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Durations of one stage (decode, process, encode or all) of the commands of one type.
+ * Percentiles are upper bounds of histogram buckets (within 25%).
+ */
+public class StageSnapshot {
+
+	private final long count;
+	private final long totalNanos;
+	private final long maxNanos;
+	private final long p50Nanos;
+	private final long p90Nanos;
+	private final long p99Nanos;
+
+	@ConstructorProperties({ "count", "totalNanos", "maxNanos", "p50Nanos", "p90Nanos", "p99Nanos" })
+	public StageSnapshot(long count, long totalNanos, long maxNanos, long p50Nanos, long p90Nanos, long p99Nanos) {
+
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.maxNanos = maxNanos;
+		this.p50Nanos = p50Nanos;
+		this.p90Nanos = p90Nanos;
+		this.p99Nanos = p99Nanos;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	public long getP90Nanos() {
+		return p90Nanos;
+	}
+
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + (count == 0L ? 0L : totalNanos / count / 1000L) + "us p50=" + p50Nanos / 1000L
+				+ "us p90=" + p90Nanos / 1000L + "us p99=" + p99Nanos / 1000L + "us max=" + maxNanos / 1000L + "us";
+	}
+
+}
@@ -0,0 +1,484 @@
+package com.descartes.gos.jimap.search;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.apache.james.mailbox.store.MailboxEventDispatcher;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper.FetchType;
+import org.apache.james.mailbox.store.mail.MessageMapperFactory;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.search.ListeningMessageSearchIndex;
+import org.apache.james.mailbox.store.search.MessageSearches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Message search index that answers SEARCH from per-mailbox UID sets (see {@link MailboxIndex})
+ * instead of scanning all messages in the mailbox like the default <code>SimpleMessageSearchIndex</code>.
+ * <br>Flag, keyword, UID, size, internal date and header-exists criteria are answered from the index.
+ * Header (and optionally body) text criteria select candidate messages from the terms in the index,
+ * candidates are verified with <code>MessageSearches</code>. Other criteria (MODSEQ, TEXT) match
+ * all messages as candidates.
+ * <br>The index of a mailbox is built on the first search in the mailbox and is then kept up to date
+ * by mailbox events. Register with <code>StoreMailboxManager.setMessageSearchIndex</code> before the manager's <code>init()</code>.
+ */
+public class IndexedMessageSearchIndex extends ListeningMessageSearchIndex<Long> {
+
+	private static Logger log = LoggerFactory.getLogger(IndexedMessageSearchIndex.class);
+
+	/**
+	 * Header fields for which the terms are indexed by default.
+	 */
+	public static final Set<String> DEFAULT_INDEXED_HEADERS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"FROM", "TO", "CC", "BCC", "SUBJECT", "SENDER", "REPLY-TO", "MESSAGE-ID", "IN-REPLY-TO", "REFERENCES")));
+
+	/**
+	 * Amount of messages fetched at once when building the index of a mailbox.
+	 */
+	private static final int BUILD_BATCH_SIZE = 1000;
+
+	/**
+	 * Maximum amount of candidate messages fetched at once for verification.
+	 */
+	private static final int VERIFY_BATCH_SIZE = 256;
+
+	private static final int[] DATE_FIELDS = { Calendar.YEAR, Calendar.MONTH, Calendar.DAY_OF_MONTH, Calendar.HOUR_OF_DAY,
+		Calendar.MINUTE, Calendar.SECOND, Calendar.MILLISECOND };
+
+	/**
+	 * Candidate UIDs for a criterion.
+	 */
+	private static class Candidates {
+
+		final UidSet uids;
+		/** True if all candidates match the criterion, else the candidates must be verified. */
+		final boolean exact;
+
+		Candidates(UidSet uids, boolean exact) {
+			this.uids = uids;
+			this.exact = exact;
+		}
+	}
+
+	private final ConcurrentHashMap<Long, MailboxIndex> indexes = new ConcurrentHashMap<Long, MailboxIndex>();
+	private final Set<String> indexedHeaders;
+	private final boolean indexBody;
+
+	/**
+	 * An index with the {@link #DEFAULT_INDEXED_HEADERS} and without body terms.
+	 */
+	public IndexedMessageSearchIndex(MessageMapperFactory<Long> factory) {
+		this(factory, DEFAULT_INDEXED_HEADERS, false);
+	}
+
+	/**
+	 * @param indexedHeaders names of the header fields to index the terms of.
+	 * @param indexBody true to index the terms of message bodies (for SEARCH BODY), this costs a lot of memory.
+	 */
+	public IndexedMessageSearchIndex(MessageMapperFactory<Long> factory, Set<String> indexedHeaders, boolean indexBody) {
+
+		super(factory);
+		Set<String> headers = new HashSet<String>();
+		for (String header : indexedHeaders) {
+			headers.add(header.toUpperCase(Locale.US));
+		}
+		this.indexedHeaders = Collections.unmodifiableSet(headers);
+		this.indexBody = indexBody;
+	}
+
+	/**
+	 * @return the index of the mailbox, built from the messages in the mailbox if there is no index yet.
+	 */
+	private MailboxIndex index(MailboxSession session, Mailbox<Long> mailbox) throws MailboxException {
+
+		MailboxIndex index = indexes.get(mailbox.getMailboxId());
+		if (index != null) {
+			return index;
+		}
+		index = new MailboxIndex(indexedHeaders, indexBody);
+		// Events for the mailbox wait for the index to be built.
+		index.lock.writeLock().lock();
+		try {
+			MailboxIndex existing = indexes.putIfAbsent(mailbox.getMailboxId(), index);
+			if (existing != null) {
+				return existing;
+			}
+			long start = System.currentTimeMillis();
+			MessageMapper<Long> mapper = getFactory().getMessageMapper(session);
+			long next = 1L;
+			int count = 0;
+			boolean more = true;
+			while (more) {
+				Iterator<Message<Long>> messages = mapper.findInMailbox(mailbox, MessageRange.from(next), FetchType.Full, BUILD_BATCH_SIZE);
+				more = false;
+				while (messages.hasNext()) {
+					Message<Long> message = messages.next();
+					index.append(message);
+					next = Math.max(next, message.getUid() + 1);
+					count++;
+					more = true;
+				}
+			}
+			index.built();
+			if (log.isDebugEnabled()) {
+				log.debug("Indexed " + count + " messages of mailbox " + mailbox.getMailboxId() + " in " + (System.currentTimeMillis() - start) + " ms.");
+			}
+			return index;
+		} catch (MailboxException e) {
+			indexes.remove(mailbox.getMailboxId(), index);
+			throw e;
+		} catch (RuntimeException e) {
+			indexes.remove(mailbox.getMailboxId(), index);
+			throw e;
+		} finally {
+			index.lock.writeLock().unlock();
+		}
+	}
+
+	public Iterator<Long> search(MailboxSession session, Mailbox<Long> mailbox, SearchQuery query) throws MailboxException {
+
+		MailboxIndex index = index(session, mailbox);
+		Candidates candidates;
+		long[] uids;
+		index.lock.readLock().lock();
+		try {
+			candidates = and(index, query.getCriterias(), query);
+			uids = candidates.uids.toArray();
+		} finally {
+			index.lock.readLock().unlock();
+		}
+		boolean uidOrder = isUidOrder(query.getSorts());
+		if (candidates.exact && uidOrder) {
+			return UidSet.iterator(uids);
+		}
+		Iterator<Message<?>> messages = new CandidateIterator(getFactory().getMessageMapper(session), mailbox, uids);
+		Iterator<Long> found = new MessageSearches(messages, query, session.getLog()).iterator();
+		if (!uidOrder) {
+			return found;
+		}
+		// Results of MessageSearches are not ordered.
+		long[] matched = new long[uids.length];
+		int n = 0;
+		while (found.hasNext()) {
+			matched[n++] = found.next();
+		}
+		Arrays.sort(matched, 0, n);
+		return UidSet.iterator(Arrays.copyOf(matched, n));
+	}
+
+	private static boolean isUidOrder(List<SearchQuery.Sort> sorts) {
+
+		if (sorts == null || sorts.isEmpty()) {
+			return true;
+		}
+		return (sorts.size() == 1 && sorts.get(0).getSortClause() == SearchQuery.Sort.SortClause.Uid && !sorts.get(0).isReverse());
+	}
+
+	private Candidates and(MailboxIndex index, List<SearchQuery.Criterion> criteria, SearchQuery query) {
+
+		UidSet uids = index.all();
+		boolean exact = true;
+		for (SearchQuery.Criterion criterion : criteria) {
+			Candidates c = evaluate(index, criterion, query);
+			uids = uids.and(c.uids);
+			exact &= c.exact;
+		}
+		return new Candidates(uids, exact);
+	}
+
+	private Candidates or(MailboxIndex index, List<SearchQuery.Criterion> criteria, SearchQuery query) {
+
+		UidSet uids = new UidSet();
+		boolean exact = true;
+		for (SearchQuery.Criterion criterion : criteria) {
+			Candidates c = evaluate(index, criterion, query);
+			uids = uids.or(c.uids);
+			exact &= c.exact;
+		}
+		return new Candidates(uids, exact);
+	}
+
+	/**
+	 * Messages matching none of the criteria: only messages matching an exact criterion can be excluded.
+	 */
+	private Candidates nor(MailboxIndex index, List<SearchQuery.Criterion> criteria, SearchQuery query) {
+
+		UidSet excluded = new UidSet();
+		boolean exact = true;
+		for (SearchQuery.Criterion criterion : criteria) {
+			Candidates c = evaluate(index, criterion, query);
+			if (c.exact) {
+				excluded = excluded.or(c.uids);
+			} else {
+				exact = false;
+			}
+		}
+		return new Candidates(index.all().andNot(excluded), exact);
+	}
+
+	private Candidates evaluate(MailboxIndex index, SearchQuery.Criterion criterion, SearchQuery query) {
+
+		UidSet all = index.all();
+		if (criterion instanceof SearchQuery.ConjunctionCriterion) {
+			SearchQuery.ConjunctionCriterion c = (SearchQuery.ConjunctionCriterion) criterion;
+			switch (c.getType()) {
+			case AND:
+				return and(index, c.getCriteria(), query);
+			case OR:
+				return or(index, c.getCriteria(), query);
+			default:
+				return nor(index, c.getCriteria(), query);
+			}
+		} else if (criterion instanceof SearchQuery.AllCriterion) {
+			return new Candidates(all, true);
+		} else if (criterion instanceof SearchQuery.FlagCriterion) {
+			SearchQuery.FlagCriterion c = (SearchQuery.FlagCriterion) criterion;
+			UidSet set;
+			if (c.getFlag() == Flags.Flag.RECENT) {
+				set = new UidSet();
+				for (Long uid : query.getRecentMessageUids()) {
+					set.add(uid);
+				}
+			} else if (c.getFlag() == Flags.Flag.USER) {
+				return new Candidates(all, false);
+			} else {
+				set = index.flag(c.getFlag());
+			}
+			return new Candidates(c.getOperator().isSet() ? set.and(all) : all.andNot(set), true);
+		} else if (criterion instanceof SearchQuery.CustomFlagCriterion) {
+			SearchQuery.CustomFlagCriterion c = (SearchQuery.CustomFlagCriterion) criterion;
+			UidSet set = index.keyword(c.getFlag());
+			return new Candidates(c.getOperator().isSet() ? set.and(all) : all.andNot(set), true);
+		} else if (criterion instanceof SearchQuery.UidCriterion) {
+			UidSet uids = new UidSet();
+			for (SearchQuery.NumericRange range : ((SearchQuery.UidCriterion) criterion).getOperator().getRange()) {
+				uids = uids.or(all.range(range.getLowValue(), range.getHighValue()));
+			}
+			return new Candidates(uids, true);
+		} else if (criterion instanceof SearchQuery.SizeCriterion) {
+			SearchQuery.NumericOperator op = ((SearchQuery.SizeCriterion) criterion).getOperator();
+			long value = op.getValue();
+			switch (op.getType()) {
+			case LESS_THAN:
+				return new Candidates(index.size(Long.MIN_VALUE, value - 1), true);
+			case GREATER_THAN:
+				return new Candidates(index.size(value + 1, Long.MAX_VALUE), true);
+			default:
+				return new Candidates(index.size(value, value), true);
+			}
+		} else if (criterion instanceof SearchQuery.InternalDateCriterion) {
+			SearchQuery.DateOperator op = ((SearchQuery.InternalDateCriterion) criterion).getOperator();
+			long[] bounds = bounds(op.getDate(), op.getDateResultion());
+			switch (op.getType()) {
+			case BEFORE:
+				return new Candidates(index.internalDate(Long.MIN_VALUE, bounds[0] - 1), true);
+			case AFTER:
+				return new Candidates(index.internalDate(bounds[1], Long.MAX_VALUE), true);
+			default:
+				return new Candidates(index.internalDate(bounds[0], bounds[1] - 1), true);
+			}
+		} else if (criterion instanceof SearchQuery.HeaderCriterion) {
+			SearchQuery.HeaderCriterion c = (SearchQuery.HeaderCriterion) criterion;
+			String field = c.getHeaderName().toUpperCase(Locale.US);
+			if (c.getOperator() instanceof SearchQuery.ExistsOperator) {
+				return new Candidates(index.field(field), true);
+			}
+			if (c.getOperator() instanceof SearchQuery.ContainsOperator && index.isIndexed(field)) {
+				List<String> terms = Terms.headerQuery(((SearchQuery.ContainsOperator) c.getOperator()).getValue());
+				if (!terms.isEmpty()) {
+					return new Candidates(index.terms(field, terms), false);
+				}
+			}
+			// Only messages with the header field can match.
+			return new Candidates(index.field(field), false);
+		} else if (criterion instanceof SearchQuery.TextCriterion) {
+			SearchQuery.TextCriterion c = (SearchQuery.TextCriterion) criterion;
+			if (c.getType() == SearchQuery.Scope.BODY && index.isIndexed(MailboxIndex.BODY)) {
+				List<String> terms = Terms.bodyQuery(c.getOperator().getValue());
+				if (!terms.isEmpty()) {
+					return new Candidates(index.terms(MailboxIndex.BODY, terms), false);
+				}
+			}
+		}
+		return new Candidates(all, false);
+	}
+
+	/**
+	 * @return start (inclusive) and end (exclusive) in ms of the period with the date at the resolution,
+	 * in GMT like <code>MessageSearches</code>.
+	 */
+	private static long[] bounds(Date date, SearchQuery.DateResolution resolution) {
+
+		int unit;
+		switch (resolution) {
+		case Year:
+			unit = 0;
+			break;
+		case Month:
+			unit = 1;
+			break;
+		case Day:
+			unit = 2;
+			break;
+		case Hour:
+			unit = 3;
+			break;
+		case Minute:
+			unit = 4;
+			break;
+		default:
+			unit = 5;
+		}
+		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.ENGLISH);
+		cal.setTime(date);
+		for (int i = unit + 1; i < DATE_FIELDS.length; i++) {
+			cal.set(DATE_FIELDS[i], cal.getActualMinimum(DATE_FIELDS[i]));
+		}
+		long start = cal.getTimeInMillis();
+		cal.add(DATE_FIELDS[unit], 1);
+		return new long[] { start, cal.getTimeInMillis() };
+	}
+
+	/**
+	 * Ignores events of mailboxes without an index, the superclass would fetch the full content of each added message.
+	 */
+	@Override
+	public void event(MailboxListener.Event event) {
+
+		Mailbox<?> mailbox = null;
+		if (event instanceof MailboxEventDispatcher.AddedImpl) {
+			mailbox = ((MailboxEventDispatcher<?>.AddedImpl) event).getMailbox();
+		} else if (event instanceof MailboxEventDispatcher.ExpungedImpl) {
+			mailbox = ((MailboxEventDispatcher<?>.ExpungedImpl) event).getMailbox();
+		} else if (event instanceof MailboxEventDispatcher.FlagsUpdatedImpl) {
+			mailbox = ((MailboxEventDispatcher<?>.FlagsUpdatedImpl) event).getMailbox();
+		} else if (event instanceof MailboxEventDispatcher.MailboxDeletionImpl) {
+			mailbox = ((MailboxEventDispatcher<?>.MailboxDeletionImpl) event).getMailbox();
+		}
+		if (mailbox != null && !indexes.containsKey(mailbox.getMailboxId())) {
+			// Built on the first search.
+			return;
+		}
+		super.event(event);
+	}
+
+	@Override
+	public void add(MailboxSession session, Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+
+		MailboxIndex index = indexes.get(mailbox.getMailboxId());
+		if (index == null) {
+			// Built on the first search.
+			return;
+		}
+		index.lock.writeLock().lock();
+		try {
+			index.add(message);
+		} finally {
+			index.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void delete(MailboxSession session, Mailbox<Long> mailbox, MessageRange range) throws MailboxException {
+
+		if (range.getType() == MessageRange.Type.ALL) {
+			// Mailbox deleted.
+			indexes.remove(mailbox.getMailboxId());
+			return;
+		}
+		MailboxIndex index = indexes.get(mailbox.getMailboxId());
+		if (index == null) {
+			return;
+		}
+		index.lock.writeLock().lock();
+		try {
+			index.delete(range);
+		} finally {
+			index.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void update(MailboxSession session, Mailbox<Long> mailbox, MessageRange range, Flags flags) throws MailboxException {
+
+		MailboxIndex index = indexes.get(mailbox.getMailboxId());
+		if (index == null) {
+			return;
+		}
+		index.lock.writeLock().lock();
+		try {
+			index.update(range, flags);
+		} finally {
+			index.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Fetches candidate messages in batches of consecutive UIDs.
+	 */
+	private static class CandidateIterator implements Iterator<Message<?>> {
+
+		private final MessageMapper<Long> mapper;
+		private final Mailbox<Long> mailbox;
+		private final long[] uids;
+		private int next;
+		private Iterator<Message<Long>> batch;
+
+		CandidateIterator(MessageMapper<Long> mapper, Mailbox<Long> mailbox, long[] uids) {
+
+			this.mapper = mapper;
+			this.mailbox = mailbox;
+			this.uids = uids;
+		}
+
+		public boolean hasNext() {
+
+			while ((batch == null || !batch.hasNext()) && next < uids.length) {
+				int end = next + 1;
+				while (end < uids.length && end - next < VERIFY_BATCH_SIZE && uids[end] == uids[end - 1] + 1) {
+					end++;
+				}
+				MessageRange range = (end - next == 1 ? MessageRange.one(uids[next]) : MessageRange.range(uids[next], uids[end - 1]));
+				next = end;
+				try {
+					batch = mapper.findInMailbox(mailbox, range, FetchType.Full, -1);
+				} catch (MailboxException e) {
+					throw new RuntimeException("Failed to fetch messages " + range + " for search", e);
+				}
+			}
+			return (batch != null && batch.hasNext());
+		}
+
+		public Message<?> next() {
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return batch.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
@@ -0,0 +1,384 @@
+package com.descartes.gos.jimap.search;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.store.ResultUtils;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Search index of one mailbox: UID sets per system flag, keyword, header field name and term,
+ * and UIDs sorted by internal date and size.
+ * <br>Expunged UIDs are only removed from the UID sets of the mailbox, flags and keywords: term sets
+ * can contain expunged UIDs until they are compacted, so results are always intersected with {@link #all()}.
+ * <br>Callers hold the read lock for searches and the write lock for updates.
+ */
+class MailboxIndex {
+
+	private static Logger log = LoggerFactory.getLogger(MailboxIndex.class);
+
+	/**
+	 * Field name for the terms of message bodies.
+	 */
+	static final String BODY = "";
+
+	private static final Flags.Flag[] SYSTEM_FLAGS = { Flags.Flag.ANSWERED, Flags.Flag.DELETED, Flags.Flag.DRAFT,
+		Flags.Flag.FLAGGED, Flags.Flag.SEEN };
+
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Set<String> indexedHeaders;
+	private final boolean indexBody;
+
+	private final UidSet all = new UidSet();
+	private UidSet expunged = new UidSet();
+	private final Map<Flags.Flag, UidSet> systemFlags = new HashMap<Flags.Flag, UidSet>();
+	private final Map<String, UidSet> keywords = new HashMap<String, UidSet>();
+	/** UIDs per (upper-case) header field name. */
+	private final Map<String, UidSet> fields = new HashMap<String, UidSet>();
+	/** UIDs per field name + '\0' + term. */
+	private final TreeMap<String, UidSet> terms = new TreeMap<String, UidSet>();
+	/** UIDs per field name of messages with field values that could not be (fully) indexed. */
+	private final Map<String, UidSet> unindexed = new HashMap<String, UidSet>();
+	/** UIDs of messages with a header that could not be parsed. */
+	private UidSet unparsed = new UidSet();
+	private final SortedValues internalDates = new SortedValues();
+	private final SortedValues sizes = new SortedValues();
+
+	/**
+	 * @param indexedHeaders upper-case names of the header fields to index the terms of.
+	 * @param indexBody true to index the terms of message bodies.
+	 */
+	MailboxIndex(Set<String> indexedHeaders, boolean indexBody) {
+
+		this.indexedHeaders = indexedHeaders;
+		this.indexBody = indexBody;
+		for (Flags.Flag flag : SYSTEM_FLAGS) {
+			systemFlags.put(flag, new UidSet());
+		}
+	}
+
+	private static void add(Map<String, UidSet> sets, String key, long uid) {
+
+		UidSet set = sets.get(key);
+		if (set == null) {
+			sets.put(key, set = new UidSet());
+		}
+		set.add(uid);
+	}
+
+	private static void remove(Map<String, UidSet> sets, String key, long uid) {
+
+		UidSet set = sets.get(key);
+		if (set != null) {
+			set.remove(uid);
+			if (set.isEmpty()) {
+				sets.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Indexes a message (fetched with its full content), does nothing if the message is already indexed.
+	 */
+	void add(Message<?> message) {
+		add(message, false);
+	}
+
+	/**
+	 * Indexes a message while the index is built, {@link #built()} must be called after the last message.
+	 */
+	void append(Message<?> message) {
+		add(message, true);
+	}
+
+	/**
+	 * Sorts the date and size values of the messages appended while building.
+	 */
+	void built() {
+
+		internalDates.sort();
+		sizes.sort();
+	}
+
+	private void add(Message<?> message, boolean building) {
+
+		long uid = message.getUid();
+		if (!all.add(uid)) {
+			return;
+		}
+		setFlags(uid, message.createFlags());
+		if (building) {
+			internalDates.append(message.getInternalDate().getTime(), uid);
+			sizes.append(message.getFullContentOctets(), uid);
+		} else {
+			internalDates.add(message.getInternalDate().getTime(), uid);
+			sizes.add(message.getFullContentOctets(), uid);
+		}
+		Set<String> fieldTerms = new HashSet<String>();
+		try {
+			for (MessageResult.Header header : ResultUtils.createHeaders(message)) {
+				String field = header.getName().toUpperCase(Locale.US);
+				add(fields, field, uid);
+				if (indexedHeaders.contains(field) && !Terms.header(header.getValue(), fieldTerms)) {
+					add(unindexed, field, uid);
+				}
+				for (String term : fieldTerms) {
+					add(terms, field + '\0' + term, uid);
+				}
+				fieldTerms.clear();
+			}
+		} catch (Exception e) {
+			log.debug("Failed to index headers of message " + uid + ", the message is searched without the index.", e);
+			unparsed.add(uid);
+		}
+		if (indexBody) {
+			fieldTerms.clear();
+			try {
+				InputStream in = message.getFullContent();
+				try {
+					if (!Terms.body(in, fieldTerms)) {
+						add(unindexed, BODY, uid);
+					}
+				} finally {
+					in.close();
+				}
+				for (String term : fieldTerms) {
+					add(terms, BODY + '\0' + term, uid);
+				}
+			} catch (Exception e) {
+				log.debug("Failed to index body of message " + uid + ", the message is searched without the index.", e);
+				add(unindexed, BODY, uid);
+			}
+		}
+	}
+
+	/**
+	 * Sets the flags of the indexed messages in the range.
+	 */
+	void update(MessageRange range, Flags flags) {
+
+		for (long uid : uids(range).toArray()) {
+			setFlags(uid, flags);
+		}
+	}
+
+	private void setFlags(long uid, Flags flags) {
+
+		for (Map.Entry<Flags.Flag, UidSet> e : systemFlags.entrySet()) {
+			if (flags.contains(e.getKey())) {
+				e.getValue().add(uid);
+			} else {
+				e.getValue().remove(uid);
+			}
+		}
+		for (Iterator<Map.Entry<String, UidSet>> it = keywords.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, UidSet> e = it.next();
+			if (!flags.contains(e.getKey())) {
+				e.getValue().remove(uid);
+				if (e.getValue().isEmpty()) {
+					it.remove();
+				}
+			}
+		}
+		for (String keyword : flags.getUserFlags()) {
+			add(keywords, keyword.toLowerCase(Locale.ENGLISH), uid);
+		}
+	}
+
+	/**
+	 * Removes the messages in the range from the index.
+	 */
+	void delete(MessageRange range) {
+
+		long[] uids = uids(range).toArray();
+		for (long uid : uids) {
+			all.remove(uid);
+			expunged.add(uid);
+			for (UidSet set : systemFlags.values()) {
+				set.remove(uid);
+			}
+			for (String keyword : new ArrayList<String>(keywords.keySet())) {
+				remove(keywords, keyword, uid);
+			}
+		}
+		internalDates.removed(uids.length, all);
+		sizes.removed(uids.length, all);
+		if (expunged.cardinality() > Math.max(1024L, all.cardinality())) {
+			compact();
+		}
+	}
+
+	/**
+	 * Removes expunged UIDs from the field, term and unindexed sets.
+	 */
+	private void compact() {
+
+		compact(fields);
+		compact(terms);
+		compact(unindexed);
+		unparsed = unparsed.andNot(expunged);
+		expunged = new UidSet();
+	}
+
+	private void compact(Map<String, UidSet> sets) {
+
+		for (Iterator<Map.Entry<String, UidSet>> it = sets.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, UidSet> e = it.next();
+			UidSet set = e.getValue().andNot(expunged);
+			if (set.isEmpty()) {
+				it.remove();
+			} else {
+				e.setValue(set);
+			}
+		}
+	}
+
+	/**
+	 * @return the indexed UIDs in the range.
+	 */
+	UidSet uids(MessageRange range) {
+
+		switch (range.getType()) {
+		case ONE:
+			return all.range(range.getUidFrom(), range.getUidFrom());
+		case FROM:
+			return all.range(range.getUidFrom(), Long.MAX_VALUE);
+		case RANGE:
+			return all.range(range.getUidFrom(), range.getUidTo());
+		default:
+			return all.copy();
+		}
+	}
+
+	/*
+	 * Search methods, the returned sets must not be modified.
+	 */
+
+	UidSet all() {
+		return all;
+	}
+
+	UidSet flag(Flags.Flag flag) {
+
+		UidSet set = systemFlags.get(flag);
+		return (set == null ? new UidSet() : set);
+	}
+
+	UidSet keyword(String keyword) {
+
+		UidSet set = keywords.get(keyword.toLowerCase(Locale.ENGLISH));
+		return (set == null ? new UidSet() : set);
+	}
+
+	/**
+	 * @return UIDs of messages with the header field.
+	 */
+	UidSet field(String field) {
+
+		UidSet set = fields.get(field);
+		return (set == null ? unparsed : set.or(unparsed)).and(all);
+	}
+
+	/**
+	 * @return true if the terms of the field are indexed.
+	 */
+	boolean isIndexed(String field) {
+		return (BODY.equals(field) ? indexBody : indexedHeaders.contains(field));
+	}
+
+	/**
+	 * @param field an indexed field.
+	 * @param queryTerms the terms of a search value, see {@link Terms}.
+	 * @return UIDs of messages that can have a field value containing the search value.
+	 */
+	UidSet terms(String field, List<String> queryTerms) {
+
+		String prefix = field + '\0';
+		SortedMap<String, UidSet> fieldTerms = terms.subMap(prefix, field + '\1');
+		UidSet result;
+		if (queryTerms.size() == 1) {
+			result = containing(fieldTerms, prefix.length(), queryTerms.get(0));
+		} else {
+			result = endingWith(fieldTerms, queryTerms.get(0));
+			for (int i = 1; i < queryTerms.size() - 1 && !result.isEmpty(); i++) {
+				UidSet set = terms.get(prefix + queryTerms.get(i));
+				result = (set == null ? new UidSet() : result.and(set));
+			}
+			if (!result.isEmpty()) {
+				String last = prefix + queryTerms.get(queryTerms.size() - 1);
+				result = result.and(union(terms.subMap(last, last + Character.MAX_VALUE).values()));
+			}
+		}
+		UidSet notIndexed = unindexed.get(field);
+		if (notIndexed != null) {
+			result = result.or(notIndexed);
+		}
+		if (!BODY.equals(field)) {
+			result = result.or(unparsed);
+		}
+		return result.and(all);
+	}
+
+	private static UidSet containing(SortedMap<String, UidSet> fieldTerms, int offset, String term) {
+
+		List<UidSet> sets = new ArrayList<UidSet>();
+		for (Map.Entry<String, UidSet> e : fieldTerms.entrySet()) {
+			if (e.getKey().indexOf(term, offset) >= 0) {
+				sets.add(e.getValue());
+			}
+		}
+		return union(sets);
+	}
+
+	private static UidSet endingWith(SortedMap<String, UidSet> fieldTerms, String term) {
+
+		List<UidSet> sets = new ArrayList<UidSet>();
+		for (Map.Entry<String, UidSet> e : fieldTerms.entrySet()) {
+			if (e.getKey().endsWith(term)) {
+				sets.add(e.getValue());
+			}
+		}
+		return union(sets);
+	}
+
+	private static UidSet union(Iterable<UidSet> sets) {
+
+		UidSet result = new UidSet();
+		for (UidSet set : sets) {
+			result = result.or(set);
+		}
+		return result;
+	}
+
+	/**
+	 * @return UIDs of messages with an internal date from <code>from</code> up to and including <code>to</code> (in ms).
+	 */
+	UidSet internalDate(long from, long to) {
+		return internalDates.range(from, to).and(all);
+	}
+
+	/**
+	 * @return UIDs of messages with a size from <code>from</code> up to and including <code>to</code>.
+	 */
+	UidSet size(long from, long to) {
+		return sizes.range(from, to).and(all);
+	}
+
+}
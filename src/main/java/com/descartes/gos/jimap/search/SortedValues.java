@@ -0,0 +1,166 @@
+package com.descartes.gos.jimap.search;
+
+import java.util.Arrays;
+
+/**
+ * (value, UID) pairs sorted by value, for range searches on values like INTERNALDATE and SIZE.
+ * <br>Removed UIDs are not removed immediately: range results must be intersected with the UIDs
+ * in the mailbox and {@link #compact(UidSet)} removes them when there are many.
+ * Not thread-safe.
+ */
+class SortedValues {
+
+	private long[] values = new long[16];
+	private long[] uids = new long[16];
+	private int size;
+	private int removed;
+	/** False after an {@link #append(long, long)} out of order, until {@link #sort()}. */
+	private boolean sorted = true;
+
+	/**
+	 * Inserts a pair in order, for messages added to an index that was built.
+	 */
+	void add(long value, long uid) {
+
+		sort();
+		grow();
+		// New messages usually have the highest internal date.
+		int i = (size == 0 || value >= values[size - 1] ? size : upperBound(value));
+		System.arraycopy(values, i, values, i + 1, size - i);
+		System.arraycopy(uids, i, uids, i + 1, size - i);
+		values[i] = value;
+		uids[i] = uid;
+		size++;
+	}
+
+	/**
+	 * Adds a pair without keeping the order, for building an index: {@link #sort()} must be called before searching.
+	 */
+	void append(long value, long uid) {
+
+		grow();
+		if (size > 0 && value < values[size - 1]) {
+			sorted = false;
+		}
+		values[size] = value;
+		uids[size++] = uid;
+	}
+
+	private void grow() {
+
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+			uids = Arrays.copyOf(uids, size * 2);
+		}
+	}
+
+	/**
+	 * Sorts the appended pairs by value (a stable merge sort, pairs with the same value stay in UID order).
+	 */
+	void sort() {
+
+		if (sorted) {
+			return;
+		}
+		long[] fromValues = values, fromUids = uids;
+		long[] toValues = new long[values.length], toUids = new long[uids.length];
+		for (int width = 1; width < size; width *= 2) {
+			for (int lo = 0; lo < size; lo += 2 * width) {
+				int mid = Math.min(lo + width, size), hi = Math.min(lo + 2 * width, size);
+				int i = lo, j = mid, k = lo;
+				while (i < mid && j < hi) {
+					if (fromValues[j] < fromValues[i]) {
+						toValues[k] = fromValues[j];
+						toUids[k++] = fromUids[j++];
+					} else {
+						toValues[k] = fromValues[i];
+						toUids[k++] = fromUids[i++];
+					}
+				}
+				System.arraycopy(fromValues, i, toValues, k, mid - i);
+				System.arraycopy(fromUids, i, toUids, k, mid - i);
+				k += mid - i;
+				System.arraycopy(fromValues, j, toValues, k, hi - j);
+				System.arraycopy(fromUids, j, toUids, k, hi - j);
+			}
+			long[] swap = fromValues;
+			fromValues = toValues;
+			toValues = swap;
+			swap = fromUids;
+			fromUids = toUids;
+			toUids = swap;
+		}
+		values = fromValues;
+		uids = fromUids;
+		sorted = true;
+	}
+
+	/**
+	 * Registers the removal of UIDs, compacts when more than half of the entries are removed UIDs.
+	 * @param count the amount of UIDs removed.
+	 * @param all the UIDs that are not removed.
+	 */
+	void removed(int count, UidSet all) {
+
+		removed += count;
+		if (removed > size / 2) {
+			compact(all);
+		}
+	}
+
+	/**
+	 * Drops the entries of UIDs that are not in <code>all</code>.
+	 */
+	void compact(UidSet all) {
+
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (all.contains(uids[i])) {
+				values[n] = values[i];
+				uids[n++] = uids[i];
+			}
+		}
+		size = n;
+		removed = 0;
+	}
+
+	/**
+	 * @return UIDs with a value from <code>from</code> up to and including <code>to</code>,
+	 * this can include removed UIDs.
+	 */
+	UidSet range(long from, long to) {
+
+		int start = lowerBound(from);
+		int end = Math.max(start, upperBound(to));
+		return UidSet.of(Arrays.copyOfRange(uids, start, end), end - start);
+	}
+
+	private int lowerBound(long value) {
+
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int upperBound(long value) {
+
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+}
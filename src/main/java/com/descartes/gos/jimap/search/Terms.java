@@ -0,0 +1,140 @@
+package com.descartes.gos.jimap.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.stream.EntityState;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.james.mime4j.stream.MimeTokenStream;
+
+/**
+ * Splits text into (upper-case) terms: sequences of letters and digits.
+ * <br>Text is upper-cased the same way as the <code>MessageSearches</code> of the mailbox store
+ * compares it, so that a value found by a substring search in a text has its terms in the text:
+ * the first term as suffix of a term, the last term as prefix of a term and the other terms as terms.
+ */
+final class Terms {
+
+	/**
+	 * Longer terms are not indexed, the text is then marked as not indexed.
+	 */
+	static final int MAX_TERM_LENGTH = 64;
+
+	private Terms() {}
+
+	/**
+	 * Adds the terms of a header value.
+	 * @return false if the value has a term that is too long to index.
+	 */
+	static boolean header(String value, Collection<String> terms) {
+		return split(value.toUpperCase(), terms);
+	}
+
+	/**
+	 * @return the terms of a header search value, in order.
+	 */
+	static List<String> headerQuery(String value) {
+
+		List<String> terms = new ArrayList<String>();
+		split(value.toUpperCase(), terms);
+		return terms;
+	}
+
+	/**
+	 * @return the terms of a body search value, in order.
+	 */
+	static List<String> bodyQuery(String value) {
+
+		List<String> terms = new ArrayList<String>();
+		split(upperCaseChars(value), terms);
+		return terms;
+	}
+
+	/**
+	 * Adds the terms of all (decoded) body parts, preamble and epilogue of a message.
+	 * @return false if the body has a term that is too long to index.
+	 */
+	static boolean body(InputStream message, Collection<String> terms) throws IOException, MimeException {
+
+		MimeConfig config = new MimeConfig();
+		config.setMaxLineLen(-1);
+		config.setMaxHeaderLen(-1);
+		MimeTokenStream stream = new MimeTokenStream(config);
+		stream.parse(message);
+		boolean indexed = true;
+		for (EntityState state = stream.next(); state != EntityState.T_END_OF_STREAM; state = stream.next()) {
+			if (state == EntityState.T_BODY || state == EntityState.T_PREAMBLE || state == EntityState.T_EPILOGUE) {
+				indexed &= split(stream.getReader(), terms);
+			}
+		}
+		return indexed;
+	}
+
+	private static String upperCaseChars(String value) {
+
+		char[] chars = value.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toUpperCase(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	private static boolean split(String text, Collection<String> terms) {
+
+		boolean indexed = true;
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+				if (start < 0) {
+					start = i;
+				}
+			} else if (start >= 0) {
+				if (i - start > MAX_TERM_LENGTH) {
+					indexed = false;
+				} else {
+					terms.add(text.substring(start, i));
+				}
+				start = -1;
+			}
+		}
+		return indexed;
+	}
+
+	private static boolean split(Reader in, Collection<String> terms) throws IOException {
+
+		boolean indexed = true;
+		StringBuilder term = new StringBuilder();
+		char[] buf = new char[4096];
+		int read;
+		while ((read = in.read(buf)) >= 0) {
+			for (int i = 0; i < read; i++) {
+				char c = Character.toUpperCase(buf[i]);
+				if (Character.isLetterOrDigit(c)) {
+					term.append(c);
+				} else if (term.length() > 0) {
+					indexed &= add(term, terms);
+				}
+			}
+		}
+		if (term.length() > 0) {
+			indexed &= add(term, terms);
+		}
+		return indexed;
+	}
+
+	private static boolean add(StringBuilder term, Collection<String> terms) {
+
+		boolean indexed = (term.length() <= MAX_TERM_LENGTH);
+		if (indexed) {
+			terms.add(term.toString());
+		}
+		term.setLength(0);
+		return indexed;
+	}
+
+}
@@ -0,0 +1,598 @@
+package com.descartes.gos.jimap.search;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compressed set of UIDs. UIDs are grouped per 65536 (on the high bits), each group is stored as
+ * a sorted array of the low 16 bits when it has at most 4096 UIDs, else as a bitmap
+ * (the container layout of Roaring bitmaps).
+ * <br>Set operations return new sets and do not change their arguments. Not thread-safe.
+ */
+public class UidSet {
+
+	private static final int MAX_ARRAY_SIZE = 4096;
+
+	private int[] keys;
+	private Container[] containers;
+	private int size;
+
+	public UidSet() {
+		this(4);
+	}
+
+	private UidSet(int capacity) {
+
+		keys = new int[capacity];
+		containers = new Container[capacity];
+	}
+
+	/**
+	 * @return a set with all the given UIDs, the array is sorted by this method.
+	 */
+	public static UidSet of(long[] uids, int length) {
+
+		Arrays.sort(uids, 0, length);
+		UidSet set = new UidSet();
+		for (int i = 0; i < length; i++) {
+			set.add(uids[i]);
+		}
+		return set;
+	}
+
+	private static int high(long uid) {
+
+		if (uid < 0L) {
+			throw new IllegalArgumentException("Invalid UID " + uid);
+		}
+		return (int) (uid >>> 16);
+	}
+
+	private static int low(long uid) {
+		return (int) (uid & 0xFFFF);
+	}
+
+	private int indexOf(int key) {
+
+		// Appending is the common case.
+		if (size > 0 && keys[size - 1] == key) {
+			return size - 1;
+		}
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	private void insert(int index, int key, Container container) {
+
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+	private void append(int key, Container container) {
+
+		if (container.cardinality() > 0) {
+			insert(size, key, container);
+		}
+	}
+
+	/**
+	 * @return true if the UID was added (not yet in this set).
+	 */
+	public boolean add(long uid) {
+
+		int key = high(uid);
+		int i = indexOf(key);
+		if (i < 0) {
+			ArrayContainer c = new ArrayContainer(4);
+			c.add(low(uid));
+			insert(-i - 1, key, c);
+			return true;
+		}
+		Container c = containers[i];
+		int before = c.cardinality();
+		containers[i] = c.add(low(uid));
+		return containers[i].cardinality() > before;
+	}
+
+	/**
+	 * @return true if the UID was removed (was in this set).
+	 */
+	public boolean remove(long uid) {
+
+		int i = indexOf(high(uid));
+		if (i < 0) {
+			return false;
+		}
+		Container c = containers[i];
+		int before = c.cardinality();
+		c = c.remove(low(uid));
+		if (c.cardinality() == 0) {
+			System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+			System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+			containers[--size] = null;
+		} else {
+			containers[i] = c;
+		}
+		return c.cardinality() < before;
+	}
+
+	public boolean contains(long uid) {
+
+		int i = indexOf(high(uid));
+		return (i >= 0 && containers[i].contains(low(uid)));
+	}
+
+	public long cardinality() {
+
+		long cardinality = 0;
+		for (int i = 0; i < size; i++) {
+			cardinality += containers[i].cardinality();
+		}
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public UidSet copy() {
+
+		UidSet copy = new UidSet(Math.max(4, size));
+		for (int i = 0; i < size; i++) {
+			copy.append(keys[i], containers[i].copy());
+		}
+		return copy;
+	}
+
+	/**
+	 * @return UIDs in both sets.
+	 */
+	public UidSet and(UidSet other) {
+
+		UidSet result = new UidSet(Math.max(4, Math.min(size, other.size)));
+		int i = 0, j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				result.append(keys[i], containers[i].and(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return UIDs in either set.
+	 */
+	public UidSet or(UidSet other) {
+
+		UidSet result = new UidSet(Math.max(4, size + other.size));
+		int i = 0, j = 0;
+		while (i < size || j < other.size) {
+			if (j >= other.size || (i < size && keys[i] < other.keys[j])) {
+				result.append(keys[i], containers[i].copy());
+				i++;
+			} else if (i >= size || keys[i] > other.keys[j]) {
+				result.append(other.keys[j], other.containers[j].copy());
+				j++;
+			} else {
+				result.append(keys[i], containers[i].or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return UIDs in this set that are not in the other set.
+	 */
+	public UidSet andNot(UidSet other) {
+
+		UidSet result = new UidSet(Math.max(4, size));
+		int j = 0;
+		for (int i = 0; i < size; i++) {
+			while (j < other.size && other.keys[j] < keys[i]) {
+				j++;
+			}
+			if (j < other.size && other.keys[j] == keys[i]) {
+				result.append(keys[i], containers[i].andNot(other.containers[j]));
+			} else {
+				result.append(keys[i], containers[i].copy());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return UIDs in this set from <code>from</code> up to and including <code>to</code>.
+	 */
+	public UidSet range(long from, long to) {
+
+		UidSet result = new UidSet();
+		if (from > to || to < 0L) {
+			return result;
+		}
+		from = Math.max(0L, from);
+		int fromKey = high(from);
+		long toKey = to >>> 16;
+		for (int i = 0; i < size; i++) {
+			int key = keys[i];
+			if (key < fromKey || key > toKey) {
+				continue;
+			}
+			int lo = (key == fromKey ? low(from) : 0);
+			int hi = (key == toKey ? low(to) : 0xFFFF);
+			result.append(key, (lo == 0 && hi == 0xFFFF) ? containers[i].copy() : containers[i].range(lo, hi));
+		}
+		return result;
+	}
+
+	/**
+	 * @return all UIDs in ascending order.
+	 */
+	public long[] toArray() {
+
+		long[] uids = new long[(int) cardinality()];
+		int offset = 0;
+		for (int i = 0; i < size; i++) {
+			offset = containers[i].fill(uids, offset, ((long) keys[i]) << 16);
+		}
+		return uids;
+	}
+
+	/**
+	 * @return iterator over the UIDs at the time of the call, in ascending order.
+	 */
+	public Iterator<Long> iterator() {
+		return iterator(toArray());
+	}
+
+	/**
+	 * @return iterator over the given (sorted) UIDs.
+	 */
+	static Iterator<Long> iterator(final long[] uids) {
+
+		return new Iterator<Long>() {
+
+			private int i;
+
+			public boolean hasNext() {
+				return i < uids.length;
+			}
+
+			public Long next() {
+
+				if (i >= uids.length) {
+					throw new NoSuchElementException();
+				}
+				return uids[i++];
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "UidSet[" + cardinality() + " UIDs in " + size + " containers]";
+	}
+
+	/**
+	 * UIDs with the same high bits, add and remove can return another type of container.
+	 */
+	private abstract static class Container {
+
+		abstract int cardinality();
+
+		abstract boolean contains(int low);
+
+		abstract Container add(int low);
+
+		abstract Container remove(int low);
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container andNot(Container other);
+
+		abstract Container range(int from, int to);
+
+		abstract Container copy();
+
+		/**
+		 * @return offset after the last UID written.
+		 */
+		abstract int fill(long[] uids, int offset, long high);
+	}
+
+	private static class ArrayContainer extends Container {
+
+		char[] values;
+		int cardinality;
+
+		ArrayContainer(int capacity) {
+			values = new char[capacity];
+		}
+
+		ArrayContainer(char[] values, int cardinality) {
+
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		int cardinality() {
+			return cardinality;
+		}
+
+		boolean contains(int low) {
+			return Arrays.binarySearch(values, 0, cardinality, (char) low) >= 0;
+		}
+
+		Container add(int low) {
+
+			int i = (cardinality > 0 && values[cardinality - 1] < low ? -cardinality - 1 : Arrays.binarySearch(values, 0, cardinality, (char) low));
+			if (i >= 0) {
+				return this;
+			}
+			if (cardinality == MAX_ARRAY_SIZE) {
+				return toBitmap().add(low);
+			}
+			i = -i - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, cardinality * 2));
+			}
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = (char) low;
+			cardinality++;
+			return this;
+		}
+
+		Container remove(int low) {
+
+			int i = Arrays.binarySearch(values, 0, cardinality, (char) low);
+			if (i >= 0) {
+				System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		Container and(Container other) {
+
+			char[] result = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (other.contains(values[i])) {
+					result[n++] = values[i];
+				}
+			}
+			return new ArrayContainer(result, n);
+		}
+
+		Container or(Container other) {
+
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+			ArrayContainer o = (ArrayContainer) other;
+			char[] result = new char[cardinality + o.cardinality];
+			int i = 0, j = 0, n = 0;
+			while (i < cardinality || j < o.cardinality) {
+				if (j >= o.cardinality || (i < cardinality && values[i] < o.values[j])) {
+					result[n++] = values[i++];
+				} else if (i >= cardinality || values[i] > o.values[j]) {
+					result[n++] = o.values[j++];
+				} else {
+					result[n++] = values[i++];
+					j++;
+				}
+			}
+			ArrayContainer merged = new ArrayContainer(result, n);
+			return (n > MAX_ARRAY_SIZE ? merged.toBitmap() : merged);
+		}
+
+		Container andNot(Container other) {
+
+			char[] result = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (!other.contains(values[i])) {
+					result[n++] = values[i];
+				}
+			}
+			return new ArrayContainer(result, n);
+		}
+
+		Container range(int from, int to) {
+
+			int start = Arrays.binarySearch(values, 0, cardinality, (char) from);
+			start = (start < 0 ? -start - 1 : start);
+			int end = Arrays.binarySearch(values, 0, cardinality, (char) to);
+			end = (end < 0 ? -end - 1 : end + 1);
+			return new ArrayContainer(Arrays.copyOfRange(values, start, Math.max(start, end)), Math.max(0, end - start));
+		}
+
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+		}
+
+		int fill(long[] uids, int offset, long high) {
+
+			for (int i = 0; i < cardinality; i++) {
+				uids[offset++] = high | values[i];
+			}
+			return offset;
+		}
+
+		BitmapContainer toBitmap() {
+
+			BitmapContainer bitmap = new BitmapContainer(new long[1024], 0);
+			for (int i = 0; i < cardinality; i++) {
+				bitmap.words[values[i] >>> 6] |= 1L << values[i];
+			}
+			bitmap.cardinality = cardinality;
+			return bitmap;
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+
+		final long[] words;
+		int cardinality;
+
+		BitmapContainer(long[] words, int cardinality) {
+
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		/**
+		 * @return a container for the words, an array container when there are few UIDs.
+		 */
+		static Container of(long[] words) {
+
+			int cardinality = 0;
+			for (long w : words) {
+				cardinality += Long.bitCount(w);
+			}
+			BitmapContainer bitmap = new BitmapContainer(words, cardinality);
+			return (cardinality <= MAX_ARRAY_SIZE ? bitmap.toArray() : bitmap);
+		}
+
+		int cardinality() {
+			return cardinality;
+		}
+
+		boolean contains(int low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		Container add(int low) {
+
+			long bit = 1L << low;
+			if ((words[low >>> 6] & bit) == 0) {
+				words[low >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		Container remove(int low) {
+
+			long bit = 1L << low;
+			if ((words[low >>> 6] & bit) != 0) {
+				words[low >>> 6] &= ~bit;
+				cardinality--;
+				// Convert below half the array limit so that add/remove around the limit does not convert every time.
+				if (cardinality <= MAX_ARRAY_SIZE / 2) {
+					return toArray();
+				}
+			}
+			return this;
+		}
+
+		Container and(Container other) {
+
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			long[] o = ((BitmapContainer) other).words;
+			long[] result = new long[1024];
+			for (int i = 0; i < 1024; i++) {
+				result[i] = words[i] & o[i];
+			}
+			return of(result);
+		}
+
+		Container or(Container other) {
+
+			long[] result = words.clone();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer a = (ArrayContainer) other;
+				for (int i = 0; i < a.cardinality; i++) {
+					result[a.values[i] >>> 6] |= 1L << a.values[i];
+				}
+			} else {
+				long[] o = ((BitmapContainer) other).words;
+				for (int i = 0; i < 1024; i++) {
+					result[i] |= o[i];
+				}
+			}
+			return of(result);
+		}
+
+		Container andNot(Container other) {
+
+			long[] result = words.clone();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer a = (ArrayContainer) other;
+				for (int i = 0; i < a.cardinality; i++) {
+					result[a.values[i] >>> 6] &= ~(1L << a.values[i]);
+				}
+			} else {
+				long[] o = ((BitmapContainer) other).words;
+				for (int i = 0; i < 1024; i++) {
+					result[i] &= ~o[i];
+				}
+			}
+			return of(result);
+		}
+
+		Container range(int from, int to) {
+
+			long[] result = new long[1024];
+			int first = from >>> 6;
+			int last = to >>> 6;
+			System.arraycopy(words, first, result, first, last - first + 1);
+			result[first] &= -1L << from;
+			result[last] &= -1L >>> (63 - (to & 63));
+			return of(result);
+		}
+
+		Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		int fill(long[] uids, int offset, long high) {
+
+			for (int i = 0; i < 1024; i++) {
+				long w = words[i];
+				while (w != 0) {
+					uids[offset++] = high | ((i << 6) + Long.numberOfTrailingZeros(w));
+					w &= w - 1;
+				}
+			}
+			return offset;
+		}
+
+		ArrayContainer toArray() {
+
+			char[] values = new char[Math.max(1, cardinality)];
+			int n = 0;
+			for (int i = 0; i < 1024; i++) {
+				long w = words[i];
+				while (w != 0) {
+					values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(w));
+					w &= w - 1;
+				}
+			}
+			return new ArrayContainer(values, n);
+		}
+	}
+
+}
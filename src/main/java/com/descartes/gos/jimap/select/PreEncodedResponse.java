@@ -0,0 +1,33 @@
+package com.descartes.gos.jimap.select;
+
+import java.util.List;
+
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+
+/**
+ * Responses in their encoded form, written as is by the {@link PreEncodedResponseEncoder}.
+ * The responses themselves are kept for composers that cannot write encoded bytes.
+ */
+public class PreEncodedResponse implements ImapResponseMessage {
+
+	private final byte[] encoded;
+	private final List<ImapResponseMessage> responses;
+
+	/**
+	 * @param encoded complete response lines, not modified afterwards (shared by all sessions).
+	 */
+	public PreEncodedResponse(byte[] encoded, List<ImapResponseMessage> responses) {
+
+		this.encoded = encoded;
+		this.responses = responses;
+	}
+
+	public byte[] getEncoded() {
+		return encoded;
+	}
+
+	public List<ImapResponseMessage> getResponses() {
+		return responses;
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.descartes.gos.jimap.select;
+
+import java.io.IOException;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
+import org.apache.james.imap.encode.base.RawImapResponseComposer;
+
+/**
+ * Writes {@link PreEncodedResponse}s with one write when the composer is a {@link RawImapResponseComposer},
+ * else encodes their responses. Other messages are encoded by the given encoder.
+ */
+public class PreEncodedResponseEncoder implements ImapEncoder {
+
+	private final ImapEncoder encoder;
+
+	public PreEncodedResponseEncoder(ImapEncoder encoder) {
+		this.encoder = encoder;
+	}
+
+	public void encode(ImapMessage message, ImapResponseComposer composer, ImapSession session) throws IOException {
+
+		if (!(message instanceof PreEncodedResponse)) {
+			encoder.encode(message, composer, session);
+		} else if (composer instanceof RawImapResponseComposer) {
+			((RawImapResponseComposer) composer).writeEncoded(((PreEncodedResponse) message).getEncoded());
+		} else {
+			for (ImapResponseMessage response : ((PreEncodedResponse) message).getResponses()) {
+				encoder.encode(response, composer, session);
+			}
+		}
+	}
+
+}
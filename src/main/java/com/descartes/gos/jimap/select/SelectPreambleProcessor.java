@@ -0,0 +1,193 @@
+package com.descartes.gos.jimap.select;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.message.response.StatusResponse;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.imap.decode.main.OutputStreamImapResponseWriter;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
+import org.apache.james.imap.encode.base.ImapResponseComposerImpl;
+import org.apache.james.imap.message.request.AbstractMailboxSelectionRequest;
+import org.apache.james.imap.message.request.ExamineRequest;
+import org.apache.james.imap.message.response.FlagsResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces the FLAGS, UIDVALIDITY and PERMANENTFLAGS responses of SELECT and EXAMINE by one {@link PreEncodedResponse}
+ * from the {@link SelectPreambles} of the mailbox, so that clients that select mailboxes over and over again
+ * do not pay for encoding the same responses each time.
+ * <br>The responses are still created by the processor chain and compared with the values the preamble was encoded from:
+ * a preamble that is outdated (an event still underway) is encoded again.
+ * The preamble is sent in place of the last of the three responses (the order of untagged responses does not matter),
+ * the other responses of the chain are passed on unchanged.
+ */
+public class SelectPreambleProcessor implements ImapProcessor {
+
+	private static Logger log = LoggerFactory.getLogger(SelectPreambleProcessor.class);
+
+	private static final String UIDVALIDITY = "UIDVALIDITY";
+	private static final String PERMANENTFLAGS = "PERMANENTFLAGS";
+
+	private final ImapProcessor next;
+	private final ImapEncoder encoder;
+	private final SelectPreambles preambles;
+
+	/**
+	 * @param encoder encodes the preambles, must be the encoder of the responses.
+	 * @param preambles must be registered as global listener of the mailbox manager.
+	 */
+	public SelectPreambleProcessor(ImapProcessor next, ImapEncoder encoder, SelectPreambles preambles) {
+
+		this.next = next;
+		this.encoder = encoder;
+		this.preambles = preambles;
+	}
+
+	public void process(ImapMessage message, Responder responder, ImapSession session) {
+
+		if (!(message instanceof AbstractMailboxSelectionRequest)) {
+			next.process(message, responder, session);
+			return;
+		}
+		PreambleResponder preambleResponder = new PreambleResponder(responder, session, message instanceof ExamineRequest);
+		next.process(message, preambleResponder, session);
+		preambleResponder.release();
+	}
+
+	/**
+	 * @return the code of an untagged OK response, null for other responses.
+	 */
+	private static String untaggedOkCode(ImapResponseMessage message) {
+
+		if (!(message instanceof StatusResponse)) {
+			return null;
+		}
+		StatusResponse response = (StatusResponse) message;
+		if (response.getTag() != null || response.getServerResponseType() != StatusResponse.Type.OK || response.getResponseCode() == null) {
+			return null;
+		}
+		return response.getResponseCode().getCode();
+	}
+
+	/**
+	 * Holds the FLAGS, UIDVALIDITY and PERMANENTFLAGS responses until all three were sent by the chain.
+	 */
+	private final class PreambleResponder implements Responder {
+
+		private final Responder responder;
+		private final ImapSession session;
+		private final boolean readOnly;
+		private final List<ImapResponseMessage> held = new ArrayList<ImapResponseMessage>(3);
+		private FlagsResponse flags;
+		private StatusResponse uidValidity;
+		private StatusResponse permanentFlags;
+		private boolean released;
+
+		PreambleResponder(Responder responder, ImapSession session, boolean readOnly) {
+
+			this.responder = responder;
+			this.session = session;
+			this.readOnly = readOnly;
+		}
+
+		public void respond(ImapResponseMessage message) {
+
+			if (released) {
+				responder.respond(message);
+				return;
+			}
+			String code = untaggedOkCode(message);
+			if (message instanceof FlagsResponse && flags == null) {
+				flags = (FlagsResponse) message;
+			} else if (UIDVALIDITY.equals(code) && uidValidity == null) {
+				uidValidity = (StatusResponse) message;
+			} else if (PERMANENTFLAGS.equals(code) && permanentFlags == null) {
+				permanentFlags = (StatusResponse) message;
+			} else {
+				if (message instanceof StatusResponse && ((StatusResponse) message).getTag() != null) {
+					// Incomplete preamble (e.g. the mailbox cannot be selected).
+					release();
+				}
+				responder.respond(message);
+				return;
+			}
+			held.add(message);
+			if (flags != null && uidValidity != null && permanentFlags != null) {
+				PreEncodedResponse preamble = preamble();
+				if (preamble != null) {
+					released = true;
+					responder.respond(preamble);
+				} else {
+					release();
+				}
+			}
+		}
+
+		/**
+		 * Sends the held responses as they are.
+		 */
+		void release() {
+
+			if (released) {
+				return;
+			}
+			released = true;
+			for (ImapResponseMessage message : held) {
+				responder.respond(message);
+			}
+		}
+
+		/**
+		 * @return the cached preamble, encoded when it was not cached or outdated, null when there is no selected mailbox.
+		 */
+		private PreEncodedResponse preamble() {
+
+			SelectedMailbox selected = session.getSelected();
+			if (selected == null) {
+				return null;
+			}
+			Flags applicableFlags = flags.getFlags();
+			long uidValidityValue = uidValidity.getResponseCode().getNumber();
+			Collection<String> permanentFlagNames = permanentFlags.getResponseCode().getParameters();
+			SelectPreambles.Preamble preamble = preambles.get(selected.getPath(), readOnly);
+			if (preamble == null || !preamble.matches(applicableFlags, uidValidityValue, permanentFlagNames)) {
+				byte[] encoded = encode();
+				if (encoded == null) {
+					return null;
+				}
+				preamble = new SelectPreambles.Preamble(applicableFlags, uidValidityValue, permanentFlagNames, encoded);
+				preambles.put(selected.getPath(), readOnly, preamble);
+			}
+			return new PreEncodedResponse(preamble.encoded, new ArrayList<ImapResponseMessage>(held));
+		}
+
+		private byte[] encode() {
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			ImapResponseComposer composer = new ImapResponseComposerImpl(new OutputStreamImapResponseWriter(out, false));
+			try {
+				for (ImapResponseMessage message : held) {
+					encoder.encode(message, composer, session);
+				}
+				composer.flush();
+			} catch (IOException e) {
+				log.warn("Cannot encode preamble of " + session.getSelected().getPath(), e);
+				return null;
+			}
+			return out.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.descartes.gos.jimap.select;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.UpdatedFlags;
+
+/**
+ * Global mailbox listener that keeps the encoded FLAGS, UIDVALIDITY and PERMANENTFLAGS responses of SELECT and EXAMINE
+ * per mailbox (registered via {@link MailboxManager#addGlobalListener(MailboxListener, MailboxSession)}).
+ * <br>A preamble is removed when a message gets a keyword that is not in its FLAGS, when a message is expunged
+ * from a mailbox with keywords (the keyword may no longer be used) and when the mailbox is deleted
+ * (a new mailbox with the same name has a new UIDVALIDITY) or renamed.
+ * Events of mailboxes without a preamble cost one lookup.
+ */
+public class SelectPreambles implements MailboxListener {
+
+	private final ConcurrentHashMap<MailboxPath, Preamble> selectPreambles = new ConcurrentHashMap<MailboxPath, Preamble>();
+	private final ConcurrentHashMap<MailboxPath, Preamble> examinePreambles = new ConcurrentHashMap<MailboxPath, Preamble>();
+
+	public void event(Event event) {
+
+		MailboxPath path = event.getMailboxPath();
+		if (event instanceof MailboxDeletion || event instanceof MailboxRenamed) {
+			remove(path);
+			return;
+		}
+		Preamble select = selectPreambles.get(path);
+		Preamble examine = examinePreambles.get(path);
+		if (select == null && examine == null) {
+			return;
+		}
+		if (event instanceof Added) {
+			Added added = (Added) event;
+			for (Long uid : added.getUids()) {
+				MessageMetaData metaData = added.getMetaData(uid);
+				if (metaData != null && isNewKeyword(select, examine, metaData.getFlags())) {
+					remove(path);
+					return;
+				}
+			}
+		} else if (event instanceof FlagsUpdated) {
+			for (UpdatedFlags updated : ((FlagsUpdated) event).getUpdatedFlags()) {
+				if (isNewKeyword(select, examine, updated.getNewFlags())) {
+					remove(path);
+					return;
+				}
+			}
+		} else if (event instanceof Expunged) {
+			if ((select != null && select.hasKeywords()) || (examine != null && examine.hasKeywords())) {
+				remove(path);
+			}
+		}
+	}
+
+	private static boolean isNewKeyword(Preamble select, Preamble examine, Flags flags) {
+		return (select != null && !select.hasKeywords(flags)) || (examine != null && !examine.hasKeywords(flags));
+	}
+
+	private void remove(MailboxPath path) {
+
+		selectPreambles.remove(path);
+		examinePreambles.remove(path);
+	}
+
+	public boolean isClosed() {
+		return false;
+	}
+
+	/**
+	 * @param readOnly true for EXAMINE.
+	 * @return the preamble of the mailbox, null when there is none.
+	 */
+	Preamble get(MailboxPath path, boolean readOnly) {
+		return (readOnly ? examinePreambles : selectPreambles).get(path);
+	}
+
+	void put(MailboxPath path, boolean readOnly, Preamble preamble) {
+		(readOnly ? examinePreambles : selectPreambles).put(path, preamble);
+	}
+
+	/**
+	 * @return amount of mailboxes with a preamble for SELECT.
+	 */
+	public int getMailboxCount() {
+		return selectPreambles.size();
+	}
+
+	/**
+	 * The encoded responses and the values they were encoded from.
+	 */
+	static final class Preamble {
+
+		private final Flags flags;
+		private final long uidValidity;
+		private final Set<String> permanentFlags;
+		final byte[] encoded;
+
+		Preamble(Flags flags, long uidValidity, Collection<String> permanentFlags, byte[] encoded) {
+
+			this.flags = new Flags(flags);
+			this.uidValidity = uidValidity;
+			this.permanentFlags = new HashSet<String>(permanentFlags);
+			this.encoded = encoded;
+		}
+
+		/**
+		 * @return true when the responses would be encoded the same.
+		 */
+		boolean matches(Flags flags, long uidValidity, Collection<String> permanentFlags) {
+			return this.uidValidity == uidValidity && this.flags.equals(flags) && this.permanentFlags.equals(new HashSet<String>(permanentFlags));
+		}
+
+		boolean hasKeywords() {
+			return flags.getUserFlags().length > 0;
+		}
+
+		/**
+		 * @return true when the keywords of the flags are all in the FLAGS response.
+		 */
+		boolean hasKeywords(Flags flags) {
+
+			for (String keyword : flags.getUserFlags()) {
+				if (!this.flags.contains(keyword)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.descartes.gos.jimap.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized byte-buffers.
+ * Buffers are only borrowed for the duration of a socket read or write,
+ * so the pool stays small even with many connections.
+ */
+public class BufferPool {
+
+	private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final int bufferSize;
+	private final int maxPooled;
+	private final boolean direct;
+
+	/**
+	 * @param bufferSize capacity of each buffer.
+	 * @param maxPooled maximum amount of buffers kept in the pool,
+	 * buffers released when the pool is full are left to the garbage collector.
+	 * @param direct true for direct buffers, false for heap buffers (with a backing array).
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return a cleared buffer.
+	 */
+	public ByteBuffer acquire() {
+
+		ByteBuffer b = pool.poll();
+		if (b == null) {
+			b = (direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+		} else {
+			pooled.decrementAndGet();
+			b.clear();
+		}
+		return b;
+	}
+
+	/**
+	 * Returns a buffer obtained via {@link #acquire()} to the pool.
+	 * The buffer must not be used after this call.
+	 */
+	public void release(ByteBuffer b) {
+
+		if (b == null || b.capacity() != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			pool.offer(b);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.zip.Deflater;
+
+import org.apache.james.imap.decode.main.LiteralSink;
+import org.apache.james.imap.message.response.Literal;
+
+/**
+ * Buffered output stream for a blocking socket channel.
+ * Literals are transferred to the channel without copying when possible (see {@link LiteralTransfer}),
+ * else they are copied through pooled chunk buffers and the buffered response bytes are sent
+ * together with the first chunk in one gathering write.
+ * <br>After {@link #startCompression(Deflater, int)} all data is written via a {@link DeflatingChannel}.
+ */
+class ChannelOutputStream extends OutputStream implements LiteralSink {
+
+	private GatheringByteChannel channel;
+	private DeflatingChannel deflating;
+	private final ByteBuffer buffer;
+	private final BufferPool chunkPool;
+
+	/**
+	 * @param chunkPool pool of heap buffers used to copy literals that cannot be transferred.
+	 */
+	ChannelOutputStream(GatheringByteChannel channel, int bufferSize, BufferPool chunkPool) {
+
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.chunkPool = chunkPool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (len > buffer.remaining()) {
+			drain();
+			if (len > buffer.capacity()) {
+				writeFully(ByteBuffer.wrap(b, off, len));
+				return;
+			}
+		}
+		buffer.put(b, off, len);
+	}
+
+	public void writeLiteral(Literal literal) throws IOException {
+
+		LiteralTransfer transfer = new LiteralTransfer(literal);
+		try {
+			if (transfer.isZeroCopy()) {
+				drain();
+				if (!transfer.writeTo(channel, null)) {
+					// A blocking channel only accepts less when the literal content ended early.
+					throw new EOFException("Literal transfer did not complete.");
+				}
+				return;
+			}
+			ByteBuffer chunk = chunkPool.acquire();
+			try {
+				buffer.flip();
+				ByteBuffer[] gather = new ByteBuffer[] { buffer, chunk };
+				while (transfer.fill(chunk)) {
+					while (buffer.hasRemaining() || chunk.hasRemaining()) {
+						channel.write(gather);
+					}
+				}
+				buffer.compact();
+			} finally {
+				chunkPool.release(chunk);
+			}
+		} finally {
+			transfer.close();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+
+		drain();
+		if (deflating != null && !deflating.flush()) {
+			throw new IOException("Compressed output was not written completely.");
+		}
+	}
+
+	/**
+	 * Writes the buffered data and compresses all data written after it.
+	 * @param bufferSize size of the buffer for compressed data.
+	 */
+	void startCompression(Deflater deflater, int bufferSize) throws IOException {
+
+		flush();
+		deflating = new DeflatingChannel(channel, deflater, bufferSize);
+		channel = deflating;
+	}
+
+	/**
+	 * Writes the buffered data to the channel. Unlike {@link #flush()}, compressed data is not sync flushed:
+	 * a sync flush ends the current deflate block and is only needed when a response is complete.
+	 */
+	private void drain() throws IOException {
+
+		if (buffer.position() > 0) {
+			buffer.flip();
+			writeFully(buffer);
+			buffer.clear();
+		}
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException {
+
+		while (b.hasRemaining()) {
+			channel.write(b);
+		}
+	}
+
+}
@@ -0,0 +1,307 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.imap.decode.SpilledLiteral;
+
+/**
+ * Finds the end of complete IMAP commands in received bytes.
+ * A command is complete when its last line ends with LF and all literals
+ * (<code>{n}</code> or non-synchronizing <code>{n+}</code>) announced at the end of
+ * its lines have been received.
+ * <br>Scan state is kept between calls so that bytes of a partially received
+ * command are only scanned once. All offsets are relative to the start of the command,
+ * so the buffer may be compacted or grown between calls.
+ * <br>Literals larger than the spill threshold are moved from the buffer to a {@link SpilledLiteral} while they
+ * are received (the bytes after the literal are moved forward and the buffer's limit is lowered),
+ * so a connection only buffers a limited amount of a large APPEND.
+ */
+class CommandFramer {
+
+	private final int maxLineLength;
+	private final long maxLiteralSize;
+	private final long spillThreshold;
+	private final File spillDirectory;
+
+	/** Bytes of the current command already scanned. */
+	private int scanned;
+	/** Offset in the current command of the line being scanned. */
+	private int lineStart;
+	private long literalRemaining;
+	private boolean continuationRequested;
+	/** Spilled literals of the current command, null when there are none. */
+	private List<SpilledLiteral> spilled;
+	/** The last of the spilled literals while it is being received. */
+	private SpilledLiteral spilling;
+	/** Spilled literals of the commands that are framed again, see {@link #rewind(SpilledLiteral[][], int, int)}. */
+	private final ArrayDeque<SpilledLiteral> respill = new ArrayDeque<SpilledLiteral>();
+	/** Spilled literals of the last complete command. */
+	private SpilledLiteral[] completed;
+
+	/* Set by literalLength(). */
+	private boolean literalNonSync;
+
+	/**
+	 * @param spillThreshold literals larger than this are spilled to a temporary file, negative for none.
+	 * @param spillDirectory directory for the temporary files, null for the system's temporary directory.
+	 */
+	CommandFramer(int maxLineLength, long maxLiteralSize, long spillThreshold, File spillDirectory) {
+		this.maxLineLength = maxLineLength;
+		this.maxLiteralSize = maxLiteralSize;
+		this.spillThreshold = spillThreshold;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Scans the bytes between the position and limit of the buffer for a complete command.
+	 * The position of the buffer is not changed, the limit is lowered when literal data was spilled.
+	 * @return the length of the complete command starting at the position of the buffer,
+	 * or -1 if more data is needed (see also {@link #isContinuationRequested()}).
+	 * @throws IOException when the command violates the line or literal limits.
+	 */
+	int next(ByteBuffer buf) throws IOException {
+
+		final int start = buf.position();
+		int end = buf.limit();
+		int pos = start + scanned;
+		while (pos < end) {
+			if (spilling != null) {
+				int n = (int) Math.min(spilling.remaining(), end - pos);
+				spilling.write(buf, pos, n);
+				end = remove(buf, pos, n);
+				if (spilling.remaining() > 0L) {
+					break;
+				}
+				spilling = null;
+				lineStart = pos - start;
+				continue;
+			}
+			if (literalRemaining > 0L) {
+				int n = (int) Math.min(literalRemaining, end - pos);
+				pos += n;
+				literalRemaining -= n;
+				if (literalRemaining > 0L) {
+					break;
+				}
+				lineStart = pos - start;
+				continue;
+			}
+			if (buf.get(pos++) != '\n') {
+				if (pos - start - lineStart > maxLineLength) {
+					throw new IOException("Command line exceeds maximum length of " + maxLineLength);
+				}
+				continue;
+			}
+			long literal = literalLength(buf, start + lineStart, pos - 1);
+			if (literal < 0L) {
+				int length = pos - start;
+				completed = (spilled == null ? null : spilled.toArray(new SpilledLiteral[spilled.size()]));
+				spilled = null;
+				reset();
+				return length;
+			}
+			if (literal > maxLiteralSize) {
+				throw new IOException("Literal size " + literal + " exceeds maximum of " + maxLiteralSize);
+			}
+			lineStart = pos - start;
+			long remaining;
+			if (spillThreshold >= 0L && literal > spillThreshold) {
+				spilling = spill(pos - start, literal);
+				remaining = spilling.remaining();
+				if (remaining == 0L) {
+					spilling = null;
+				}
+			} else {
+				literalRemaining = remaining = literal;
+			}
+			// Also for an empty literal, the client waits for the continuation before it sends the rest of the command.
+			if (!literalNonSync) {
+				continuationRequested = true;
+			}
+		}
+		scanned = pos - start;
+		return -1;
+	}
+
+	/**
+	 * @return the spilled literal that was received before the command was rewound, else a new spilled literal.
+	 */
+	private SpilledLiteral spill(int offset, long size) throws IOException {
+
+		SpilledLiteral literal = respill.poll();
+		if (literal == null) {
+			literal = new SpilledLiteral(spillDirectory, offset, size);
+		} else if (literal.getOffset() != offset || literal.size() != size) {
+			closeQuietly(literal);
+			throw new IOException("Literal of " + size + " bytes does not match the literal received before of " + literal.size() + " bytes.");
+		}
+		if (spilled == null) {
+			spilled = new ArrayList<SpilledLiteral>(2);
+		}
+		spilled.add(literal);
+		return literal;
+	}
+
+	/**
+	 * Removes bytes from the buffer by moving the bytes after them forward.
+	 * @return the new limit of the buffer.
+	 */
+	private static int remove(ByteBuffer buf, int from, int length) {
+
+		int end = buf.limit();
+		ByteBuffer tail = buf.duplicate();
+		tail.position(from + length);
+		ByteBuffer target = buf.duplicate();
+		target.position(from);
+		target.put(tail);
+		buf.limit(end - length);
+		return end - length;
+	}
+
+	/**
+	 * @return the literals that were spilled for the command returned by the last call to {@link #next(ByteBuffer)},
+	 * or null when there are none. The caller must close them.
+	 */
+	SpilledLiteral[] takeSpilled() {
+
+		SpilledLiteral[] literals = completed;
+		completed = null;
+		return literals;
+	}
+
+	/**
+	 * Forgets the scan state so that commands are framed again from a position before the current command.
+	 * Literals spilled for the commands that are framed again are re-used (they are no longer in the buffer).
+	 * @param commands the spilled literals of the commands that are framed again, in order (null elements for none).
+	 */
+	void rewind(SpilledLiteral[][] commands, int from, int to) {
+
+		ArrayDeque<SpilledLiteral> previous = new ArrayDeque<SpilledLiteral>(respill);
+		respill.clear();
+		for (int i = from; i < to; i++) {
+			if (commands[i] != null) {
+				for (SpilledLiteral literal : commands[i]) {
+					respill.add(literal);
+				}
+			}
+		}
+		if (spilled != null) {
+			respill.addAll(spilled);
+		}
+		respill.addAll(previous);
+		spilled = null;
+		spilling = null;
+		reset();
+	}
+
+	/**
+	 * Deletes the literals that were spilled for commands that were not handled, called when the connection is closed.
+	 */
+	void close() {
+
+		if (spilled != null) {
+			respill.addAll(spilled);
+		}
+		spilled = null;
+		spilling = null;
+		if (completed != null) {
+			for (SpilledLiteral literal : completed) {
+				respill.add(literal);
+			}
+		}
+		completed = null;
+		SpilledLiteral literal;
+		while ((literal = respill.poll()) != null) {
+			closeQuietly(literal);
+		}
+	}
+
+	static void closeQuietly(SpilledLiteral[] literals) {
+
+		if (literals != null) {
+			for (SpilledLiteral literal : literals) {
+				closeQuietly(literal);
+			}
+		}
+	}
+
+	private static void closeQuietly(SpilledLiteral literal) {
+
+		try {
+			literal.close();
+		} catch (IOException e) {
+			// Only fails when the file cannot be deleted.
+		}
+	}
+
+	/**
+	 * True if the client announced a synchronizing literal and must receive a command continuation
+	 * request before it sends the literal data. Calling this method resets the flag.
+	 */
+	boolean isContinuationRequested() {
+
+		boolean requested = continuationRequested;
+		continuationRequested = false;
+		return requested;
+	}
+
+	/**
+	 * True when part of a command was scanned but the command is not yet complete.
+	 */
+	boolean isPartial() {
+		return scanned > 0;
+	}
+
+	private void reset() {
+
+		scanned = 0;
+		lineStart = 0;
+		literalRemaining = 0L;
+		continuationRequested = false;
+	}
+
+	/**
+	 * @param from index of the first byte of the line.
+	 * @param lf index of the line-feed ending the line.
+	 * @return the size of the literal announced at the end of the line, or -1 if the line does not end with a literal.
+	 */
+	private long literalLength(ByteBuffer buf, int from, int lf) {
+
+		int i = lf - 1;
+		if (i >= from && buf.get(i) == '\r') {
+			i--;
+		}
+		if (i < from || buf.get(i) != '}') {
+			return -1L;
+		}
+		i--;
+		literalNonSync = (i >= from && buf.get(i) == '+');
+		if (literalNonSync) {
+			i--;
+		}
+		long size = 0L;
+		long factor = 1L;
+		int digits = 0;
+		for (; i >= from; i--) {
+			byte b = buf.get(i);
+			if (b < '0' || b > '9') {
+				break;
+			}
+			if (++digits > 18) {
+				return Long.MAX_VALUE;
+			}
+			size += (b - '0') * factor;
+			factor *= 10L;
+		}
+		if (digits == 0 || i < from || buf.get(i) != '{') {
+			return -1L;
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.descartes.gos.jimap.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of worker threads that execute the commands of {@link NioConnection}s, shared by all event loops.
+ * <br>Each connection has at most one batch of commands queued or executing, so commands of a session
+ * run in order while sessions run in parallel. An event loop only schedules a batch when permits
+ * for its commands are available ({@link ImapServerConfig#getMaxInFlightCommands()}) and the responses
+ * that are not yet written to clients stay below {@link ImapServerConfig#getMaxBufferedResponseBytes()}:
+ * otherwise the connection waits and its socket is not read (back-pressure).
+ */
+class CommandScheduler {
+
+	private final ThreadPoolExecutor workers;
+	private final int maxInFlightCommands;
+	private final long maxBufferedResponseBytes;
+	private final AtomicInteger inFlightCommands = new AtomicInteger();
+	private final AtomicLong bufferedResponseBytes = new AtomicLong();
+
+	CommandScheduler(ImapServerConfig config) {
+
+		this.maxInFlightCommands = config.getMaxInFlightCommands();
+		this.maxBufferedResponseBytes = config.getMaxBufferedResponseBytes();
+		final AtomicInteger threads = new AtomicInteger();
+		// The queue holds at most one task per connection and is bounded by the in-flight commands limit.
+		workers = new ThreadPoolExecutor(config.getWorkers(), config.getWorkers(), 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "imap-worker-" + threads.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return amount of commands (at most max) that may be scheduled, 0 when the connection has to wait.
+	 * Unused permits must be given back with {@link #release(int)}.
+	 */
+	int acquire(int max) {
+
+		if (bufferedResponseBytes.get() >= maxBufferedResponseBytes) {
+			return 0;
+		}
+		int inFlight;
+		int granted;
+		do {
+			inFlight = inFlightCommands.get();
+			granted = Math.min(max, maxInFlightCommands - inFlight);
+			if (granted <= 0) {
+				return 0;
+			}
+		} while (!inFlightCommands.compareAndSet(inFlight, inFlight + granted));
+		return granted;
+	}
+
+	void release(int commands) {
+		inFlightCommands.addAndGet(-commands);
+	}
+
+	/**
+	 * Updates the amount of response bytes that are not yet written.
+	 */
+	void buffered(long delta) {
+		bufferedResponseBytes.addAndGet(delta);
+	}
+
+	void execute(Runnable batch) {
+		workers.execute(batch);
+	}
+
+	int getInFlightCommands() {
+		return inFlightCommands.get();
+	}
+
+	long getBufferedResponseBytes() {
+		return bufferedResponseBytes.get();
+	}
+
+	void shutdown() {
+		workers.shutdown();
+	}
+
+}
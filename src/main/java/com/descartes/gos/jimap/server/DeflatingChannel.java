@@ -0,0 +1,149 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses all data written to it with a (raw) {@link Deflater} for COMPRESS=DEFLATE (RFC 4978).
+ * Data is compressed without flushing so that responses are compressed against each other,
+ * {@link #flush()} must be called when all responses were written to make them available to the client.
+ * <br>Works for blocking and non-blocking channels: when the target channel does not accept
+ * all compressed data, no more data is taken in until the compressed data was written.
+ * The output buffer is sized for large FETCH responses: it is filled completely before it is written
+ * (one socket write per buffer instead of one per compressed block).
+ * <br>The deflater is owned by the caller (the session) and is not ended by this channel. Not thread-safe.
+ */
+class DeflatingChannel implements GatheringByteChannel {
+
+	private static final byte[] NO_INPUT = new byte[0];
+	private static final int STAGING_SIZE = 8192;
+
+	private final WritableByteChannel target;
+	private final Deflater deflater;
+	/** Compressed data, written to the target from outStart up to outEnd. */
+	private final byte[] out;
+	private int outStart;
+	private int outEnd;
+	/** Copy of input from direct buffers, the deflater only reads arrays. */
+	private byte[] staging;
+	private boolean flushPending;
+
+	/**
+	 * @param bufferSize size of the buffer for compressed data.
+	 */
+	DeflatingChannel(WritableByteChannel target, Deflater deflater, int bufferSize) {
+
+		this.target = target;
+		this.deflater = deflater;
+		this.out = new byte[bufferSize];
+	}
+
+	/**
+	 * @return amount of bytes taken in, can be less than the remaining bytes of the buffer
+	 * (zero included) when the target channel did not accept all compressed data.
+	 */
+	public int write(ByteBuffer src) throws IOException {
+
+		if (!drain()) {
+			return 0;
+		}
+		int start = src.position();
+		while (src.hasRemaining()) {
+			int len;
+			if (src.hasArray()) {
+				len = src.remaining();
+				deflater.setInput(src.array(), src.arrayOffset() + src.position(), len);
+			} else {
+				if (staging == null) {
+					staging = new byte[STAGING_SIZE];
+				}
+				len = Math.min(src.remaining(), staging.length);
+				src.duplicate().get(staging, 0, len);
+				deflater.setInput(staging, 0, len);
+			}
+			flushPending = true;
+			long read = deflater.getBytesRead();
+			boolean drained = true;
+			while (!deflater.needsInput()) {
+				if (outEnd == out.length && !(drained = drain())) {
+					break;
+				}
+				outEnd += deflater.deflate(out, outEnd, out.length - outEnd, Deflater.NO_FLUSH);
+			}
+			src.position(src.position() + (int) (deflater.getBytesRead() - read));
+			if (!drained) {
+				// Do not keep a reference to the caller's data, the remaining bytes are written again by the caller.
+				deflater.setInput(NO_INPUT);
+				break;
+			}
+		}
+		return src.position() - start;
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+		long written = 0L;
+		for (int i = offset; i < offset + length; i++) {
+			written += write(srcs[i]);
+			if (srcs[i].hasRemaining()) {
+				break;
+			}
+		}
+		return written;
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Writes all compressed data, ending with a sync flush so that the client can decompress everything written so far.
+	 * @return true when all was written, false when the (non-blocking) target channel did not accept all data.
+	 */
+	boolean flush() throws IOException {
+
+		while (flushPending) {
+			if (outEnd == out.length && !drain()) {
+				return false;
+			}
+			int room = out.length - outEnd;
+			int n = deflater.deflate(out, outEnd, room, Deflater.SYNC_FLUSH);
+			outEnd += n;
+			if (n < room) {
+				flushPending = false;
+			}
+		}
+		return drain();
+	}
+
+	/**
+	 * @return true when all compressed data in the buffer was written.
+	 */
+	private boolean drain() throws IOException {
+
+		while (outStart < outEnd) {
+			int n = target.write(ByteBuffer.wrap(out, outStart, outEnd - outStart));
+			if (n <= 0) {
+				return false;
+			}
+			outStart += n;
+		}
+		outStart = outEnd = 0;
+		return true;
+	}
+
+	public boolean isOpen() {
+		return target.isOpen();
+	}
+
+	/**
+	 * Closes the target channel.
+	 */
+	public void close() throws IOException {
+		target.close();
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * A TCP front-end that feeds IMAP client connections to an
+ * {@link org.apache.james.imap.decode.main.ImapRequestStreamHandler}.
+ * Create one via {@link ImapServerConfig#createServer(org.apache.james.imap.decode.main.ImapRequestStreamHandler)},
+ * the configured {@link ImapServerConfig.Mode} determines the implementation.
+ */
+public interface ImapServer {
+
+	/**
+	 * Binds the server socket and starts accepting connections.
+	 */
+	void start() throws IOException;
+
+	/**
+	 * Stops accepting connections and closes all open connections.
+	 */
+	void stop();
+
+	/**
+	 * @return the address the server is bound to, null when not started.
+	 */
+	InetSocketAddress getLocalAddress();
+
+	/**
+	 * @return the amount of currently open client connections.
+	 */
+	int getConnectionCount();
+
+}
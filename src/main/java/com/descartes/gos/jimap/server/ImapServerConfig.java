@@ -0,0 +1,287 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+
+/**
+ * Settings for an {@link ImapServer}.
+ * Defaults are suitable for many mostly idle connections on a few threads.
+ */
+public class ImapServerConfig {
+
+	/**
+	 * How connections are served.
+	 */
+	public enum Mode {
+		/** A few selector threads serve all connections, see {@link NioImapServer}. */
+		NIO,
+		/** A (virtual) thread per connection, see {@link VirtualThreadImapServer}. */
+		VIRTUAL_THREADS
+	}
+
+	private Mode mode = Mode.NIO;
+	private String host;
+	private int port = 143;
+	private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private int readBufferSize = 16 * 1024;
+	private int maxLineLength = 64 * 1024;
+	private long maxLiteralSize = 64L * 1024L * 1024L;
+	private long literalSpillThreshold = 1024L * 1024L;
+	private File literalSpillDirectory;
+	private int maxPipelinedCommands = 32;
+	private int maxPooledSessions = 1024;
+	private boolean compression = true;
+	private int compressionLevel = Deflater.BEST_SPEED;
+	private int compressionBufferSize = 64 * 1024;
+	private int workers;
+	private int maxInFlightCommands = 1024;
+	private long maxBufferedResponseBytes = 256L * 1024L * 1024L;
+	private int maxSessionResponseBytes = 1024 * 1024;
+	private String greeting = "* OK IMAP4rev1 Server ready";
+
+	/**
+	 * Creates a server for the given handler using this configuration.
+	 */
+	public ImapServer createServer(ImapRequestStreamHandler handler) {
+
+		switch (mode) {
+		case VIRTUAL_THREADS:
+			return new VirtualThreadImapServer(this, handler);
+		default:
+			return new NioImapServer(this, handler);
+		}
+	}
+
+	/**
+	 * Default {@link Mode#NIO}.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = (mode == null ? Mode.NIO : mode);
+	}
+
+	/**
+	 * Host-name or IP-address to bind to, null (default) for all interfaces.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * Port to listen on, 0 to use a free port. Default 143.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Amount of selector threads in {@link Mode#NIO}, default half the amount of processors.
+	 */
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	public void setEventLoops(int eventLoops) {
+		this.eventLoops = Math.max(1, eventLoops);
+	}
+
+	/**
+	 * Size of the pooled buffers used to read from sockets, default 16 kB.
+	 * In {@link Mode#VIRTUAL_THREADS} this is the size of the read and write buffers per connection.
+	 */
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	public void setReadBufferSize(int readBufferSize) {
+		this.readBufferSize = readBufferSize;
+	}
+
+	/**
+	 * Maximum length of a command line (excluding literals), default 64 kB.
+	 * Connections sending longer lines are closed.
+	 */
+	public int getMaxLineLength() {
+		return maxLineLength;
+	}
+
+	public void setMaxLineLength(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Maximum size of one literal in a command, default 64 MB.
+	 * Connections sending larger literals are closed.
+	 */
+	public long getMaxLiteralSize() {
+		return maxLiteralSize;
+	}
+
+	public void setMaxLiteralSize(long maxLiteralSize) {
+		this.maxLiteralSize = maxLiteralSize;
+	}
+
+	/**
+	 * In {@link Mode#NIO}, literals larger than this size are written to a temporary file while they are received
+	 * instead of being kept in the connection's buffer, default 1 MB. A negative value keeps all literals in memory.
+	 * In {@link Mode#VIRTUAL_THREADS} literals are always read from the socket in chunks while the command is processed.
+	 */
+	public long getLiteralSpillThreshold() {
+		return literalSpillThreshold;
+	}
+
+	public void setLiteralSpillThreshold(long literalSpillThreshold) {
+		this.literalSpillThreshold = literalSpillThreshold;
+	}
+
+	/**
+	 * Directory for the temporary files of large literals, null (default) for the system's temporary directory.
+	 */
+	public File getLiteralSpillDirectory() {
+		return literalSpillDirectory;
+	}
+
+	public void setLiteralSpillDirectory(File literalSpillDirectory) {
+		this.literalSpillDirectory = literalSpillDirectory;
+	}
+
+	/**
+	 * Maximum amount of pipelined commands handled for a connection in one go, default 32.
+	 * In {@link Mode#NIO} other connections get a turn after this amount of commands,
+	 * in {@link Mode#VIRTUAL_THREADS} responses are flushed after this amount of commands.
+	 */
+	public int getMaxPipelinedCommands() {
+		return maxPipelinedCommands;
+	}
+
+	public void setMaxPipelinedCommands(int maxPipelinedCommands) {
+		this.maxPipelinedCommands = Math.max(1, maxPipelinedCommands);
+	}
+
+	/**
+	 * Maximum amount of sessions of closed connections kept for re-use, default 1024.
+	 */
+	public int getMaxPooledSessions() {
+		return maxPooledSessions;
+	}
+
+	public void setMaxPooledSessions(int maxPooledSessions) {
+		this.maxPooledSessions = Math.max(0, maxPooledSessions);
+	}
+
+	/**
+	 * True (default) to offer COMPRESS=DEFLATE (RFC 4978) to clients.
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Deflate level (0 to 9) of compressed connections, default {@link Deflater#BEST_SPEED}:
+	 * higher levels cost a lot more CPU for a few percent less data on typical IMAP responses.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+	}
+
+	/**
+	 * Size of the buffer for compressed output per compressed connection, default 64 kB.
+	 * Compressed data is written to the socket when the buffer is full or all responses were compressed,
+	 * a large buffer means less socket writes for large FETCH responses.
+	 */
+	public int getCompressionBufferSize() {
+		return compressionBufferSize;
+	}
+
+	public void setCompressionBufferSize(int compressionBufferSize) {
+		this.compressionBufferSize = Math.max(1024, compressionBufferSize);
+	}
+
+	/**
+	 * Amount of worker threads that execute commands in {@link Mode#NIO}, default 0: commands are executed
+	 * by the event loop threads, which is fastest for cheap commands but lets an expensive command (a large SEARCH or FETCH)
+	 * hold up all connections of the event loop. With workers, the commands of one connection are executed in order
+	 * (one batch at a time) and the commands of different connections in parallel, see {@link CommandScheduler}.
+	 */
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = Math.max(0, workers);
+	}
+
+	/**
+	 * Maximum amount of commands queued or executing on the workers (all connections), default 1024.
+	 * Connections wait for a turn when the limit is reached. Only used with {@link #getWorkers()}.
+	 */
+	public int getMaxInFlightCommands() {
+		return maxInFlightCommands;
+	}
+
+	public void setMaxInFlightCommands(int maxInFlightCommands) {
+		this.maxInFlightCommands = Math.max(1, maxInFlightCommands);
+	}
+
+	/**
+	 * Maximum amount of response bytes that are not yet written to (slow) clients, for all connections, default 256 MB.
+	 * No commands are scheduled while the limit is exceeded. Only used with {@link #getWorkers()}.
+	 */
+	public long getMaxBufferedResponseBytes() {
+		return maxBufferedResponseBytes;
+	}
+
+	public void setMaxBufferedResponseBytes(long maxBufferedResponseBytes) {
+		this.maxBufferedResponseBytes = Math.max(64L * 1024L, maxBufferedResponseBytes);
+	}
+
+	/**
+	 * Pipelined commands of a connection are not started while its unwritten responses exceed this amount, default 1 MB.
+	 * A single command can still produce a larger response. Only used with {@link #getWorkers()}.
+	 */
+	public int getMaxSessionResponseBytes() {
+		return maxSessionResponseBytes;
+	}
+
+	public void setMaxSessionResponseBytes(int maxSessionResponseBytes) {
+		this.maxSessionResponseBytes = Math.max(1024, maxSessionResponseBytes);
+	}
+
+	/**
+	 * Untagged greeting line sent to a client after connecting (without CRLF).
+	 */
+	public String getGreeting() {
+		return greeting;
+	}
+
+	public void setGreeting(String greeting) {
+		this.greeting = greeting;
+	}
+
+	byte[] getGreetingBytes() {
+		return (greeting + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.james.imap.message.response.ByteBufferInputStream;
+import org.apache.james.imap.message.response.ChannelLiteral;
+import org.apache.james.imap.message.response.Literal;
+
+/**
+ * Progress of writing one literal to a socket channel.
+ * {@link ChannelLiteral}s and literals backed by a {@link FileInputStream} or a {@link ByteBufferInputStream}
+ * are transferred without copying (<code>transferTo</code>), other literals are copied in chunks through a
+ * buffer that is owned by the caller. Only when a non-blocking channel does not accept a
+ * whole chunk, the remainder is kept by this transfer.
+ */
+class LiteralTransfer {
+
+	private final Literal literal;
+	private final long size;
+	private long position;
+	private ChannelLiteral channelLiteral;
+
+	private InputStream in;
+	private FileChannel fileChannel;
+	private long fileOffset;
+	private ByteBuffer leftover;
+
+	LiteralTransfer(Literal literal) throws IOException {
+
+		this.literal = literal;
+		this.size = literal.size();
+		if (literal instanceof ChannelLiteral) {
+			channelLiteral = (ChannelLiteral) literal;
+		}
+	}
+
+	/**
+	 * @return amount of bytes not yet written.
+	 */
+	long remaining() {
+		return size - position + (leftover == null ? 0 : leftover.remaining());
+	}
+
+	/**
+	 * Writes until all is written or the channel does not accept more data.
+	 * @param chunk heap buffer used to copy literals that cannot be transferred.
+	 * @return true when the literal was written completely.
+	 */
+	boolean writeTo(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+
+		if (leftover != null) {
+			channel.write(leftover);
+			if (leftover.hasRemaining()) {
+				return false;
+			}
+			leftover = null;
+		}
+		while (position < size) {
+			long n;
+			open();
+			if (channelLiteral != null) {
+				n = channelLiteral.transferTo(position, size - position, channel);
+			} else if (fileChannel != null) {
+				n = fileChannel.transferTo(fileOffset + position, size - position, channel);
+				if (n == 0L && fileOffset + position >= fileChannel.size()) {
+					throw new EOFException("Literal file ended before literal size " + size);
+				}
+			} else {
+				fill(chunk);
+				channel.write(chunk);
+				if (chunk.hasRemaining()) {
+					leftover = ByteBuffer.allocate(chunk.remaining());
+					leftover.put(chunk).flip();
+					return false;
+				}
+				continue;
+			}
+			if (n <= 0L) {
+				return false;
+			}
+			position += n;
+		}
+		close();
+		return true;
+	}
+
+	/**
+	 * @return true when the literal is transferred to the channel without copying it through a chunk buffer.
+	 */
+	boolean isZeroCopy() throws IOException {
+
+		open();
+		return (channelLiteral != null || fileChannel != null);
+	}
+
+	/**
+	 * Reads the next part of a literal that is copied into the chunk buffer, ready for writing.
+	 * @return false when the whole literal was already read.
+	 */
+	boolean fill(ByteBuffer chunk) throws IOException {
+
+		chunk.clear();
+		if (position >= size) {
+			chunk.limit(0);
+			return false;
+		}
+		open();
+		int read = in.read(chunk.array(), chunk.arrayOffset(), (int) Math.min(chunk.capacity(), size - position));
+		if (read < 0) {
+			throw new EOFException("Literal stream ended before literal size " + size);
+		}
+		chunk.limit(read);
+		position += read;
+		return true;
+	}
+
+	private void open() throws IOException {
+
+		if (in == null && channelLiteral == null) {
+			in = literal.getInputStream();
+			if (in instanceof ByteBufferInputStream) {
+				channelLiteral = ((ByteBufferInputStream) in).toLiteral();
+			} else if (in instanceof FileInputStream) {
+				fileChannel = ((FileInputStream) in).getChannel();
+				fileOffset = fileChannel.position();
+			}
+		}
+	}
+
+	void close() {
+
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException ignored) {
+				// nothing to recover
+			}
+			in = null;
+			fileChannel = null;
+		}
+	}
+
+}
@@ -0,0 +1,549 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.james.imap.api.process.ImapLineHandler;
+import org.apache.james.imap.decode.ImapRequestBufferLineReader;
+import org.apache.james.imap.decode.SpilledLiteral;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.metrics.ImapMetrics;
+
+/**
+ * State of one client connection handled by a {@link NioEventLoop}.
+ * Only accessed by the event loop thread that owns the connection.
+ * <br>When the client starts COMPRESS=DEFLATE, command handling stops until the OK response was written,
+ * after that received data is inflated before commands are framed and output is written via a {@link DeflatingChannel}.
+ * <br>Tasks posted to the session (e.g. IDLE updates) are run by the event loop, see {@link #runTasks()}.
+ * <br>With a {@link CommandScheduler}, the event loop frames the complete commands and a worker thread executes them
+ * ({@link #run()}). While the batch executes, the worker owns the session and the output: the event loop does not read,
+ * write or run tasks for the connection until it handled {@link #batchExecuted()}.
+ * <br>Literals above {@link ImapServerConfig#getLiteralSpillThreshold()} are written to a temporary file while they are received
+ * (see {@link CommandFramer}), the file is deleted after the command was executed or when the connection closes.
+ */
+class NioConnection implements JimapSession.TaskScheduler, Runnable {
+
+	static final byte[] CONTINUATION = "+ Ready for literal data\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	final SocketChannel channel;
+	final JimapSession session;
+	final ResponseBuffer outbound = new ResponseBuffer();
+
+	private final NioEventLoop loop;
+	private final CommandFramer framer;
+	private final int maxPipelinedCommands;
+	private final int readBufferSize;
+	private final int compressionLevel;
+	private final int compressionBufferSize;
+	/** Null when commands are executed by the event loop. */
+	private final CommandScheduler scheduler;
+	private final int maxSessionResponseBytes;
+	private SelectionKey key;
+	/** Received bytes of an incomplete command, null when there are none. */
+	private ByteBuffer inbound;
+	private boolean closing;
+	/** True when handling stopped at the pipelined commands limit while more data was received. */
+	private boolean pendingCommands;
+
+	/** Set when compression was started and the output is to be compressed once the pending output was written. */
+	private boolean deflatePending;
+	/** Null while compression is not active. */
+	private DeflatingChannel deflating;
+	private Inflater inflater;
+	/** Compressed input for the inflater (the pooled read buffers are direct buffers). */
+	private byte[] compressed;
+	/** Inflated input. */
+	private ByteBuffer inflated;
+
+	/** Offsets in the inbound buffer of the commands scheduled on a worker. */
+	private final int[] batchStart;
+	private final int[] batchLength;
+	private final SpilledLiteral[][] batchSpilled;
+	private int batchSize;
+	/** Amount of commands of the batch executed by the worker. */
+	private int batchExecuted;
+	private RuntimeException batchFailure;
+	private boolean compressionRequested;
+	/** True while a batch is queued or executing on a worker. */
+	private boolean executing;
+	/** True when no commands could be scheduled because of the scheduler's limits. */
+	private boolean waiting;
+	/** Set when a continuation request is to be written after the responses of the scheduled batch. */
+	private boolean continuationPending;
+	/** Response bytes counted as buffered by the scheduler. */
+	private long bufferedBytes;
+
+	NioConnection(SocketChannel channel, JimapSession session, ImapServerConfig config, NioEventLoop loop, CommandScheduler scheduler) {
+
+		this.channel = channel;
+		this.session = session;
+		this.loop = loop;
+		this.framer = new CommandFramer(config.getMaxLineLength(), config.getMaxLiteralSize(),
+				config.getLiteralSpillThreshold(), config.getLiteralSpillDirectory());
+		this.maxPipelinedCommands = config.getMaxPipelinedCommands();
+		this.readBufferSize = config.getReadBufferSize();
+		this.compressionLevel = config.getCompressionLevel();
+		this.compressionBufferSize = config.getCompressionBufferSize();
+		this.scheduler = scheduler;
+		this.maxSessionResponseBytes = config.getMaxSessionResponseBytes();
+		int batchCapacity = (scheduler == null ? 0 : maxPipelinedCommands);
+		this.batchStart = new int[batchCapacity];
+		this.batchLength = new int[batchCapacity];
+		this.batchSpilled = new SpilledLiteral[batchCapacity][];
+		session.setCompressionSupported(config.isCompression());
+		session.setTaskScheduler(this);
+	}
+
+	public void tasksPosted(JimapSession session) {
+		loop.tasksPosted(this);
+	}
+
+	/**
+	 * Runs the tasks posted to the session, their responses are written with the next flush.
+	 */
+	void runTasks() {
+
+		session.bindLogContext();
+		try {
+			session.runTasks();
+		} finally {
+			session.unbindLogContext();
+		}
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * True when the session has ended and the connection must be closed once all output is written.
+	 */
+	boolean isClosing() {
+		return closing;
+	}
+
+	/**
+	 * True when received commands are waiting to be handled via {@link #resume(ImapRequestStreamHandler)}.
+	 */
+	boolean hasPendingCommands() {
+		return pendingCommands;
+	}
+
+	/**
+	 * True when commands could not be scheduled because of the scheduler's limits,
+	 * retry via {@link #resume(ImapRequestStreamHandler)}.
+	 */
+	boolean isWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * True while a batch of commands is queued or executing on a worker.
+	 */
+	boolean isExecuting() {
+		return executing;
+	}
+
+	/**
+	 * Reads available data from the socket and handles all complete commands.
+	 * @return false when the client closed the connection.
+	 */
+	boolean read(BufferPool pool, ImapRequestStreamHandler handler) throws IOException {
+
+		ByteBuffer readBuffer = pool.acquire();
+		try {
+			int read;
+			do {
+				read = channel.read(readBuffer);
+				if (read < 0) {
+					return false;
+				}
+				readBuffer.flip();
+				if (inflater == null) {
+					received(readBuffer, handler);
+				} else {
+					setCompressed(readBuffer);
+					inflate(handler);
+				}
+				readBuffer.clear();
+			} while (read == readBuffer.capacity() && !closing && !pendingCommands && !executing && !waiting);
+		} finally {
+			pool.release(readBuffer);
+		}
+		return true;
+	}
+
+	/**
+	 * Handles the commands in the received data, keeps the data of unhandled commands.
+	 */
+	private void received(ByteBuffer data, ImapRequestStreamHandler handler) throws IOException {
+
+		ImapMetrics metrics = handler.getMetrics();
+		if (metrics != null) {
+			metrics.received(data.remaining());
+		}
+		if (scheduler != null) {
+			// The pooled read buffer is released before the commands are executed.
+			if (inbound == null) {
+				inbound = ByteBuffer.allocate(Math.max(data.remaining() * 2, 512));
+				inbound.put(data).flip();
+			} else {
+				append(data);
+			}
+			schedule();
+		} else if (inbound == null) {
+			handleCommands(data, handler);
+			if (data.hasRemaining() && !closing) {
+				inbound = ByteBuffer.allocate(Math.max(data.remaining() * 2, 512));
+				inbound.put(data).flip();
+			}
+		} else {
+			append(data);
+			handleCommands(inbound, handler);
+			if (!inbound.hasRemaining()) {
+				inbound = null;
+			}
+		}
+	}
+
+	/**
+	 * Handles commands that were received but not handled because of the pipelined commands limit.
+	 */
+	void resume(ImapRequestStreamHandler handler) throws IOException {
+
+		pendingCommands = false;
+		if (scheduler != null) {
+			schedule();
+		} else if (inbound != null) {
+			handleCommands(inbound, handler);
+			if (!inbound.hasRemaining()) {
+				inbound = null;
+			}
+		}
+		if (!pendingCommands && !executing && !waiting && inflater != null) {
+			inflate(handler);
+		}
+	}
+
+	private void setCompressed(ByteBuffer data) {
+
+		int length = data.remaining();
+		if (compressed == null || compressed.length < length) {
+			compressed = new byte[Math.max(length, readBufferSize)];
+		}
+		data.get(compressed, 0, length);
+		inflater.setInput(compressed, 0, length);
+	}
+
+	/**
+	 * Inflates compressed input and handles the commands in it. Stops at the pipelined commands limit,
+	 * the remaining compressed input is kept by the inflater until the connection is resumed.
+	 */
+	private void inflate(ImapRequestStreamHandler handler) throws IOException {
+
+		while (!closing && !pendingCommands && !executing && !waiting) {
+			int length;
+			try {
+				length = inflater.inflate(inflated.array(), 0, inflated.capacity());
+			} catch (DataFormatException e) {
+				throw new IOException("Invalid compressed data: " + e.getMessage(), e);
+			}
+			if (length == 0) {
+				if (inflater.finished()) {
+					throw new IOException("Compressed stream ended.");
+				}
+				break;
+			}
+			inflated.clear();
+			inflated.limit(length);
+			received(inflated, handler);
+		}
+	}
+
+	/**
+	 * Called after the command that started compression: stops handling commands until the response
+	 * was written (uncompressed), received data after the command is compressed data.
+	 */
+	private void startCompression(ByteBuffer buf) {
+
+		inflater = session.getInflater();
+		inflated = ByteBuffer.allocate(readBufferSize);
+		// Received data after the command was not a command.
+		framer.close();
+		setCompressed(buf);
+		deflatePending = true;
+		pendingCommands = true;
+	}
+
+	/**
+	 * Handles the complete commands in the buffer, moving the buffer's position past each handled command.
+	 * Stops after {@link ImapServerConfig#getMaxPipelinedCommands()} commands so that other connections get a turn.
+	 */
+	private void handleCommands(ByteBuffer buf, ImapRequestStreamHandler handler) throws IOException {
+
+		pendingCommands = false;
+		int handled = 0;
+		session.bindLogContext();
+		try {
+			while (!closing) {
+				if (handled == maxPipelinedCommands) {
+					pendingCommands = buf.hasRemaining();
+					break;
+				}
+				int length = framer.next(buf);
+				if (framer.isContinuationRequested()) {
+					outbound.write(CONTINUATION);
+				}
+				if (length < 0) {
+					break;
+				}
+				ByteBuffer command = buf.slice();
+				command.limit(length);
+				buf.position(buf.position() + length);
+				handled++;
+				SpilledLiteral[] spilled = framer.takeSpilled();
+				ImapLineHandler lineHandler = session.getLineHandler();
+				boolean more;
+				try {
+					if (lineHandler == null) {
+						more = handler.handleRequest(new ImapRequestBufferLineReader(command, spilled), outbound, session);
+					} else {
+						more = handler.handleLine(new ImapRequestBufferLineReader(command, spilled), outbound, session, lineHandler);
+					}
+				} finally {
+					CommandFramer.closeQuietly(spilled);
+				}
+				if (!more) {
+					closing = true;
+				} else if (session.isCompressionStartRequested()) {
+					startCompression(buf);
+					break;
+				}
+			}
+		} finally {
+			session.unbindLogContext();
+		}
+	}
+
+	/**
+	 * Frames the complete commands in the inbound buffer and schedules them as one batch on a worker,
+	 * up to {@link ImapServerConfig#getMaxPipelinedCommands()} commands and as many as the scheduler permits.
+	 */
+	private void schedule() throws IOException {
+
+		waiting = false;
+		if (executing || closing || inbound == null || !inbound.hasRemaining()) {
+			return;
+		}
+		int permits = scheduler.acquire(maxPipelinedCommands);
+		if (permits == 0) {
+			waiting = true;
+			return;
+		}
+		batchSize = 0;
+		try {
+			while (batchSize < permits) {
+				int length = framer.next(inbound);
+				if (framer.isContinuationRequested()) {
+					continuationPending = true;
+				}
+				if (length < 0) {
+					break;
+				}
+				batchStart[batchSize] = inbound.position();
+				batchLength[batchSize] = length;
+				batchSpilled[batchSize] = framer.takeSpilled();
+				batchSize++;
+				inbound.position(inbound.position() + length);
+			}
+		} finally {
+			scheduler.release(permits - batchSize);
+		}
+		pendingCommands = (batchSize == permits && inbound.hasRemaining());
+		if (batchSize == 0) {
+			writeContinuation();
+			return;
+		}
+		batchExecuted = 0;
+		executing = true;
+		scheduler.execute(this);
+	}
+
+	private void writeContinuation() throws IOException {
+
+		if (continuationPending && !closing) {
+			outbound.write(CONTINUATION);
+		}
+		continuationPending = false;
+	}
+
+	/**
+	 * Executes the scheduled batch of commands on a worker thread,
+	 * stops early when the session ends, compression is started or the responses exceed {@link ImapServerConfig#getMaxSessionResponseBytes()}.
+	 */
+	public void run() {
+
+		session.bindLogContext();
+		try {
+			while (batchExecuted < batchSize) {
+				ByteBuffer command = inbound.duplicate();
+				command.limit(batchStart[batchExecuted] + batchLength[batchExecuted]);
+				command.position(batchStart[batchExecuted]);
+				command = command.slice();
+				SpilledLiteral[] spilled = batchSpilled[batchExecuted];
+				batchSpilled[batchExecuted] = null;
+				batchExecuted++;
+				ImapLineHandler lineHandler = session.getLineHandler();
+				boolean more;
+				try {
+					if (lineHandler == null) {
+						more = loop.getHandler().handleRequest(new ImapRequestBufferLineReader(command, spilled), outbound, session);
+					} else {
+						more = loop.getHandler().handleLine(new ImapRequestBufferLineReader(command, spilled), outbound, session, lineHandler);
+					}
+				} finally {
+					CommandFramer.closeQuietly(spilled);
+				}
+				if (!more) {
+					closing = true;
+					break;
+				}
+				if (session.isCompressionStartRequested()) {
+					compressionRequested = true;
+					break;
+				}
+				if (outbound.pending() >= maxSessionResponseBytes) {
+					break;
+				}
+			}
+		} catch (RuntimeException e) {
+			batchFailure = e;
+		} finally {
+			session.unbindLogContext();
+			loop.batchExecuted(this);
+		}
+	}
+
+	/**
+	 * Called by the event loop when the worker is done with the batch, the commands that were not executed
+	 * are scheduled again after the responses were written.
+	 * @throws RuntimeException when the batch failed.
+	 */
+	void batchExecuted() throws IOException {
+
+		executing = false;
+		scheduler.release(batchSize);
+		boolean stoppedEarly = (batchExecuted < batchSize);
+		if (stoppedEarly) {
+			inbound.position(batchStart[batchExecuted]);
+			framer.rewind(batchSpilled, batchExecuted, batchSize);
+			for (int i = batchExecuted; i < batchSize; i++) {
+				batchSpilled[i] = null;
+			}
+			// A continuation request is repeated when the remaining commands are framed again.
+			continuationPending = false;
+		}
+		batchSize = 0;
+		writeContinuation();
+		if (compressionRequested) {
+			compressionRequested = false;
+			startCompression(inbound);
+		} else if (!closing && (stoppedEarly || inflater != null)) {
+			// Remaining commands (or compressed input) get a next turn once the responses were written.
+			pendingCommands = true;
+		}
+		if (!inbound.hasRemaining()) {
+			inbound = null;
+		}
+		RuntimeException failure = batchFailure;
+		batchFailure = null;
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void append(ByteBuffer src) {
+
+		if (inbound.capacity() - inbound.limit() < src.remaining()) {
+			int needed = inbound.remaining() + src.remaining();
+			if (needed <= inbound.capacity()) {
+				inbound.compact();
+				inbound.flip();
+			} else {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, inbound.capacity() * 2));
+				grown.put(inbound).flip();
+				inbound = grown;
+			}
+		}
+		int position = inbound.position();
+		inbound.position(inbound.limit());
+		inbound.limit(inbound.capacity());
+		inbound.put(src);
+		inbound.limit(inbound.position());
+		inbound.position(position);
+	}
+
+	/**
+	 * Writes pending output and updates the interest set: while output or commands are pending
+	 * no more commands are read (back-pressure for slow readers and pipelining clients).
+	 * @param chunk buffer of the event loop for copying literals.
+	 * @return true when all output was written.
+	 */
+	boolean flush(ByteBuffer chunk) throws IOException {
+
+		if (executing) {
+			// The output belongs to the worker.
+			if (key != null && key.isValid()) {
+				key.interestOps(0);
+			}
+			return false;
+		}
+		boolean done;
+		if (deflating == null) {
+			done = outbound.writeTo(channel, chunk);
+			if (done && deflatePending) {
+				Deflater deflater = session.getDeflater();
+				deflater.setLevel(compressionLevel);
+				deflating = new DeflatingChannel(channel, deflater, compressionBufferSize);
+				deflatePending = false;
+			}
+		} else {
+			done = outbound.writeTo(deflating, chunk) && deflating.flush();
+		}
+		if (scheduler != null) {
+			long pending = outbound.pending();
+			scheduler.buffered(pending - bufferedBytes);
+			bufferedBytes = pending;
+		}
+		if (key != null && key.isValid()) {
+			key.interestOps(done ? (closing || pendingCommands || waiting ? 0 : SelectionKey.OP_READ) : SelectionKey.OP_WRITE);
+		}
+		return done;
+	}
+
+	/**
+	 * Releases the output and deletes spilled literals, called when the connection is closed (and no batch is executing).
+	 */
+	void release() {
+
+		outbound.close();
+		framer.close();
+		if (scheduler != null) {
+			scheduler.buffered(-bufferedBytes);
+			bufferedBytes = 0L;
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.imap.decode.main.OutputStreamImapResponseWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.JimapSessionPool;
+
+/**
+ * Selector thread that handles all I/O and commands for the connections registered to it.
+ * Tasks posted to the sessions of its connections by other threads (IDLE updates) are also run by this thread:
+ * posting wakes up the selector (once for many posts) so that no thread waits per idle session.
+ * <br>With a {@link CommandScheduler}, commands are executed by worker threads and the workers hand
+ * the connection back when their batch is done, in the same way as posted tasks.
+ */
+class NioEventLoop implements Runnable {
+
+	private static Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+	/** Interval for retrying connections that wait for the scheduler's limits. */
+	private static final long WAITING_RETRY_MILLIS = 5L;
+
+	private final Selector selector;
+	private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+	/** Connections with pipelined commands waiting for a next turn. */
+	private final ArrayDeque<NioConnection> resumable = new ArrayDeque<NioConnection>();
+	/** Connections with tasks posted to their session. */
+	private final Queue<NioConnection> notified = new ConcurrentLinkedQueue<NioConnection>();
+	/** Connections of which a worker executed a batch of commands. */
+	private final Queue<NioConnection> executed = new ConcurrentLinkedQueue<NioConnection>();
+	/** Connections waiting for the scheduler's limits. */
+	private final ArrayDeque<NioConnection> waiting = new ArrayDeque<NioConnection>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final ImapServerConfig config;
+	private final ImapRequestStreamHandler handler;
+	private final CommandScheduler scheduler;
+	private final BufferPool pool;
+	private final JimapSessionPool sessions;
+	private final AtomicInteger connectionCount;
+	private final byte[] greeting;
+	/** Used by all connections of this loop to copy literals to sockets. */
+	private final ByteBuffer literalChunk = ByteBuffer.allocate(OutputStreamImapResponseWriter.COPY_BUFFER_SIZE);
+	private volatile boolean running = true;
+
+	/**
+	 * @param scheduler null to execute commands on the event loop thread.
+	 */
+	NioEventLoop(ImapServerConfig config, ImapRequestStreamHandler handler, CommandScheduler scheduler, BufferPool pool, JimapSessionPool sessions, AtomicInteger connectionCount) throws IOException {
+
+		this.selector = Selector.open();
+		this.config = config;
+		this.handler = handler;
+		this.scheduler = scheduler;
+		this.pool = pool;
+		this.sessions = sessions;
+		this.connectionCount = connectionCount;
+		this.greeting = config.getGreetingBytes();
+	}
+
+	/**
+	 * Hands over a newly accepted connection, called by the acceptor thread.
+	 */
+	void register(SocketChannel channel) {
+
+		accepted.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Called by any thread when a task was posted to the session of a connection.
+	 */
+	void tasksPosted(NioConnection c) {
+
+		notified.add(c);
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Called by a worker thread when it executed a batch of commands of a connection.
+	 */
+	void batchExecuted(NioConnection c) {
+
+		executed.add(c);
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	ImapRequestStreamHandler getHandler() {
+		return handler;
+	}
+
+	void stop() {
+
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+
+		try {
+			while (running) {
+				if (!resumable.isEmpty() || !notified.isEmpty() || !executed.isEmpty()) {
+					selector.selectNow();
+				} else if (!waiting.isEmpty()) {
+					selector.select(WAITING_RETRY_MILLIS);
+				} else {
+					selector.select();
+				}
+				registerAccepted();
+				completeBatches();
+				runTasks();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+				resume();
+				retryWaiting();
+			}
+		} catch (ClosedSelectorException e) {
+			log.debug("Selector closed.");
+		} catch (Exception e) {
+			log.error("Event loop failed, closing all its connections.", e);
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void registerAccepted() {
+
+		SocketChannel channel;
+		while ((channel = accepted.poll()) != null) {
+			NioConnection c = new NioConnection(channel, sessions.acquire(), config, this, scheduler);
+			try {
+				channel.configureBlocking(false);
+				c.setKey(channel.register(selector, SelectionKey.OP_READ, c));
+				connectionCount.incrementAndGet();
+				c.outbound.write(greeting);
+				c.flush(literalChunk);
+			} catch (IOException e) {
+				log.debug("Failed to register new connection.", e);
+				close(c);
+			}
+		}
+	}
+
+	private void handle(SelectionKey key) {
+
+		NioConnection c = (NioConnection) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable()) {
+				if (!c.read(pool, handler)) {
+					close(c);
+					return;
+				}
+				flush(c);
+			} else if (key.isValid() && key.isWritable()) {
+				flush(c);
+			}
+		} catch (IOException e) {
+			c.session.getLog().debug("Closing connection after I/O failure: " + e);
+			close(c);
+		} catch (RuntimeException e) {
+			c.session.getLog().error("Closing connection after unexpected failure.", e);
+			close(c);
+		}
+	}
+
+	/**
+	 * Runs the tasks posted to sessions and writes the responses of the tasks.
+	 */
+	private void runTasks() {
+
+		wakeupPending.set(false);
+		NioConnection c;
+		while ((c = notified.poll()) != null) {
+			if (!c.channel.isOpen() || c.isExecuting()) {
+				// Tasks of an executing connection are run when its batch is done.
+				continue;
+			}
+			try {
+				c.runTasks();
+				flush(c);
+			} catch (IOException e) {
+				c.session.getLog().debug("Closing connection after I/O failure: " + e);
+				close(c);
+			} catch (RuntimeException e) {
+				c.session.getLog().error("Closing connection after unexpected failure.", e);
+				close(c);
+			}
+		}
+	}
+
+	/**
+	 * Takes back the connections of which a worker executed a batch: writes the responses
+	 * (and those of tasks posted meanwhile) and finishes closing connections that were closed meanwhile.
+	 */
+	private void completeBatches() {
+
+		NioConnection c;
+		while ((c = executed.poll()) != null) {
+			try {
+				c.batchExecuted();
+				if (!c.channel.isOpen()) {
+					close(c);
+					continue;
+				}
+				c.runTasks();
+				flush(c);
+			} catch (IOException e) {
+				c.session.getLog().debug("Closing connection after I/O failure: " + e);
+				close(c);
+			} catch (RuntimeException e) {
+				c.session.getLog().error("Closing connection after unexpected failure.", e);
+				close(c);
+			}
+		}
+	}
+
+	/**
+	 * Tries again to schedule the commands of connections that waited for the scheduler's limits.
+	 */
+	private void retryWaiting() {
+
+		for (int i = waiting.size(); i > 0; i--) {
+			NioConnection c = waiting.poll();
+			if (!c.channel.isOpen()) {
+				continue;
+			}
+			try {
+				c.resume(handler);
+				flush(c);
+			} catch (IOException e) {
+				c.session.getLog().debug("Closing connection after I/O failure: " + e);
+				close(c);
+			} catch (RuntimeException e) {
+				c.session.getLog().error("Closing connection after unexpected failure.", e);
+				close(c);
+			}
+		}
+	}
+
+	/**
+	 * Gives each connection with pending pipelined commands one more turn.
+	 */
+	private void resume() {
+
+		for (int i = resumable.size(); i > 0; i--) {
+			NioConnection c = resumable.poll();
+			if (!c.channel.isOpen()) {
+				continue;
+			}
+			try {
+				c.resume(handler);
+				flush(c);
+			} catch (IOException e) {
+				c.session.getLog().debug("Closing connection after I/O failure: " + e);
+				close(c);
+			} catch (RuntimeException e) {
+				c.session.getLog().error("Closing connection after unexpected failure.", e);
+				close(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes the (batched) responses of a connection. Once all is written, the connection is closed
+	 * when its session ended, or queued for a next turn when it has pending commands.
+	 */
+	private void flush(NioConnection c) throws IOException {
+
+		if (c.flush(literalChunk)) {
+			if (c.isClosing()) {
+				close(c);
+			} else if (c.hasPendingCommands()) {
+				resumable.add(c);
+			} else if (c.isWaiting()) {
+				waiting.add(c);
+			}
+		}
+	}
+
+	private void close(NioConnection c) {
+
+		if (c.getKey() != null && c.getKey().isValid()) {
+			c.getKey().cancel();
+			connectionCount.decrementAndGet();
+		}
+		try {
+			c.channel.close();
+		} catch (IOException ignored) {
+			// closing anyway
+		}
+		if (c.isExecuting()) {
+			// The worker uses the session, it is released when the batch is done.
+			return;
+		}
+		c.release();
+		try {
+			handler.closeSession(c.session);
+			sessions.release(c.session);
+		} catch (RuntimeException e) {
+			c.session.getLog().warn("Failed to close session.", e);
+		}
+	}
+
+	private void closeAll() {
+
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof NioConnection) {
+				close((NioConnection) key.attachment());
+			}
+		}
+		SocketChannel channel;
+		while ((channel = accepted.poll()) != null) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+				// closing anyway
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+			// closing anyway
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.JimapSessionPool;
+
+/**
+ * Non-blocking server: one acceptor thread hands connections round-robin to a few
+ * {@link NioEventLoop} selector threads. Each connection owns a session and commands
+ * are decoded from pooled buffers once they are complete, so idle connections only cost
+ * a selection key and a session.
+ * <br>All complete (pipelined) commands received in one read are handled in order and their responses
+ * are written together, up to {@link ImapServerConfig#getMaxPipelinedCommands()} commands per turn.
+ * <br>With {@link ImapServerConfig#getWorkers()} commands are executed by a shared {@link CommandScheduler}
+ * instead of the event loop threads.
+ */
+public class NioImapServer implements ImapServer {
+
+	private static Logger log = LoggerFactory.getLogger(NioImapServer.class);
+
+	private final ImapServerConfig config;
+	private final ImapRequestStreamHandler handler;
+	private final AtomicInteger connectionCount = new AtomicInteger();
+
+	private ServerSocketChannel serverChannel;
+	private NioEventLoop[] loops;
+	private CommandScheduler scheduler;
+	private Thread acceptor;
+
+	public NioImapServer(ImapServerConfig config, ImapRequestStreamHandler handler) {
+		this.config = config;
+		this.handler = handler;
+	}
+
+	public synchronized void start() throws IOException {
+
+		if (serverChannel != null) {
+			throw new IllegalStateException("Server already started.");
+		}
+		BufferPool pool = new BufferPool(config.getReadBufferSize(), config.getEventLoops() * 4, true);
+		JimapSessionPool sessions = new JimapSessionPool(config.getMaxPooledSessions());
+		scheduler = (config.getWorkers() > 0 ? new CommandScheduler(config) : null);
+		loops = new NioEventLoop[config.getEventLoops()];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new NioEventLoop(config, handler, scheduler, pool, sessions, connectionCount);
+		}
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(config.getHost() == null ? new InetSocketAddress(config.getPort()) : new InetSocketAddress(config.getHost(), config.getPort()), 1024);
+		for (int i = 0; i < loops.length; i++) {
+			Thread t = new Thread(loops[i], "imap-nio-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		final ServerSocketChannel ssc = serverChannel;
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept(ssc);
+			}
+		}, "imap-nio-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("IMAP server listening on " + getLocalAddress() + " with " + loops.length + " event loop(s)"
+				+ (scheduler == null ? "." : " and " + config.getWorkers() + " worker(s)."));
+	}
+
+	private void accept(ServerSocketChannel ssc) {
+
+		int next = 0;
+		while (ssc.isOpen()) {
+			try {
+				SocketChannel channel = ssc.accept();
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				log.warn("Failed to accept connection: " + e);
+			}
+		}
+	}
+
+	public synchronized void stop() {
+
+		if (serverChannel == null) {
+			return;
+		}
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			log.debug("Failed to close server socket.", e);
+		}
+		for (NioEventLoop loop : loops) {
+			loop.stop();
+		}
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		scheduler = null;
+		serverChannel = null;
+		loops = null;
+		acceptor = null;
+	}
+
+	public synchronized InetSocketAddress getLocalAddress() {
+
+		try {
+			return (serverChannel == null ? null : (InetSocketAddress) serverChannel.getLocalAddress());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+}
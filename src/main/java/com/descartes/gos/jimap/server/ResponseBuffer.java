@@ -0,0 +1,200 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.apache.james.imap.decode.main.LiteralSink;
+import org.apache.james.imap.message.response.Literal;
+
+/**
+ * Collects response bytes for a connection until they can be written to the socket.
+ * Literals are not copied into this buffer but queued and written when the socket is writable
+ * (see {@link LiteralTransfer}), so a large FETCH does not grow the buffer to the size of the messages.
+ * <br>The backing array is allocated on first use and dropped again when it has grown
+ * large and all data was written, so idle connections hold (almost) no memory.
+ */
+class ResponseBuffer extends OutputStream implements LiteralSink {
+
+	static final int INITIAL_SIZE = 2048;
+
+	private byte[] buf;
+	private int count;
+	private int written;
+	/** Literals and the bytes written after them, waiting for the bytes in buf to be written. */
+	private ArrayDeque<Object> queued;
+	/** Bytes in buf and queued that were not yet written. */
+	private long pending;
+
+	@Override
+	public void write(int b) {
+
+		pending++;
+		if (queued != null) {
+			QueuedBytes tail = tail();
+			tail.data[tail.count++] = (byte) b;
+			return;
+		}
+		ensureCapacity(1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+
+		pending += len;
+		if (queued != null) {
+			queueBytes(b, off, len);
+			return;
+		}
+		ensureCapacity(len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Queues the literal, the literal's content is read when it is written to the socket.
+	 */
+	public void writeLiteral(Literal literal) throws IOException {
+
+		if (queued == null) {
+			queued = new ArrayDeque<Object>();
+		}
+		LiteralTransfer transfer = new LiteralTransfer(literal);
+		queued.add(transfer);
+		pending += transfer.remaining();
+	}
+
+	/**
+	 * @return the amount of bytes waiting to be written.
+	 */
+	long pending() {
+		return pending;
+	}
+
+	/**
+	 * Writes as much as possible to the channel.
+	 * @param chunk buffer for copying literals, only used during this call.
+	 * @return true when all data was written.
+	 */
+	boolean writeTo(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+
+		if (count - written > 0) {
+			int n = channel.write(ByteBuffer.wrap(buf, written, count - written));
+			written += n;
+			pending -= n;
+			if (count - written > 0) {
+				return false;
+			}
+		}
+		count = written = 0;
+		if (buf != null && buf.length > INITIAL_SIZE) {
+			buf = null;
+		}
+		return (queued == null || writeQueued(channel, chunk));
+	}
+
+	private boolean writeQueued(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+
+		Object head;
+		while ((head = queued.peek()) != null) {
+			if (head instanceof LiteralTransfer) {
+				LiteralTransfer transfer = (LiteralTransfer) head;
+				long remaining = transfer.remaining();
+				boolean done = transfer.writeTo(channel, chunk);
+				pending -= remaining - transfer.remaining();
+				if (!done) {
+					return false;
+				}
+			} else {
+				QueuedBytes bytes = (QueuedBytes) head;
+				int n = channel.write(ByteBuffer.wrap(bytes.data, bytes.written, bytes.pending()));
+				bytes.written += n;
+				pending -= n;
+				if (bytes.pending() > 0) {
+					return false;
+				}
+			}
+			queued.poll();
+		}
+		queued = null;
+		return true;
+	}
+
+	/**
+	 * Closes the streams of queued literals, called when the connection is closed.
+	 */
+	@Override
+	public void close() {
+
+		if (queued != null) {
+			for (Object o : queued) {
+				if (o instanceof LiteralTransfer) {
+					((LiteralTransfer) o).close();
+				}
+			}
+			queued = null;
+		}
+		buf = null;
+		count = written = 0;
+		pending = 0;
+	}
+
+	/**
+	 * @return the last queued bytes with room for at least one more byte.
+	 */
+	private QueuedBytes tail() {
+
+		Object last = queued.peekLast();
+		if (last instanceof QueuedBytes && ((QueuedBytes) last).count < ((QueuedBytes) last).data.length) {
+			return (QueuedBytes) last;
+		}
+		QueuedBytes b = new QueuedBytes();
+		queued.add(b);
+		return b;
+	}
+
+	private void queueBytes(byte[] b, int off, int len) {
+
+		while (len > 0) {
+			QueuedBytes tail = tail();
+			int n = Math.min(len, tail.data.length - tail.count);
+			System.arraycopy(b, off, tail.data, tail.count, n);
+			tail.count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void ensureCapacity(int extra) {
+
+		if (buf == null) {
+			buf = new byte[Math.max(INITIAL_SIZE, extra)];
+		} else if (count + extra > buf.length) {
+			if (written > 0) {
+				System.arraycopy(buf, written, buf, 0, count - written);
+				count -= written;
+				written = 0;
+			}
+			if (count + extra > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+			}
+		}
+	}
+
+
+	private static class QueuedBytes {
+
+		final byte[] data = new byte[INITIAL_SIZE];
+		int count;
+		int written;
+
+		int pending() {
+			return count - written;
+		}
+	}
+
+}
@@ -0,0 +1,321 @@
+package com.descartes.gos.jimap.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.james.imap.api.process.ImapLineHandler;
+import org.apache.james.imap.decode.ImapRequestBufferedLineReader;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.imap.decode.main.OutputStreamImapResponseWriter;
+import org.apache.james.protocols.imap.DecodingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.JimapSessionPool;
+import com.descartes.gos.jimap.metrics.ImapMetrics;
+
+/**
+ * Blocking server that runs the {@link ImapRequestStreamHandler} request loop for each connection
+ * on its own thread, reading commands via one {@link ImapRequestBufferedLineReader} per connection.
+ * Responses are flushed when no more (pipelined) commands are buffered, so the handler can be set
+ * to {@link ImapRequestStreamHandler#setCoalesceResponses(boolean) coalesce responses}. Virtual threads are used when the Java runtime
+ * supports them (Java 21+), else this falls back to (daemon) platform threads which limits
+ * the amount of connections that can be served.
+ * <br>Once a client started COMPRESS=DEFLATE, the connection's streams are replaced by compressing streams.
+ * <br>Tasks posted to sessions (IDLE updates) are run by a shared pool of notifier threads while the connection's thread
+ * waits for input: a lock per connection is held while a (buffered) command is handled and while tasks run.
+ * The lock is released while waiting for socket input, also for a literal or the rest of a long command line.
+ * It is a {@link ReentrantLock} since a virtual thread that blocks within <code>synchronized</code> pins its carrier thread.
+ */
+public class VirtualThreadImapServer implements ImapServer {
+
+	private static Logger log = LoggerFactory.getLogger(VirtualThreadImapServer.class);
+
+	private final ImapServerConfig config;
+	private final ImapRequestStreamHandler handler;
+	private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+	private final byte[] greeting;
+	private final JimapSessionPool sessions;
+	private final BufferPool literalChunks = new BufferPool(OutputStreamImapResponseWriter.COPY_BUFFER_SIZE, 64, false);
+
+	private ServerSocketChannel serverChannel;
+	private ThreadFactory threadFactory;
+	private ExecutorService notifier;
+
+	public VirtualThreadImapServer(ImapServerConfig config, ImapRequestStreamHandler handler) {
+
+		this.config = config;
+		this.handler = handler;
+		this.greeting = config.getGreetingBytes();
+		this.sessions = new JimapSessionPool(config.getMaxPooledSessions());
+	}
+
+	public synchronized void start() throws IOException {
+
+		if (serverChannel != null) {
+			throw new IllegalStateException("Server already started.");
+		}
+		threadFactory = createThreadFactory();
+		notifier = Executors.newCachedThreadPool(threadFactory);
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(config.getHost() == null ? new InetSocketAddress(config.getPort()) : new InetSocketAddress(config.getHost(), config.getPort()), 1024);
+		final ServerSocketChannel ssc = serverChannel;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept(ssc);
+			}
+		}, "imap-vt-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("IMAP server listening on " + getLocalAddress() + " with a thread per connection.");
+	}
+
+	private void accept(ServerSocketChannel ssc) {
+
+		while (ssc.isOpen()) {
+			try {
+				final SocketChannel channel = ssc.accept();
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				connections.add(channel);
+				threadFactory.newThread(new Runnable() {
+					public void run() {
+						serve(channel);
+					}
+				}).start();
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				log.warn("Failed to accept connection: " + e);
+			}
+		}
+	}
+
+	private void serve(SocketChannel channel) {
+
+		final JimapSession session = sessions.acquire();
+		session.setCompressionSupported(config.isCompression());
+		session.bindLogContext();
+		try {
+			final ChannelOutputStream out = new ChannelOutputStream(channel, config.getReadBufferSize(), literalChunks);
+			final ReentrantLock lock = new ReentrantLock();
+			InputStream socketIn = new UnlockingInputStream(Channels.newInputStream(channel), lock);
+			ImapRequestBufferedLineReader in = new ImapRequestBufferedLineReader(socketIn, out, config.getReadBufferSize());
+			out.write(greeting);
+			out.flush();
+			final long sessionId = session.getId();
+			session.setTaskScheduler(new JimapSession.TaskScheduler() {
+				public void tasksPosted(final JimapSession s) {
+					notifier.execute(new Runnable() {
+						public void run() {
+							runTasks(s, sessionId, out, lock);
+						}
+					});
+				}
+			});
+			ImapMetrics metrics = handler.getMetrics();
+			long bytesRead = 0L;
+			int pipelined = 0;
+			boolean more;
+			do {
+				in.awaitLine();
+				lock.lock();
+				try {
+					ImapLineHandler lineHandler = session.getLineHandler();
+					if (lineHandler == null) {
+						more = handler.handleRequest(in, out, session);
+					} else {
+						more = handler.handleLine(in, out, session, lineHandler);
+					}
+					if (more && session.isCompressionStartRequested()) {
+						startCompression(session, in, socketIn, out);
+					}
+					// Responses to pipelined commands are sent together.
+					if (!more || !in.hasBufferedInput() || ++pipelined >= config.getMaxPipelinedCommands()) {
+						out.flush();
+						pipelined = 0;
+					}
+				} finally {
+					lock.unlock();
+				}
+				if (metrics != null) {
+					metrics.received(in.getBytesRead() - bytesRead);
+					bytesRead = in.getBytesRead();
+				}
+			} while (more);
+		} catch (IOException e) {
+			session.getLog().debug("Closing connection after I/O failure: " + e);
+		} catch (DecodingException e) {
+			session.getLog().debug("Closing connection after I/O failure: " + e);
+		} catch (RuntimeException e) {
+			session.getLog().error("Closing connection after unexpected failure.", e);
+		} finally {
+			connections.remove(channel);
+			close(channel);
+			handler.closeSession(session);
+			session.unbindLogContext();
+			sessions.release(session);
+		}
+	}
+
+	/**
+	 * Runs the tasks posted to a session on a notifier thread and writes their responses.
+	 * Does nothing when the session was recycled for another connection.
+	 */
+	private static void runTasks(JimapSession session, long sessionId, ChannelOutputStream out, ReentrantLock lock) {
+
+		lock.lock();
+		try {
+			if (session.getId() != sessionId) {
+				return;
+			}
+			session.bindLogContext();
+			try {
+				if (session.runTasks()) {
+					out.flush();
+				}
+			} catch (IOException e) {
+				session.getLog().debug("Failed to write responses of session tasks: " + e);
+			} finally {
+				session.unbindLogContext();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the OK response to COMPRESS uncompressed and replaces the streams.
+	 * Data received after the COMPRESS command is compressed data.
+	 */
+	private void startCompression(JimapSession session, ImapRequestBufferedLineReader in, InputStream socketIn, ChannelOutputStream out) throws IOException {
+
+		Deflater deflater = session.getDeflater();
+		deflater.setLevel(config.getCompressionLevel());
+		out.startCompression(deflater, config.getCompressionBufferSize());
+		InputStream compressed = new SequenceInputStream(new ByteArrayInputStream(in.takeBufferedInput()), socketIn);
+		in.setInput(new InflaterInputStream(compressed, session.getInflater(), config.getReadBufferSize()));
+	}
+
+	public synchronized void stop() {
+
+		if (serverChannel == null) {
+			return;
+		}
+		close(serverChannel);
+		for (SocketChannel channel : connections) {
+			close(channel);
+		}
+		notifier.shutdown();
+		serverChannel = null;
+	}
+
+	public synchronized InetSocketAddress getLocalAddress() {
+		try {
+			return (serverChannel == null ? null : (InetSocketAddress) serverChannel.getLocalAddress());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	private static void close(Closeable c) {
+
+		try {
+			c.close();
+		} catch (IOException ignored) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * Uses <code>Thread.ofVirtual().name("imap-vt-", 0).factory()</code> via reflection
+	 * so that this class also compiles and runs on Java runtimes without virtual threads.
+	 */
+	static ThreadFactory createThreadFactory() {
+
+		try {
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "imap-vt-", 0L);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			log.warn("Virtual threads are not available in this Java runtime, using platform threads.");
+		}
+		final AtomicLong threadCount = new AtomicLong();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "imap-pt-" + threadCount.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Socket input that releases the connection's lock while reading, so that session tasks can write
+	 * their responses while a command waits for the rest of its input.
+	 */
+	private static class UnlockingInputStream extends FilterInputStream {
+
+		private final ReentrantLock lock;
+
+		UnlockingInputStream(InputStream in, ReentrantLock lock) {
+
+			super(in);
+			this.lock = lock;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			if (!lock.isHeldByCurrentThread()) {
+				return in.read();
+			}
+			lock.unlock();
+			try {
+				return in.read();
+			} finally {
+				lock.lock();
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (!lock.isHeldByCurrentThread()) {
+				return in.read(b, off, len);
+			}
+			lock.unlock();
+			try {
+				return in.read(b, off, len);
+			} finally {
+				lock.lock();
+			}
+		}
+	}
+
+}
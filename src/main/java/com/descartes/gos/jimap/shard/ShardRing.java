@@ -0,0 +1,84 @@
+package com.descartes.gos.jimap.shard;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hash of user names over a number of shards: each shard owns {@link #POINTS_PER_SHARD} points on a ring of
+ * 64-bit hashes and a user belongs to the shard of the first point at or after the hash of the user name.
+ * Adding a shard moves only the users of the points it takes over (about 1 in N users).
+ * <br>Immutable and thread-safe, the same amount of shards always gives the same ring.
+ */
+public class ShardRing {
+
+	static final int POINTS_PER_SHARD = 128;
+
+	private final int shards;
+	/** Ascending hashes of the points. */
+	private final long[] points;
+	/** Shard per point. */
+	private final int[] owners;
+
+	public ShardRing(int shards) {
+
+		if (shards < 1) {
+			throw new IllegalArgumentException("Amount of shards must be at least 1: " + shards);
+		}
+		this.shards = shards;
+		long[] hashes = new long[shards * POINTS_PER_SHARD];
+		for (int shard = 0; shard < shards; shard++) {
+			for (int point = 0; point < POINTS_PER_SHARD; point++) {
+				hashes[shard * POINTS_PER_SHARD + point] = hash("shard-" + shard + "-" + point);
+			}
+		}
+		long[] sorted = hashes.clone();
+		Arrays.sort(sorted);
+		points = sorted;
+		owners = new int[sorted.length];
+		for (int i = 0; i < hashes.length; i++) {
+			int index = Arrays.binarySearch(sorted, hashes[i]);
+			owners[index] = i / POINTS_PER_SHARD;
+		}
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * @param user null for the first shard.
+	 * @return index of the shard of the user.
+	 */
+	public int shard(String user) {
+
+		if (user == null || shards == 1) {
+			return 0;
+		}
+		int index = Arrays.binarySearch(points, hash(user));
+		if (index < 0) {
+			index = -index - 1;
+			if (index == points.length) {
+				index = 0;
+			}
+		}
+		return owners[index];
+	}
+
+	/**
+	 * FNV-1a over the characters, mixed with the MurmurHash3 finalizer so that similar names spread over the ring.
+	 */
+	static long hash(String s) {
+
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.descartes.gos.jimap.shard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.BadCredentialsException;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.MailboxNotFoundException;
+import org.apache.james.mailbox.model.MailboxMetaData;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MailboxQuery;
+import org.apache.james.mailbox.model.MessageRange;
+import org.slf4j.Logger;
+
+import com.descartes.gos.jimap.metrics.ShardMetrics;
+
+/**
+ * Facade over independent mailbox managers (each with its own mappers, locks and listeners)
+ * that routes every user to one manager via a {@link ShardRing}, so that users on different shards do not contend.
+ * <br>All calls of a session go to the shard of the session user, including calls for mailboxes
+ * of other users or shared mailboxes: the mappers of a session are cached in the session
+ * and belong to one shard. Mailboxes of other users are therefore only visible to users on the same shard.
+ * With more than one shard, mailboxes of users on another shard and mailboxes without a user (shared mailboxes) cannot be
+ * opened, created, renamed, deleted or copied to: the same path would exist on several shards, and listeners
+ * that keep state per mailbox path (e.g. change logs) would mix up their state.
+ * <br>Global listeners are registered with all shards.
+ */
+public class ShardedMailboxManager implements MailboxManager {
+
+	private static final String REQUEST_START = ShardedMailboxManager.class.getName() + ".requestStart";
+
+	private final List<MailboxManager> shards;
+	private final ShardRing ring;
+	private final ShardMetrics metrics;
+
+	/**
+	 * @param shards the managers, the order must be the same each time a (persistent) store is opened.
+	 */
+	public ShardedMailboxManager(List<MailboxManager> shards) {
+		this(shards, new ShardMetrics(shards.size()));
+	}
+
+	public ShardedMailboxManager(List<MailboxManager> shards, ShardMetrics metrics) {
+
+		this.shards = new ArrayList<MailboxManager>(shards);
+		this.ring = new ShardRing(shards.size());
+		this.metrics = metrics;
+	}
+
+	public ShardRing getRing() {
+		return ring;
+	}
+
+	public ShardMetrics getMetrics() {
+		return metrics;
+	}
+
+	public List<MailboxManager> getShards() {
+		return shards;
+	}
+
+	/**
+	 * @return index of the shard of the user of the session.
+	 */
+	public int shard(MailboxSession session) {
+		return ring.shard(session.getUser() == null ? null : session.getUser().getUserName());
+	}
+
+	private MailboxManager manager(MailboxSession session) {
+		return shards.get(shard(session));
+	}
+
+	/**
+	 * @return the manager of the session's shard.
+	 * @throws MailboxNotFoundException when the mailbox does not belong to a user of that shard.
+	 */
+	private MailboxManager manager(MailboxPath path, MailboxSession session) throws MailboxNotFoundException {
+
+		int shard = shard(session);
+		if (shards.size() > 1 && (path.getUser() == null || ring.shard(path.getUser()) != shard)) {
+			throw new MailboxNotFoundException(path);
+		}
+		return shards.get(shard);
+	}
+
+	public void startProcessingRequest(MailboxSession session) {
+
+		session.getAttributes().put(REQUEST_START, System.nanoTime());
+		manager(session).startProcessingRequest(session);
+	}
+
+	public void endProcessingRequest(MailboxSession session) {
+
+		int shard = shard(session);
+		shards.get(shard).endProcessingRequest(session);
+		Object start = session.getAttributes().remove(REQUEST_START);
+		if (start instanceof Long) {
+			metrics.request(shard, System.nanoTime() - (Long) start);
+		}
+	}
+
+	public char getDelimiter() {
+		return shards.get(0).getDelimiter();
+	}
+
+	public MailboxSession createSystemSession(String userName, Logger log) throws BadCredentialsException, MailboxException {
+		return shards.get(ring.shard(userName)).createSystemSession(userName, log);
+	}
+
+	public MailboxSession login(String userid, String passwd, Logger log) throws BadCredentialsException, MailboxException {
+
+		int shard = ring.shard(userid);
+		MailboxSession session = shards.get(shard).login(userid, passwd, log);
+		metrics.login(shard);
+		return session;
+	}
+
+	public void logout(MailboxSession session, boolean force) throws MailboxException {
+
+		int shard = shard(session);
+		shards.get(shard).logout(session, force);
+		if (session.getType() == MailboxSession.SessionType.User) {
+			metrics.logout(shard);
+		}
+	}
+
+	public MessageManager getMailbox(MailboxPath mailboxPath, MailboxSession session) throws MailboxException {
+		return manager(mailboxPath, session).getMailbox(mailboxPath, session);
+	}
+
+	public void createMailbox(MailboxPath mailboxPath, MailboxSession session) throws MailboxException {
+		manager(mailboxPath, session).createMailbox(mailboxPath, session);
+	}
+
+	public void deleteMailbox(MailboxPath mailboxPath, MailboxSession session) throws MailboxException {
+		manager(mailboxPath, session).deleteMailbox(mailboxPath, session);
+	}
+
+	public void renameMailbox(MailboxPath from, MailboxPath to, MailboxSession session) throws MailboxException {
+		manager(from, session);
+		manager(to, session).renameMailbox(from, to, session);
+	}
+
+	public List<MessageRange> copyMessages(MessageRange set, MailboxPath from, MailboxPath to, MailboxSession session) throws MailboxException {
+		manager(from, session);
+		return manager(to, session).copyMessages(set, from, to, session);
+	}
+
+	public List<MessageRange> moveMessages(MessageRange set, MailboxPath from, MailboxPath to, MailboxSession session) throws MailboxException {
+		manager(from, session);
+		return manager(to, session).moveMessages(set, from, to, session);
+	}
+
+	public List<MailboxMetaData> search(MailboxQuery expression, MailboxSession session) throws MailboxException {
+		return manager(session).search(expression, session);
+	}
+
+	public boolean mailboxExists(MailboxPath mailboxPath, MailboxSession session) throws MailboxException {
+		return manager(session).mailboxExists(mailboxPath, session);
+	}
+
+	public List<MailboxPath> list(MailboxSession session) throws MailboxException {
+		return manager(session).list(session);
+	}
+
+	public void addListener(MailboxPath path, MailboxListener listener, MailboxSession session) throws MailboxException {
+		manager(session).addListener(path, listener, session);
+	}
+
+	public void removeListener(MailboxPath mailboxPath, MailboxListener listener, MailboxSession session) throws MailboxException {
+		manager(session).removeListener(mailboxPath, listener, session);
+	}
+
+	public void addGlobalListener(MailboxListener listener, MailboxSession session) throws MailboxException {
+
+		for (MailboxManager shard : shards) {
+			shard.addGlobalListener(listener, session);
+		}
+	}
+
+	public void removeGlobalListener(MailboxListener listener, MailboxSession session) throws MailboxException {
+
+		for (MailboxManager shard : shards) {
+			shard.removeGlobalListener(listener, session);
+		}
+	}
+
+}
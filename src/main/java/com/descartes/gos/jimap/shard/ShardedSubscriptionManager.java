@@ -0,0 +1,52 @@
+package com.descartes.gos.jimap.shard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.SubscriptionManager;
+import org.apache.james.mailbox.exception.SubscriptionException;
+
+/**
+ * Routes subscriptions to the shard of the session user, like {@link ShardedMailboxManager}.
+ */
+public class ShardedSubscriptionManager implements SubscriptionManager {
+
+	private final List<SubscriptionManager> shards;
+	private final ShardRing ring;
+
+	/**
+	 * @param shards the managers in the same order as the mailbox managers of the {@link ShardedMailboxManager}.
+	 */
+	public ShardedSubscriptionManager(List<SubscriptionManager> shards) {
+
+		this.shards = new ArrayList<SubscriptionManager>(shards);
+		this.ring = new ShardRing(shards.size());
+	}
+
+	private SubscriptionManager manager(MailboxSession session) {
+		return shards.get(ring.shard(session.getUser() == null ? null : session.getUser().getUserName()));
+	}
+
+	public void subscribe(MailboxSession session, String mailbox) throws SubscriptionException {
+		manager(session).subscribe(session, mailbox);
+	}
+
+	public Collection<String> subscriptions(MailboxSession session) throws SubscriptionException {
+		return manager(session).subscriptions(session);
+	}
+
+	public void unsubscribe(MailboxSession session, String mailbox) throws SubscriptionException {
+		manager(session).unsubscribe(session, mailbox);
+	}
+
+	public void startProcessingRequest(MailboxSession session) {
+		manager(session).startProcessingRequest(session);
+	}
+
+	public void endProcessingRequest(MailboxSession session) {
+		manager(session).endProcessingRequest(session);
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of index changes. Each record is framed as
+ * <code>length (int), CRC32 (int), type (byte), payload</code>
+ * so that a torn record at the end (after a crash) is detected and cut off when replaying.
+ */
+class IndexLog {
+
+	private static Logger log = LoggerFactory.getLogger(IndexLog.class);
+
+	private static final int HEADER_SIZE = 9;
+
+	/**
+	 * Receives the records of a log when replaying.
+	 */
+	interface Visitor {
+		void record(byte type, DataInputStream payload) throws IOException;
+	}
+
+	final long generation;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	private final CRC32 crc = new CRC32();
+	private long position;
+
+	IndexLog(File directory, long generation) throws IOException {
+
+		this.generation = generation;
+		this.file = new RandomAccessFile(fileName(directory, generation), "rw");
+		this.channel = file.getChannel();
+		this.position = channel.size();
+		channel.position(position);
+	}
+
+	static File fileName(File directory, long generation) {
+		return new File(directory, String.format("index-%08d.log", generation));
+	}
+
+	long position() {
+		return position;
+	}
+
+	/**
+	 * Appends a record, not thread-safe (the store serializes writes).
+	 */
+	void append(byte type, byte[] payload, int length) throws IOException {
+
+		crc.reset();
+		crc.update(type);
+		crc.update(payload, 0, length);
+		header.clear();
+		header.putInt(length).putInt((int) crc.getValue()).put(type).flip();
+		ByteBuffer[] record = new ByteBuffer[] { header, ByteBuffer.wrap(payload, 0, length) };
+		long size = HEADER_SIZE + length;
+		long written = 0;
+		while (written < size) {
+			written += channel.write(record);
+		}
+		position += size;
+	}
+
+	/**
+	 * Replays all complete records from the given position and truncates the log after the last valid record.
+	 * @return amount of replayed records.
+	 */
+	int replay(long from, Visitor visitor) throws IOException {
+
+		int records = 0;
+		long p = from;
+		long size = channel.size();
+		ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+		while (p + HEADER_SIZE <= size) {
+			head.clear();
+			readFully(head, p);
+			head.flip();
+			int length = head.getInt();
+			int checksum = head.getInt();
+			byte type = head.get();
+			if (length < 0 || p + HEADER_SIZE + length > size) {
+				break;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(payload, p + HEADER_SIZE);
+			crc.reset();
+			crc.update(type);
+			crc.update(payload.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			visitor.record(type, new DataInputStream(new ByteArrayInputStream(payload.array())));
+			records++;
+			p += HEADER_SIZE + length;
+		}
+		if (p < size) {
+			log.warn("Index log " + generation + " has " + (size - p) + " bytes of incomplete records at the end, truncating.");
+			channel.truncate(p);
+		}
+		channel.position(p);
+		position = p;
+		return records;
+	}
+
+	private void readFully(ByteBuffer b, long at) throws IOException {
+
+		while (b.hasRemaining()) {
+			if (channel.read(b, at + b.position()) < 0) {
+				throw new IOException("Unexpected end of index log.");
+			}
+		}
+	}
+
+	void force() throws IOException {
+		channel.force(false);
+	}
+
+	void close() throws IOException {
+
+		channel.force(false);
+		file.close();
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.descartes.gos.jimap.store;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.store.mail.ModSeqProvider;
+import org.apache.james.mailbox.store.mail.UidProvider;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+
+/**
+ * UID and mod-sequence counters of the mailboxes in a {@link MappedStore}.
+ * Counters are stored with the messages that use them.
+ */
+public class MappedCounters implements UidProvider<Long>, ModSeqProvider<Long> {
+
+	private final MappedStore store;
+
+	public MappedCounters(MappedStore store) {
+		this.store = store;
+	}
+
+	public long nextUid(MailboxSession session, Mailbox<Long> mailbox) throws MailboxException {
+		return store.mailbox(mailbox.getMailboxId()).lastUid.incrementAndGet();
+	}
+
+	public long lastUid(MailboxSession session, Mailbox<Long> mailbox) throws MailboxException {
+		return store.mailbox(mailbox.getMailboxId()).lastUid.get();
+	}
+
+	public long nextModSeq(MailboxSession session, Mailbox<Long> mailbox) throws MailboxException {
+		return store.mailbox(mailbox.getMailboxId()).highestModSeq.incrementAndGet();
+	}
+
+	public long highestModSeq(MailboxSession session, Mailbox<Long> mailbox) throws MailboxException {
+		return store.mailbox(mailbox.getMailboxId()).highestModSeq.get();
+	}
+
+}
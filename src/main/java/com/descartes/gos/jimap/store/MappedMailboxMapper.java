@@ -0,0 +1,114 @@
+package com.descartes.gos.jimap.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.MailboxNotFoundException;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.mail.MailboxMapper;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
+import org.apache.james.mailbox.store.transaction.NonTransactionalMapper;
+
+/**
+ * Mailbox mapper of a {@link MappedStore}.
+ * Returned mailboxes are copies, changes are stored via {@link #save(Mailbox)}.
+ */
+public class MappedMailboxMapper extends NonTransactionalMapper implements MailboxMapper<Long> {
+
+	private final MappedStore store;
+
+	public MappedMailboxMapper(MappedStore store) {
+		this.store = store;
+	}
+
+	private static Mailbox<Long> toMailbox(MappedStore.MailboxData data) {
+
+		SimpleMailbox<Long> mailbox = new SimpleMailbox<Long>(new MailboxPath(data.namespace, data.user, data.name), data.uidValidity);
+		mailbox.setMailboxId(data.id);
+		return mailbox;
+	}
+
+	private static boolean equals(String s1, String s2) {
+		return (s1 == null ? s2 == null : s1.equals(s2));
+	}
+
+	private static boolean sameUser(MappedStore.MailboxData data, String namespace, String user) {
+		return equals(data.user, user) && equals(data.namespace, namespace);
+	}
+
+	public void save(Mailbox<Long> mailbox) throws MailboxException {
+
+		MappedStore.MailboxData data = store.saveMailbox(mailbox);
+		if (mailbox.getMailboxId() == null) {
+			((SimpleMailbox<Long>) mailbox).setMailboxId(data.id);
+		}
+		store.commit();
+	}
+
+	public void delete(Mailbox<Long> mailbox) throws MailboxException {
+
+		store.deleteMailbox(mailbox.getMailboxId());
+		store.commit();
+	}
+
+	public Mailbox<Long> findMailboxByPath(MailboxPath path) throws MailboxException, MailboxNotFoundException {
+
+		for (MappedStore.MailboxData data : store.mailboxes()) {
+			if (data.name.equals(path.getName()) && sameUser(data, path.getNamespace(), path.getUser())) {
+				return toMailbox(data);
+			}
+		}
+		throw new MailboxNotFoundException(path);
+	}
+
+	/**
+	 * Matches names like the in-memory store: <code>%</code> matches any characters.
+	 */
+	public List<Mailbox<Long>> findMailboxWithPathLike(MailboxPath path) throws MailboxException {
+
+		String name = path.getName();
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int i = name.indexOf('%'); i >= 0; i = name.indexOf('%', start)) {
+			regex.append(Pattern.quote(name.substring(start, i))).append(".*");
+			start = i + 1;
+		}
+		regex.append(Pattern.quote(name.substring(start)));
+		Pattern pattern = Pattern.compile(regex.toString());
+		List<Mailbox<Long>> found = new ArrayList<Mailbox<Long>>();
+		for (MappedStore.MailboxData data : store.mailboxes()) {
+			if (pattern.matcher(data.name).matches() && sameUser(data, path.getNamespace(), path.getUser())) {
+				found.add(toMailbox(data));
+			}
+		}
+		return found;
+	}
+
+	public boolean hasChildren(Mailbox<Long> mailbox, char delimiter) throws MailboxException, MailboxNotFoundException {
+
+		String prefix = mailbox.getName() + delimiter;
+		for (MappedStore.MailboxData data : store.mailboxes()) {
+			if (data.name.startsWith(prefix) && sameUser(data, mailbox.getNamespace(), mailbox.getUser())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public List<Mailbox<Long>> list() throws MailboxException {
+
+		List<Mailbox<Long>> mailboxes = new ArrayList<Mailbox<Long>>();
+		for (MappedStore.MailboxData data : store.mailboxes()) {
+			mailboxes.add(toMailbox(data));
+		}
+		return mailboxes;
+	}
+
+	public void endRequest() {
+		// NO-OP
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.SubscriptionException;
+import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
+import org.apache.james.mailbox.store.mail.MailboxMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.user.SubscriptionMapper;
+
+/**
+ * Durable replacement for the <code>InMemoryMailboxSessionMapperFactory</code>,
+ * storing mailboxes in a {@link MappedStore}.
+ */
+public class MappedMailboxSessionMapperFactory extends MailboxSessionMapperFactory<Long> implements Closeable {
+
+	private final MappedStore store;
+	private final MappedCounters counters;
+
+	/**
+	 * Opens (or creates) a store in the given directory.
+	 */
+	public MappedMailboxSessionMapperFactory(File directory) throws IOException {
+		this(new MappedStore(directory));
+	}
+
+	public MappedMailboxSessionMapperFactory(MappedStore store) {
+
+		this.store = store;
+		this.counters = new MappedCounters(store);
+	}
+
+	public MappedStore getStore() {
+		return store;
+	}
+
+	@Override
+	public MessageMapper<Long> createMessageMapper(MailboxSession session) throws MailboxException {
+		return new MappedMessageMapper(session, store, counters);
+	}
+
+	@Override
+	public MailboxMapper<Long> createMailboxMapper(MailboxSession session) throws MailboxException {
+		return new MappedMailboxMapper(store);
+	}
+
+	@Override
+	public SubscriptionMapper createSubscriptionMapper(MailboxSession session) throws SubscriptionException {
+		return new MappedSubscriptionMapper(store);
+	}
+
+	/**
+	 * Closes the store (writes a checkpoint).
+	 */
+	public void close() throws IOException {
+		store.close();
+	}
+
+}
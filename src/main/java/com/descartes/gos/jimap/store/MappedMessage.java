@@ -0,0 +1,149 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.message.response.ByteBufferInputStream;
+import org.apache.james.mailbox.store.mail.model.AbstractMessage;
+import org.apache.james.mailbox.store.mail.model.Property;
+
+/**
+ * A message of a {@link MappedStore}, the content is read from the memory-mapped segment
+ * (and written to sockets without copying, see {@link ByteBufferInputStream}).
+ * UID, mod-sequence and flags can be changed by the mailbox store, changes are stored via {@link MappedMessageMapper}.
+ */
+public class MappedMessage extends AbstractMessage<Long> {
+
+	private final MappedStore store;
+	private final long mailboxId;
+	final MessageEntry entry;
+	private long uid;
+	private long modSeq;
+	private int flags;
+	private String[] userFlags;
+
+	MappedMessage(MappedStore store, long mailboxId, MessageEntry entry) {
+
+		this.store = store;
+		this.mailboxId = mailboxId;
+		this.entry = entry;
+		this.uid = entry.uid;
+		this.modSeq = entry.modSeq;
+		this.flags = entry.flags;
+		this.userFlags = entry.userFlags;
+	}
+
+	public Date getInternalDate() {
+		return new Date(entry.internalDate);
+	}
+
+	public Long getMailboxId() {
+		return mailboxId;
+	}
+
+	public long getUid() {
+		return uid;
+	}
+
+	public void setUid(long uid) {
+		this.uid = uid;
+	}
+
+	public long getModSeq() {
+		return modSeq;
+	}
+
+	public void setModSeq(long modSeq) {
+		this.modSeq = modSeq;
+	}
+
+	public boolean isAnswered() {
+		return (flags & MessageEntry.ANSWERED) != 0;
+	}
+
+	public boolean isDeleted() {
+		return (flags & MessageEntry.DELETED) != 0;
+	}
+
+	public boolean isDraft() {
+		return (flags & MessageEntry.DRAFT) != 0;
+	}
+
+	public boolean isFlagged() {
+		return (flags & MessageEntry.FLAGGED) != 0;
+	}
+
+	public boolean isRecent() {
+		return (flags & MessageEntry.RECENT) != 0;
+	}
+
+	public boolean isSeen() {
+		return (flags & MessageEntry.SEEN) != 0;
+	}
+
+	public void setFlags(Flags flags) {
+
+		this.flags = MessageEntry.toBits(flags);
+		this.userFlags = flags.getUserFlags();
+	}
+
+	@Override
+	protected String[] createUserFlags() {
+		return userFlags.clone();
+	}
+
+	@Override
+	protected int getBodyStartOctet() {
+		return entry.bodyStart;
+	}
+
+	public long getFullContentOctets() {
+		return entry.length;
+	}
+
+	public Long getTextualLineCount() {
+		return entry.textualLineCount;
+	}
+
+	public String getMediaType() {
+		return entry.mediaType;
+	}
+
+	public String getSubType() {
+		return entry.subType;
+	}
+
+	public List<Property> getProperties() {
+		return entry.properties;
+	}
+
+	@Override
+	public InputStream getFullContent() throws IOException {
+		return new ByteBufferInputStream(store.content(entry));
+	}
+
+	public InputStream getHeaderContent() throws IOException {
+
+		ByteBuffer content = store.content(entry);
+		content.limit(entry.bodyStart);
+		return new ByteBufferInputStream(content);
+	}
+
+	public InputStream getBodyContent() throws IOException {
+
+		ByteBuffer content = store.content(entry);
+		content.position(entry.bodyStart);
+		return new ByteBufferInputStream(content.slice());
+	}
+
+	@Override
+	public String toString() {
+		return "MappedMessage[mailbox=" + mailboxId + ", uid=" + uid + ", modSeq=" + modSeq + ", size=" + entry.length + "]";
+	}
+
+}
@@ -0,0 +1,201 @@
+package com.descartes.gos.jimap.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.SimpleMessageMetaData;
+import org.apache.james.mailbox.store.mail.AbstractMessageMapper;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+
+/**
+ * Message mapper of a {@link MappedStore}.
+ * Messages are looked up in the (in-memory) index, contents are not read until requested.
+ */
+public class MappedMessageMapper extends AbstractMessageMapper<Long> {
+
+	private final MappedStore store;
+
+	public MappedMessageMapper(MailboxSession session, MappedStore store, MappedCounters counters) {
+
+		super(session, counters, counters);
+		this.store = store;
+	}
+
+	/**
+	 * @return the messages of a mailbox in the given UID range, in UID order.
+	 */
+	private Collection<MessageEntry> range(MappedStore.MailboxData data, MessageRange set) {
+
+		switch (set.getType()) {
+		case ONE:
+			MessageEntry entry = data.messages.get(set.getUidFrom());
+			return (entry == null ? new ArrayList<MessageEntry>(0) : Collections.singletonList(entry));
+		case FROM:
+			return data.messages.tailMap(set.getUidFrom(), true).values();
+		case RANGE:
+			if (set.getUidFrom() > set.getUidTo()) {
+				return new ArrayList<MessageEntry>(0);
+			}
+			return data.messages.subMap(set.getUidFrom(), true, set.getUidTo(), true).values();
+		default:
+			return data.messages.values();
+		}
+	}
+
+	public Iterator<Message<Long>> findInMailbox(Mailbox<Long> mailbox, MessageRange set, FetchType type, int max) throws MailboxException {
+
+		long mailboxId = mailbox.getMailboxId();
+		MappedStore.MailboxData data = store.mailbox(mailboxId);
+		List<Message<Long>> messages = new ArrayList<Message<Long>>();
+		for (MessageEntry entry : range(data, set)) {
+			messages.add(new MappedMessage(store, mailboxId, entry));
+			if (max > 0 && messages.size() >= max) {
+				break;
+			}
+		}
+		return messages.iterator();
+	}
+
+	public Map<Long, MessageMetaData> expungeMarkedForDeletionInMailbox(Mailbox<Long> mailbox, MessageRange set) throws MailboxException {
+
+		long mailboxId = mailbox.getMailboxId();
+		MappedStore.MailboxData data = store.mailbox(mailboxId);
+		Map<Long, MessageMetaData> expunged = new HashMap<Long, MessageMetaData>();
+		for (MessageEntry entry : new ArrayList<MessageEntry>(range(data, set))) {
+			if (entry.is(MessageEntry.DELETED)) {
+				expunged.put(entry.uid, metaData(new MappedMessage(store, mailboxId, entry)));
+			}
+		}
+		for (Long uid : expunged.keySet()) {
+			store.deleteMessage(mailboxId, uid);
+		}
+		return expunged;
+	}
+
+	public long countMessagesInMailbox(Mailbox<Long> mailbox) throws MailboxException {
+		return store.mailbox(mailbox.getMailboxId()).messages.size();
+	}
+
+	public long countUnseenMessagesInMailbox(Mailbox<Long> mailbox) throws MailboxException {
+
+		long count = 0;
+		for (MessageEntry entry : store.mailbox(mailbox.getMailboxId()).messages.values()) {
+			if (!entry.is(MessageEntry.SEEN)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void delete(Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+		store.deleteMessage(mailbox.getMailboxId(), message.getUid());
+	}
+
+	public Long findFirstUnseenMessageUid(Mailbox<Long> mailbox) throws MailboxException {
+
+		for (MessageEntry entry : store.mailbox(mailbox.getMailboxId()).messages.values()) {
+			if (!entry.is(MessageEntry.SEEN)) {
+				return entry.uid;
+			}
+		}
+		return null;
+	}
+
+	public List<Long> findRecentMessageUidsInMailbox(Mailbox<Long> mailbox) throws MailboxException {
+
+		List<Long> recent = new ArrayList<Long>();
+		for (MessageEntry entry : store.mailbox(mailbox.getMailboxId()).messages.values()) {
+			if (entry.is(MessageEntry.RECENT)) {
+				recent.add(entry.uid);
+			}
+		}
+		return recent;
+	}
+
+	/**
+	 * Not supported (as in the in-memory store).
+	 */
+	public MessageMetaData move(Mailbox<Long> mailbox, Message<Long> original) throws MailboxException {
+		throw new UnsupportedOperationException("Not implemented - see https://issues.apache.org/jira/browse/IMAP-370");
+	}
+
+	/**
+	 * Stores a new message, or the changed flags of a message that is already in the mailbox.
+	 */
+	@Override
+	protected MessageMetaData save(Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+
+		long mailboxId = mailbox.getMailboxId();
+		Flags flags = message.createFlags();
+		MessageEntry entry;
+		if (message instanceof MappedMessage && isStored(mailboxId, (MappedMessage) message)) {
+			entry = store.updateFlags(mailboxId, message.getUid(), message.getModSeq(), flags);
+		} else if (message instanceof MappedMessage) {
+			entry = store.copyMessage(mailboxId, ((MappedMessage) message).entry, message.getUid(), message.getModSeq(), flags);
+		} else {
+			entry = store.addMessage(mailboxId, message, message.getUid(), message.getModSeq(), flags);
+		}
+		return metaData(new MappedMessage(store, mailboxId, entry));
+	}
+
+	private boolean isStored(long mailboxId, MappedMessage message) throws MailboxException {
+
+		MessageEntry stored = store.mailbox(mailboxId).messages.get(message.getUid());
+		return (stored != null && stored.segment == message.entry.segment && stored.offset == message.entry.offset);
+	}
+
+	/**
+	 * Copies a message to a mailbox as a recent message, the content of a {@link MappedMessage} is shared.
+	 */
+	@Override
+	protected MessageMetaData copy(Mailbox<Long> mailbox, long uid, long modSeq, Message<Long> original) throws MailboxException {
+
+		long mailboxId = mailbox.getMailboxId();
+		Flags flags = original.createFlags();
+		flags.add(Flags.Flag.RECENT);
+		MessageEntry entry;
+		if (original instanceof MappedMessage) {
+			entry = store.copyMessage(mailboxId, ((MappedMessage) original).entry, uid, modSeq, flags);
+		} else {
+			entry = store.addMessage(mailboxId, original, uid, modSeq, flags);
+		}
+		return metaData(new MappedMessage(store, mailboxId, entry));
+	}
+
+	private static MessageMetaData metaData(MappedMessage message) {
+		return new SimpleMessageMetaData(message.getUid(), message.getModSeq(), message.createFlags(),
+				message.getFullContentOctets(), message.getInternalDate());
+	}
+
+	@Override
+	protected void begin() throws MailboxException {
+		// Changes are applied immediately.
+	}
+
+	@Override
+	protected void commit() throws MailboxException {
+		store.commit();
+	}
+
+	@Override
+	protected void rollback() throws MailboxException {
+		// Changes are applied immediately, there is nothing to roll back.
+	}
+
+	public void endRequest() {
+		// NO-OP
+	}
+
+}
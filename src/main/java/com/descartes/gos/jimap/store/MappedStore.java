@@ -0,0 +1,649 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.Property;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable mailbox store in a directory:
+ * <ul>
+ * <li>message contents in append-only, memory-mapped segment files (<code>segment-N.dat</code>),</li>
+ * <li>all changes to mailboxes, messages (UID, mod-sequence, flags, content location) and subscriptions
+ * in an append-only index log (<code>index-N.log</code>),</li>
+ * <li>a compact snapshot of the index (<code>index.snapshot</code>) written by {@link #checkpoint()},
+ * after which a new index log is started.</li>
+ * </ul>
+ * Opening a store loads the snapshot and replays the (tail) index log written after it.
+ * The index is kept in memory, message contents are only read via the memory-mapped segments
+ * so they do not occupy the Java heap.
+ * <br>Changes are serialized, reads do not lock. Without {@link #setSync(boolean)} changes are durable
+ * once the operating system writes them (the store is safe for process crashes, not for power failures).
+ * Space of deleted messages is not reclaimed.
+ */
+public class MappedStore implements Closeable {
+
+	private static Logger log = LoggerFactory.getLogger(MappedStore.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	static final byte MAILBOX_SAVE = 1;
+	static final byte MAILBOX_DELETE = 2;
+	static final byte MESSAGE_ADD = 3;
+	static final byte MESSAGE_FLAGS = 4;
+	static final byte MESSAGE_DELETE = 5;
+	static final byte SUBSCRIBE = 6;
+	static final byte UNSUBSCRIBE = 7;
+
+	private static final String SNAPSHOT = "index.snapshot";
+	private static final int SNAPSHOT_MAGIC = 0x4A494D53;
+	private static final int SNAPSHOT_VERSION = 1;
+
+	/**
+	 * Index of one mailbox.
+	 */
+	static class MailboxData {
+
+		final long id;
+		/* Changed in place by a rename (under the store lock), the counters keep their identity. */
+		volatile String namespace;
+		volatile String user;
+		volatile String name;
+		final long uidValidity;
+		final ConcurrentSkipListMap<Long, MessageEntry> messages = new ConcurrentSkipListMap<Long, MessageEntry>();
+		final AtomicLong lastUid = new AtomicLong();
+		final AtomicLong highestModSeq = new AtomicLong();
+
+		MailboxData(long id, String namespace, String user, String name, long uidValidity) {
+
+			this.id = id;
+			this.namespace = namespace;
+			this.user = user;
+			this.name = name;
+			this.uidValidity = uidValidity;
+		}
+
+		void rename(String namespace, String user, String name) {
+
+			this.namespace = namespace;
+			this.user = user;
+			this.name = name;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private volatile boolean sync;
+
+	private final ConcurrentHashMap<Long, MailboxData> mailboxes = new ConcurrentHashMap<Long, MailboxData>();
+	private final ConcurrentHashMap<String, Set<String>> subscriptions = new ConcurrentHashMap<String, Set<String>>();
+	private final AtomicLong mailboxIds = new AtomicLong();
+	private volatile SegmentFile[] segments = new SegmentFile[0];
+	private IndexLog indexLog;
+	private boolean closed;
+
+	/* Re-used while holding the lock. */
+	private final RecordBuffer record = new RecordBuffer();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private final byte[] transfer = new byte[64 * 1024];
+
+	/**
+	 * Opens (or creates) a store with {@link #DEFAULT_SEGMENT_SIZE}.
+	 */
+	public MappedStore(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param segmentSize size of new segment files, messages larger than this size get a segment of their own.
+	 */
+	public MappedStore(File directory, int segmentSize) throws IOException {
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create store directory " + directory);
+		}
+		long start = System.currentTimeMillis();
+		openSegments();
+		long generation = 1;
+		File snapshot = new File(directory, SNAPSHOT);
+		if (snapshot.isFile()) {
+			generation = readSnapshot(snapshot);
+		}
+		indexLog = new IndexLog(directory, generation);
+		int records = indexLog.replay(0, new IndexLog.Visitor() {
+			public void record(byte type, DataInputStream payload) throws IOException {
+				apply(type, payload);
+			}
+		});
+		deleteOldLogs(generation);
+		long messages = 0;
+		for (MailboxData data : mailboxes.values()) {
+			messages += data.messages.size();
+		}
+		log.info("Opened store " + directory + " with " + mailboxes.size() + " mailboxes and " + messages + " messages in "
+				+ (System.currentTimeMillis() - start) + " ms (" + records + " index log records replayed).");
+	}
+
+	/**
+	 * If true, segment and index changes are forced to disk after each mailbox operation.
+	 * Default false.
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	public boolean isSync() {
+		return sync;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/* Reads */
+
+	Iterable<MailboxData> mailboxes() {
+		return mailboxes.values();
+	}
+
+	MailboxData mailbox(long id) throws MailboxException {
+
+		MailboxData data = mailboxes.get(id);
+		if (data == null) {
+			throw new MailboxException("Mailbox with ID " + id + " does not exist.");
+		}
+		return data;
+	}
+
+	/**
+	 * @return a read-only view of the content of a message.
+	 */
+	ByteBuffer content(MessageEntry entry) {
+		return segments[entry.segment].slice(entry.offset, entry.length);
+	}
+
+	List<String> subscriptions(String user) {
+
+		Set<String> s = subscriptions.get(user);
+		return (s == null ? Collections.<String>emptyList() : new ArrayList<String>(s));
+	}
+
+	/* Changes */
+
+	synchronized MailboxData saveMailbox(Mailbox<Long> mailbox) throws MailboxException {
+
+		long id = (mailbox.getMailboxId() == null ? mailboxIds.incrementAndGet() : mailbox.getMailboxId().longValue());
+		try {
+			recordOut.writeLong(id);
+			MessageEntry.writeString(recordOut, mailbox.getNamespace());
+			MessageEntry.writeString(recordOut, mailbox.getUser());
+			MessageEntry.writeString(recordOut, mailbox.getName());
+			recordOut.writeLong(mailbox.getUidValidity());
+			write(MAILBOX_SAVE);
+		} catch (IOException e) {
+			throw failed("Failed to save mailbox " + mailbox.getName(), e);
+		}
+		return mailboxes.get(id);
+	}
+
+	synchronized void deleteMailbox(long id) throws MailboxException {
+
+		try {
+			recordOut.writeLong(id);
+			write(MAILBOX_DELETE);
+		} catch (IOException e) {
+			throw failed("Failed to delete mailbox " + id, e);
+		}
+	}
+
+	/**
+	 * Stores the content of a message and adds it to a mailbox.
+	 */
+	synchronized MessageEntry addMessage(long mailboxId, Message<Long> message, long uid, long modSeq, Flags flags) throws MailboxException {
+
+		mailbox(mailboxId);
+		long size = message.getFullContentOctets();
+		if (size > Integer.MAX_VALUE) {
+			throw new MailboxException("Message too large: " + size + " bytes.");
+		}
+		int length = (int) size;
+		try {
+			SegmentFile segment = segmentFor(length);
+			InputStream in = message.getFullContent();
+			int offset;
+			try {
+				offset = segment.append(in, length, transfer);
+			} finally {
+				in.close();
+			}
+			List<Property> properties = new ArrayList<Property>();
+			for (Property p : message.getProperties()) {
+				properties.add(new SimpleProperty(p));
+			}
+			MessageEntry entry = new MessageEntry(uid, modSeq, MessageEntry.toBits(flags), flags.getUserFlags(),
+					message.getInternalDate().getTime(), segment.id, offset, length, (int) (size - message.getBodyOctets()),
+					message.getTextualLineCount(), message.getMediaType(), message.getSubType(), Collections.unmodifiableList(properties));
+			recordOut.writeLong(mailboxId);
+			entry.write(recordOut);
+			write(MESSAGE_ADD);
+			return entry;
+		} catch (IOException e) {
+			throw failed("Failed to store message " + uid + " in mailbox " + mailboxId, e);
+		}
+	}
+
+	/**
+	 * Adds a message to a mailbox with the content of a stored message (content is not copied).
+	 */
+	synchronized MessageEntry copyMessage(long mailboxId, MessageEntry source, long uid, long modSeq, Flags flags) throws MailboxException {
+
+		mailbox(mailboxId);
+		MessageEntry entry = source.copy(uid, modSeq, MessageEntry.toBits(flags), flags.getUserFlags());
+		try {
+			recordOut.writeLong(mailboxId);
+			entry.write(recordOut);
+			write(MESSAGE_ADD);
+		} catch (IOException e) {
+			throw failed("Failed to copy message " + uid + " to mailbox " + mailboxId, e);
+		}
+		return entry;
+	}
+
+	synchronized MessageEntry updateFlags(long mailboxId, long uid, long modSeq, Flags flags) throws MailboxException {
+
+		try {
+			recordOut.writeLong(mailboxId);
+			recordOut.writeLong(uid);
+			recordOut.writeLong(modSeq);
+			MessageEntry.writeFlags(recordOut, MessageEntry.toBits(flags), flags.getUserFlags());
+			write(MESSAGE_FLAGS);
+		} catch (IOException e) {
+			throw failed("Failed to update flags of message " + uid + " in mailbox " + mailboxId, e);
+		}
+		return mailbox(mailboxId).messages.get(uid);
+	}
+
+	synchronized void deleteMessage(long mailboxId, long uid) throws MailboxException {
+
+		MailboxData data = mailbox(mailboxId);
+		try {
+			recordOut.writeLong(mailboxId);
+			recordOut.writeLong(uid);
+			// The expunge gets a mod-sequence of its own, a resync from the previous highest one must see it.
+			recordOut.writeLong(data.highestModSeq.incrementAndGet());
+			write(MESSAGE_DELETE);
+		} catch (IOException e) {
+			throw failed("Failed to delete message " + uid + " from mailbox " + mailboxId, e);
+		}
+	}
+
+	synchronized void subscribe(String user, String mailbox, boolean subscribe) throws MailboxException {
+
+		try {
+			MessageEntry.writeString(recordOut, user);
+			MessageEntry.writeString(recordOut, mailbox);
+			write(subscribe ? SUBSCRIBE : UNSUBSCRIBE);
+		} catch (IOException e) {
+			throw failed("Failed to update subscription of " + user + " to " + mailbox, e);
+		}
+	}
+
+	/**
+	 * Forces changes to disk when {@link #isSync()}, called at the end of each mapper transaction.
+	 */
+	void commit() throws MailboxException {
+
+		if (!sync) {
+			return;
+		}
+		synchronized (this) {
+			try {
+				forceAll();
+			} catch (IOException e) {
+				throw failed("Failed to force changes to disk", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the index and starts a new (empty) index log, so that a next open
+	 * only needs to replay changes made after this checkpoint.
+	 */
+	public synchronized void checkpoint() throws IOException {
+
+		checkOpen();
+		long generation = indexLog.generation + 1;
+		IndexLog next = new IndexLog(directory, generation);
+		forceAll();
+		writeSnapshot(generation);
+		indexLog.close();
+		if (!IndexLog.fileName(directory, indexLog.generation).delete()) {
+			log.warn("Failed to delete old index log " + indexLog.generation);
+		}
+		indexLog = next;
+	}
+
+	/**
+	 * Writes a checkpoint and closes all files.
+	 */
+	public synchronized void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		checkpoint();
+		closed = true;
+		indexLog.close();
+		for (SegmentFile segment : segments) {
+			segment.close();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+
+		if (closed) {
+			throw new IOException("Store is closed.");
+		}
+	}
+
+	private MailboxException failed(String message, IOException e) {
+
+		record.reset();
+		return new MailboxException(message, e);
+	}
+
+	/**
+	 * Appends the record in the record buffer to the index log and applies it.
+	 */
+	private void write(byte type) throws IOException {
+
+		checkOpen();
+		try {
+			indexLog.append(type, record.array(), record.size());
+			apply(type, new DataInputStream(record.asInputStream()));
+		} finally {
+			record.reset();
+		}
+	}
+
+	private void forceAll() throws IOException {
+
+		for (SegmentFile segment : segments) {
+			segment.force();
+		}
+		indexLog.force();
+	}
+
+	private SegmentFile segmentFor(int length) throws IOException {
+
+		SegmentFile[] current = segments;
+		if (current.length > 0 && current[current.length - 1].remaining() >= length) {
+			return current[current.length - 1];
+		}
+		SegmentFile segment = SegmentFile.open(directory, current.length, Math.max(segmentSize, length), 0);
+		SegmentFile[] grown = Arrays.copyOf(current, current.length + 1);
+		grown[current.length] = segment;
+		segments = grown;
+		return segment;
+	}
+
+	/* Index changes, used for new records and when replaying. */
+
+	private void apply(byte type, DataInputStream in) throws IOException {
+
+		switch (type) {
+		case MAILBOX_SAVE: {
+			long id = in.readLong();
+			MailboxData data = new MailboxData(id, MessageEntry.readString(in), MessageEntry.readString(in), MessageEntry.readString(in), in.readLong());
+			MailboxData existing = mailboxes.get(id);
+			if (existing == null) {
+				mailboxes.put(id, data);
+			} else {
+				existing.rename(data.namespace, data.user, data.name);
+			}
+			if (id > mailboxIds.get()) {
+				mailboxIds.set(id);
+			}
+			break;
+		}
+		case MAILBOX_DELETE:
+			mailboxes.remove(in.readLong());
+			break;
+		case MESSAGE_ADD: {
+			MailboxData data = mailboxes.get(in.readLong());
+			MessageEntry entry = MessageEntry.read(in);
+			if (entry.segment >= segments.length) {
+				throw new IOException("Index refers to missing segment " + entry.segment);
+			}
+			segments[entry.segment].used(entry.offset + entry.length);
+			if (data != null) {
+				data.messages.put(entry.uid, entry);
+				max(data.lastUid, entry.uid);
+				max(data.highestModSeq, entry.modSeq);
+			}
+			break;
+		}
+		case MESSAGE_FLAGS: {
+			MailboxData data = mailboxes.get(in.readLong());
+			long uid = in.readLong();
+			long modSeq = in.readLong();
+			int flags = in.readInt();
+			String[] userFlags = MessageEntry.readUserFlags(in);
+			MessageEntry entry = (data == null ? null : data.messages.get(uid));
+			if (entry != null) {
+				data.messages.put(uid, entry.withFlags(modSeq, flags, userFlags));
+				max(data.highestModSeq, modSeq);
+			}
+			break;
+		}
+		case MESSAGE_DELETE: {
+			MailboxData data = mailboxes.get(in.readLong());
+			long uid = in.readLong();
+			long modSeq = in.readLong();
+			if (data != null) {
+				data.messages.remove(uid);
+				max(data.highestModSeq, modSeq);
+			}
+			break;
+		}
+		case SUBSCRIBE:
+		case UNSUBSCRIBE: {
+			String user = MessageEntry.readString(in);
+			String mailbox = MessageEntry.readString(in);
+			Set<String> s = subscriptions.get(user);
+			if (s == null) {
+				subscriptions.put(user, s = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+			}
+			if (type == SUBSCRIBE) {
+				s.add(mailbox);
+			} else {
+				s.remove(mailbox);
+			}
+			break;
+		}
+		default:
+			throw new IOException("Unknown index record type " + type);
+		}
+	}
+
+	private static void max(AtomicLong value, long candidate) {
+
+		long v;
+		while (candidate > (v = value.get()) && !value.compareAndSet(v, candidate)) {
+			// retry
+		}
+	}
+
+	/* Files */
+
+	private void openSegments() throws IOException {
+
+		List<SegmentFile> opened = new ArrayList<SegmentFile>();
+		for (int id = 0; SegmentFile.fileName(directory, id).isFile(); id++) {
+			opened.add(SegmentFile.open(directory, id, 0, 0));
+		}
+		segments = opened.toArray(new SegmentFile[opened.size()]);
+	}
+
+	private void deleteOldLogs(long generation) {
+
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.getName().startsWith("index-") && f.getName().endsWith(".log") && !f.equals(IndexLog.fileName(directory, generation))) {
+				if (!f.delete()) {
+					log.warn("Failed to delete old index log " + f);
+				}
+			}
+		}
+	}
+
+	private void writeSnapshot(long generation) throws IOException {
+
+		File tmp = new File(directory, SNAPSHOT + ".tmp");
+		FileOutputStream fout = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 64 * 1024));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(generation);
+			out.writeLong(mailboxIds.get());
+			out.writeInt(segments.length);
+			for (SegmentFile segment : segments) {
+				out.writeInt(segment.end());
+			}
+			out.writeInt(mailboxes.size());
+			for (MailboxData data : mailboxes.values()) {
+				out.writeLong(data.id);
+				MessageEntry.writeString(out, data.namespace);
+				MessageEntry.writeString(out, data.user);
+				MessageEntry.writeString(out, data.name);
+				out.writeLong(data.uidValidity);
+				out.writeLong(data.lastUid.get());
+				out.writeLong(data.highestModSeq.get());
+				out.writeInt(data.messages.size());
+				for (MessageEntry entry : data.messages.values()) {
+					entry.write(out);
+				}
+			}
+			out.writeInt(subscriptions.size());
+			for (Map.Entry<String, Set<String>> e : subscriptions.entrySet()) {
+				List<String> s = new ArrayList<String>(e.getValue());
+				MessageEntry.writeString(out, e.getKey());
+				out.writeInt(s.size());
+				for (String mailbox : s) {
+					MessageEntry.writeString(out, mailbox);
+				}
+			}
+			out.flush();
+			fout.getFD().sync();
+		} finally {
+			fout.close();
+		}
+		File snapshot = new File(directory, SNAPSHOT);
+		if (!tmp.renameTo(snapshot)) {
+			if (!snapshot.delete() || !tmp.renameTo(snapshot)) {
+				throw new IOException("Failed to replace snapshot " + snapshot);
+			}
+		}
+	}
+
+	/**
+	 * @return generation of the index log written after the snapshot.
+	 */
+	private long readSnapshot(File snapshot) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				throw new IOException("Not a (supported) snapshot: " + snapshot);
+			}
+			long generation = in.readLong();
+			mailboxIds.set(in.readLong());
+			int segmentCount = in.readInt();
+			for (int i = 0; i < segmentCount; i++) {
+				int end = in.readInt();
+				if (i < segments.length) {
+					segments[i].used(end);
+				}
+			}
+			int mailboxCount = in.readInt();
+			for (int i = 0; i < mailboxCount; i++) {
+				MailboxData data = new MailboxData(in.readLong(), MessageEntry.readString(in), MessageEntry.readString(in),
+						MessageEntry.readString(in), in.readLong());
+				data.lastUid.set(in.readLong());
+				data.highestModSeq.set(in.readLong());
+				int messages = in.readInt();
+				for (int m = 0; m < messages; m++) {
+					MessageEntry entry = MessageEntry.read(in);
+					data.messages.put(entry.uid, entry);
+				}
+				mailboxes.put(data.id, data);
+			}
+			int users = in.readInt();
+			for (int i = 0; i < users; i++) {
+				String user = MessageEntry.readString(in);
+				Set<String> s = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				int count = in.readInt();
+				for (int m = 0; m < count; m++) {
+					s.add(MessageEntry.readString(in));
+				}
+				subscriptions.put(user, s);
+			}
+			return generation;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Byte array output stream that exposes its buffer.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+
+		RecordBuffer() {
+			super(1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		InputStream asInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.descartes.gos.jimap.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.SubscriptionException;
+import org.apache.james.mailbox.store.transaction.NonTransactionalMapper;
+import org.apache.james.mailbox.store.user.SubscriptionMapper;
+import org.apache.james.mailbox.store.user.model.Subscription;
+import org.apache.james.mailbox.store.user.model.impl.SimpleSubscription;
+
+/**
+ * Subscription mapper of a {@link MappedStore}.
+ */
+public class MappedSubscriptionMapper extends NonTransactionalMapper implements SubscriptionMapper {
+
+	private final MappedStore store;
+
+	public MappedSubscriptionMapper(MappedStore store) {
+		this.store = store;
+	}
+
+	public Subscription findMailboxSubscriptionForUser(String user, String mailbox) throws SubscriptionException {
+		return (store.subscriptions(user).contains(mailbox) ? new SimpleSubscription(user, mailbox) : null);
+	}
+
+	public void save(Subscription subscription) throws SubscriptionException {
+		update(subscription, true);
+	}
+
+	public List<Subscription> findSubscriptionsForUser(String user) throws SubscriptionException {
+
+		List<Subscription> subscriptions = new ArrayList<Subscription>();
+		for (String mailbox : store.subscriptions(user)) {
+			subscriptions.add(new SimpleSubscription(user, mailbox));
+		}
+		return subscriptions;
+	}
+
+	public void delete(Subscription subscription) throws SubscriptionException {
+		update(subscription, false);
+	}
+
+	private void update(Subscription subscription, boolean subscribe) throws SubscriptionException {
+
+		try {
+			store.subscribe(subscription.getUser(), subscription.getMailbox(), subscribe);
+			store.commit();
+		} catch (MailboxException e) {
+			throw new SubscriptionException(e);
+		}
+	}
+
+	public void endRequest() {
+		// NO-OP
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.store.mail.model.Property;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleProperty;
+
+/**
+ * Metadata of a stored message: UID, mod-sequence, flags and the location of the content in a segment.
+ * Instances are shared by all readers, flag updates replace the entry.
+ */
+class MessageEntry {
+
+	static final int ANSWERED = 1;
+	static final int DELETED = 1 << 1;
+	static final int DRAFT = 1 << 2;
+	static final int FLAGGED = 1 << 3;
+	static final int RECENT = 1 << 4;
+	static final int SEEN = 1 << 5;
+
+	private static final String[] NO_USER_FLAGS = new String[0];
+
+	final long uid;
+	final long modSeq;
+	final int flags;
+	final String[] userFlags;
+	final long internalDate;
+	final int segment;
+	final int offset;
+	final int length;
+	final int bodyStart;
+	final Long textualLineCount;
+	final String mediaType;
+	final String subType;
+	final List<Property> properties;
+
+	MessageEntry(long uid, long modSeq, int flags, String[] userFlags, long internalDate, int segment, int offset, int length,
+			int bodyStart, Long textualLineCount, String mediaType, String subType, List<Property> properties) {
+
+		this.uid = uid;
+		this.modSeq = modSeq;
+		this.flags = flags;
+		this.userFlags = (userFlags == null || userFlags.length == 0 ? NO_USER_FLAGS : userFlags);
+		this.internalDate = internalDate;
+		this.segment = segment;
+		this.offset = offset;
+		this.length = length;
+		this.bodyStart = bodyStart;
+		this.textualLineCount = textualLineCount;
+		this.mediaType = mediaType;
+		this.subType = subType;
+		this.properties = properties;
+	}
+
+	/**
+	 * @return a copy with other flags and mod-sequence (same UID and content).
+	 */
+	MessageEntry withFlags(long modSeq, int flags, String[] userFlags) {
+		return new MessageEntry(uid, modSeq, flags, userFlags, internalDate, segment, offset, length,
+				bodyStart, textualLineCount, mediaType, subType, properties);
+	}
+
+	/**
+	 * @return a copy for another mailbox (same content).
+	 */
+	MessageEntry copy(long uid, long modSeq, int flags, String[] userFlags) {
+		return new MessageEntry(uid, modSeq, flags, userFlags, internalDate, segment, offset, length,
+				bodyStart, textualLineCount, mediaType, subType, properties);
+	}
+
+	boolean is(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	static int toBits(Flags flags) {
+
+		int bits = 0;
+		if (flags.contains(Flags.Flag.ANSWERED)) {
+			bits |= ANSWERED;
+		}
+		if (flags.contains(Flags.Flag.DELETED)) {
+			bits |= DELETED;
+		}
+		if (flags.contains(Flags.Flag.DRAFT)) {
+			bits |= DRAFT;
+		}
+		if (flags.contains(Flags.Flag.FLAGGED)) {
+			bits |= FLAGGED;
+		}
+		if (flags.contains(Flags.Flag.RECENT)) {
+			bits |= RECENT;
+		}
+		if (flags.contains(Flags.Flag.SEEN)) {
+			bits |= SEEN;
+		}
+		return bits;
+	}
+
+	/* Serialization, used for index log records and snapshots. */
+
+	void write(DataOutput out) throws IOException {
+
+		out.writeLong(uid);
+		out.writeLong(modSeq);
+		writeFlags(out, flags, userFlags);
+		out.writeLong(internalDate);
+		out.writeInt(segment);
+		out.writeInt(offset);
+		out.writeInt(length);
+		out.writeInt(bodyStart);
+		out.writeLong(textualLineCount == null ? -1L : textualLineCount.longValue());
+		writeString(out, mediaType);
+		writeString(out, subType);
+		out.writeInt(properties.size());
+		for (Property p : properties) {
+			writeString(out, p.getNamespace());
+			writeString(out, p.getLocalName());
+			writeString(out, p.getValue());
+		}
+	}
+
+	static MessageEntry read(DataInput in) throws IOException {
+
+		long uid = in.readLong();
+		long modSeq = in.readLong();
+		int flags = in.readInt();
+		String[] userFlags = readUserFlags(in);
+		long internalDate = in.readLong();
+		int segment = in.readInt();
+		int offset = in.readInt();
+		int length = in.readInt();
+		int bodyStart = in.readInt();
+		long lines = in.readLong();
+		String mediaType = readString(in);
+		String subType = readString(in);
+		int count = in.readInt();
+		List<Property> properties = new ArrayList<Property>(count);
+		for (int i = 0; i < count; i++) {
+			properties.add(new SimpleProperty(readString(in), readString(in), readString(in)));
+		}
+		return new MessageEntry(uid, modSeq, flags, userFlags, internalDate, segment, offset, length, bodyStart,
+				(lines < 0 ? null : Long.valueOf(lines)), mediaType, subType, Collections.unmodifiableList(properties));
+	}
+
+	static void writeFlags(DataOutput out, int flags, String[] userFlags) throws IOException {
+
+		out.writeInt(flags);
+		out.writeShort(userFlags.length);
+		for (String f : userFlags) {
+			writeString(out, f);
+		}
+	}
+
+	static String[] readUserFlags(DataInput in) throws IOException {
+
+		int count = in.readShort();
+		if (count == 0) {
+			return NO_USER_FLAGS;
+		}
+		String[] userFlags = new String[count];
+		for (int i = 0; i < count; i++) {
+			userFlags[i] = readString(in);
+		}
+		return userFlags;
+	}
+
+	/**
+	 * Writes a nullable string of any length (unlike {@link DataOutput#writeUTF(String)}).
+	 */
+	static void writeString(DataOutput out, String s) throws IOException {
+
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] b = s.getBytes("UTF-8");
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	static String readString(DataInput in) throws IOException {
+
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.descartes.gos.jimap.store;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.SubscriptionException;
+import org.apache.james.mailbox.inmemory.mail.InMemoryMailboxMapper;
+import org.apache.james.mailbox.inmemory.mail.InMemoryModSeqProvider;
+import org.apache.james.mailbox.inmemory.mail.InMemoryUidProvider;
+import org.apache.james.mailbox.inmemory.user.InMemorySubscriptionMapper;
+import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
+import org.apache.james.mailbox.store.mail.MailboxMapper;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.user.SubscriptionMapper;
+
+/**
+ * Variant of the <code>InMemoryMailboxSessionMapperFactory</code> that keeps message contents off-heap
+ * in a {@link SlabArena}, so that the Java heap only holds message metadata.
+ */
+public class OffHeapMailboxSessionMapperFactory extends MailboxSessionMapperFactory<Long> {
+
+	private final SlabArena arena;
+	private final MailboxMapper<Long> mailboxMapper = new InMemoryMailboxMapper();
+	private final OffHeapMessageMapper messageMapper;
+	private final SubscriptionMapper subscriptionMapper = new InMemorySubscriptionMapper();
+
+	public OffHeapMailboxSessionMapperFactory() {
+		this(new SlabArena());
+	}
+
+	public OffHeapMailboxSessionMapperFactory(SlabArena arena) {
+
+		this.arena = arena;
+		messageMapper = new OffHeapMessageMapper(null, new InMemoryUidProvider(), new InMemoryModSeqProvider(), arena);
+	}
+
+	public SlabArena getArena() {
+		return arena;
+	}
+
+	@Override
+	public MailboxMapper<Long> createMailboxMapper(MailboxSession session) throws MailboxException {
+		return mailboxMapper;
+	}
+
+	@Override
+	public MessageMapper<Long> createMessageMapper(MailboxSession session) throws MailboxException {
+		return messageMapper;
+	}
+
+	@Override
+	public SubscriptionMapper createSubscriptionMapper(MailboxSession session) throws SubscriptionException {
+		return subscriptionMapper;
+	}
+
+}
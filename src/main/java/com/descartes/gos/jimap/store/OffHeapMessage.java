@@ -0,0 +1,185 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.message.response.ByteBufferInputStream;
+import org.apache.james.mailbox.store.mail.model.AbstractMessage;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.apache.james.mailbox.store.mail.model.Property;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleProperty;
+
+/**
+ * A message with its content in a {@link SlabArena} chunk, only the metadata is on the heap.
+ * The content is written to sockets without copying, see {@link ByteBufferInputStream}.
+ * The stored message owns the chunk, copies share it without a reference of their own:
+ * content streams retain the chunk, so reading the content of a deleted message fails instead of reading freed memory.
+ */
+public class OffHeapMessage extends AbstractMessage<Long> {
+
+	private final long mailboxId;
+	final SlabArena.Chunk content;
+	private final int size;
+	private final long internalDate;
+	private final int bodyStart;
+	private final Long textualLineCount;
+	private final String mediaType;
+	private final String subType;
+	private final List<Property> properties;
+	private long uid;
+	private long modSeq;
+	private int flags;
+	private String[] userFlags;
+
+	/**
+	 * @param content the stored content of the message (from position 0 to limit), owned by this message.
+	 */
+	OffHeapMessage(long mailboxId, SlabArena.Chunk content, Message<Long> message) {
+
+		this.mailboxId = mailboxId;
+		this.content = content;
+		this.size = content.buffer().limit();
+		this.internalDate = message.getInternalDate().getTime();
+		this.bodyStart = (int) (message.getFullContentOctets() - message.getBodyOctets());
+		this.textualLineCount = message.getTextualLineCount();
+		this.mediaType = message.getMediaType();
+		this.subType = message.getSubType();
+		List<Property> properties = new ArrayList<Property>();
+		for (Property p : message.getProperties()) {
+			properties.add(new SimpleProperty(p));
+		}
+		this.properties = Collections.unmodifiableList(properties);
+		this.uid = message.getUid();
+		this.modSeq = message.getModSeq();
+		setFlags(message.createFlags());
+	}
+
+	/**
+	 * A copy that shares the content.
+	 */
+	OffHeapMessage(OffHeapMessage message) {
+
+		this.mailboxId = message.mailboxId;
+		this.content = message.content;
+		this.size = message.size;
+		this.internalDate = message.internalDate;
+		this.bodyStart = message.bodyStart;
+		this.textualLineCount = message.textualLineCount;
+		this.mediaType = message.mediaType;
+		this.subType = message.subType;
+		this.properties = message.properties;
+		this.uid = message.uid;
+		this.modSeq = message.modSeq;
+		this.flags = message.flags;
+		this.userFlags = message.userFlags;
+	}
+
+	public Date getInternalDate() {
+		return new Date(internalDate);
+	}
+
+	public Long getMailboxId() {
+		return mailboxId;
+	}
+
+	public long getUid() {
+		return uid;
+	}
+
+	public void setUid(long uid) {
+		this.uid = uid;
+	}
+
+	public long getModSeq() {
+		return modSeq;
+	}
+
+	public void setModSeq(long modSeq) {
+		this.modSeq = modSeq;
+	}
+
+	public boolean isAnswered() {
+		return (flags & MessageEntry.ANSWERED) != 0;
+	}
+
+	public boolean isDeleted() {
+		return (flags & MessageEntry.DELETED) != 0;
+	}
+
+	public boolean isDraft() {
+		return (flags & MessageEntry.DRAFT) != 0;
+	}
+
+	public boolean isFlagged() {
+		return (flags & MessageEntry.FLAGGED) != 0;
+	}
+
+	public boolean isRecent() {
+		return (flags & MessageEntry.RECENT) != 0;
+	}
+
+	public boolean isSeen() {
+		return (flags & MessageEntry.SEEN) != 0;
+	}
+
+	public void setFlags(Flags flags) {
+
+		this.flags = MessageEntry.toBits(flags);
+		this.userFlags = flags.getUserFlags();
+	}
+
+	@Override
+	protected String[] createUserFlags() {
+		return userFlags.clone();
+	}
+
+	@Override
+	protected int getBodyStartOctet() {
+		return bodyStart;
+	}
+
+	public long getFullContentOctets() {
+		return size;
+	}
+
+	public Long getTextualLineCount() {
+		return textualLineCount;
+	}
+
+	public String getMediaType() {
+		return mediaType;
+	}
+
+	public String getSubType() {
+		return subType;
+	}
+
+	public List<Property> getProperties() {
+		return properties;
+	}
+
+	@Override
+	public InputStream getFullContent() throws IOException {
+		return content.stream(0, size);
+	}
+
+	public InputStream getHeaderContent() throws IOException {
+		return content.stream(0, bodyStart);
+	}
+
+	public InputStream getBodyContent() throws IOException {
+		return content.stream(bodyStart, size);
+	}
+
+	@Override
+	public String toString() {
+		return "OffHeapMessage[mailbox=" + mailboxId + ", uid=" + uid + ", modSeq=" + modSeq + ", size=" + size + "]";
+	}
+
+}
@@ -0,0 +1,265 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.mail.Flags;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.SimpleMessageMetaData;
+import org.apache.james.mailbox.store.mail.AbstractMessageMapper;
+import org.apache.james.mailbox.store.mail.ModSeqProvider;
+import org.apache.james.mailbox.store.mail.UidProvider;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+
+/**
+ * In-memory message mapper that keeps message contents in a {@link SlabArena}.
+ * Unlike the <code>InMemoryMessageMapper</code>, messages returned by {@link #findInMailbox(Mailbox, MessageRange, FetchType, int)}
+ * are copies (sharing the content) and flag updates do not copy the content.
+ */
+public class OffHeapMessageMapper extends AbstractMessageMapper<Long> {
+
+	private final SlabArena arena;
+	private final ConcurrentHashMap<Long, ConcurrentSkipListMap<Long, OffHeapMessage>> mailboxByUid =
+			new ConcurrentHashMap<Long, ConcurrentSkipListMap<Long, OffHeapMessage>>();
+
+	public OffHeapMessageMapper(MailboxSession session, UidProvider<Long> uidProvider, ModSeqProvider<Long> modSeqProvider, SlabArena arena) {
+
+		super(session, uidProvider, modSeqProvider);
+		this.arena = arena;
+	}
+
+	private ConcurrentSkipListMap<Long, OffHeapMessage> messages(Mailbox<Long> mailbox) {
+
+		ConcurrentSkipListMap<Long, OffHeapMessage> messages = mailboxByUid.get(mailbox.getMailboxId());
+		if (messages == null) {
+			ConcurrentSkipListMap<Long, OffHeapMessage> existing = mailboxByUid.putIfAbsent(mailbox.getMailboxId(),
+					messages = new ConcurrentSkipListMap<Long, OffHeapMessage>());
+			if (existing != null) {
+				messages = existing;
+			}
+		}
+		return messages;
+	}
+
+	private Collection<OffHeapMessage> range(Mailbox<Long> mailbox, MessageRange set) {
+
+		ConcurrentSkipListMap<Long, OffHeapMessage> messages = messages(mailbox);
+		switch (set.getType()) {
+		case ONE:
+			OffHeapMessage message = messages.get(set.getUidFrom());
+			return (message == null ? Collections.<OffHeapMessage>emptyList() : Collections.singletonList(message));
+		case FROM:
+			return messages.tailMap(set.getUidFrom(), true).values();
+		case RANGE:
+			if (set.getUidFrom() > set.getUidTo()) {
+				return Collections.<OffHeapMessage>emptyList();
+			}
+			return messages.subMap(set.getUidFrom(), true, set.getUidTo(), true).values();
+		default:
+			return messages.values();
+		}
+	}
+
+	public Iterator<Message<Long>> findInMailbox(Mailbox<Long> mailbox, MessageRange set, FetchType type, int max) throws MailboxException {
+
+		List<Message<Long>> found = new ArrayList<Message<Long>>();
+		for (OffHeapMessage message : range(mailbox, set)) {
+			found.add(new OffHeapMessage(message));
+			if (max > 0 && found.size() >= max) {
+				break;
+			}
+		}
+		return found.iterator();
+	}
+
+	public Map<Long, MessageMetaData> expungeMarkedForDeletionInMailbox(Mailbox<Long> mailbox, MessageRange set) throws MailboxException {
+
+		Map<Long, MessageMetaData> expunged = new HashMap<Long, MessageMetaData>();
+		for (OffHeapMessage message : new ArrayList<OffHeapMessage>(range(mailbox, set))) {
+			if (message.isDeleted()) {
+				expunged.put(message.getUid(), new SimpleMessageMetaData(message));
+				delete(mailbox, message);
+			}
+		}
+		return expunged;
+	}
+
+	public long countMessagesInMailbox(Mailbox<Long> mailbox) throws MailboxException {
+		return messages(mailbox).size();
+	}
+
+	public long countUnseenMessagesInMailbox(Mailbox<Long> mailbox) throws MailboxException {
+
+		long count = 0;
+		for (OffHeapMessage message : messages(mailbox).values()) {
+			if (!message.isSeen()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void delete(Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+
+		OffHeapMessage removed = messages(mailbox).remove(message.getUid());
+		if (removed != null) {
+			removed.content.release();
+		}
+	}
+
+	public Long findFirstUnseenMessageUid(Mailbox<Long> mailbox) throws MailboxException {
+
+		for (OffHeapMessage message : messages(mailbox).values()) {
+			if (!message.isSeen()) {
+				return message.getUid();
+			}
+		}
+		return null;
+	}
+
+	public List<Long> findRecentMessageUidsInMailbox(Mailbox<Long> mailbox) throws MailboxException {
+
+		List<Long> recent = new ArrayList<Long>();
+		for (OffHeapMessage message : messages(mailbox).values()) {
+			if (message.isRecent()) {
+				recent.add(message.getUid());
+			}
+		}
+		return recent;
+	}
+
+	/**
+	 * Not supported (as in the in-memory store).
+	 */
+	public MessageMetaData move(Mailbox<Long> mailbox, Message<Long> original) throws MailboxException {
+		throw new UnsupportedOperationException("Not implemented - see https://issues.apache.org/jira/browse/IMAP-370");
+	}
+
+	/**
+	 * Releases the contents of all messages (streams that are still open keep their content until closed).
+	 */
+	public void deleteAll() {
+
+		for (ConcurrentSkipListMap<Long, OffHeapMessage> messages : mailboxByUid.values()) {
+			for (OffHeapMessage message : messages.values()) {
+				message.content.release();
+			}
+		}
+		mailboxByUid.clear();
+	}
+
+	/**
+	 * Stores a new message, or the changed flags of a message that is already in the mailbox.
+	 */
+	@Override
+	protected MessageMetaData save(Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+
+		ConcurrentSkipListMap<Long, OffHeapMessage> messages = messages(mailbox);
+		OffHeapMessage stored = messages.get(message.getUid());
+		OffHeapMessage saved;
+		if (stored != null && message instanceof OffHeapMessage && ((OffHeapMessage) message).content == stored.content) {
+			saved = new OffHeapMessage((OffHeapMessage) message);
+		} else {
+			saved = store(mailbox, message);
+		}
+		OffHeapMessage replaced = messages.put(saved.getUid(), saved);
+		if (replaced != null && replaced.content != saved.content) {
+			replaced.content.release();
+		}
+		return new SimpleMessageMetaData(saved);
+	}
+
+	/**
+	 * Copies a message (and its content) to a mailbox as a recent message.
+	 */
+	@Override
+	protected MessageMetaData copy(Mailbox<Long> mailbox, long uid, long modSeq, Message<Long> original) throws MailboxException {
+
+		OffHeapMessage copy = store(mailbox, original);
+		copy.setUid(uid);
+		copy.setModSeq(modSeq);
+		Flags flags = original.createFlags();
+		flags.add(Flags.Flag.RECENT);
+		copy.setFlags(flags);
+		OffHeapMessage replaced = messages(mailbox).put(uid, copy);
+		if (replaced != null) {
+			replaced.content.release();
+		}
+		return new SimpleMessageMetaData(copy);
+	}
+
+	/**
+	 * @return a message with the content copied into the arena.
+	 */
+	private OffHeapMessage store(Mailbox<Long> mailbox, Message<Long> message) throws MailboxException {
+
+		long size = message.getFullContentOctets();
+		if (size > Integer.MAX_VALUE) {
+			throw new MailboxException("Message too large: " + size + " bytes.");
+		}
+		SlabArena.Chunk chunk = null;
+		try {
+			chunk = arena.allocate((int) size);
+			ByteBuffer content = chunk.buffer();
+			if (message instanceof OffHeapMessage) {
+				((OffHeapMessage) message).content.copyTo(content);
+			} else {
+				InputStream in = message.getFullContent();
+				try {
+					byte[] transfer = new byte[(int) Math.min(size, 16 * 1024)];
+					while (content.hasRemaining()) {
+						int read = in.read(transfer, 0, Math.min(transfer.length, content.remaining()));
+						if (read < 0) {
+							throw new IOException("Message content ended after " + content.position() + " of " + size + " bytes.");
+						}
+						content.put(transfer, 0, read);
+					}
+				} finally {
+					in.close();
+				}
+			}
+			content.flip();
+			return new OffHeapMessage(mailbox.getMailboxId(), chunk, message);
+		} catch (IOException e) {
+			if (chunk != null) {
+				chunk.release();
+			}
+			throw new MailboxException("Failed to store message content", e);
+		}
+	}
+
+	@Override
+	protected void begin() throws MailboxException {
+		// NO-OP
+	}
+
+	@Override
+	protected void commit() throws MailboxException {
+		// NO-OP
+	}
+
+	@Override
+	protected void rollback() throws MailboxException {
+		// NO-OP
+	}
+
+	public void endRequest() {
+		// NO-OP
+	}
+
+}
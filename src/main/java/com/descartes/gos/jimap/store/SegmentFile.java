@@ -0,0 +1,118 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only file with message contents, memory-mapped as a whole.
+ * The file has the size of the segment from the start (sparse on most file systems),
+ * the used part is tracked by the index.
+ */
+class SegmentFile {
+
+	final int id;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private int end;
+
+	private SegmentFile(int id, RandomAccessFile file, MappedByteBuffer buffer, int end) {
+
+		this.id = id;
+		this.file = file;
+		this.buffer = buffer;
+		this.end = end;
+	}
+
+	static File fileName(File directory, int id) {
+		return new File(directory, String.format("segment-%08d.dat", id));
+	}
+
+	/**
+	 * Opens or creates a segment.
+	 * @param capacity size of a new segment, an existing segment keeps its size.
+	 * @param end size of the used part.
+	 */
+	static SegmentFile open(File directory, int id, int capacity, int end) throws IOException {
+
+		RandomAccessFile file = new RandomAccessFile(fileName(directory, id), "rw");
+		try {
+			long size = Math.max(file.length(), capacity);
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			return new SegmentFile(id, file, buffer, end);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	int capacity() {
+		return buffer.capacity();
+	}
+
+	int remaining() {
+		return buffer.capacity() - end;
+	}
+
+	int end() {
+		return end;
+	}
+
+	/**
+	 * Appends content, the caller must ensure that the content fits.
+	 * @return offset of the content in this segment.
+	 */
+	int append(InputStream in, int length, byte[] transfer) throws IOException {
+
+		int offset = end;
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset);
+		int copied = 0;
+		while (copied < length) {
+			int read = in.read(transfer, 0, Math.min(transfer.length, length - copied));
+			if (read < 0) {
+				throw new IOException("Message content ended after " + copied + " of " + length + " bytes.");
+			}
+			target.put(transfer, 0, read);
+			copied += read;
+		}
+		end = offset + length;
+		return offset;
+	}
+
+	/**
+	 * Extends the used part, called while replaying the index.
+	 */
+	void used(int end) {
+		this.end = Math.max(this.end, end);
+	}
+
+	/**
+	 * @return a read-only view of stored content, valid as long as this segment is open.
+	 */
+	ByteBuffer slice(int offset, int length) {
+
+		ByteBuffer b = buffer.asReadOnlyBuffer();
+		b.position(offset);
+		b.limit(offset + length);
+		return b.slice();
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Closes the file, the mapping is released when the buffer is garbage collected.
+	 */
+	void close() throws IOException {
+
+		buffer.force();
+		file.close();
+	}
+
+}
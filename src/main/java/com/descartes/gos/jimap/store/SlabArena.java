@@ -0,0 +1,364 @@
+package com.descartes.gos.jimap.store;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.imap.message.response.ByteBufferInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Off-heap memory for message contents. Memory is reserved in slabs (direct buffers) that are cut
+ * into chunks of one size class, chunk sizes grow by 25% per class so at most 20% of a chunk is unused.
+ * A slab holds as many chunks of its size class as fit in the slab size and is not larger than those chunks,
+ * so no memory of a slab is unused.
+ * Contents larger than a slab get a direct buffer of their own.
+ * <br>A {@link Chunk} is reference counted: the owner (the stored message) holds one reference and each stream
+ * over the content ({@link Chunk#stream(int, int)}) holds one until it is closed, so a FETCH that is still streaming
+ * an expunged message never sees the content of another message. The chunk goes back to the free list of its
+ * size class when the last reference is released. Streams that are not closed release their reference
+ * once they are garbage collected.
+ * <br>Slabs are never returned to the JVM: the reserved memory is the highest amount that was in use,
+ * bounded by the maximum of the arena. Free chunks serve their own size class; only when the maximum is reached
+ * a smaller content takes a free chunk of a larger size class.
+ */
+public class SlabArena {
+
+	private static Logger log = LoggerFactory.getLogger(SlabArena.class);
+
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	private static final int MIN_CHUNK_SIZE = 256;
+
+	/**
+	 * Chunks of one size.
+	 */
+	private static class SizeClass {
+
+		final int chunkSize;
+		/** A multiple of the chunk size. */
+		final int slabSize;
+		final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		SizeClass(int chunkSize, int maxSlabSize) {
+
+			this.chunkSize = chunkSize;
+			this.slabSize = (maxSlabSize / chunkSize) * chunkSize;
+		}
+	}
+
+	private final int slabSize;
+	private final long maxBytes;
+	private final int[] chunkSizes;
+	private final SizeClass[] sizeClasses;
+	private final AtomicLong reservedBytes = new AtomicLong();
+	private final AtomicLong usedBytes = new AtomicLong();
+	/** Streams that are not closed, strongly referenced so that they are enqueued when collected. */
+	private final Set<View> openViews = Collections.newSetFromMap(new ConcurrentHashMap<View, Boolean>());
+	private final ReferenceQueue<ByteBufferInputStream> collectedViews = new ReferenceQueue<ByteBufferInputStream>();
+
+	/**
+	 * An arena with {@link #DEFAULT_SLAB_SIZE} and no limit (other than the JVM's maximum direct memory size).
+	 */
+	public SlabArena() {
+		this(DEFAULT_SLAB_SIZE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param slabSize maximum size of the direct buffers that are cut into chunks.
+	 * @param maxBytes maximum amount of off-heap memory to reserve.
+	 */
+	public SlabArena(int slabSize, long maxBytes) {
+
+		this.slabSize = slabSize;
+		this.maxBytes = maxBytes;
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (int size = MIN_CHUNK_SIZE; size < slabSize; size = align(size + size / 4)) {
+			sizes.add(size);
+		}
+		sizes.add(slabSize);
+		chunkSizes = new int[sizes.size()];
+		sizeClasses = new SizeClass[sizes.size()];
+		for (int i = 0; i < chunkSizes.length; i++) {
+			chunkSizes[i] = sizes.get(i);
+			sizeClasses[i] = new SizeClass(chunkSizes[i], slabSize);
+		}
+	}
+
+	private static int align(int size) {
+		return (size + 63) & ~63;
+	}
+
+	/**
+	 * @return a chunk with one reference (of the caller), its buffer has position 0 and limit <code>size</code>
+	 * (the capacity can be larger).
+	 * @throws IOException when the maximum amount of off-heap memory is reached.
+	 */
+	public Chunk allocate(int size) throws IOException {
+
+		releaseCollectedViews();
+		ByteBuffer buffer;
+		if (size > slabSize) {
+			reserve(size);
+			buffer = ByteBuffer.allocateDirect(size);
+		} else {
+			int index = sizeClassIndex(size);
+			buffer = sizeClasses[index].free.poll();
+			if (buffer == null) {
+				buffer = newSlab(index);
+			}
+		}
+		usedBytes.addAndGet(buffer.capacity());
+		buffer.clear().limit(size);
+		return new Chunk(this, buffer);
+	}
+
+	/**
+	 * Called when the last reference to a chunk is released.
+	 */
+	private void free(ByteBuffer buffer) {
+
+		usedBytes.addAndGet(-buffer.capacity());
+		if (buffer.capacity() > slabSize) {
+			// Freed by the garbage collector.
+			reservedBytes.addAndGet(-buffer.capacity());
+		} else {
+			sizeClasses[sizeClassIndex(buffer.capacity())].free.add(buffer);
+		}
+	}
+
+	/**
+	 * @return amount of off-heap memory reserved by this arena.
+	 */
+	public long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	/**
+	 * @return amount of off-heap memory in chunks that are allocated (including unused parts of chunks).
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	private int sizeClassIndex(int size) {
+
+		int i = Arrays.binarySearch(chunkSizes, size);
+		return (i < 0 ? -i - 1 : i);
+	}
+
+	private boolean tryReserve(int size) {
+
+		long reserved;
+		do {
+			reserved = reservedBytes.get();
+			if (reserved + size > maxBytes) {
+				return false;
+			}
+		} while (!reservedBytes.compareAndSet(reserved, reserved + size));
+		return true;
+	}
+
+	private void reserve(int size) throws IOException {
+
+		if (!tryReserve(size)) {
+			throw new IOException("Off-heap arena is full (" + reservedBytes.get() + " of " + maxBytes + " bytes reserved).");
+		}
+	}
+
+	/**
+	 * Cuts a new slab into chunks for the given size class. When the arena is full, a free chunk
+	 * of a larger size class is used instead.
+	 * @return the first chunk, the others are added to the free list.
+	 */
+	private ByteBuffer newSlab(int index) throws IOException {
+
+		SizeClass sizeClass = sizeClasses[index];
+		if (!tryReserve(sizeClass.slabSize)) {
+			for (int i = index + 1; i < sizeClasses.length; i++) {
+				ByteBuffer larger = sizeClasses[i].free.poll();
+				if (larger != null) {
+					return larger;
+				}
+			}
+			reserve(sizeClass.slabSize);
+		}
+		ByteBuffer slab = ByteBuffer.allocateDirect(sizeClass.slabSize);
+		int chunks = sizeClass.slabSize / sizeClass.chunkSize;
+		ByteBuffer first = null;
+		for (int i = 0; i < chunks; i++) {
+			slab.limit((i + 1) * sizeClass.chunkSize).position(i * sizeClass.chunkSize);
+			ByteBuffer chunk = slab.slice();
+			if (first == null) {
+				first = chunk;
+			} else {
+				sizeClass.free.add(chunk);
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("New slab for chunks of " + sizeClass.chunkSize + " bytes, " + reservedBytes.get() + " bytes reserved.");
+		}
+		return first;
+	}
+
+	private ByteBufferInputStream openView(Chunk chunk, ByteBuffer content) {
+
+		ChunkInputStream in = new ChunkInputStream(content);
+		in.view = new View(in, chunk, collectedViews);
+		openViews.add(in.view);
+		return in;
+	}
+
+	private void releaseCollectedViews() {
+
+		View view;
+		while ((view = (View) collectedViews.poll()) != null) {
+			if (view.release(openViews) && log.isDebugEnabled()) {
+				log.debug("Released chunk of a content stream that was not closed.");
+			}
+		}
+	}
+
+	/**
+	 * Memory for the content of one message. The buffer is written by the owner before the chunk is shared,
+	 * readers use {@link #stream(int, int)} or {@link #copyTo(ByteBuffer)}.
+	 * A chunk is never re-used: when its memory is re-used, it is handed out by a new chunk.
+	 */
+	public static final class Chunk {
+
+		private final SlabArena arena;
+		private final ByteBuffer buffer;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		Chunk(SlabArena arena, ByteBuffer buffer) {
+
+			this.arena = arena;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return the memory of the chunk, for the owner only.
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * @return false when the chunk was already returned to the arena.
+		 */
+		public boolean retain() {
+
+			int count;
+			do {
+				count = references.get();
+				if (count <= 0) {
+					return false;
+				}
+			} while (!references.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		/**
+		 * Releases one reference, the memory is returned to the arena when it was the last.
+		 */
+		public void release() {
+
+			int count = references.decrementAndGet();
+			if (count == 0) {
+				arena.free(buffer);
+			} else if (count < 0) {
+				throw new IllegalStateException("Chunk released more often than it was retained.");
+			}
+		}
+
+		/**
+		 * @return a read-only stream over bytes <code>from</code> to <code>to</code> of the content,
+		 * the chunk is retained until the stream is closed.
+		 * @throws IOException when the chunk was already returned to the arena (e.g. the message was expunged).
+		 */
+		public ByteBufferInputStream stream(int from, int to) throws IOException {
+
+			if (!retain()) {
+				throw new IOException("Content is no longer available, the message was deleted.");
+			}
+			ByteBuffer content = buffer.asReadOnlyBuffer();
+			content.limit(to).position(from);
+			return arena.openView(this, content.slice());
+		}
+
+		/**
+		 * Copies the content (position 0 to limit) to the target.
+		 * @throws IOException when the chunk was already returned to the arena.
+		 */
+		public void copyTo(ByteBuffer target) throws IOException {
+
+			if (!retain()) {
+				throw new IOException("Content is no longer available, the message was deleted.");
+			}
+			try {
+				target.put(buffer.duplicate());
+			} finally {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Releases its reference to the chunk when closed.
+	 */
+	private static final class ChunkInputStream extends ByteBufferInputStream {
+
+		View view;
+
+		ChunkInputStream(ByteBuffer content) {
+			super(content);
+		}
+
+		@Override
+		public void close() {
+			view.release(view.chunk.arena.openViews);
+		}
+	}
+
+	/**
+	 * The reference of a stream to a chunk, released once when the stream is closed or collected.
+	 */
+	private static final class View extends PhantomReference<ByteBufferInputStream> {
+
+		final Chunk chunk;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		View(ByteBufferInputStream stream, Chunk chunk, ReferenceQueue<ByteBufferInputStream> queue) {
+
+			super(stream, queue);
+			this.chunk = chunk;
+		}
+
+		/**
+		 * @return true when the reference was released by this call.
+		 */
+		boolean release(Set<View> openViews) {
+
+			if (!released.compareAndSet(false, true)) {
+				return false;
+			}
+			openViews.remove(this);
+			clear();
+			chunk.release();
+			return true;
+		}
+	}
+
+}
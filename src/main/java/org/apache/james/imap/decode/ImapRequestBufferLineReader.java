@@ -0,0 +1,200 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.decode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.james.imap.api.display.HumanReadableText;
+import org.apache.james.protocols.imap.DecodingException;
+import org.apache.james.protocols.imap.utils.EolInputStream;
+
+/**
+ * {@link ImapRequestLineReader} that decodes one complete, already framed, command
+ * from a {@link ByteBuffer}. Literals are served as views on the buffer without copying.
+ * <br>The frame must contain all literal data, so command continuation requests
+ * are the responsibility of whoever frames the command (see {@link #commandContinuationRequest()}).
+ * Large literals can be left out of the buffer and given as {@link SpilledLiteral}s instead.
+ */
+public class ImapRequestBufferLineReader extends ImapRequestLineReader implements RawRequestLine {
+
+    private static final SpilledLiteral[] NO_SPILLED_LITERALS = new SpilledLiteral[0];
+
+    private final ByteBuffer buffer;
+
+    private final SpilledLiteral[] spilled;
+
+    private int nextSpilled;
+
+    /**
+     * @param buffer the command bytes between position and limit.
+     * The position of the buffer is moved while decoding.
+     */
+    public ImapRequestBufferLineReader(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * @param buffer the command bytes between position and limit, without the data of the spilled literals.
+     * The position of the buffer must be at the start of the command.
+     * @param spilled literals (in order) that were removed from the buffer, null for none.
+     */
+    public ImapRequestBufferLineReader(ByteBuffer buffer, SpilledLiteral[] spilled) {
+        this.buffer = buffer;
+        this.spilled = (spilled == null ? NO_SPILLED_LITERALS : spilled);
+    }
+
+    /**
+     * @see ImapRequestLineReader#nextChar()
+     */
+    public char nextChar() throws DecodingException {
+        if (!nextSeen) {
+            if (!buffer.hasRemaining()) {
+                throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Unexpected end of stream.");
+            }
+            nextSeen = true;
+            nextChar = (char) (buffer.get() & 0xFF);
+        }
+        return nextChar;
+    }
+
+    /**
+     * The peeked character is always the last byte taken from the buffer.
+     */
+    private int lineStart() {
+        return (nextSeen ? buffer.position() - 1 : buffer.position());
+    }
+
+    public int lineLength() {
+        int start = lineStart();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return i - start + 1;
+            }
+        }
+        return -1;
+    }
+
+    public byte lineByte(int index) {
+        return buffer.get(lineStart() + index);
+    }
+
+    public void consumeLineBytes(int length) {
+        buffer.position(lineStart() + length);
+        nextSeen = false;
+        nextChar = 0;
+    }
+
+    /**
+     * @see ImapRequestLineReader#read(int, boolean)
+     */
+    public InputStream read(int size, boolean extraCRLF) throws DecodingException {
+
+        // Unset the next char.
+        nextSeen = false;
+        nextChar = 0;
+        if (nextSpilled < spilled.length && spilled[nextSpilled].getOffset() == buffer.position()) {
+            return readSpilled(spilled[nextSpilled++], size, extraCRLF);
+        }
+        if (buffer.remaining() < size) {
+            throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Literal is incomplete, expected " + size + " bytes but found " + buffer.remaining());
+        }
+        ByteBuffer literal = buffer.slice();
+        literal.limit(size);
+        buffer.position(buffer.position() + size);
+        InputStream in = new ByteBufferInputStream(literal);
+        if (extraCRLF) {
+            return new EolInputStream(this, in);
+        } else {
+            return in;
+        }
+    }
+
+    private InputStream readSpilled(SpilledLiteral literal, int size, boolean extraCRLF) throws DecodingException {
+
+        if (literal.size() != size) {
+            throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Literal size " + size + " does not match received literal of " + literal.size() + " bytes");
+        }
+        InputStream in;
+        try {
+            in = literal.getInputStream();
+        } catch (IOException e) {
+            throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Cannot read received literal.", e);
+        }
+        if (extraCRLF) {
+            return new EolInputStream(this, in);
+        } else {
+            return in;
+        }
+    }
+
+    /**
+     * No-op: the literal data is already in the buffer, the framer has sent
+     * the continuation request (if any) before the literal data was received.
+     */
+    protected void commandContinuationRequest() throws DecodingException {
+        // NO-OP
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    public static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return (buffer.hasRemaining() ? buffer.get() & 0xFF : -1);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0L, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,368 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.decode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.james.imap.api.display.HumanReadableText;
+import org.apache.james.protocols.imap.DecodingException;
+import org.apache.james.protocols.imap.utils.EolInputStream;
+
+/**
+ * {@link ImapRequestLineReader} that reads the input stream in blocks into a reusable buffer
+ * instead of calling {@link InputStream#read()} for each octet.
+ * <br>Since bytes after the current command may already be buffered, one instance must be used
+ * for all commands read from the same stream, e.g. via
+ * {@link org.apache.james.imap.decode.main.ImapRequestStreamHandler#handleRequest(ImapRequestLineReader, OutputStream, org.apache.james.imap.api.process.ImapSession)}.
+ * This reader is not thread-safe.
+ */
+public class ImapRequestBufferedLineReader extends ImapRequestLineReader implements RawRequestLine {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private InputStream input;
+
+    private final OutputStream output;
+
+    private final byte[] buffer;
+
+    private int pos;
+
+    private int limit;
+
+    private long bytesRead;
+
+    public ImapRequestBufferedLineReader(InputStream input, OutputStream output) {
+        this(input, output, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ImapRequestBufferedLineReader(InputStream input, OutputStream output, int bufferSize) {
+        this.input = input;
+        this.output = output;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads the next character in the current line. This method will continue
+     * to return the same character until the {@link #consume()} method is
+     * called.
+     *
+     * @see ImapRequestLineReader#nextChar()
+     * @throws DecodingException
+     *             If the end-of-stream is reached.
+     */
+    public char nextChar() throws DecodingException {
+        if (!nextSeen) {
+            if (pos == limit && !fill()) {
+                throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Unexpected end of stream.");
+            }
+            nextSeen = true;
+            nextChar = (char) (buffer[pos++] & 0xFF);
+        }
+        return nextChar;
+    }
+
+    /**
+     * Skips to the end of the line by scanning the buffer instead of consuming character by character.
+     */
+    @Override
+    public void consumeLine() throws DecodingException {
+        if (nextSeen) {
+            nextSeen = false;
+            if (nextChar == '\n') {
+                nextChar = 0;
+                return;
+            }
+            nextChar = 0;
+        }
+        while (true) {
+            for (int i = pos; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    pos = i + 1;
+                    return;
+                }
+            }
+            pos = limit;
+            if (!fill()) {
+                throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Unexpected end of stream.");
+            }
+        }
+    }
+
+    /**
+     * Scans an atom in the buffer in one go when it consists of common (alpha-numeric and
+     * sequence-set) characters and ends within the buffer.
+     * Anything else is left to the validating implementation of the super class.
+     */
+    @Override
+    public String atom() throws DecodingException {
+        nextWordChar();
+        // The peeked character is always the last byte taken from the buffer.
+        final int start = pos - 1;
+        int i = pos;
+        while (i < limit && isCommonAtomChar(buffer[i])) {
+            i++;
+        }
+        if (isCommonAtomChar(buffer[start]) && i < limit && isWordEnd(buffer[i])) {
+            String atom = new String(buffer, start, i - start, StandardCharsets.US_ASCII);
+            pos = i;
+            nextSeen = false;
+            nextChar = 0;
+            return atom;
+        }
+        return super.atom();
+    }
+
+    private static boolean isCommonAtomChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '.' || b == '-' || b == '_' || b == ':' || b == ',';
+    }
+
+    /**
+     * A tab is left to the super class, whose handling of it decides the result.
+     */
+    private static boolean isWordEnd(byte b) {
+        return b == ' ' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * The peeked character is always the last byte taken from the buffer.
+     * A line that does not end within the buffer is not read further (-1).
+     */
+    public int lineLength() {
+        int start = (nextSeen ? pos - 1 : pos);
+        for (int i = start; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i - start + 1;
+            }
+        }
+        return -1;
+    }
+
+    public byte lineByte(int index) {
+        return buffer[(nextSeen ? pos - 1 : pos) + index];
+    }
+
+    public void consumeLineBytes(int length) {
+        pos = (nextSeen ? pos - 1 : pos) + length;
+        nextSeen = false;
+        nextChar = 0;
+    }
+
+    /**
+     * @return true when bytes of a next command were already received, e.g. because the client pipelines commands.
+     */
+    public boolean hasBufferedInput() {
+        return pos < limit;
+    }
+
+    /**
+     * @return amount of bytes read from the input stream.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Blocks until input is buffered or the end of the stream was reached, so that a caller can wait
+     * for a next command without holding locks that are needed to write responses in the meantime.
+     */
+    public void awaitInput() throws DecodingException {
+        if (pos == limit) {
+            fill();
+        }
+    }
+
+    /**
+     * Blocks until a complete line is buffered, the buffer is full or the end of the stream was reached,
+     * so that a command line can usually be decoded without waiting for input.
+     */
+    public void awaitLine() throws DecodingException {
+        awaitInput();
+        int scanned = pos;
+        while (true) {
+            for (; scanned < limit; scanned++) {
+                if (buffer[scanned] == '\n') {
+                    return;
+                }
+            }
+            int start = (nextSeen ? pos - 1 : pos);
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                scanned -= start;
+                pos -= start;
+                limit -= start;
+            }
+            if (limit == buffer.length) {
+                return;
+            }
+            int read;
+            try {
+                read = input.read(buffer, limit, buffer.length - limit);
+            } catch (IOException e) {
+                throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Error reading from stream.", e);
+            }
+            if (read < 0) {
+                return;
+            }
+            limit += read;
+            bytesRead += read;
+        }
+    }
+
+    /**
+     * Removes the bytes that were received but not yet read from the buffer, used together with
+     * {@link #setInput(InputStream)} when the connection switches to compression.
+     *
+     * @return the buffered bytes after the current command.
+     */
+    public byte[] takeBufferedInput() {
+        byte[] buffered = Arrays.copyOfRange(buffer, pos, limit);
+        pos = limit = 0;
+        return buffered;
+    }
+
+    /**
+     * Replaces the stream that is read from when the buffer is empty.
+     */
+    public void setInput(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Serves the literal from the buffer first and then directly from the stream,
+     * without reading past the end of the literal.
+     *
+     * @see ImapRequestLineReader#read(int, boolean)
+     */
+    public InputStream read(int size, boolean extraCRLF) throws DecodingException {
+
+        // Unset the next char.
+        nextSeen = false;
+        nextChar = 0;
+        InputStream in = new LiteralInputStream(size);
+        if (extraCRLF) {
+            return new EolInputStream(this, in);
+        } else {
+            return in;
+        }
+    }
+
+    /**
+     * Sends a server command continuation request '+' back to the client,
+     * requesting more data to be sent.
+     */
+    protected void commandContinuationRequest() throws DecodingException {
+        try {
+            output.write('+');
+            output.write('\r');
+            output.write('\n');
+            output.flush();
+        } catch (IOException e) {
+            throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Unexpected exception in sending command continuation request.", e);
+        }
+    }
+
+    /**
+     * @return false when the end of the stream was reached.
+     */
+    private boolean fill() throws DecodingException {
+        int read;
+        try {
+            do {
+                read = input.read(buffer, 0, buffer.length);
+            } while (read == 0);
+        } catch (IOException e) {
+            throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Error reading from stream.", e);
+        }
+        if (read < 0) {
+            pos = limit = 0;
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        bytesRead += read;
+        return true;
+    }
+
+    /**
+     * Literal of a fixed size, read from the buffered bytes first.
+     */
+    private class LiteralInputStream extends InputStream {
+
+        private long remaining;
+
+        LiteralInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (pos == limit) {
+                int b = input.read();
+                if (b >= 0) {
+                    remaining--;
+                    bytesRead++;
+                }
+                return b;
+            }
+            remaining--;
+            return buffer[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int max = (int) Math.min(len, remaining);
+            int n;
+            if (pos < limit) {
+                n = Math.min(max, limit - pos);
+                System.arraycopy(buffer, pos, b, off, n);
+                pos += n;
+            } else {
+                n = input.read(b, off, max);
+                if (n < 0) {
+                    return -1;
+                }
+                bytesRead += n;
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(remaining, (limit - pos) + input.available());
+        }
+    }
+
+}
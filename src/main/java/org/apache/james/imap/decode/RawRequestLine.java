@@ -0,0 +1,26 @@
+package org.apache.james.imap.decode;
+
+/**
+ * Implemented by {@link ImapRequestLineReader}s that hold the rest of the current line in a buffer,
+ * so that a decoder can parse a line from its bytes and only consume the line when it recognizes the command.
+ */
+public interface RawRequestLine {
+
+    /**
+     * @return amount of bytes from the next character (also when it was already peeked) up to and including
+     * the line-end ('\n'), or -1 when the line-end is not buffered.
+     */
+    int lineLength();
+
+    /**
+     * @param index index in the line, 0 is the next character.
+     */
+    byte lineByte(int index);
+
+    /**
+     * Consumes bytes of the line, afterwards no character is peeked.
+     * @param length amount of bytes from the next character, at most {@link #lineLength()}.
+     */
+    void consumeLineBytes(int length);
+
+}
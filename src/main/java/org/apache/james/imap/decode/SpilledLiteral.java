@@ -0,0 +1,85 @@
+package org.apache.james.imap.decode;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.james.imap.message.response.FileLiteral;
+
+/**
+ * Literal data of a command that was written to a temporary file while it was received,
+ * instead of being kept in the buffer of the command.
+ * The literal is removed from the command's bytes, {@link #getOffset()} is where it was.
+ * <br>The file is deleted when the literal is closed (on most systems the file is unlinked right after it was opened).
+ */
+public class SpilledLiteral implements Closeable {
+
+    private final int offset;
+    private final long size;
+    private final FileChannel channel;
+    private long written;
+
+    /**
+     * @param directory directory for the temporary file, null for the system's temporary directory.
+     * @param offset offset of the literal data in the command.
+     * @param size size of the literal.
+     */
+    public SpilledLiteral(File directory, int offset, long size) throws IOException {
+        Path path = File.createTempFile("jimap-literal", ".tmp", directory).toPath();
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * Offset in the command's bytes (after removal of the literal data) at which the literal data starts.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return amount of literal bytes not yet received.
+     */
+    public long remaining() {
+        return size - written;
+    }
+
+    /**
+     * Appends received literal data, the position of the buffer is not changed.
+     * @param from index of the first byte in the buffer.
+     * @param length amount of bytes, at most {@link #remaining()}.
+     */
+    public void write(ByteBuffer buf, int from, int length) throws IOException {
+        ByteBuffer data = buf.duplicate();
+        data.limit(from + length);
+        data.position(from);
+        while (data.hasRemaining()) {
+            written += channel.write(data, written);
+        }
+    }
+
+    /**
+     * @return a stream that reads the literal with positional reads, so that it can be read more than once.
+     */
+    public InputStream getInputStream() throws IOException {
+        return new FileLiteral(channel, 0L, size).getInputStream();
+    }
+
+    /**
+     * Deletes the file.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -19,33 +19,87 @@
 
 package org.apache.james.imap.decode.main;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import org.apache.james.imap.api.ImapMessage;
 import org.apache.james.imap.api.ImapSessionState;
+import org.apache.james.imap.api.message.request.ImapRequest;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapLineHandler;
 import org.apache.james.imap.api.process.ImapProcessor;
 import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.decode.ImapDecoder;
 import org.apache.james.imap.decode.ImapRequestLineReader;
 import org.apache.james.imap.decode.ImapRequestStreamLineReader;
+import org.apache.james.imap.decode.RawRequestLine;
 import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
 import org.apache.james.imap.encode.base.ImapResponseComposerImpl;
+import org.apache.james.imap.encode.base.RawImapResponseComposer;
 import org.apache.james.imap.main.AbstractImapRequestHandler;
 import org.apache.james.imap.message.request.SystemMessage;
 import org.apache.james.protocols.imap.DecodingException;
 import org.slf4j.Logger;
 
+import com.descartes.gos.jimap.metrics.ImapMetrics;
+
 
 /**
  * <br>Copied from test sources.
+ * <br>When {@link #setMetrics(ImapMetrics) metrics} are set, the decode, process and encode time
+ * and the response bytes of each command are recorded.
  */
 public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
 
+    private volatile boolean coalesceResponses;
+
+    private volatile ImapMetrics metrics;
+
     public ImapRequestStreamHandler(final ImapDecoder decoder, final ImapProcessor processor, final ImapEncoder encoder) {
         super(decoder, processor, encoder);
     }
 
+    /**
+     * When set, flushes requested by the encoder are not passed on to the output stream,
+     * so that responses to pipelined commands can be sent with one write.
+     * The caller of the handleRequest methods must then flush the output stream itself
+     * (at the latest when no more commands are waiting to be handled).
+     * Default false.
+     */
+    public void setCoalesceResponses(boolean coalesceResponses) {
+        this.coalesceResponses = coalesceResponses;
+    }
+
+    public boolean isCoalesceResponses() {
+        return coalesceResponses;
+    }
+
+    /**
+     * Records the handling of each command in the given metrics, null (the default) to record nothing.
+     */
+    public void setMetrics(ImapMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ImapMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ImapDecoder getDecoder() {
+        return decoder;
+    }
+
+    public ImapProcessor getProcessor() {
+        return processor;
+    }
+
+    public ImapEncoder getEncoder() {
+        return encoder;
+    }
+
     /**
      * This method parses IMAP commands read off the wire in handleConnection.
      * Actual processing of the command (possibly including additional back and
@@ -58,13 +112,22 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
      * @return whether additional commands are expected.
      */
     public boolean handleRequest(InputStream input, OutputStream output, ImapSession session) {
+        return handleRequest(new ImapRequestStreamLineReader(input, output), output, session);
+    }
+
+    /**
+     * Same as {@link #handleRequest(InputStream, OutputStream, ImapSession)} but reads the
+     * command from the given request reader. Used by front-ends that frame commands themselves
+     * (e.g. non-blocking servers that decode from buffers instead of streams).
+     * 
+     * @return whether additional commands are expected.
+     */
+    public boolean handleRequest(ImapRequestLineReader request, OutputStream output, ImapSession session) {
         final boolean result;
         if (isSelectedMailboxDeleted(session)) {
             writeSignoff(output, session);
             result = false;
         } else {
-            ImapRequestLineReader request = new ImapRequestStreamLineReader(input, output);
-
             final Logger logger = session.getLog();
             try {
                 request.nextChar();
@@ -74,9 +137,17 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
                 return false;
             }
 
-            ImapResponseComposerImpl response = new ImapResponseComposerImpl(new OutputStreamImapResponseWriter(output));
+            OutputStreamImapResponseWriter writer = new OutputStreamImapResponseWriter(output, !coalesceResponses);
+            ImapResponseComposerImpl response = new RawImapResponseComposer(writer);
+            ImapMetrics metrics = this.metrics;
+            boolean processed;
+            if (metrics == null) {
+                processed = doProcessRequest(request, response, session);
+            } else {
+                processed = doProcessRequest(request, response, writer, session, metrics);
+            }
 
-            if (doProcessRequest(request, response, session)) {
+            if (processed) {
 
                 try {
                     // Consume the rest of the line, throwing away any extras.
@@ -103,6 +174,121 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
         return result;
     }
 
+    /**
+     * Same as {@link #doProcessRequest(ImapRequestLineReader, ImapResponseComposer, ImapSession)}
+     * but records the time of each stage. Encoding happens while processing (via the responder),
+     * so the process time is the time of the processor minus the time of the encoder.
+     */
+    private boolean doProcessRequest(ImapRequestLineReader request, ImapResponseComposer response, OutputStreamImapResponseWriter writer, ImapSession session, ImapMetrics metrics) {
+        long start = System.nanoTime();
+        ImapMessage message = decoder.decode(request, session);
+        long decoded = System.nanoTime();
+        TimingResponseEncoder responseEncoder = new TimingResponseEncoder(encoder, response, session);
+        processor.process(message, responseEncoder, session);
+        long processed = System.nanoTime();
+        metrics.commandHandled(commandName(message), decoded - start, processed - decoded - responseEncoder.encodeNanos,
+                responseEncoder.encodeNanos, writer.getBytesWritten());
+
+        final IOException failure = responseEncoder.failure;
+        if (failure == null) {
+            return true;
+        }
+        final Logger logger = session.getLog();
+        logger.info(failure.getMessage());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Failed to write " + message, failure);
+        }
+        return false;
+    }
+
+    private static String commandName(ImapMessage message) {
+        if (message instanceof ImapRequest) {
+            return ((ImapRequest) message).getCommand().getName();
+        }
+        return ImapMetrics.INVALID_COMMAND;
+    }
+
+    /**
+     * Passes the next line to the line handler instead of decoding it as a command,
+     * used while a command (e.g. IDLE) waits for a continuation line from the client.
+     * The line given to the line handler includes the line-end.
+     * 
+     * @return whether additional commands are expected.
+     */
+    public boolean handleLine(ImapRequestLineReader request, OutputStream output, ImapSession session, ImapLineHandler lineHandler) {
+        if (request instanceof RawRequestLine) {
+            // Copies the buffered line at once (e.g. DONE after IDLE).
+            RawRequestLine raw = (RawRequestLine) request;
+            int length = raw.lineLength();
+            if (length > 0) {
+                byte[] line = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    line[i] = raw.lineByte(i);
+                }
+                raw.consumeLineBytes(length);
+                lineHandler.onLine(session, line);
+                return !(ImapSessionState.LOGOUT == session.getState());
+            }
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream(16);
+        try {
+            char c;
+            do {
+                c = request.consume();
+                line.write(c);
+            } while (c != '\n');
+        } catch (DecodingException e) {
+            session.getLog().debug("Unexpected end of line. Cannot handle continuation line: ", e);
+            abandon(output, session);
+            return false;
+        }
+        lineHandler.onLine(session, line.toByteArray());
+        return !(ImapSessionState.LOGOUT == session.getState());
+    }
+
+    /**
+     * Releases the resources of a session of which the connection was closed without a LOGOUT.
+     */
+    public void closeSession(ImapSession session) {
+        if (session.getState() == ImapSessionState.LOGOUT) {
+            return;
+        }
+        try {
+            session.logout();
+        } catch (Throwable t) {
+            session.getLog().warn("Session logout failed. Resources may not be correctly recycled.");
+        }
+        processor.process(SystemMessage.FORCE_LOGOUT, new SilentResponder(), session);
+    }
+
+    /**
+     * Encodes responses like the responder of {@link AbstractImapRequestHandler} and adds up the time of encoding.
+     */
+    private static final class TimingResponseEncoder implements ImapProcessor.Responder {
+
+        private final ImapEncoder encoder;
+        private final ImapResponseComposer composer;
+        private final ImapSession session;
+        private long encodeNanos;
+        private IOException failure;
+
+        TimingResponseEncoder(ImapEncoder encoder, ImapResponseComposer composer, ImapSession session) {
+            this.encoder = encoder;
+            this.composer = composer;
+            this.session = session;
+        }
+
+        public void respond(ImapResponseMessage message) {
+            long start = System.nanoTime();
+            try {
+                encoder.encode(message, composer, session);
+            } catch (IOException e) {
+                failure = e;
+            }
+            encodeNanos += System.nanoTime() - start;
+        }
+    }
+
     private void writeSignoff(OutputStream output, ImapSession session) {
         try {
             output.write(MAILBOX_DELETED_SIGNOFF);
@@ -113,6 +299,10 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
     }
 
     private void abandon(OutputStream out, ImapSession session) {
+        ImapMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.abandoned();
+        }
         if (session != null) {
             try {
                 session.logout();
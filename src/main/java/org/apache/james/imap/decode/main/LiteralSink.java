@@ -0,0 +1,20 @@
+package org.apache.james.imap.decode.main;
+
+import java.io.IOException;
+
+import org.apache.james.imap.message.response.Literal;
+
+/**
+ * Implemented by output streams that can write a {@link Literal} more efficiently
+ * than copying its input stream, e.g. by transferring it to a socket channel or by
+ * deferring the copy until the socket is writable.
+ * Used by {@link OutputStreamImapResponseWriter#write(Literal)}.
+ */
+public interface LiteralSink {
+
+    /**
+     * Writes the literal after all bytes written so far.
+     */
+    void writeLiteral(Literal literal) throws IOException;
+
+}
@@ -3,6 +3,8 @@ package org.apache.james.imap.decode.main;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.james.imap.encode.ImapResponseWriter;
 import org.apache.james.imap.message.response.Literal;
@@ -11,17 +13,38 @@ import org.apache.james.imap.message.response.Literal;
  * Class providing methods to send response messages from the server to the
  * client.
  * <br>Copied from test sources.
+ * <br>Literals are handed to the output stream if it is a {@link LiteralSink},
+ * else they are copied using pooled buffers.
  */
 public class OutputStreamImapResponseWriter implements ImapResponseWriter {
 
+	public static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 32;
+
+	private static final ConcurrentLinkedQueue<byte[]> copyBuffers = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
 	private final OutputStream output;
+	private final boolean flushOutput;
+	private long bytesWritten;
 
 	public OutputStreamImapResponseWriter(OutputStream output) {
+		this(output, true);
+	}
+
+	/**
+	 * @param flushOutput if false, {@link #flush()} does not flush the output stream
+	 * and the owner of the output stream is responsible for flushing.
+	 */
+	public OutputStreamImapResponseWriter(OutputStream output, boolean flushOutput) {
 		this.output = output;
+		this.flushOutput = flushOutput;
 	}
 
 	public void flush() throws IOException {
-		output.flush();
+		if (flushOutput) {
+			output.flush();
+		}
 	}
 
 
@@ -31,15 +54,22 @@ public class OutputStreamImapResponseWriter implements ImapResponseWriter {
 	 * org.apache.james.imap.encode.ImapResponseWriter#write(org.apache.james.imap.message.response.Literal)
 	 */
 	public void write(Literal literal) throws IOException {
+		if (output instanceof LiteralSink) {
+			bytesWritten += literal.size();
+			((LiteralSink) output).writeLiteral(literal);
+			return;
+		}
 		InputStream in = null;
+		byte[] buffer = acquireBuffer();
 		try {
 			in = literal.getInputStream();
 
-			byte[] buffer = new byte[1024];
 			for (int len; (len = in.read(buffer)) != -1;) {
 				output.write(buffer, 0, len);
+				bytesWritten += len;
 			}
 		} finally {
+			releaseBuffer(buffer);
 			if (in != null) {
 				in.close();
 			}
@@ -52,6 +82,37 @@ public class OutputStreamImapResponseWriter implements ImapResponseWriter {
 	 */
 	public void write(byte[] buffer) throws IOException {
 		output.write(buffer);
+		bytesWritten += buffer.length;
+	}
+
+	/**
+	 * @return amount of response bytes written by this writer.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Pool shared by all threads (instead of thread-locals) so that it also works
+	 * for a virtual thread per connection.
+	 */
+	private static byte[] acquireBuffer() {
+
+		byte[] buffer = copyBuffers.poll();
+		if (buffer == null) {
+			return new byte[COPY_BUFFER_SIZE];
+		}
+		pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	private static void releaseBuffer(byte[] buffer) {
+
+		if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+			copyBuffers.offer(buffer);
+		} else {
+			pooledBuffers.decrementAndGet();
+		}
 	}
 
 }
@@ -0,0 +1,27 @@
+package org.apache.james.imap.encode.base;
+
+import java.io.IOException;
+
+import org.apache.james.imap.encode.ImapResponseWriter;
+
+/**
+ * Composer that can also write response lines that were encoded before (e.g. cached responses)
+ * with one write to the {@link ImapResponseWriter}.
+ */
+public class RawImapResponseComposer extends ImapResponseComposerImpl {
+
+    private final ImapResponseWriter writer;
+
+    public RawImapResponseComposer(ImapResponseWriter writer) {
+        super(writer);
+        this.writer = writer;
+    }
+
+    /**
+     * Writes complete response lines (including line-ends) after the responses composed so far.
+     */
+    public void writeEncoded(byte[] lines) throws IOException {
+        writer.write(lines);
+    }
+
+}
@@ -20,19 +20,51 @@
 package org.apache.james.imap.encode.main;
 
 import java.text.MessageFormat;
+import java.util.List;
 import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.james.imap.api.display.HumanReadableText;
 import org.apache.james.imap.api.display.Locales;
 import org.apache.james.imap.api.display.Localizer;
 
 /**
- * Just uses {@link HumanReadableText#getDefaultValue()}. This implementation is
- * independent of user, client and system locale.
+ * Uses {@link HumanReadableText#getDefaultValue()} or, when a resource bundle base name is given,
+ * the value for {@link HumanReadableText#getKey()} from the resource bundle of the first
+ * preferred or acceptable locale that has the key.
+ * <br>Resolved patterns are cached per locale and key (texts without a key are not cached,
+ * their default value may contain dynamic values): texts without parameters are returned as is
+ * and patterns with only simple <code>{n}</code> placeholders are rendered without {@link MessageFormat}
+ * when all parameters are strings.
  * <br>Copied from apache-james-imap-message-0.3.
  */
 public class DefaultLocalizer implements Localizer {
 
+    private static final Locale DEFAULT_LOCALE = Locale.US;
+
+    private final String bundleBaseName;
+
+    private final Texts defaultTexts = new Texts(DEFAULT_LOCALE, null);
+
+    private final ConcurrentHashMap<Locale, Texts> localeTexts = new ConcurrentHashMap<Locale, Texts>();
+
+    /**
+     * Localizer that only uses default values, independent of user, client and system locale.
+     */
+    public DefaultLocalizer() {
+        this(null);
+    }
+
+    /**
+     * @param bundleBaseName base name of the (properties) resource bundles with localized texts,
+     * or null to use only default values.
+     */
+    public DefaultLocalizer(String bundleBaseName) {
+        this.bundleBaseName = bundleBaseName;
+    }
+
     /**
      * @see Localizer#localize(HumanReadableText, Locales)
      */
@@ -42,18 +74,191 @@ public class DefaultLocalizer implements Localizer {
         if (text == null) {
             result = null;
         } else {
-            //FIXME implement the locale selection
-            final Locale chosenLocale = Locale.US;
-            //FIXME implement the localized value lookup depending on chosenLocale
-            result = text.getDefaultValue();
-            
-            Object[] params = text.getParameters();
-            if (params != null && params.length > 0) {
-                MessageFormat messageFormat = new MessageFormat(result, chosenLocale);
-                result = messageFormat.format(params);
-            }
+            result = chooseTexts(text, locales).template(text).format(text.getParameters());
         }
         return result;
     }
 
+    private Texts chooseTexts(HumanReadableText text, Locales locales) {
+
+        if (bundleBaseName == null || locales == null) {
+            return defaultTexts;
+        }
+        Texts texts = textsFor(locales.getPreferredLocale());
+        if (texts != null && texts.hasKey(text.getKey())) {
+            return texts;
+        }
+        List<Locale> acceptable = locales.getAcceptableLocales();
+        if (acceptable != null) {
+            for (int i = 0; i < acceptable.size(); i++) {
+                texts = textsFor(acceptable.get(i));
+                if (texts != null && texts.hasKey(text.getKey())) {
+                    return texts;
+                }
+            }
+        }
+        return defaultTexts;
+    }
+
+    /**
+     * @return null if there is no resource bundle for the locale.
+     */
+    private Texts textsFor(Locale locale) {
+
+        if (locale == null) {
+            return null;
+        }
+        Texts texts = localeTexts.get(locale);
+        if (texts == null) {
+            ResourceBundle bundle;
+            try {
+                bundle = ResourceBundle.getBundle(bundleBaseName, locale, 
+                        ResourceBundle.Control.getNoFallbackControl(ResourceBundle.Control.FORMAT_PROPERTIES));
+            } catch (MissingResourceException e) {
+                bundle = null;
+            }
+            texts = new Texts(locale, bundle);
+            Texts previous = localeTexts.putIfAbsent(locale, texts);
+            if (previous != null) {
+                texts = previous;
+            }
+        }
+        return (texts.bundle == null ? null : texts);
+    }
+
+    /**
+     * Resolved patterns for one locale.
+     */
+    private static final class Texts {
+
+        final Locale locale;
+        final ResourceBundle bundle;
+        final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+        Texts(Locale locale, ResourceBundle bundle) {
+            this.locale = locale;
+            this.bundle = bundle;
+        }
+
+        boolean hasKey(String key) {
+            return (key != null && bundle != null && bundle.containsKey(key));
+        }
+
+        Template template(HumanReadableText text) {
+
+            String key = text.getKey();
+            if (key == null) {
+                return new Template(text.getDefaultValue(), locale);
+            }
+            Template template = templates.get(key);
+            if (template == null) {
+                String pattern = (hasKey(key) ? bundle.getString(key) : text.getDefaultValue());
+                template = new Template(pattern, locale);
+                templates.putIfAbsent(key, template);
+            }
+            return template;
+        }
+    }
+
+    /**
+     * A pattern, pre-parsed when it only contains <code>{n}</code> placeholders.
+     */
+    private static final class Template {
+
+        private final String pattern;
+        private final Locale locale;
+        /** Text before each placeholder followed by the text after the last placeholder, null if not a simple pattern. */
+        private final String[] parts;
+        private final int[] arguments;
+        private MessageFormat messageFormat;
+
+        Template(String pattern, Locale locale) {
+
+            this.pattern = pattern;
+            this.locale = locale;
+            int placeholders = countSimplePlaceholders(pattern);
+            if (placeholders < 0) {
+                parts = null;
+                arguments = null;
+            } else {
+                parts = new String[placeholders + 1];
+                arguments = new int[placeholders];
+                int start = 0;
+                for (int i = 0; i < placeholders; i++) {
+                    int open = pattern.indexOf('{', start);
+                    int close = pattern.indexOf('}', open);
+                    parts[i] = pattern.substring(start, open);
+                    arguments[i] = Integer.parseInt(pattern.substring(open + 1, close));
+                    start = close + 1;
+                }
+                parts[placeholders] = pattern.substring(start);
+            }
+        }
+
+        String format(Object[] params) {
+
+            if (params == null || params.length == 0 || pattern == null) {
+                return pattern;
+            }
+            if (parts != null && allStrings(params)) {
+                StringBuilder sb = new StringBuilder(pattern.length() + 16 * arguments.length);
+                for (int i = 0; i < arguments.length; i++) {
+                    sb.append(parts[i]);
+                    int arg = arguments[i];
+                    if (arg < params.length) {
+                        sb.append((String) params[arg]);
+                    } else {
+                        // Same as MessageFormat for a missing argument.
+                        sb.append('{').append(arg).append('}');
+                    }
+                }
+                return sb.append(parts[arguments.length]).toString();
+            }
+            synchronized (this) {
+                if (messageFormat == null) {
+                    messageFormat = new MessageFormat(pattern, locale);
+                }
+                return messageFormat.format(params);
+            }
+        }
+
+        private static boolean allStrings(Object[] params) {
+
+            for (int i = 0; i < params.length; i++) {
+                if (!(params[i] instanceof String)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the amount of <code>{n}</code> placeholders, or -1 if the pattern contains quotes or other format elements.
+         */
+        private static int countSimplePlaceholders(String pattern) {
+
+            if (pattern == null) {
+                return -1;
+            }
+            int count = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\'' || c == '}') {
+                    return -1;
+                }
+                if (c == '{') {
+                    int digits = 0;
+                    while (++i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+                        digits++;
+                    }
+                    if (digits == 0 || digits > 3 || i == pattern.length() || pattern.charAt(i) != '}') {
+                        return -1;
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
 }
@@ -0,0 +1,36 @@
+package org.apache.james.imap.message.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link ChannelLiteral} for the remaining content of a byte buffer. When the buffer is direct
+ * (off-heap or memory-mapped), the content is written to the channel without a copy through the Java heap.
+ * The buffer itself is not changed.
+ */
+public class ByteBufferLiteral implements ChannelLiteral {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferLiteral(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    public long size() {
+        return buffer.remaining();
+    }
+
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer b = buffer.duplicate();
+        b.position((int) position);
+        b.limit((int) Math.min(buffer.limit(), position + count));
+        return target.write(b);
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+}
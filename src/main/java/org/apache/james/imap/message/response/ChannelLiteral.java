@@ -0,0 +1,22 @@
+package org.apache.james.imap.message.response;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link Literal} with content that can be transferred to a channel without copying
+ * it through the Java heap (e.g. a file region or a memory-mapped buffer).
+ */
+public interface ChannelLiteral extends Literal {
+
+    /**
+     * Transfers content of this literal to the target channel.
+     * 
+     * @param position offset in this literal of the first byte to transfer.
+     * @param count maximum amount of bytes to transfer.
+     * @return the amount of bytes transferred, can be less than count
+     *         (e.g. zero when a non-blocking target cannot accept more data).
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+}
@@ -0,0 +1,65 @@
+package org.apache.james.imap.message.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link ChannelLiteral} for a region of a file, transferred with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * The file channel is not closed by this literal.
+ */
+public class FileLiteral implements ChannelLiteral {
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long size;
+
+    public FileLiteral(FileChannel channel, long offset, long size) {
+        this.channel = channel;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(offset + position, Math.min(count, size - position), target);
+    }
+
+    /**
+     * @return a stream that reads the region with positional reads, so the position of the file channel is not used.
+     */
+    public InputStream getInputStream() throws IOException {
+        return new InputStream() {
+
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= size) {
+                    return -1;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(b, off, (int) Math.min(len, size - position));
+                int n = channel.read(bb, offset + position);
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+        };
+    }
+
+}
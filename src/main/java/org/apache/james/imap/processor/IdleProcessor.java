@@ -0,0 +1,254 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapSessionState;
+import org.apache.james.imap.api.display.HumanReadableText;
+import org.apache.james.imap.api.message.response.StatusResponse;
+import org.apache.james.imap.api.message.response.StatusResponseFactory;
+import org.apache.james.imap.api.process.ImapLineHandler;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.imap.message.request.IdleRequest;
+import org.apache.james.imap.message.response.ContinuationResponse;
+import org.apache.james.imap.processor.base.ImapSessionUtils;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxPath;
+
+import com.descartes.gos.jimap.JimapSession;
+
+/**
+ * Processes IDLE (RFC 2177): the client receives untagged updates of the selected mailbox until it sends DONE.
+ * <br>Copied from protocols-imap-1.6.3.
+ * <br>Responses are not written by the thread that changed the mailbox or by the heartbeat executor:
+ * for a {@link JimapSession} the mailbox listener and heartbeat only {@link JimapSession#post(Runnable) post}
+ * a task that writes the responses on the thread that handles the session's commands (after which the server flushes).
+ * Mailbox events that arrive before the task ran are combined into one update,
+ * so an idle session costs one queued task per burst of changes and no thread.
+ * The listener of a session that was closed while idling removes itself on the next event.
+ */
+public class IdleProcessor extends AbstractMailboxProcessor<IdleRequest> implements CapabilityImplementingProcessor {
+
+    public final static String SUPPORTS_IDLE = "IDLE";
+
+    private final static List<String> CAPS = Collections.unmodifiableList(Arrays.asList(SUPPORTS_IDLE));
+
+    private final static String DONE = "DONE";
+
+    public final static int DEFAULT_SCHEDULED_POOL_CORE_SIZE = 5;
+
+    public final static long DEFAULT_HEARTBEAT_INTERVAL_IN_SECONDS = 2 * 60;
+
+    private final long heartbeatInterval;
+
+    private final TimeUnit heartbeatIntervalUnit;
+
+    private final ScheduledExecutorService heartbeatExecutor;
+
+    public IdleProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory) {
+        this(next, mailboxManager, factory, DEFAULT_HEARTBEAT_INTERVAL_IN_SECONDS, TimeUnit.SECONDS, Executors.newScheduledThreadPool(DEFAULT_SCHEDULED_POOL_CORE_SIZE));
+    }
+
+    /**
+     * @param heartbeatInterval interval of untagged OK responses to idling clients, 0 or less for none.
+     */
+    public IdleProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory, long heartbeatInterval, TimeUnit heartbeatIntervalUnit, ScheduledExecutorService heartbeatExecutor) {
+        super(IdleRequest.class, next, mailboxManager, factory);
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatIntervalUnit = heartbeatIntervalUnit;
+        this.heartbeatExecutor = heartbeatExecutor;
+    }
+
+    protected void doProcess(final IdleRequest message, final ImapSession session, final String tag, final ImapCommand command, final Responder responder) {
+
+        final MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        final long sessionId = sessionId(session);
+        try {
+            final MailboxManager mailboxManager = getMailboxManager();
+            final SelectedMailbox sm = session.getSelected();
+            final MailboxPath path = (sm == null ? null : sm.getPath());
+            final MailboxListener idleListener;
+            if (path != null) {
+                idleListener = new IdleMailboxListener(closed, session, sessionId, responder, path, mailboxSession);
+                mailboxManager.addListener(path, idleListener, mailboxSession);
+            } else {
+                idleListener = null;
+            }
+
+            session.pushLineHandler(new ImapLineHandler() {
+
+                public void onLine(ImapSession session, byte[] data) {
+                    String line;
+                    if (data.length > 2) {
+                        line = new String(data, 0, data.length - 2);
+                    } else {
+                        line = "";
+                    }
+
+                    if (idleListener != null) {
+                        try {
+                            mailboxManager.removeListener(path, idleListener, mailboxSession);
+                        } catch (MailboxException e) {
+                            session.getLog().error("Unable to remove idle listener for mailbox " + path, e);
+                        }
+                    }
+                    session.popLineHandler();
+                    if (!DONE.equals(line.toUpperCase(Locale.US))) {
+                        StatusResponse response = getStatusResponseFactory().taggedBad(tag, command, HumanReadableText.INVALID_COMMAND);
+                        responder.respond(response);
+                    } else {
+                        okComplete(command, tag, responder);
+                    }
+                    closed.set(true);
+                }
+            });
+
+            // Check if we should send heartbeats
+            if (heartbeatInterval > 0) {
+                final Runnable heartbeat = new Runnable() {
+
+                    public void run() {
+                        if (!closed.get() && !isEnded(session, sessionId)) {
+                            // Send a heartbeat to the client to make sure we
+                            // reset the idle timeout (IMAP-272).
+                            StatusResponse response = getStatusResponseFactory().untaggedOk(HumanReadableText.HEARTBEAT);
+                            responder.respond(response);
+                        }
+                    }
+                };
+                heartbeatExecutor.schedule(new Runnable() {
+
+                    public void run() {
+                        // check if we need to cancel the Runnable (IMAP-275)
+                        if (!closed.get() && !isEnded(session, sessionId)) {
+                            runInSession(session, heartbeat);
+                            // schedule the heartbeat again for the next heartbeat interval
+                            heartbeatExecutor.schedule(this, heartbeatInterval, heartbeatIntervalUnit);
+                        }
+                    }
+                }, heartbeatInterval, heartbeatIntervalUnit);
+            }
+
+            // Write the response after the listener was added (IMAP-341).
+            responder.respond(new ContinuationResponse(HumanReadableText.IDLING));
+            unsolicitedResponses(session, responder, false);
+
+        } catch (MailboxException e) {
+            no(command, tag, responder, HumanReadableText.GENERIC_FAILURE_DURING_PROCESSING);
+        }
+    }
+
+    /**
+     * Runs the task on the thread that handles the session's commands when the session supports this, else directly.
+     */
+    private static void runInSession(ImapSession session, Runnable task) {
+        if (session instanceof JimapSession) {
+            ((JimapSession) session).post(task);
+        } else {
+            task.run();
+        }
+    }
+
+    private static long sessionId(ImapSession session) {
+        return (session instanceof JimapSession ? ((JimapSession) session).getId() : 0L);
+    }
+
+    /**
+     * @return true when the session was logged out (or recycled) without ending the IDLE command.
+     */
+    private static boolean isEnded(ImapSession session, long sessionId) {
+        return session.getState() == ImapSessionState.LOGOUT || sessionId(session) != sessionId;
+    }
+
+    public List<String> getImplementedCapabilities(ImapSession session) {
+        return CAPS;
+    }
+
+    private final class IdleMailboxListener implements MailboxListener, Runnable {
+
+        private final AtomicBoolean closed;
+        private final ImapSession session;
+        private final long sessionId;
+        private final Responder responder;
+        private final MailboxPath path;
+        private final MailboxSession mailboxSession;
+        /** True while an update is posted but has not run yet. */
+        private final AtomicBoolean updatePending = new AtomicBoolean();
+
+        public IdleMailboxListener(AtomicBoolean closed, ImapSession session, long sessionId, Responder responder, MailboxPath path, MailboxSession mailboxSession) {
+            this.closed = closed;
+            this.session = session;
+            this.sessionId = sessionId;
+            this.responder = responder;
+            this.path = path;
+            this.mailboxSession = mailboxSession;
+        }
+
+        public void event(Event event) {
+            if (closed.get()) {
+                return;
+            }
+            if (isEnded(session, sessionId)) {
+                closed.set(true);
+                try {
+                    getMailboxManager().removeListener(path, this, mailboxSession);
+                } catch (MailboxException e) {
+                    session.getLog().debug("Unable to remove idle listener of closed session for mailbox " + path, e);
+                }
+                return;
+            }
+            // Check if the event was for the mailbox we are observing
+            if (event.getMailboxPath().equals(path) && updatePending.compareAndSet(false, true)) {
+                runInSession(session, this);
+            }
+        }
+
+        /**
+         * Writes the updates of the selected mailbox.
+         */
+        public void run() {
+            updatePending.set(false);
+            SelectedMailbox sm = session.getSelected();
+            if (!closed.get() && !isEnded(session, sessionId) && sm != null && path.equals(sm.getPath())) {
+                unsolicitedResponses(session, responder, false);
+            }
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+    }
+
+}
@@ -0,0 +1,471 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.FetchGroupImpl;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
+import org.apache.james.mailbox.model.UpdatedFlags;
+
+import com.descartes.gos.jimap.UidMsnMap;
+import com.descartes.gos.jimap.search.UidSet;
+
+/**
+ * Default implementation of {@link SelectedMailbox}.
+ * <br>Copied from protocols-imap-1.6.3.
+ * <br>The UID to MSN mapping is a {@link UidMsnMap} (runs of UIDs) instead of two maps with boxed keys and values,
+ * and the recent, expunged and flag-updated UIDs are {@link UidSet}s: a session with a large mailbox
+ * selected needs a few hundred bytes instead of tens of bytes per message.
+ * MSNs follow the UID order also when messages are added out of order.
+ */
+public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener {
+
+    private final static Flags FLAGS = new Flags();
+    static {
+        FLAGS.add(Flags.Flag.ANSWERED);
+        FLAGS.add(Flags.Flag.DELETED);
+        FLAGS.add(Flags.Flag.DRAFT);
+        FLAGS.add(Flags.Flag.FLAGGED);
+        FLAGS.add(Flags.Flag.SEEN);
+    }
+
+    private UidSet recentUids = new UidSet();
+
+    private boolean recentUidRemoved = false;
+
+    private final MailboxManager mailboxManager;
+
+    private MailboxPath path;
+
+    private final ImapSession session;
+
+    private final long sessionId;
+
+    private UidSet flagUpdateUids = new UidSet();
+
+    private final Flags.Flag uninterestingFlag = Flags.Flag.RECENT;
+
+    private UidSet expungedUids = new UidSet();
+
+    private final UidMsnMap uidMsnMap = new UidMsnMap();
+
+    private boolean isDeletedByOtherSession = false;
+
+    private boolean sizeChanged = false;
+
+    private boolean silentFlagChanges = false;
+
+    private final Flags applicableFlags = new Flags(FLAGS);
+
+    private boolean applicableFlagsChanged;
+
+    public SelectedMailboxImpl(final MailboxManager mailboxManager, final ImapSession session, final MailboxPath path) throws MailboxException {
+        this.session = session;
+        this.sessionId = ImapSessionUtils.getMailboxSession(session).getSessionId();
+        this.mailboxManager = mailboxManager;
+
+        // Ignore events from our session
+        setSilentFlagChanges(true);
+        this.path = path;
+        init();
+    }
+
+    private void init() throws MailboxException {
+        MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
+
+        mailboxManager.addListener(path, this, mailboxSession);
+
+        MessageResultIterator messages = mailboxManager.getMailbox(path, mailboxSession).getMessages(MessageRange.all(), FetchGroupImpl.MINIMAL, mailboxSession);
+        synchronized (this) {
+            while (messages.hasNext()) {
+                MessageResult mr = messages.next();
+                applicableFlags.add(mr.getFlags());
+                uidMsnMap.add(mr.getUid());
+            }
+
+            // \RECENT is not a applicable flag in imap so remove it from the list
+            applicableFlags.remove(Flags.Flag.RECENT);
+        }
+    }
+
+    /**
+     * @see SelectedMailbox#deselect()
+     */
+    public synchronized void deselect() {
+        MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
+
+        try {
+            mailboxManager.removeListener(path, this, mailboxSession);
+        } catch (MailboxException e) {
+            session.getLog().error("Unable to remove listener " + this + " from mailbox while closing it", e);
+        }
+
+        uidMsnMap.clear();
+        flagUpdateUids = new UidSet();
+        expungedUids = new UidSet();
+        recentUids = new UidSet();
+        recentUidRemoved = false;
+    }
+
+    /**
+     * @see SelectedMailbox#isSizeChanged()
+     */
+    public synchronized boolean isSizeChanged() {
+        return sizeChanged;
+    }
+
+    /**
+     * @see SelectedMailbox#isDeletedByOtherSession()
+     */
+    public synchronized boolean isDeletedByOtherSession() {
+        return isDeletedByOtherSession;
+    }
+
+    /**
+     * @see SelectedMailbox#resetEvents()
+     */
+    public synchronized void resetEvents() {
+        sizeChanged = false;
+        flagUpdateUids = new UidSet();
+        isDeletedByOtherSession = false;
+        applicableFlagsChanged = false;
+    }
+
+    /**
+     * @see SelectedMailbox#resetExpungedUids()
+     */
+    public synchronized void resetExpungedUids() {
+        expungedUids = new UidSet();
+    }
+
+    /**
+     * @see SelectedMailbox#addRecent(long)
+     */
+    public synchronized boolean addRecent(long uid) {
+        return recentUids.add(uid);
+    }
+
+    /**
+     * @see SelectedMailbox#getRecent()
+     */
+    public synchronized Collection<Long> getRecent() {
+        checkExpungedRecents();
+        return toList(recentUids);
+    }
+
+    /**
+     * @see SelectedMailbox#recentCount()
+     */
+    public synchronized int recentCount() {
+        checkExpungedRecents();
+        return (int) recentUids.cardinality();
+    }
+
+    /**
+     * @see SelectedMailbox#getPath()
+     */
+    public synchronized MailboxPath getPath() {
+        return path;
+    }
+
+    private void checkExpungedRecents() {
+        for (long uid : expungedUids.toArray()) {
+            removeRecent(uid);
+        }
+    }
+
+    /**
+     * @see SelectedMailbox#isRecent(long)
+     */
+    public synchronized boolean isRecent(long uid) {
+        return recentUids.contains(uid);
+    }
+
+    /**
+     * @see SelectedMailbox#isRecentUidRemoved()
+     */
+    public synchronized boolean isRecentUidRemoved() {
+        return recentUidRemoved;
+    }
+
+    /**
+     * @see SelectedMailbox#removeRecent(long)
+     */
+    public synchronized boolean removeRecent(long uid) {
+        final boolean result = recentUids.remove(uid);
+        if (result) {
+            recentUidRemoved = true;
+        }
+        return result;
+    }
+
+    /**
+     * @see SelectedMailbox#resetRecentUidRemoved()
+     */
+    public synchronized void resetRecentUidRemoved() {
+        recentUidRemoved = false;
+    }
+
+    /**
+     * @see SelectedMailbox#msn(long)
+     */
+    public synchronized int msn(long uid) {
+        return uidMsnMap.msn(uid);
+    }
+
+    /**
+     * @see SelectedMailbox#uid(int)
+     */
+    public synchronized long uid(int msn) {
+        if (msn == -1) {
+            return SelectedMailbox.NO_SUCH_MESSAGE;
+        }
+        return uidMsnMap.uid(msn);
+    }
+
+    /**
+     * @see SelectedMailbox#remove(Long)
+     */
+    public synchronized int remove(Long uid) {
+        return uidMsnMap.remove(uid);
+    }
+
+    /**
+     * @see SelectedMailbox#expungedUids()
+     */
+    public synchronized Collection<Long> expungedUids() {
+        return toList(expungedUids);
+    }
+
+    /**
+     * @see SelectedMailbox#flagUpdateUids()
+     */
+    public synchronized Collection<Long> flagUpdateUids() {
+        return toList(flagUpdateUids);
+    }
+
+    /**
+     * @see SelectedMailbox#existsCount()
+     */
+    public synchronized long existsCount() {
+        return uidMsnMap.size();
+    }
+
+    /**
+     * @see SelectedMailbox#getFirstUid()
+     */
+    public synchronized long getFirstUid() {
+        return uidMsnMap.first();
+    }
+
+    /**
+     * @see SelectedMailbox#getLastUid()
+     */
+    public synchronized long getLastUid() {
+        return uidMsnMap.last();
+    }
+
+    /**
+     * @see SelectedMailbox#getApplicableFlags()
+     */
+    public synchronized Flags getApplicableFlags() {
+        return applicableFlags;
+    }
+
+    /**
+     * @see SelectedMailbox#hasNewApplicableFlags()
+     */
+    public synchronized boolean hasNewApplicableFlags() {
+        return applicableFlagsChanged;
+    }
+
+    /**
+     * @see SelectedMailbox#resetNewApplicableFlags()
+     */
+    public synchronized void resetNewApplicableFlags() {
+        applicableFlagsChanged = false;
+    }
+
+    /**
+     * Is the mailbox deleted?
+     *
+     * @return true when the mailbox has been deleted by another session, false
+     *         otherwise
+     */
+    public synchronized boolean isDeleted() {
+        return isDeletedByOtherSession;
+    }
+
+    /**
+     * Is this listener closed?
+     *
+     * @return true when the listener is closed, false otherwise
+     */
+    public boolean isClosed() {
+        return false;
+    }
+
+    /**
+     * Should silent flag changes be ignored?
+     */
+    public synchronized void setSilentFlagChanges(boolean silentFlagChanges) {
+        this.silentFlagChanges = silentFlagChanges;
+    }
+
+    /**
+     * Are flag changes from current session ignored?
+     *
+     * @return true if any flag changes from current session will be ignored,
+     *         false otherwise
+     */
+    public synchronized boolean isSilentFlagChanges() {
+        return silentFlagChanges;
+    }
+
+    private boolean interestingFlags(UpdatedFlags updated) {
+        boolean result;
+        final Iterator<Flags.Flag> it = updated.systemFlagIterator();
+        if (it.hasNext()) {
+            final Flags.Flag flag = it.next();
+            if (flag.equals(uninterestingFlag)) {
+                result = false;
+            } else {
+                result = true;
+            }
+        } else {
+            result = false;
+        }
+        // See if we need to check the user flags
+        if (result == false) {
+            final Iterator<String> userIt = updated.userFlagIterator();
+            result = userIt.hasNext();
+        }
+        return result;
+    }
+
+    private void updateApplicableFlags(Flags flags) {
+        int size = applicableFlags.getUserFlags().length;
+        applicableFlags.add(flags);
+        applicableFlags.remove(Flags.Flag.RECENT);
+        if (size != applicableFlags.getUserFlags().length) {
+            applicableFlagsChanged = true;
+        }
+    }
+
+    public synchronized void event(Event event) {
+
+        // Check if the event was for the mailbox we are observing
+        if (event.getMailboxPath().equals(getPath())) {
+            final long eventSessionId = event.getSession().getSessionId();
+            if (event instanceof MessageEvent) {
+                final MessageEvent messageEvent = (MessageEvent) event;
+                if (messageEvent instanceof Added) {
+                    sizeChanged = true;
+                    final Added added = (Added) messageEvent;
+                    final List<Long> uids = added.getUids();
+                    for (int i = 0; i < uids.size(); i++) {
+                        final long uid = uids.get(i);
+                        uidMsnMap.add(uid);
+                        final MessageMetaData metaData = added.getMetaData(uid);
+                        if (metaData != null) {
+                            updateApplicableFlags(metaData.getFlags());
+                        }
+                    }
+                } else if (messageEvent instanceof FlagsUpdated) {
+                    FlagsUpdated updated = (FlagsUpdated) messageEvent;
+                    List<UpdatedFlags> uFlags = updated.getUpdatedFlags();
+                    if (sessionId != eventSessionId || !silentFlagChanges) {
+
+                        for (int i = 0; i < uFlags.size(); i++) {
+                            UpdatedFlags u = uFlags.get(i);
+
+                            if (interestingFlags(u)) {
+                                flagUpdateUids.add(u.getUid());
+                            }
+                        }
+                    }
+
+                    SelectedMailbox sm = session.getSelected();
+                    if (sm != null) {
+                        // We need to add the UID of the message to the recent
+                        // list if we receive an flag update which contains a
+                        // \RECENT flag
+                        // See IMAP-287
+                        for (int i = 0; i < uFlags.size(); i++) {
+                            UpdatedFlags u = uFlags.get(i);
+                            Iterator<Flag> flags = u.systemFlagIterator();
+
+                            while (flags.hasNext()) {
+                                if (Flag.RECENT.equals(flags.next())) {
+                                    MailboxPath path = sm.getPath();
+                                    if (path != null && path.equals(event.getMailboxPath())) {
+                                        sm.addRecent(u.getUid());
+                                    }
+                                }
+                            }
+                        }
+                    }
+
+                    for (int i = 0; i < uFlags.size(); i++) {
+                        updateApplicableFlags(uFlags.get(i).getNewFlags());
+                    }
+                } else if (messageEvent instanceof Expunged) {
+                    for (Long uid : messageEvent.getUids()) {
+                        expungedUids.add(uid);
+                    }
+                }
+            } else if (event instanceof MailboxDeletion) {
+                if (eventSessionId != sessionId) {
+                    isDeletedByOtherSession = true;
+                }
+            } else if (event instanceof MailboxRenamed) {
+                final MailboxRenamed mailboxRenamed = (MailboxRenamed) event;
+                path = mailboxRenamed.getNewPath();
+            }
+        }
+    }
+
+    private static List<Long> toList(UidSet uids) {
+        long[] values = uids.toArray();
+        List<Long> list = new ArrayList<Long>(values.length);
+        for (long uid : values) {
+            list.add(uid);
+        }
+        return list;
+    }
+
+}
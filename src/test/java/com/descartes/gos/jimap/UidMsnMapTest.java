@@ -0,0 +1,121 @@
+package com.descartes.gos.jimap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link UidMsnMap}, compared with a {@link TreeSet} of the same UIDs.
+ */
+public class UidMsnMapTest {
+
+	private static void assertMap(TreeSet<Long> expected, UidMsnMap map) {
+
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected.isEmpty(), map.isEmpty());
+		int msn = 1;
+		for (Long uid : expected) {
+			assertEquals("MSN of " + uid, msn, map.msn(uid));
+			assertEquals("UID of " + msn, uid.longValue(), map.uid(msn));
+			msn++;
+		}
+		assertEquals(UidMsnMap.NO_SUCH_MESSAGE, map.uid(0));
+		assertEquals(UidMsnMap.NO_SUCH_MESSAGE, map.uid(msn));
+		assertEquals(expected.isEmpty() ? UidMsnMap.NO_SUCH_MESSAGE : expected.first(), map.first());
+		assertEquals(expected.isEmpty() ? UidMsnMap.NO_SUCH_MESSAGE : expected.last(), map.last());
+	}
+
+	@Test
+	public void runs() {
+
+		UidMsnMap map = new UidMsnMap();
+		assertEquals(UidMsnMap.NO_SUCH_MESSAGE, map.first());
+		for (long uid = 1L; uid <= 100000L; uid++) {
+			assertTrue(map.add(uid));
+		}
+		assertEquals(1, map.getRunCount());
+		assertFalse(map.add(500L));
+		assertEquals(100000, map.size());
+		assertEquals(500, map.msn(500L));
+		assertEquals(500L, map.uid(500));
+		assertEquals(UidMsnMap.NO_SUCH_MESSAGE, map.msn(100001L));
+
+		assertEquals(500, map.remove(500L));
+		assertEquals(UidMsnMap.NO_SUCH_MESSAGE, map.remove(500L));
+		assertEquals(UidMsnMap.NO_SUCH_MESSAGE, map.msn(500L));
+		assertEquals(500, map.msn(501L));
+		assertEquals(501L, map.uid(500));
+		// Still in the runs, taken off the removed UIDs.
+		assertTrue(map.add(500L));
+		assertEquals(500, map.msn(500L));
+		assertEquals(100000, map.size());
+
+		map.add(0xFFFFFFFFL);
+		assertEquals(100001, map.msn(0xFFFFFFFFL));
+		assertEquals(0xFFFFFFFFL, map.last());
+		assertEquals(2, map.getRunCount());
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.getRunCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidUid() {
+		new UidMsnMap().add(0L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void uidAboveMaximum() {
+		new UidMsnMap().add(0x100000000L);
+	}
+
+	/**
+	 * Mostly ascending adds (with gaps), expunges of random messages (fewer and more than are kept before compacting)
+	 * and adds below the highest UID.
+	 */
+	@Test
+	public void randomChanges() {
+
+		Random random = new Random(1L);
+		UidMsnMap map = new UidMsnMap();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		long next = 1L;
+		for (int round = 0; round < 200; round++) {
+			int adds = random.nextInt(200);
+			for (int i = 0; i < adds; i++) {
+				next += (random.nextInt(5) == 0 ? 1L + random.nextInt(10) : 1L);
+				assertTrue(map.add(next));
+				expected.add(next);
+			}
+			int removes = (random.nextInt(10) == 0 ? 150 : random.nextInt(20));
+			List<Long> uids = new ArrayList<Long>(expected);
+			for (int i = 0; i < removes && !uids.isEmpty(); i++) {
+				Long uid = uids.remove(random.nextInt(uids.size()));
+				int msn = expected.headSet(uid).size() + 1;
+				assertEquals(msn, map.remove(uid));
+				expected.remove(uid);
+			}
+			int lower = random.nextInt(5);
+			for (int i = 0; i < lower; i++) {
+				long uid = 1L + (long) random.nextInt((int) next);
+				assertEquals(expected.add(uid), map.add(uid));
+			}
+			if (round % 20 == 0) {
+				assertMap(expected, map);
+			}
+		}
+		assertMap(expected, map);
+		for (int i = 0; i < 1000; i++) {
+			long uid = 1L + (long) random.nextInt((int) next + 10);
+			assertEquals(expected.contains(uid) ? expected.headSet(uid).size() + 1 : UidMsnMap.NO_SUCH_MESSAGE, map.msn(uid));
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.descartes.gos.jimap.condstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link ChangeLog}.
+ */
+public class ChangeLogTest {
+
+	private static void assertChanges(ChangeLog.Changes changes, long[] changed, long[] expunged) {
+
+		assertArrayEquals("changed", changed, changes.changed);
+		assertArrayEquals("expunged", expunged, changes.expunged);
+	}
+
+	private static long[] uids(long... uids) {
+		return uids;
+	}
+
+	@Test
+	public void notStarted() {
+
+		ChangeLog log = new ChangeLog(100);
+		log.changed(1L, 5L);
+		assertFalse(log.isStarted());
+		assertFalse(log.covers(10L, false));
+		assertNull(log.changesSince(10L, false));
+		assertTrue(log.start(7L, 4L));
+		assertFalse(log.start(8L, 6L));
+		assertEquals(7L, log.getUidValidity());
+		assertEquals(4L, log.getFloor());
+	}
+
+	@Test
+	public void changesSince() {
+
+		ChangeLog log = new ChangeLog(100);
+		log.start(1L, 10L);
+		assertTrue(log.covers(10L, false));
+		// Expunges at the floor are not known.
+		assertFalse(log.covers(10L, true));
+		assertFalse(log.covers(9L, false));
+		assertChanges(log.changesSince(10L, false), uids(), uids());
+
+		log.changed(1L, 11L);
+		log.changed(2L, 12L);
+		log.changed(1L, 13L);
+		log.expunged(3L, 13L);
+		assertChanges(log.changesSince(10L, false), uids(1L, 2L), uids(3L));
+		assertChanges(log.changesSince(11L, true), uids(1L, 2L), uids(3L));
+		assertChanges(log.changesSince(12L, true), uids(1L), uids(3L));
+		// The expunge has the highest mod-sequence of the mailbox when it was handled, clients that know it get the UID as vanished.
+		assertChanges(log.changesSince(13L, true), uids(), uids(3L));
+		assertChanges(log.changesSince(14L, true), uids(), uids());
+	}
+
+	@Test
+	public void lastChangeOfUid() {
+
+		ChangeLog log = new ChangeLog(100);
+		log.start(1L, 0L);
+		log.changed(4L, 1L);
+		log.expunged(4L, 2L);
+		log.changed(5L, 2L);
+		assertChanges(log.changesSince(1L, true), uids(5L), uids(4L));
+		// Events of concurrent changes out of order.
+		log.changed(6L, 5L);
+		log.changed(7L, 4L);
+		log.changed(5L, 3L);
+		assertChanges(log.changesSince(3L, true), uids(6L, 7L), uids());
+		assertChanges(log.changesSince(4L, true), uids(6L), uids());
+	}
+
+	/**
+	 * Older entries of UIDs that changed again are removed when the ring is full, the log still covers all changes.
+	 */
+	@Test
+	public void compactRepeatedChanges() {
+
+		ChangeLog log = new ChangeLog(16);
+		log.start(1L, 0L);
+		for (long modSeq = 1L; modSeq <= 1000L; modSeq++) {
+			log.changed(1L + modSeq % 3L, modSeq);
+		}
+		log.expunged(2L, 1000L);
+		assertTrue(log.size() <= 16);
+		assertEquals(0L, log.getFloor());
+		assertTrue(log.covers(1L, true));
+		assertChanges(log.changesSince(1L, true), uids(1L, 3L), uids(2L));
+		assertChanges(log.changesSince(998L, true), uids(1L), uids(2L));
+	}
+
+	/**
+	 * When compacting does not free half the ring, the oldest entries are dropped and the floor is raised.
+	 */
+	@Test
+	public void dropOldestChanges() {
+
+		ChangeLog log = new ChangeLog(16);
+		log.start(1L, 0L);
+		for (long uid = 1L; uid <= 40L; uid++) {
+			log.changed(uid, uid);
+		}
+		long floor = log.getFloor();
+		assertTrue(floor > 0L);
+		assertTrue(log.size() <= 16);
+		assertFalse(log.covers(floor - 1L, false));
+		assertNull(log.changesSince(floor, true));
+		long[] changed = new long[(int) (40L - floor)];
+		for (int i = 0; i < changed.length; i++) {
+			changed[i] = floor + 1L + i;
+		}
+		assertChanges(log.changesSince(floor, false), changed, uids());
+	}
+
+}
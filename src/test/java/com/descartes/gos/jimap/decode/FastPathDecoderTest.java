@@ -0,0 +1,398 @@
+package com.descartes.gos.jimap.decode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.message.FetchData;
+import org.apache.james.imap.api.message.IdRange;
+import org.apache.james.imap.api.message.request.ImapRequest;
+import org.apache.james.imap.api.message.request.SearchOperation;
+import org.apache.james.imap.api.message.response.StatusResponse;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestBufferLineReader;
+import org.apache.james.imap.decode.ImapRequestBufferedLineReader;
+import org.apache.james.imap.decode.ImapRequestLineReader;
+import org.apache.james.imap.decode.ImapRequestStreamLineReader;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.imap.main.DefaultImapDecoderFactory;
+import org.apache.james.imap.message.request.FetchRequest;
+import org.apache.james.imap.message.request.SearchRequest;
+import org.apache.james.imap.message.request.StoreRequest;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.descartes.gos.jimap.JimapSession;
+import com.descartes.gos.jimap.engine.ImapEngine;
+
+/**
+ * Differential test of the {@link FastPathDecoder}: command lines are decoded with the fast path and the default decoder
+ * and the decoded requests are compared. Each line is followed by a NOOP to check that both decoders leave the reader at the same line.
+ * <br>The fast path must recognize the common lines and leave the others to the default decoder (counted by a decoder in between).
+ */
+public class FastPathDecoderTest {
+
+	private static final String[] COMMANDS = new String[] { "NOOP", "IDLE", "UID FETCH", "UID STORE", "UID SEARCH",
+		"FETCH", "CHECK", "UID COPY", "UID EXPUNGE", "uid fetch", "Uid Store", "UID  FETCH", "UIDFETCH" };
+	private static final String[] FETCH_ITEMS = new String[] { "FLAGS", "UID", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE",
+		"BODYSTRUCTURE", "BODY", "flags", "Uid", "MODSEQ", "BODY[]", "BODY.PEEK[HEADER]", "RFC822", "BODY[TEXT]<0.10>", "X-UNKNOWN" };
+	private static final String[] FETCH_MACROS = new String[] { "ALL", "FAST", "FULL", "fast" };
+	private static final String[] FLAGS = new String[] { "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft",
+		"\\seen", "\\Recent", "\\Unknown", "$Label1", "$Junk", "NonJunk", "my-flag.1", "key_word", "\\*", "a%b", "\"quoted\"" };
+	private static final String[] SEARCH_KEYS = new String[] { "ALL", "ANSWERED", "DELETED", "DRAFT", "FLAGGED", "NEW", "OLD",
+		"RECENT", "SEEN", "UNANSWERED", "UNDELETED", "UNDRAFT", "UNFLAGGED", "UNSEEN", "unseen", "NOT SEEN", "OR SEEN DRAFT",
+		"SUBJECT hello", "CHARSET UTF-8 ALL", "RETURN (MIN) ALL", "KEYWORD $Label1", "LARGER 100" };
+	private static final String[] TAGS = new String[] { "a", "A001", "x.y-z", "t$1", "1", "a+b", "a*", "a{1}", "" };
+
+	/** Lines the fast path decodes in the selected state. */
+	private static final String[] RECOGNIZED = new String[] {
+		"a NOOP",
+		"a IDLE",
+		"a UID FETCH 1:10 (FLAGS UID)",
+		"a uid fetch 1,3,5:7 FAST",
+		"a UID FETCH 7:2 (FLAGS RFC822.SIZE INTERNALDATE ENVELOPE BODYSTRUCTURE)",
+		"a UID FETCH 1:* (FLAGS) (CHANGEDSINCE 12345 VANISHED)",
+		"a UID FETCH 1,2,3:4,4294967295 FLAGS",
+		"a UID STORE 1:5 +FLAGS.SILENT (\\Seen $Label1)",
+		"a UID STORE 2 (UNCHANGEDSINCE 7) -FLAGS (\\Deleted)",
+		"a UID STORE 3 FLAGS ()",
+		"a UID SEARCH UNSEEN",
+		"a UID SEARCH UID 1:100 UNDELETED",
+		"a UID SEARCH ALL",
+	};
+
+	/** Lines the fast path leaves to the default decoder in the selected state. */
+	private static final String[] FALLBACKS = new String[] {
+		"a UID FETCH 1 BODY[]",
+		"a UID FETCH 1:5 (FLAGS BODY.PEEK[HEADER])",
+		"a UID FETCH 1 (BODY[TEXT]<0.10>)",
+		"a UID FETCH * FLAGS",
+		"a UID FETCH *:4 FLAGS",
+		"a UID FETCH $ FLAGS",
+		"a UID FETCH 01 FLAGS",
+		"a UID FETCH 1:05 FLAGS",
+		"a UID FETCH 4294967296 FLAGS",
+		"a UID FETCH 12345678901 FLAGS",
+		"a FETCH 1:10 (FLAGS)",
+		"a UID STORE 1 +FLAGS (\\Recent)",
+		"a UID STORE 1 FLAGS (\"quoted\")",
+		"a UID STORE 01 +FLAGS (\\Seen)",
+		"a UID SEARCH CHARSET UTF-8 ALL",
+		"a UID SEARCH RETURN (MIN) ALL",
+		"a UID SEARCH NOT SEEN",
+		"a UID SEARCH SUBJECT hello",
+		"a UID SEARCH UID $",
+		"a UID FETCH 1 (FLAGS) x",
+	};
+
+	/** Lines the fast path leaves to the default decoder when not in the selected state. */
+	private static final String[] NOT_SELECTED = new String[] {
+		"a UID FETCH 1:10 (FLAGS UID)",
+		"a UID STORE 1 +FLAGS (\\Seen)",
+		"a UID SEARCH UNSEEN",
+	};
+
+	private static JimapSession selected;
+	private static JimapSession authenticated;
+	private static JimapSession notAuthenticated;
+
+	private final ImapDecoder decoder = DefaultImapDecoderFactory.createDecoder();
+	private int fallbacks;
+	private FastPathDecoder fastPath;
+
+	@BeforeClass
+	public static void createSessions() throws Exception {
+
+		ImapEngine engine = ImapEngine.builder().setChangeLogCapacity(0).build();
+		ImapRequestStreamHandler handler = engine.getHandler();
+		selected = new JimapSession();
+		execute(handler, selected, "a LOGIN test test");
+		execute(handler, selected, "b SELECT INBOX");
+		authenticated = new JimapSession();
+		execute(handler, authenticated, "a LOGIN test test");
+		notAuthenticated = new JimapSession();
+	}
+
+	@Before
+	public void createFastPath() {
+
+		fallbacks = 0;
+		fastPath = new FastPathDecoder(new ImapDecoder() {
+			public ImapMessage decode(ImapRequestLineReader request, ImapSession session) {
+				fallbacks++;
+				return decoder.decode(request, session);
+			}
+		});
+	}
+
+	@Test
+	public void recognized() {
+
+		for (String line : RECOGNIZED) {
+			assertSame(line, selected, 0);
+		}
+		assertSame("a NOOP", authenticated, 0);
+		assertSame("a IDLE", authenticated, 0);
+		assertSame("a NOOP", notAuthenticated, 0);
+	}
+
+	@Test
+	public void fallbacks() {
+
+		for (String line : FALLBACKS) {
+			assertSame(line, selected, 1);
+		}
+	}
+
+	@Test
+	public void wrongState() {
+
+		for (String line : NOT_SELECTED) {
+			assertSame(line, authenticated, 1);
+			assertSame(line, notAuthenticated, 1);
+		}
+		assertSame("a IDLE", notAuthenticated, 1);
+	}
+
+	@Test
+	public void randomLines() {
+
+		Random random = new Random(1L);
+		List<String> differences = new ArrayList<String>();
+		for (int i = 0; i < 20000; i++) {
+			String line = line(random);
+			JimapSession session = (random.nextInt(10) == 0 ? authenticated : selected);
+			String expected = decode(decoder, line, session);
+			String actual = decode(fastPath, line, session);
+			if (!expected.equals(actual) && differences.size() < 20) {
+				differences.add(line + "\n  default:   " + expected + "\n  fast path: " + actual);
+			}
+		}
+		assertEquals("", join(differences));
+	}
+
+	/**
+	 * Atoms scanned in one go by the {@link ImapRequestBufferedLineReader} are the atoms of the validating implementation
+	 * (of the stream reader), also when they end with a tab.
+	 */
+	@Test
+	public void bufferedReaderAtoms() {
+
+		String[] lines = new String[] { "a SELECT INBOX", "a SELECT INBOX\t", "a SELECT INBOX\tx", "a LOGIN user\tpass",
+			"a UID FETCH 1:5\t(FLAGS)", "a UID FETCH 1:5 (FLAGS)\t", "a CREATE Lists.2024-01_x", "a SELECT INB@X", "a\tNOOP" };
+		for (String line : lines) {
+			byte[] bytes = (line + "\r\nn NOOP\r\n").getBytes(StandardCharsets.US_ASCII);
+			String expected = decode(decoder, new ImapRequestStreamLineReader(new ByteArrayInputStream(bytes), new ByteArrayOutputStream()), selected);
+			String actual = decode(decoder, new ImapRequestBufferedLineReader(new ByteArrayInputStream(bytes), new ByteArrayOutputStream()), selected);
+			assertEquals(line, expected, actual);
+		}
+	}
+
+	/**
+	 * Asserts that the line and the following NOOP are decoded the same by both decoders,
+	 * with the given amount of commands left to the default decoder.
+	 */
+	private void assertSame(String line, ImapSession session, int expectedFallbacks) {
+
+		fallbacks = 0;
+		String expected = decode(decoder, line, session);
+		assertEquals(line, expected, decode(fastPath, line, session));
+		assertEquals("Fallbacks of " + line, expectedFallbacks, fallbacks);
+	}
+
+	private static String join(List<String> lines) {
+
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static void execute(ImapRequestStreamHandler handler, JimapSession session, String command) {
+		handler.handleRequest(reader(command + "\r\n"), new ByteArrayOutputStream(), session);
+	}
+
+	private static ImapRequestBufferLineReader reader(String lines) {
+		return new ImapRequestBufferLineReader(ByteBuffer.wrap(lines.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	/**
+	 * Same steps as {@link ImapRequestStreamHandler#handleRequest(ImapRequestLineReader, java.io.OutputStream, ImapSession)}
+	 * for the line and a following NOOP.
+	 */
+	private static String decode(ImapDecoder decoder, String line, ImapSession session) {
+		return decode(decoder, reader(line + "\r\nn NOOP\r\n"), session);
+	}
+
+	private static String decode(ImapDecoder decoder, ImapRequestLineReader reader, ImapSession session) {
+
+		StringBuilder sb = new StringBuilder();
+		try {
+			reader.nextChar();
+			describe(decoder.decode(reader, session), sb);
+			reader.consumeLine();
+			reader.nextChar();
+			sb.append(" / ");
+			describe(decoder.decode(reader, session), sb);
+		} catch (Exception e) {
+			sb.append(e);
+		}
+		return sb.toString();
+	}
+
+	private static void describe(ImapMessage message, StringBuilder sb) {
+
+		sb.append(message.getClass().getSimpleName());
+		if (message instanceof ImapRequest) {
+			ImapRequest request = (ImapRequest) message;
+			sb.append(' ').append(request.getTag()).append(' ').append(request.getCommand().getName());
+		}
+		if (message instanceof StatusResponse) {
+			StatusResponse response = (StatusResponse) message;
+			sb.append(' ').append(response.getTag()).append(' ').append(response.getServerResponseType());
+		} else if (message instanceof FetchRequest) {
+			FetchRequest fetch = (FetchRequest) message;
+			FetchData data = fetch.getFetch();
+			sb.append(" uids=").append(fetch.isUseUids()).append(' ');
+			describe(fetch.getIdSet(), sb);
+			sb.append(" flags=").append(data.isFlags()).append(" uid=").append(data.isUid()).append(" internalDate=").append(data.isInternalDate())
+				.append(" size=").append(data.isSize()).append(" envelope=").append(data.isEnvelope()).append(" body=").append(data.isBody())
+				.append(" bodyStructure=").append(data.isBodyStructure()).append(" setSeen=").append(data.isSetSeen())
+				.append(" elements=").append(data.getBodyElements().size())
+				.append(" changedSince=").append(data.getChangedSince()).append(" vanished=").append(data.getVanished());
+		} else if (message instanceof StoreRequest) {
+			StoreRequest store = (StoreRequest) message;
+			sb.append(" uids=").append(store.isUseUids()).append(' ');
+			describe(store.getIdSet(), sb);
+			sb.append(" silent=").append(store.isSilent()).append(" plus=").append(store.isSignedPlus())
+				.append(" minus=").append(store.isSignedMinus()).append(" unchangedSince=").append(store.getUnchangedSince());
+			// Flags.toString() depends on the order of adding.
+			sb.append(" system=").append(Arrays.toString(store.getFlags().getSystemFlags()));
+			String[] userFlags = store.getFlags().getUserFlags();
+			Arrays.sort(userFlags);
+			sb.append(" user=").append(Arrays.toString(userFlags));
+		} else if (message instanceof SearchRequest) {
+			SearchRequest search = (SearchRequest) message;
+			SearchOperation operation = search.getSearchOperation();
+			sb.append(" uids=").append(search.isUseUids()).append(' ').append(operation.getSearchKey())
+				.append(' ').append(operation.getResultOptions());
+		}
+	}
+
+	private static void describe(IdRange[] idSet, StringBuilder sb) {
+
+		sb.append('[');
+		for (IdRange range : idSet) {
+			sb.append(range.getLowVal()).append(':').append(range.getHighVal()).append(',');
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * @return a random line, mostly variations of the recognized commands including syntax that must be left to the default decoder.
+	 */
+	private static String line(Random random) {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(pick(random, TAGS)).append(' ');
+		String command = pick(random, COMMANDS);
+		sb.append(command);
+		String upper = command.toUpperCase();
+		if (upper.endsWith("FETCH")) {
+			sb.append(' ').append(sequenceSet(random)).append(' ');
+			if (random.nextInt(5) == 0) {
+				sb.append(pick(random, FETCH_MACROS));
+			} else if (random.nextInt(5) == 0) {
+				sb.append(pick(random, FETCH_ITEMS));
+			} else {
+				sb.append('(');
+				int items = 1 + random.nextInt(5);
+				for (int i = 0; i < items; i++) {
+					sb.append(i > 0 ? " " : "").append(pick(random, FETCH_ITEMS));
+				}
+				sb.append(')');
+			}
+			if (random.nextInt(3) == 0) {
+				sb.append(" (CHANGEDSINCE ").append(modSeq(random)).append(random.nextBoolean() ? " VANISHED)" : ")");
+			}
+		} else if (upper.endsWith("STORE")) {
+			sb.append(' ').append(sequenceSet(random)).append(' ');
+			if (random.nextInt(4) == 0) {
+				sb.append("(UNCHANGEDSINCE ").append(modSeq(random)).append(") ");
+			}
+			sb.append(random.nextInt(3) == 0 ? "" : random.nextBoolean() ? "+" : "-");
+			sb.append(random.nextBoolean() ? "FLAGS" : "FLAGS.SILENT").append(' ');
+			int flags = random.nextInt(4);
+			boolean parenthesized = (flags == 0 || random.nextInt(5) > 0);
+			sb.append(parenthesized ? "(" : "");
+			for (int i = 0; i < flags; i++) {
+				sb.append(i > 0 ? " " : "").append(pick(random, FLAGS));
+			}
+			sb.append(parenthesized ? ")" : "");
+		} else if (upper.endsWith("SEARCH")) {
+			int keys = 1 + random.nextInt(3);
+			for (int i = 0; i < keys; i++) {
+				sb.append(' ').append(random.nextInt(4) == 0 ? "UID " + sequenceSet(random) : pick(random, SEARCH_KEYS));
+			}
+		}
+		if (random.nextInt(50) == 0) {
+			// Trailing garbage or a missing argument.
+			if (random.nextBoolean()) {
+				sb.append(" x");
+			} else {
+				sb.setLength(sb.length() - 1);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String sequenceSet(Random random) {
+
+		StringBuilder sb = new StringBuilder();
+		int ranges = 1 + random.nextInt(4);
+		for (int i = 0; i < ranges; i++) {
+			sb.append(i > 0 ? "," : "");
+			int form = random.nextInt(20);
+			if (form == 0) {
+				sb.append('*');
+			} else if (form == 1) {
+				sb.append("$");
+			} else if (form == 2) {
+				sb.append("0").append(random.nextInt(10));
+			} else if (form == 3) {
+				sb.append(number(random)).append(":*");
+			} else if (form == 4) {
+				sb.append("4294967296");
+			} else if (form < 12) {
+				sb.append(number(random)).append(':').append(number(random));
+			} else {
+				sb.append(number(random));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static long number(Random random) {
+		return 1L + (random.nextBoolean() ? random.nextInt(20) : random.nextInt(Integer.MAX_VALUE) * 2L);
+	}
+
+	private static long modSeq(Random random) {
+		return (random.nextInt(10) == 0 ? 0L : 1L + (random.nextLong() >>> 2) % (random.nextBoolean() ? 1000L : Long.MAX_VALUE / 4L));
+	}
+
+	private static String pick(Random random, String[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+}
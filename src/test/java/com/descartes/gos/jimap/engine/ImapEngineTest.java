@@ -0,0 +1,173 @@
+package com.descartes.gos.jimap.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.descartes.gos.jimap.JimapSession;
+
+/**
+ * Tests of {@link ImapEngine} with the default chain and an in-memory mailbox:
+ * the commands of {@link com.descartes.gos.jimap.TestCommands}, IDLE updates and disabled capabilities.
+ */
+public class ImapEngineTest {
+
+	private static final byte[] MESSAGE = "Subject: test\r\n\r\nHello\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private static ImapEngine engine;
+
+	@BeforeClass
+	public static void buildEngine() throws Exception {
+		engine = ImapEngine.builder().build();
+	}
+
+	@AfterClass
+	public static void closeEngine() throws Exception {
+		engine.close();
+	}
+
+	private static CommandResults execute(ImapEngine engine, JimapSession session, String... lines) {
+
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append("\r\n");
+		}
+		CommandResults results = new CommandResults();
+		engine.execute(session, ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.US_ASCII)), results);
+		return results;
+	}
+
+	private static String text(ByteBuffer response) {
+
+		byte[] bytes = new byte[response.remaining()];
+		response.get(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private static List<String> untagged(CommandResults results, int command) {
+
+		List<String> responses = new ArrayList<String>();
+		for (int i = 0; i < results.getUntaggedCount(command); i++) {
+			responses.add(text(results.getUntagged(command, i)));
+		}
+		return responses;
+	}
+
+	private static boolean startsWith(List<String> responses, String prefix) {
+
+		for (String response : responses) {
+			if (response.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String append(String tag) {
+		return tag + " APPEND INBOX {" + MESSAGE.length + "+}\r\n" + new String(MESSAGE, StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void clientCommands() {
+
+		JimapSession session = engine.openSession();
+		try {
+			CommandResults results = execute(engine, session, "A001 LOGIN mrc secret", "A002 SELECT \"INBOX\"", "A153 SEARCH NOT Deleted",
+					"A164 EXPUNGE", "A003 NOOP", "A004 LOGOUT");
+			assertEquals(6, results.getCommandCount());
+			for (int i = 0; i < 5; i++) {
+				assertEquals("command " + i, CommandResults.Status.OK, results.getStatus(i));
+			}
+			assertTrue(text(results.getTagged(0)).startsWith("A001 OK"));
+
+			List<String> select = untagged(results, 1);
+			assertTrue(select.contains("* FLAGS (\\Answered \\Deleted \\Draft \\Flagged \\Seen)"));
+			assertTrue(select.contains("* 0 EXISTS"));
+			assertTrue(select.contains("* 0 RECENT"));
+			assertTrue(startsWith(select, "* OK [UIDVALIDITY "));
+			assertTrue(startsWith(select, "* OK [PERMANENTFLAGS "));
+			assertTrue(startsWith(select, "* OK [UIDNEXT 1]"));
+			assertTrue(text(results.getTagged(1)).startsWith("A002 OK [READ-WRITE]"));
+
+			assertEquals("* SEARCH", untagged(results, 2).get(0).trim());
+			assertEquals(0, results.getUntaggedCount(3));
+			assertTrue(startsWith(untagged(results, 5), "* BYE"));
+			assertEquals(CommandResults.Status.OK, results.getStatus(5));
+			assertTrue(results.isSessionEnded());
+		} finally {
+			engine.closeSession(session);
+		}
+	}
+
+	/**
+	 * Updates of an idling session are written to the results of the next execute.
+	 */
+	@Test
+	public void idleUpdates() {
+
+		JimapSession idling = engine.openSession();
+		JimapSession other = engine.openSession();
+		try {
+			CommandResults results = execute(engine, idling, "i1 LOGIN idler secret", "i2 SELECT INBOX", "i3 IDLE");
+			assertEquals(CommandResults.Status.NONE, results.getStatus(2));
+			assertTrue(untagged(results, 2).get(0).startsWith("+ "));
+
+			results = execute(engine, other, "o1 LOGIN idler secret", append("o2"));
+			assertEquals(CommandResults.Status.OK, results.getStatus(1));
+
+			// No commands, the update is a result without tagged response.
+			results = execute(engine, idling);
+			assertEquals(1, results.getCommandCount());
+			assertEquals(CommandResults.Status.NONE, results.getStatus(0));
+			assertTrue(untagged(results, 0).contains("* 1 EXISTS"));
+
+			results = execute(engine, other, append("o3"));
+			assertEquals(CommandResults.Status.OK, results.getStatus(0));
+			results = execute(engine, idling, "DONE", "i4 NOOP");
+			assertEquals(2, results.getCommandCount());
+			assertTrue(untagged(results, 0).contains("* 2 EXISTS"));
+			// DONE has no tag of its own, the completion of IDLE is an untagged line of its results.
+			assertTrue(startsWith(untagged(results, 0), "i3 OK"));
+			assertEquals(CommandResults.Status.OK, results.getStatus(1));
+		} finally {
+			engine.closeSession(idling);
+			engine.closeSession(other);
+		}
+	}
+
+	/**
+	 * The commands of a disabled capability are not known to the chain.
+	 */
+	@Test
+	public void disabledCapabilities() throws Exception {
+
+		ImapEngine limited = ImapEngine.builder().disableCapability("IDLE").disableCapability("qresync").build();
+		JimapSession session = limited.openSession();
+		try {
+			CommandResults results = execute(limited, session, "c1 CAPABILITY", "c2 LOGIN mrc secret", "c3 SELECT INBOX (QRESYNC (1 1))",
+					"c4 SELECT INBOX (CONDSTORE)", "c5 IDLE", "c6 NOOP");
+			String capabilities = untagged(results, 0).get(0);
+			assertTrue(capabilities.startsWith("* CAPABILITY "));
+			assertFalse(capabilities.contains(" IDLE"));
+			assertFalse(capabilities.contains("QRESYNC"));
+			assertTrue(capabilities.contains("CONDSTORE"));
+			assertEquals(CommandResults.Status.BAD, results.getStatus(2));
+			assertEquals(CommandResults.Status.OK, results.getStatus(3));
+			assertEquals(CommandResults.Status.BAD, results.getStatus(4));
+			assertEquals(CommandResults.Status.OK, results.getStatus(5));
+		} finally {
+			limited.closeSession(session);
+			limited.close();
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.descartes.gos.jimap.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link MailboxIndex}: flag, keyword, term, date and size sets of added, updated and deleted messages.
+ */
+public class MailboxIndexTest {
+
+	private MailboxIndex index;
+
+	@Before
+	public void createIndex() {
+		index = new MailboxIndex(new HashSet<String>(Arrays.asList("SUBJECT", "FROM")), true);
+	}
+
+	private static SimpleMessage<Long> message(long uid, long internalDate, Flags flags, String subject, String body) {
+
+		String header = "From: Alice <alice@example.com>\r\nSubject: " + subject + "\r\nX-Mailer: test\r\n\r\n";
+		byte[] content = (header + body).getBytes(StandardCharsets.US_ASCII);
+		SimpleMessage<Long> message = new SimpleMessage<Long>(new Date(internalDate), content.length, header.length(),
+				new SharedByteArrayInputStream(content), flags, new PropertyBuilder(), 1L);
+		message.setUid(uid);
+		return message;
+	}
+
+	private static Flags flags(Flags.Flag flag, String... keywords) {
+
+		Flags flags = (flag == null ? new Flags() : new Flags(flag));
+		for (String keyword : keywords) {
+			flags.add(keyword);
+		}
+		return flags;
+	}
+
+	private static void assertUids(UidSet actual, long... expected) {
+		assertArrayEquals(expected, actual.toArray());
+	}
+
+	private void addMessages() {
+
+		index.add(message(1L, 1000L, flags(Flags.Flag.SEEN), "Quarterly report", "Hello world"));
+		index.add(message(2L, 2000L, flags(Flags.Flag.FLAGGED), "Lunch", "See you at noon"));
+		index.add(message(3L, 3000L, flags(Flags.Flag.SEEN), "Report draft", "hello again"));
+		// Indexed once.
+		index.add(message(3L, 3000L, flags(null), "Other", "Other"));
+		// The messages of the store only have system flags, keywords are set by updates.
+		index.update(MessageRange.one(1L), flags(Flags.Flag.SEEN, "$Label1"));
+		index.update(MessageRange.one(3L), flags(Flags.Flag.SEEN, "$label1", "Work"));
+	}
+
+	@Test
+	public void flagsAndKeywords() {
+
+		addMessages();
+		assertUids(index.all(), 1L, 2L, 3L);
+		assertUids(index.flag(Flags.Flag.SEEN), 1L, 3L);
+		assertUids(index.flag(Flags.Flag.FLAGGED), 2L);
+		assertUids(index.flag(Flags.Flag.DELETED));
+		assertUids(index.keyword("$LABEL1"), 1L, 3L);
+		assertUids(index.keyword("work"), 3L);
+		assertUids(index.keyword("unknown"));
+
+		index.update(MessageRange.range(2L, 3L), flags(Flags.Flag.DELETED, "Work"));
+		assertUids(index.flag(Flags.Flag.SEEN), 1L);
+		assertUids(index.flag(Flags.Flag.DELETED), 2L, 3L);
+		assertUids(index.keyword("$Label1"), 1L);
+		assertUids(index.keyword("Work"), 2L, 3L);
+		index.update(MessageRange.all(), flags(null));
+		assertUids(index.keyword("Work"));
+		assertUids(index.flag(Flags.Flag.DELETED));
+	}
+
+	@Test
+	public void terms() {
+
+		addMessages();
+		assertTrue(index.isIndexed("SUBJECT"));
+		assertFalse(index.isIndexed("X-MAILER"));
+		assertTrue(index.isIndexed(MailboxIndex.BODY));
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("report")), 1L, 3L);
+		// First term as suffix, last term as prefix of a term.
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("rly rep")), 1L);
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("unch")), 2L);
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("budget")));
+		assertUids(index.terms("FROM", Terms.headerQuery("alice@example")), 1L, 2L, 3L);
+		assertUids(index.terms(MailboxIndex.BODY, Terms.bodyQuery("HELLO")), 1L, 3L);
+		assertUids(index.field("X-MAILER"), 1L, 2L, 3L);
+		assertUids(index.field("CC"));
+	}
+
+	@Test
+	public void termsTooLongToIndex() {
+
+		char[] term = new char[Terms.MAX_TERM_LENGTH + 1];
+		Arrays.fill(term, 'x');
+		index.add(message(1L, 1000L, flags(null), new String(term), "short"));
+		index.add(message(2L, 1000L, flags(null), "short", "short"));
+		// Searched without the index.
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("anything")), 1L);
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("short")), 1L, 2L);
+	}
+
+	@Test
+	public void datesAndSizes() {
+
+		addMessages();
+		assertUids(index.internalDate(1500L, 3000L), 2L, 3L);
+		assertUids(index.internalDate(0L, 999L));
+		assertUids(index.internalDate(Long.MIN_VALUE, Long.MAX_VALUE), 1L, 2L, 3L);
+		assertUids(index.size(0L, Long.MAX_VALUE), 1L, 2L, 3L);
+		assertUids(index.size(0L, 10L));
+	}
+
+	/**
+	 * Dates and sizes appended out of order while building are sorted once, messages added later are inserted in order.
+	 */
+	@Test
+	public void build() {
+
+		index.append(message(1L, 3000L, flags(null), "a", "a"));
+		index.append(message(2L, 1000L, flags(null), "b", "bbbbbbbbbb"));
+		index.append(message(3L, 2000L, flags(null), "c", "cccccc"));
+		index.append(message(4L, 1000L, flags(null), "d", "d"));
+		index.built();
+		index.add(message(5L, 1500L, flags(null), "e", "eeeeeeeeeeeeeeeeeeee"));
+		assertUids(index.internalDate(1000L, 1000L), 2L, 4L);
+		assertUids(index.internalDate(1001L, 2000L), 3L, 5L);
+		assertUids(index.internalDate(2001L, Long.MAX_VALUE), 1L);
+		// Headers of 63 bytes.
+		assertUids(index.size(0L, 64L), 1L, 4L);
+		assertUids(index.size(65L, 70L), 3L);
+		assertUids(index.size(80L, Long.MAX_VALUE), 5L);
+	}
+
+	@Test
+	public void delete() {
+
+		addMessages();
+		index.delete(MessageRange.one(1L));
+		assertUids(index.all(), 2L, 3L);
+		assertUids(index.flag(Flags.Flag.SEEN), 3L);
+		assertUids(index.keyword("$Label1"), 3L);
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("report")), 3L);
+		assertUids(index.terms(MailboxIndex.BODY, Terms.bodyQuery("hello")), 3L);
+		assertUids(index.field("SUBJECT"), 2L, 3L);
+		assertUids(index.internalDate(Long.MIN_VALUE, Long.MAX_VALUE), 2L, 3L);
+		assertUids(index.uids(MessageRange.from(2L)), 2L, 3L);
+
+		index.delete(MessageRange.all());
+		assertUids(index.all());
+		assertUids(index.keyword("Work"));
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("report")));
+		assertUids(index.size(0L, Long.MAX_VALUE));
+	}
+
+	/**
+	 * Expunged UIDs are removed from the term sets once there are more of them than messages in the index.
+	 */
+	@Test
+	public void compaction() {
+
+		for (long uid = 1L; uid <= 2100L; uid++) {
+			index.add(message(uid, uid, flags(null), "Subject " + uid, "body"));
+		}
+		index.delete(MessageRange.range(1L, 2000L));
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("subject 2050")), 2050L);
+		assertUids(index.field("SUBJECT").range(0L, 2000L));
+		index.add(message(1L, 1L, flags(null), "Again", "body"));
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("again")), 1L);
+		assertUids(index.terms("SUBJECT", Terms.headerQuery("subject 1")).range(0L, 1L));
+		assertUids(index.terms("SUBJECT", Collections.singletonList("SUBJECT")).range(0L, 2000L));
+	}
+
+}
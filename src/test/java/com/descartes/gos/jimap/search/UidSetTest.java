@@ -0,0 +1,175 @@
+package com.descartes.gos.jimap.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link UidSet}, compared with a {@link TreeSet} of the same UIDs.
+ */
+public class UidSetTest {
+
+	private static long[] toArray(TreeSet<Long> uids) {
+
+		long[] array = new long[uids.size()];
+		int i = 0;
+		for (Long uid : uids) {
+			array[i++] = uid;
+		}
+		return array;
+	}
+
+	private static void assertUids(TreeSet<Long> expected, UidSet actual) {
+
+		assertEquals(expected.size(), actual.cardinality());
+		assertEquals(expected.isEmpty(), actual.isEmpty());
+		assertArrayEquals(toArray(expected), actual.toArray());
+	}
+
+	/**
+	 * @param density chance (per 1000) that a UID in a group of 65536 is in the set,
+	 * above 62 most groups are stored as bitmaps.
+	 */
+	private static TreeSet<Long> random(Random random, int groups, int density) {
+
+		TreeSet<Long> uids = new TreeSet<Long>();
+		for (int g = 0; g < groups; g++) {
+			if (random.nextInt(4) == 0) {
+				continue;
+			}
+			long base = ((long) g) << 16;
+			for (int low = 0; low < 0x10000; low++) {
+				if (random.nextInt(1000) < density) {
+					uids.add(base + low);
+				}
+			}
+		}
+		return uids;
+	}
+
+	private static UidSet of(TreeSet<Long> uids) {
+
+		long[] array = toArray(uids);
+		return UidSet.of(array, array.length);
+	}
+
+	@Test
+	public void addRemoveContains() {
+
+		UidSet set = new UidSet();
+		assertTrue(set.isEmpty());
+		assertTrue(set.add(5L));
+		assertFalse(set.add(5L));
+		assertTrue(set.add(0x10000L));
+		assertTrue(set.add(0xFFFFFFFFL));
+		assertTrue(set.contains(5L));
+		assertFalse(set.contains(6L));
+		assertTrue(set.contains(0xFFFFFFFFL));
+		assertArrayEquals(new long[] { 5L, 0x10000L, 0xFFFFFFFFL }, set.toArray());
+		assertTrue(set.remove(0x10000L));
+		assertFalse(set.remove(0x10000L));
+		assertFalse(set.remove(7L));
+		assertArrayEquals(new long[] { 5L, 0xFFFFFFFFL }, set.toArray());
+		assertTrue(set.remove(5L));
+		assertTrue(set.remove(0xFFFFFFFFL));
+		assertTrue(set.isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeUid() {
+		new UidSet().add(-1L);
+	}
+
+	/**
+	 * Groups change from array to bitmap when they get more than 4096 UIDs and back when they get fewer.
+	 */
+	@Test
+	public void arrayAndBitmapGroups() {
+
+		Random random = new Random(1L);
+		UidSet set = new UidSet();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		for (int i = 0; i < 20000; i++) {
+			long uid = 0x10000L + random.nextInt(8000);
+			assertEquals(expected.add(uid), set.add(uid));
+		}
+		assertUids(expected, set);
+		for (int i = 0; i < 20000; i++) {
+			long uid = 0x10000L + random.nextInt(8000);
+			assertEquals(expected.remove(uid), set.remove(uid));
+			assertEquals(expected.contains(uid + 1L), set.contains(uid + 1L));
+		}
+		assertUids(expected, set);
+	}
+
+	@Test
+	public void setOperations() {
+
+		Random random = new Random(2L);
+		int[] densities = new int[] { 0, 1, 30, 100, 900, 1000 };
+		for (int a : densities) {
+			for (int b : densities) {
+				TreeSet<Long> left = random(random, 4, a);
+				TreeSet<Long> right = random(random, 4, b);
+				UidSet leftSet = of(left);
+				UidSet rightSet = of(right);
+				assertUids(left, leftSet);
+
+				TreeSet<Long> and = new TreeSet<Long>(left);
+				and.retainAll(right);
+				assertUids(and, leftSet.and(rightSet));
+				TreeSet<Long> or = new TreeSet<Long>(left);
+				or.addAll(right);
+				assertUids(or, leftSet.or(rightSet));
+				TreeSet<Long> andNot = new TreeSet<Long>(left);
+				andNot.removeAll(right);
+				assertUids(andNot, leftSet.andNot(rightSet));
+				// Arguments are not changed.
+				assertUids(left, leftSet);
+				assertUids(right, rightSet);
+			}
+		}
+	}
+
+	@Test
+	public void range() {
+
+		Random random = new Random(3L);
+		TreeSet<Long> uids = random(random, 3, 100);
+		uids.addAll(random(random, 3, 2));
+		UidSet set = of(uids);
+		long[][] ranges = new long[][] { { 0L, Long.MAX_VALUE }, { 1L, 1L }, { 0x10000L, 0x1FFFFL }, { 0xFFFFL, 0x10000L },
+			{ 100L, 0x20010L }, { 0x20000L, Long.MAX_VALUE }, { 5L, 4L }, { -10L, 10L }, { 0x30000L, 0x40000L } };
+		for (long[] range : ranges) {
+			TreeSet<Long> expected = new TreeSet<Long>();
+			if (range[0] <= range[1]) {
+				expected.addAll(uids.subSet(range[0], true, range[1], true));
+			}
+			assertUids(expected, set.range(range[0], range[1]));
+		}
+		assertUids(uids, set);
+	}
+
+	@Test
+	public void copyAndIterator() {
+
+		TreeSet<Long> uids = random(new Random(4L), 2, 200);
+		UidSet set = of(uids);
+		UidSet copy = set.copy();
+		copy.add(0x50000L);
+		assertUids(uids, set);
+		Iterator<Long> it = set.iterator();
+		for (Long uid : uids) {
+			assertEquals(uid, it.next());
+		}
+		assertFalse(it.hasNext());
+	}
+
+}
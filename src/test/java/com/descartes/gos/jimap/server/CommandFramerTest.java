@@ -0,0 +1,249 @@
+package com.descartes.gos.jimap.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.james.imap.decode.SpilledLiteral;
+import org.junit.Test;
+
+/**
+ * Tests of {@link CommandFramer}: bytes are received in parts by appending them to a buffer (position 0).
+ */
+public class CommandFramerTest {
+
+	private final ByteBuffer buf = ByteBuffer.allocate(1024);
+
+	public CommandFramerTest() {
+		buf.limit(0);
+	}
+
+	private static CommandFramer framer() {
+		return new CommandFramer(100, 1000L, -1L, null);
+	}
+
+	private static CommandFramer spillingFramer() {
+		return new CommandFramer(100, 1000L, 4L, null);
+	}
+
+	private void receive(String data) {
+
+		byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+		int limit = buf.limit();
+		buf.limit(limit + bytes.length);
+		ByteBuffer target = buf.duplicate();
+		target.position(limit);
+		target.put(bytes);
+	}
+
+	private String received() {
+
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private static String read(SpilledLiteral literal) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = literal.getInputStream();
+		int b;
+		while ((b = in.read()) >= 0) {
+			out.write(b);
+		}
+		return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void commandInParts() throws IOException {
+
+		CommandFramer framer = framer();
+		receive("a NO");
+		assertEquals(-1, framer.next(buf));
+		assertTrue(framer.isPartial());
+		receive("OP\r\nb NOOP\r\n");
+		assertEquals(8, framer.next(buf));
+		assertFalse(framer.isPartial());
+		assertNull(framer.takeSpilled());
+		buf.position(8);
+		assertEquals(8, framer.next(buf));
+	}
+
+	@Test
+	public void synchronizingLiteral() throws IOException {
+
+		CommandFramer framer = framer();
+		receive("a APPEND INBOX {7}\r\n");
+		assertEquals(-1, framer.next(buf));
+		assertTrue(framer.isContinuationRequested());
+		assertFalse(framer.isContinuationRequested());
+		// Line-ends and literals in the literal data are not scanned.
+		receive("x{2}\r\n\n");
+		assertEquals(-1, framer.next(buf));
+		assertFalse(framer.isContinuationRequested());
+		receive("\r\n");
+		assertEquals(29, framer.next(buf));
+	}
+
+	@Test
+	public void emptySynchronizingLiteral() throws IOException {
+
+		CommandFramer framer = framer();
+		receive("a LOGIN {0}\r\n");
+		assertEquals(-1, framer.next(buf));
+		assertTrue(framer.isContinuationRequested());
+		receive(" {0}\r\n");
+		assertEquals(-1, framer.next(buf));
+		assertTrue(framer.isContinuationRequested());
+		receive("\r\n");
+		assertEquals(21, framer.next(buf));
+		assertFalse(framer.isContinuationRequested());
+	}
+
+	@Test
+	public void nonSynchronizingLiterals() throws IOException {
+
+		CommandFramer framer = framer();
+		receive("a LOGIN {4+}\r\nuser {0+}\r\n");
+		assertEquals(-1, framer.next(buf));
+		assertFalse(framer.isContinuationRequested());
+		receive("\r\n");
+		assertEquals(27, framer.next(buf));
+	}
+
+	@Test
+	public void notALiteral() throws IOException {
+
+		CommandFramer framer = framer();
+		receive("a SEARCH SUBJECT {x}\r\n");
+		assertEquals(22, framer.next(buf));
+		assertFalse(framer.isContinuationRequested());
+	}
+
+	@Test
+	public void lineTooLong() {
+
+		CommandFramer framer = framer();
+		StringBuilder sb = new StringBuilder("a NOOP ");
+		while (sb.length() <= 101) {
+			sb.append('x');
+		}
+		receive(sb.toString());
+		try {
+			framer.next(buf);
+			fail("Line length not checked");
+		} catch (IOException expected) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void literalTooLarge() {
+
+		CommandFramer framer = framer();
+		receive("a APPEND INBOX {1001}\r\n");
+		try {
+			framer.next(buf);
+			fail("Literal size not checked");
+		} catch (IOException expected) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void spill() throws IOException {
+
+		CommandFramer framer = spillingFramer();
+		// Literals up to the threshold stay in the buffer.
+		receive("a APPEND INBOX {4}\r\nabcd\r\n");
+		assertEquals(26, framer.next(buf));
+		assertNull(framer.takeSpilled());
+		buf.position(26);
+		buf.compact().flip();
+
+		receive("a APPEND INBOX {10}\r\n01234");
+		assertEquals(-1, framer.next(buf));
+		assertTrue(framer.isContinuationRequested());
+		assertEquals(21, buf.limit());
+		receive("56789\r\nb NOOP\r\n");
+		assertEquals(23, framer.next(buf));
+		assertEquals("a APPEND INBOX {10}\r\n\r\nb NOOP\r\n", received());
+		SpilledLiteral[] spilled = framer.takeSpilled();
+		assertEquals(1, spilled.length);
+		assertNull(framer.takeSpilled());
+		try {
+			assertEquals(21, spilled[0].getOffset());
+			assertEquals(10L, spilled[0].size());
+			assertEquals(0L, spilled[0].remaining());
+			assertEquals("0123456789", read(spilled[0]));
+		} finally {
+			CommandFramer.closeQuietly(spilled);
+		}
+	}
+
+	@Test
+	public void rewindReusesSpilledLiterals() throws IOException {
+
+		CommandFramer framer = spillingFramer();
+		receive("a APPEND INBOX {5}\r\nhello\r\nb APPEND INBOX {6+}\r\nwor");
+		assertEquals(22, framer.next(buf));
+		SpilledLiteral[] first = framer.takeSpilled();
+		buf.position(22);
+		assertEquals(-1, framer.next(buf));
+		assertTrue(framer.isPartial());
+
+		// The first command was not executed, frame both again: the spilled data is no longer in the buffer.
+		framer.rewind(new SpilledLiteral[][] { first }, 0, 1);
+		assertFalse(framer.isPartial());
+		buf.position(0);
+		assertEquals(22, framer.next(buf));
+		SpilledLiteral[] again = framer.takeSpilled();
+		assertSame(first[0], again[0]);
+		buf.position(22);
+		receive("ld!\r\n");
+		assertEquals(23, framer.next(buf));
+		SpilledLiteral[] second = framer.takeSpilled();
+		try {
+			assertNotNull(second);
+			assertEquals("hello", read(again[0]));
+			assertEquals("world!", read(second[0]));
+			buf.position(0);
+			assertEquals("a APPEND INBOX {5}\r\n\r\nb APPEND INBOX {6+}\r\n\r\n", received());
+		} finally {
+			CommandFramer.closeQuietly(again);
+			CommandFramer.closeQuietly(second);
+		}
+	}
+
+	@Test
+	public void rewindChecksSpilledLiterals() throws IOException {
+
+		CommandFramer framer = spillingFramer();
+		receive("a APPEND INBOX {5}\r\nhello\r\n");
+		assertEquals(22, framer.next(buf));
+		SpilledLiteral[] spilled = framer.takeSpilled();
+		framer.rewind(new SpilledLiteral[][] { spilled }, 0, 1);
+		// Bytes that differ from the ones framed before.
+		buf.clear().limit(0);
+		receive("a APPEND INBOX {6}\r\n");
+		try {
+			framer.next(buf);
+			fail("Literal of a different size re-used");
+		} catch (IOException expected) {
+			// Expected, the literal was closed.
+		} finally {
+			framer.close();
+		}
+	}
+
+}